@@ -41,6 +41,7 @@ public class CryptotraderImpl implements Cryptotrader {
             bind(PropertyManager.class).to(PropertyController.class).asEagerSingleton();
             bind(ServiceFactory.class).to(ServiceFactoryImpl.class).asEagerSingleton();
             bind(ExecutorFactory.class).to(ExecutorFactoryImpl.class).asEagerSingleton();
+            bind(MarketBus.class).to(MarketBusImpl.class).asEagerSingleton();
 
             bind(Context.class).to(ContextImpl.class).asEagerSingleton();
             bind(Estimator.class).to(EstimatorImpl.class).asEagerSingleton();
@@ -86,6 +87,8 @@ public class CryptotraderImpl implements Cryptotrader {
 
         closeQuietly(Context.class);
 
+        closeQuietly(MarketBus.class);
+
         closeQuietly(ExecutorFactory.class);
 
         log.info("Shutdown complete.");
@@ -1,5 +1,6 @@
 package com.after_sunrise.cryptocurrency.cryptotrader.core;
 
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.MarketBus;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
@@ -31,6 +32,8 @@ public class ServiceFactoryImpl implements ServiceFactory {
 
                 bind(ImmutableConfiguration.class).toInstance(c);
 
+                bind(MarketBus.class).toInstance(injector.getInstance(MarketBus.class));
+
             }
         });
 
@@ -6,11 +6,16 @@ import lombok.*;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import static lombok.AccessLevel.PRIVATE;
 
@@ -71,6 +76,24 @@ public interface Context extends Service, AutoCloseable {
 
     }
 
+    /**
+     * Aggregates of the trades in a period, excluding the trades without price or size.
+     */
+    @Getter
+    @Builder
+    @ToString
+    @EqualsAndHashCode
+    @AllArgsConstructor(access = PRIVATE)
+    class TradeSummary {
+
+        private final long count;
+
+        private final BigDecimal size;
+
+        private final BigDecimal notional;
+
+    }
+
     enum StateType {
 
         /**
@@ -115,6 +138,42 @@ public interface Context extends Service, AutoCloseable {
 
     List<Trade> listTrades(Key key, Instant fromTime);
 
+    /**
+     * Prices of the trades collapsed into the buckets of the interval, as in the trades listed, if the context
+     * maintains them incrementally. Returns null otherwise, for the caller to collapse the trades listed.
+     */
+    NavigableMap<Instant, BigDecimal> collapsePrices(Key key, Duration interval, Instant from, Instant to, boolean sum);
+
+    /**
+     * The trade with the latest timestamp after the time, empty if none. Returns null if not available, for the caller
+     * to find in the trades listed.
+     */
+    Optional<Trade> findLastTrade(Key key, Instant fromTime);
+
+    /**
+     * Aggregates of the trades in (fromTime, toTime], without the upper bound if null, with zero count if none.
+     * Returns null if not available.
+     */
+    TradeSummary summarizeTrades(Key key, Instant fromTime, Instant toTime);
+
+    /**
+     * Visits the trades in (fromTime, toTime], without the upper bound if null, in the order as listed.
+     * Returns false if not available, without visiting any.
+     */
+    boolean visitTrades(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor);
+
+    /**
+     * Visits the trades in (fromTime, toTime] kept locally, such as in the tapes and the journals, without querying
+     * the exchange. Returns false if not kept, without visiting any.
+     */
+    boolean visitHistory(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor);
+
+    /**
+     * Imports the trades exported in the file, relative to the directory of the imports, into the store of the trades,
+     * deduplicated by the IDs. Returns the number of the trades added, or null if not available.
+     */
+    Long importTrades(Key key, Path path);
+
     CurrencyType getInstrumentCurrency(Key key);
 
     CurrencyType getFundingCurrency(Key key);
@@ -0,0 +1,70 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.framework;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * In-process bus of the market data events, from the feeds of the contexts to many consumers.
+ *
+ * The publishers never block : an event is dropped if the slowest reader is a full buffer behind. The readers
+ * receive the events in the order of the sequence, in batches of the events available at the time.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public interface MarketBus extends AutoCloseable {
+
+    interface Handler {
+
+        /**
+         * Called for each event, with the flag on the last event of the batch available at the time.
+         */
+        void onEvent(MarketEvent event, long sequence, boolean endOfBatch) throws Exception;
+
+    }
+
+    interface Reader extends AutoCloseable {
+
+        /**
+         * Sequence of the last event consumed.
+         */
+        long getSequence();
+
+        /**
+         * Consumes the events available, up to the limit, and returns the number of the events consumed.
+         * Must be called from a single thread at a time.
+         */
+        int poll(Handler handler, int limit);
+
+        /**
+         * Stops gating the publishers, and the subscription thread if any.
+         */
+        @Override
+        void close();
+
+    }
+
+    boolean publishTick(String site, String instrument, Instant timestamp, BigDecimal last,
+                        BigDecimal askPrice, BigDecimal askSize, BigDecimal bidPrice, BigDecimal bidSize);
+
+    boolean publishBook(String site, String instrument, Instant timestamp,
+                        BigDecimal askPrice, BigDecimal askSize, BigDecimal bidPrice, BigDecimal bidSize);
+
+    boolean publishTrade(String site, String instrument, Instant timestamp, BigDecimal price, BigDecimal size);
+
+    /**
+     * Creates a reader, which receives the events published after this call, to be polled by the caller.
+     */
+    Reader reader();
+
+    /**
+     * Creates a reader, which is polled by a dedicated thread until closed.
+     */
+    Reader subscribe(String name, Handler handler);
+
+    /**
+     * Number of the events dropped due to the slow readers.
+     */
+    long getDropped();
+
+}
@@ -0,0 +1,62 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.framework;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * Normalized market data event, published by the contexts to the {@link MarketBus}.
+ *
+ * The instances are pre-allocated slots of the bus, which are reused for the subsequent events. The consumers
+ * should copy the values needed, instead of retaining the instance outside of the callback.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public interface MarketEvent {
+
+    enum Type {
+
+        /**
+         * Ticker update, with the last price and the best levels. (Fields may be null if not available.)
+         */
+        TICK,
+
+        /**
+         * Order book update, with the best levels.
+         */
+        BOOK,
+
+        /**
+         * Trade print, with the price and the size.
+         */
+        TRADE
+
+    }
+
+    Type getType();
+
+    /**
+     * Site ID of the context.
+     */
+    String getSite();
+
+    /**
+     * Product code of the site, which may differ from the instrument alias of the requests.
+     */
+    String getInstrument();
+
+    Instant getTimestamp();
+
+    BigDecimal getPrice();
+
+    BigDecimal getSize();
+
+    BigDecimal getAskPrice();
+
+    BigDecimal getAskSize();
+
+    BigDecimal getBidPrice();
+
+    BigDecimal getBidSize();
+
+}
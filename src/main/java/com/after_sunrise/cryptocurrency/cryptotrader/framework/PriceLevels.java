@@ -0,0 +1,290 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.framework;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Immutable price levels of one side of an order book, sorted from the best price.
+ *
+ * The levels are kept in arrays, with the cumulative sizes and notionals as prefix sums, so that the best level
+ * is accessed in constant time, and the depth up to a price (or the price to fill a size) is found by a binary
+ * search. It is also a read-only {@link Map} of price to size, iterated from the best price, so that it can be
+ * returned as is from {@link Context#getAskPrices(Context.Key)} and {@link Context#getBidPrices(Context.Key)}.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public final class PriceLevels extends AbstractMap<BigDecimal, BigDecimal> {
+
+    private static final BigDecimal[] EMPTY = new BigDecimal[0];
+
+    private static final Comparator<BigDecimal> NATURAL = Comparator.naturalOrder();
+
+    private static final Comparator<BigDecimal> REVERSE = Comparator.reverseOrder();
+
+    private final boolean ascending;
+
+    private final BigDecimal[] prices;
+
+    private final BigDecimal[] sizes;
+
+    private final double[] cumulativeSizes;
+
+    private final double[] cumulativeNotionals;
+
+    private final Set<Entry<BigDecimal, BigDecimal>> entries = new AbstractSet<Entry<BigDecimal, BigDecimal>>() {
+        @Override
+        public Iterator<Entry<BigDecimal, BigDecimal>> iterator() {
+            return new Iterator<Entry<BigDecimal, BigDecimal>>() {
+
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return index < prices.length;
+                }
+
+                @Override
+                public Entry<BigDecimal, BigDecimal> next() {
+
+                    if (index >= prices.length) {
+                        throw new NoSuchElementException();
+                    }
+
+                    int i = index++;
+
+                    return new SimpleImmutableEntry<>(prices[i], sizes[i]);
+
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return prices.length;
+        }
+    };
+
+    private PriceLevels(boolean ascending, Map<BigDecimal, BigDecimal> levels) {
+
+        this.ascending = ascending;
+
+        NavigableMap<BigDecimal, BigDecimal> sorted = new TreeMap<>(ascending ? NATURAL : REVERSE);
+
+        if (levels != null) {
+            levels.forEach((price, size) -> {
+
+                if (price == null || size == null || size.signum() <= 0) {
+                    return;
+                }
+
+                sorted.merge(price, size, BigDecimal::add); // Same price with different scales.
+
+            });
+        }
+
+        this.prices = sorted.keySet().toArray(EMPTY);
+
+        this.sizes = sorted.values().toArray(EMPTY);
+
+        this.cumulativeSizes = new double[prices.length];
+
+        this.cumulativeNotionals = new double[prices.length];
+
+        double size = 0;
+
+        double notional = 0;
+
+        for (int i = 0; i < prices.length; i++) {
+
+            size += sizes[i].doubleValue();
+
+            notional += sizes[i].doubleValue() * prices[i].doubleValue();
+
+            cumulativeSizes[i] = size;
+
+            cumulativeNotionals[i] = notional;
+
+        }
+
+    }
+
+    /**
+     * Sorts the levels in ascending price order. Levels without price or with non-positive size are excluded.
+     * Returns the argument itself, if it is already sorted as asks.
+     */
+    public static PriceLevels ofAsks(Map<BigDecimal, BigDecimal> levels) {
+
+        if (levels instanceof PriceLevels && ((PriceLevels) levels).ascending) {
+            return (PriceLevels) levels;
+        }
+
+        return new PriceLevels(true, levels);
+
+    }
+
+    /**
+     * Sorts the levels in descending price order. Levels without price or with non-positive size are excluded.
+     * Returns the argument itself, if it is already sorted as bids.
+     */
+    public static PriceLevels ofBids(Map<BigDecimal, BigDecimal> levels) {
+
+        if (levels instanceof PriceLevels && !((PriceLevels) levels).ascending) {
+            return (PriceLevels) levels;
+        }
+
+        return new PriceLevels(false, levels);
+
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    public BigDecimal getPrice(int index) {
+        return prices[index];
+    }
+
+    public BigDecimal getSize(int index) {
+        return sizes[index];
+    }
+
+    public BigDecimal getBestPrice() {
+        return prices.length == 0 ? null : prices[0];
+    }
+
+    public BigDecimal getBestSize() {
+        return sizes.length == 0 ? null : sizes[0];
+    }
+
+    /**
+     * Total size of the best levels.
+     *
+     * @param count Number of levels from the best, capped to the number of levels.
+     */
+    public double getCumulativeSize(int count) {
+        int n = Math.min(count, prices.length);
+
+        return n <= 0 ? 0 : cumulativeSizes[n - 1];
+    }
+
+    /**
+     * Total notional (price times size) of the best levels.
+     *
+     * @param count Number of levels from the best, capped to the number of levels.
+     */
+    public double getCumulativeNotional(int count) {
+        int n = Math.min(count, prices.length);
+
+        return n <= 0 ? 0 : cumulativeNotionals[n - 1];
+    }
+
+    /**
+     * Number of levels priced at or better than the limit. (Lower than or equal to for asks, and higher than or
+     * equal to for bids.)
+     */
+    public int countWithin(BigDecimal limit) {
+
+        if (limit == null) {
+            return 0;
+        }
+
+        int low = 0;
+
+        int high = prices.length;
+
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+
+            int comparison = prices[mid].compareTo(limit);
+
+            if (ascending ? comparison <= 0 : comparison >= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+
+        }
+
+        return low;
+
+    }
+
+    /**
+     * Number of the best levels required to accumulate the size, or -1 if the book is not deep enough.
+     */
+    public int countFor(double size) {
+
+        if (size <= 0) {
+            return 0;
+        }
+
+        int low = 0;
+
+        int high = prices.length;
+
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+
+            if (cumulativeSizes[mid] < size) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+
+        }
+
+        return low < prices.length ? low + 1 : -1;
+
+    }
+
+    /**
+     * Price of the worst level to be taken for accumulating the size, or null if the book is not deep enough.
+     */
+    public BigDecimal getPriceFor(double size) {
+
+        int count = countFor(size);
+
+        return count <= 0 ? (count == 0 ? getBestPrice() : null) : prices[count - 1];
+
+    }
+
+    @Override
+    public Set<Entry<BigDecimal, BigDecimal>> entrySet() {
+        return entries;
+    }
+
+    @Override
+    public int size() {
+        return prices.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public BigDecimal get(Object key) {
+
+        int index = indexOf(key);
+
+        return index >= 0 ? sizes[index] : null;
+
+    }
+
+    private int indexOf(Object key) {
+
+        if (!(key instanceof BigDecimal)) {
+            return -1;
+        }
+
+        int index = Arrays.binarySearch(prices, (BigDecimal) key, ascending ? NATURAL : REVERSE);
+
+        return index >= 0 && prices[index].equals(key) ? index : -1;
+
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.after_sunrise.cryptocurrency.cryptotrader.framework.impl;
 
 import com.after_sunrise.cryptocurrency.cryptotrader.core.Composite;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.Key;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Service;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
 import com.google.common.annotations.VisibleForTesting;
@@ -17,6 +19,7 @@ import java.time.Instant;
 import java.util.*;
 import java.util.function.BiFunction;
 import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 import static java.lang.Long.MAX_VALUE;
@@ -229,6 +232,24 @@ public abstract class AbstractService implements Service {
 
     }
 
+    /**
+     * Prices collapsed by the context if available, otherwise collapsed from the trades listed by the context.
+     */
+    protected NavigableMap<Instant, BigDecimal> collapsePrices(Context context, Key key, Duration interval,
+                                                               Instant from, Instant to, boolean sum) {
+
+        NavigableMap<Instant, BigDecimal> prices = context.collapsePrices(key, interval, from, to, sum);
+
+        if (prices != null) {
+            return prices;
+        }
+
+        List<Trade> trades = context.listTrades(key, from.minus(interval));
+
+        return collapsePrices(trades, interval, from, to, sum);
+
+    }
+
     @VisibleForTesting
     public NavigableMap<Instant, BigDecimal> collapsePrices(List<Trade> values,
                                                             Duration interval, Instant from, Instant to, boolean sum) {
@@ -299,6 +320,149 @@ public abstract class AbstractService implements Service {
 
     }
 
+    /**
+     * The last trade found by the context if available, otherwise found in the trades listed by the context.
+     * The trades are not listed if the context has found none.
+     */
+    protected Trade findLastTrade(Context context, Key key, Instant fromTime) {
+
+        Optional<Trade> trade = context.findLastTrade(key, fromTime);
+
+        if (trade != null) {
+            return trade.orElse(null);
+        }
+
+        return findLastTrade(context.listTrades(key, fromTime), fromTime);
+
+    }
+
+    /**
+     * The trade with the latest timestamp after the time (null for all), the first one if tied, or null if none.
+     */
+    @VisibleForTesting
+    public Trade findLastTrade(List<? extends Trade> trades, Instant fromTime) {
+
+        Trade last = null;
+
+        for (Trade t : trimToEmpty(trades)) {
+
+            if (t == null || t.getTimestamp() == null || t.getPrice() == null) {
+                continue;
+            }
+
+            if (fromTime != null && !t.getTimestamp().isAfter(fromTime)) {
+                continue;
+            }
+
+            if (last == null || t.getTimestamp().isAfter(last.getTimestamp())) {
+                last = t;
+            }
+
+        }
+
+        return last;
+
+    }
+
+    /**
+     * Aggregates summarized by the context if available, otherwise summarized from the trades listed by the context.
+     */
+    protected Context.TradeSummary summarizeTrades(Context context, Key key, Instant fromTime, Instant toTime) {
+
+        Context.TradeSummary summary = context.summarizeTrades(key, fromTime, toTime);
+
+        if (summary != null) {
+            return summary;
+        }
+
+        return summarizeTrades(context.listTrades(key, fromTime), fromTime, toTime);
+
+    }
+
+    /**
+     * Aggregates of the trades in (fromTime, toTime], without the bound if null, excluding the trades without price or
+     * size. Returns null if the trades are null.
+     */
+    @VisibleForTesting
+    public Context.TradeSummary summarizeTrades(List<? extends Trade> trades, Instant fromTime, Instant toTime) {
+
+        if (trades == null) {
+            return null;
+        }
+
+        long[] count = {0};
+
+        BigDecimal[] values = {ZERO, ZERO}; // [size, notional]
+
+        visitTrades(trades, fromTime, toTime, t -> {
+
+            if (t.getPrice() == null || t.getPrice().signum() == 0) {
+                return;
+            }
+
+            if (t.getSize() == null || t.getSize().signum() == 0) {
+                return;
+            }
+
+            values[0] = values[0].add(t.getSize());
+
+            values[1] = values[1].add(t.getSize().multiply(t.getPrice()));
+
+            count[0]++;
+
+        });
+
+        return Context.TradeSummary.builder().count(count[0]).size(values[0]).notional(values[1]).build();
+
+    }
+
+    /**
+     * Visits the trades by the context if available, otherwise visits the trades listed by the context.
+     */
+    protected void visitTrades(Context context, Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        if (context.visitTrades(key, fromTime, toTime, visitor)) {
+            return;
+        }
+
+        visitTrades(context.listTrades(key, fromTime), fromTime, toTime, visitor);
+
+    }
+
+    /**
+     * Visits the trades in (fromTime, toTime], without the bound if null, in the order as listed, skipping the nulls
+     * and the trades without timestamp. Returns false if the trades are null.
+     */
+    @VisibleForTesting
+    public boolean visitTrades(List<? extends Trade> trades,
+                               Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        if (trades == null) {
+            return false;
+        }
+
+        for (Trade t : trades) {
+
+            if (t == null || t.getTimestamp() == null) {
+                continue;
+            }
+
+            if (fromTime != null && !t.getTimestamp().isAfter(fromTime)) {
+                continue;
+            }
+
+            if (toTime != null && t.getTimestamp().isAfter(toTime)) {
+                continue;
+            }
+
+            visitor.accept(t);
+
+        }
+
+        return true;
+
+    }
+
     @VisibleForTesting
     public NavigableMap<Instant, BigDecimal> calculateReturns(SortedMap<Instant, BigDecimal> prices) {
 
@@ -12,11 +12,16 @@ import com.google.inject.Injector;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 /**
@@ -135,6 +140,37 @@ public class ContextImpl extends AbstractService implements Context {
         return forContext(key, c -> c.listTrades(key, fromTime));
     }
 
+    @Override
+    public NavigableMap<Instant, BigDecimal> collapsePrices(Key key,
+                                                            Duration interval, Instant from, Instant to, boolean sum) {
+        return forContext(key, c -> c.collapsePrices(key, interval, from, to, sum));
+    }
+
+    @Override
+    public Optional<Trade> findLastTrade(Key key, Instant fromTime) {
+        return forContext(key, c -> c.findLastTrade(key, fromTime));
+    }
+
+    @Override
+    public TradeSummary summarizeTrades(Key key, Instant fromTime, Instant toTime) {
+        return forContext(key, c -> c.summarizeTrades(key, fromTime, toTime));
+    }
+
+    @Override
+    public boolean visitTrades(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+        return Boolean.TRUE.equals(forContext(key, c -> c.visitTrades(key, fromTime, toTime, visitor)));
+    }
+
+    @Override
+    public boolean visitHistory(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+        return Boolean.TRUE.equals(forContext(key, c -> c.visitHistory(key, fromTime, toTime, visitor)));
+    }
+
+    @Override
+    public Long importTrades(Key key, Path path) {
+        return forContext(key, c -> c.importTrades(key, path));
+    }
+
     @Override
     public CurrencyType getInstrumentCurrency(Key key) {
         return forContext(key, c -> c.getInstrumentCurrency(key));
@@ -0,0 +1,326 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.framework.impl;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.MarketBus;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.MarketEvent;
+import com.google.common.annotations.VisibleForTesting;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.after_sunrise.cryptocurrency.cryptotrader.framework.MarketEvent.Type.*;
+
+/**
+ * Ring buffer of pre-allocated events, with the sequences claimed by the publishers and gated by the readers.
+ *
+ * A publisher claims the next sequence with a CAS on the cursor, fills the slot, and marks the slot as published.
+ * Each feed publishes from its own thread, so the claims only contend across the feeds. A reader consumes the
+ * contiguous published slots after its own sequence, and then advances its sequence, which releases the slots to
+ * the publishers. No locks are taken on either side.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+@Slf4j
+public class MarketBusImpl implements MarketBus {
+
+    private static final int CAPACITY = 1 << 16;
+
+    private static final int BATCH = 1024;
+
+    private static final int IDLE_SPINS = 128;
+
+    private static final long IDLE_NANOS = 100_000;
+
+    @Getter
+    @ToString
+    private static class Slot implements MarketEvent {
+
+        private Type type;
+
+        private String site;
+
+        private String instrument;
+
+        private Instant timestamp;
+
+        private BigDecimal price;
+
+        private BigDecimal size;
+
+        private BigDecimal askPrice;
+
+        private BigDecimal askSize;
+
+        private BigDecimal bidPrice;
+
+        private BigDecimal bidSize;
+
+        private void set(Type type, String site, String instrument, Instant timestamp,
+                         BigDecimal price, BigDecimal size,
+                         BigDecimal askPrice, BigDecimal askSize, BigDecimal bidPrice, BigDecimal bidSize) {
+            this.type = type;
+            this.site = site;
+            this.instrument = instrument;
+            this.timestamp = timestamp;
+            this.price = price;
+            this.size = size;
+            this.askPrice = askPrice;
+            this.askSize = askSize;
+            this.bidPrice = bidPrice;
+            this.bidSize = bidSize;
+        }
+
+    }
+
+    private class ReaderImpl implements Reader {
+
+        private final AtomicLong sequence = new AtomicLong();
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        @Override
+        public long getSequence() {
+            return sequence.get();
+        }
+
+        @Override
+        public int poll(Handler handler, int limit) {
+
+            long current = sequence.get();
+
+            long last = Math.min(cursor.get(), current + Math.max(limit, 0));
+
+            long end = current;
+
+            while (end < last && published.get(index(end + 1)) == end + 1) {
+                end++;
+            }
+
+            for (long s = current + 1; s <= end; s++) {
+
+                try {
+                    handler.onEvent(slots[index(s)], s, s == end);
+                } catch (Exception e) {
+                    log.warn("Failed to handle event : " + s, e);
+                }
+
+            }
+
+            sequence.lazySet(end);
+
+            return (int) (end - current);
+
+        }
+
+        @Override
+        public void close() {
+
+            if (closed.compareAndSet(false, true)) {
+                readers.remove(this);
+            }
+
+        }
+
+        private boolean isClosed() {
+            return closed.get();
+        }
+
+    }
+
+    private final List<ReaderImpl> readers = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong cursor = new AtomicLong(-1);
+
+    private final AtomicLong gating = new AtomicLong(-1);
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final int mask;
+
+    private final Slot[] slots;
+
+    private final AtomicLongArray published;
+
+    public MarketBusImpl() {
+        this(CAPACITY);
+    }
+
+    @VisibleForTesting
+    MarketBusImpl(int capacity) {
+
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of 2 : " + capacity);
+        }
+
+        mask = capacity - 1;
+
+        slots = new Slot[capacity];
+
+        published = new AtomicLongArray(capacity);
+
+        for (int i = 0; i < capacity; i++) {
+
+            slots[i] = new Slot();
+
+            published.set(i, -1);
+
+        }
+
+    }
+
+    @Override
+    public void close() {
+        readers.forEach(ReaderImpl::close);
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence & mask);
+    }
+
+    /**
+     * Claims the next sequence, or returns -1 if the slot has not been consumed by all the readers.
+     */
+    private long claim() {
+
+        while (true) {
+
+            long current = cursor.get();
+
+            long next = current + 1;
+
+            long wrap = next - slots.length;
+
+            if (wrap > gating.get()) {
+
+                long minimum = current;
+
+                for (ReaderImpl reader : readers) {
+                    minimum = Math.min(minimum, reader.getSequence());
+                }
+
+                gating.set(minimum);
+
+                if (wrap > minimum) {
+                    return -1;
+                }
+
+            }
+
+            if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+
+        }
+
+    }
+
+    private boolean publish(MarketEvent.Type type, String site, String instrument, Instant timestamp,
+                            BigDecimal price, BigDecimal size,
+                            BigDecimal askPrice, BigDecimal askSize, BigDecimal bidPrice, BigDecimal bidSize) {
+
+        long sequence = claim();
+
+        if (sequence < 0) {
+
+            dropped.incrementAndGet();
+
+            return false;
+
+        }
+
+        int index = index(sequence);
+
+        slots[index].set(type, site, instrument, timestamp, price, size, askPrice, askSize, bidPrice, bidSize);
+
+        published.lazySet(index, sequence);
+
+        return true;
+
+    }
+
+    @Override
+    public boolean publishTick(String site, String instrument, Instant timestamp, BigDecimal last,
+                               BigDecimal askPrice, BigDecimal askSize, BigDecimal bidPrice, BigDecimal bidSize) {
+        return publish(TICK, site, instrument, timestamp, last, null, askPrice, askSize, bidPrice, bidSize);
+    }
+
+    @Override
+    public boolean publishBook(String site, String instrument, Instant timestamp,
+                               BigDecimal askPrice, BigDecimal askSize, BigDecimal bidPrice, BigDecimal bidSize) {
+        return publish(BOOK, site, instrument, timestamp, null, null, askPrice, askSize, bidPrice, bidSize);
+    }
+
+    @Override
+    public boolean publishTrade(String site, String instrument, Instant timestamp, BigDecimal price, BigDecimal size) {
+        return publish(TRADE, site, instrument, timestamp, price, size, null, null, null, null);
+    }
+
+    @Override
+    public Reader reader() {
+
+        ReaderImpl reader = new ReaderImpl();
+
+        reader.sequence.set(cursor.get());
+
+        readers.add(reader);
+
+        return reader;
+
+    }
+
+    @Override
+    public Reader subscribe(String name, Handler handler) {
+
+        ReaderImpl reader = (ReaderImpl) reader();
+
+        Thread thread = new Thread(() -> {
+
+            int idle = 0;
+
+            while (!reader.isClosed()) {
+
+                if (reader.poll(handler, BATCH) > 0) {
+
+                    idle = 0;
+
+                } else if (idle++ < IDLE_SPINS) {
+
+                    Thread.yield();
+
+                } else {
+
+                    LockSupport.parkNanos(IDLE_NANOS);
+
+                }
+
+            }
+
+        });
+
+        thread.setDaemon(true);
+
+        thread.setName(name + "-bus");
+
+        thread.start();
+
+        log.debug("Subscribed : {}", name);
+
+        return reader;
+
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.get();
+    }
+
+}
@@ -14,23 +14,35 @@ import com.after_sunrise.cryptocurrency.cryptotrader.framework.Order;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Order.Execution;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
 import com.after_sunrise.cryptocurrency.cryptotrader.service.bitbank.BitbankOrder.BitbankExecution;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.SocketSupervisor;
 import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.gson.*;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import javax.websocket.*;
+import java.io.IOException;
+import java.lang.reflect.Type;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.net.URI;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 import static java.lang.Boolean.FALSE;
 import static java.lang.Boolean.TRUE;
 import static java.math.BigDecimal.ONE;
+import static com.after_sunrise.cryptocurrency.cryptotrader.service.bitbank.BitbankRealtime.*;
 import static java.util.Collections.*;
 import static java.util.stream.Collectors.toList;
 
@@ -38,14 +50,63 @@ import static java.util.stream.Collectors.toList;
  * @author takanori.takase
  * @version 0.0.1
  */
+@ClientEndpoint
 public class BitbankContext extends TemplateContext implements BitbankService {
 
     private static final Pattern NUMERIC = Pattern.compile("^[0-9]+$");
 
+    private static final URI WS_ENDPOINT = URI.create("wss://stream.bitbank.cc/socket.io/?EIO=3&transport=websocket");
+
+    private static final String WS_EVENT = "42";
+
+    private static final String WS_PING = "2";
+
+    private static final long REALTIME_EXPIRY = Duration.ofSeconds(30).toMillis();
+
+    private static final int ORDER_CAPACITY = 32;
+
+    private static final long ORDER_EXPIRY = Duration.ofDays(1).toMillis();
+
+    /**
+     * Order terminated, filled or not, with the time of its termination and its execution derived once if filled.
+     */
+    private static class Termination {
+
+        private static final Comparator<Termination> BY_TIME = Comparator
+                .comparing((Termination t) -> t.time).thenComparingLong(t -> t.id);
+
+        private final long id;
+
+        private final Instant time;
+
+        private final BitbankExecution execution;
+
+        private Termination(long id, Instant time, BitbankExecution execution) {
+            this.id = id;
+            this.time = time;
+            this.execution = execution;
+        }
+
+    }
+
     private final ThreadLocal<Bitbankcc> localApi;
 
     private final NavigableMap<Long, BitbankOrder> cachedOrders;
 
+    private final NavigableMap<Long, Termination> terminatedOrders;
+
+    private final NavigableSet<Termination> terminations;
+
+    private final Object annotatedEndpoint;
+
+    private final Gson gson;
+
+    private final BitbankRealtime realtime;
+
+    private final BitbankRealtime.Listener listener;
+
+    private volatile SocketSupervisor supervisor;
+
     public BitbankContext() {
 
         super(ID);
@@ -54,6 +115,54 @@ public class BitbankContext extends TemplateContext implements BitbankService {
 
         cachedOrders = new ConcurrentSkipListMap<>();
 
+        terminatedOrders = new ConcurrentSkipListMap<>();
+
+        terminations = new ConcurrentSkipListSet<>(Termination.BY_TIME);
+
+        annotatedEndpoint = this;
+
+        gson = new GsonBuilder().registerTypeAdapter(Instant.class, new JsonDeserializer<Instant>() {
+            @Override
+            public Instant deserialize(JsonElement j, Type t, JsonDeserializationContext c) throws JsonParseException {
+                return Instant.ofEpochMilli(j.getAsLong());
+            }
+        }).create();
+
+        realtime = new BitbankRealtime(gson);
+
+        listener = new BitbankRealtime.Listener() {
+
+            @Override
+            public void onTrade(String pair, BitbankTrade trade) {
+                publishTrade(convertProduct(pair), trade.getTimestamp(), trade.getPrice(), trade.getSize());
+            }
+
+            @Override
+            public void onBook(String pair,
+                               Map.Entry<BigDecimal, BigDecimal> ask, Map.Entry<BigDecimal, BigDecimal> bid) {
+                publishBook(convertProduct(pair), getNow(), ask, bid);
+            }
+
+            @Override
+            public void onTick(String pair, BigDecimal last, BigDecimal ask, BigDecimal bid) {
+                publishTick(convertProduct(pair), getNow(), last, ask, null, bid, null);
+            }
+
+        };
+
+    }
+
+    @Override
+    public void close() throws Exception {
+
+        SocketSupervisor s = supervisor;
+
+        if (s != null) {
+            s.close();
+        }
+
+        super.close();
+
     }
 
     @VisibleForTesting
@@ -61,6 +170,39 @@ public class BitbankContext extends TemplateContext implements BitbankService {
         return cachedOrders;
     }
 
+    /**
+     * Caches the order created, evicting the order terminated the earliest, or the oldest of all if none, while the
+     * cache is at its capacity.
+     */
+    @VisibleForTesting
+    void cacheOrder(BitbankOrder order) {
+
+        int capacity = getIntProperty("cache.order", ORDER_CAPACITY);
+
+        while (!cachedOrders.isEmpty() && cachedOrders.size() >= capacity) {
+
+            Termination t = terminations.isEmpty() ? null : terminations.first();
+
+            evictOrder(t != null ? t.id : cachedOrders.firstKey());
+
+        }
+
+        cachedOrders.put(order.getDelegate().orderId, order);
+
+    }
+
+    private void evictOrder(Long id) {
+
+        cachedOrders.remove(id);
+
+        Termination t = terminatedOrders.remove(id);
+
+        if (t != null) {
+            terminations.remove(t);
+        }
+
+    }
+
     @VisibleForTesting
     Bitbankcc getLocalApi() {
 
@@ -72,9 +214,254 @@ public class BitbankContext extends TemplateContext implements BitbankService {
 
     }
 
+    /**
+     * Pair of the rooms of the stream, such as "btc_jpy" for the product "BTC_JPY".
+     */
+    @VisibleForTesting
+    static String convertPair(String product) {
+
+        ProductType type = ProductType.find(product);
+
+        return type == null || type.getPair() == null ? null : type.name().toLowerCase(Locale.US);
+
+    }
+
+    @VisibleForTesting
+    static String convertProduct(String pair) {
+
+        ProductType type = ProductType.find(StringUtils.upperCase(pair, Locale.US));
+
+        return type == null ? null : type.name();
+
+    }
+
+    @VisibleForTesting
+    Duration getRealtimeExpiry() {
+        return Duration.ofMillis(getLongProperty("realtime.expiry", REALTIME_EXPIRY));
+    }
+
+    /**
+     * Joins the rooms of the pair, connecting the socket on the first call.
+     * Returns false if the realtime stream is disabled.
+     */
+    @VisibleForTesting
+    boolean subscribe(String pair) {
+
+        if (StringUtils.isEmpty(pair) || getRealtimeExpiry().toMillis() <= 0) {
+            return false;
+        }
+
+        SocketSupervisor s;
+
+        synchronized (realtime) {
+
+            if (supervisor == null) {
+
+                supervisor = new SocketSupervisor(getClass().getSimpleName(),
+                        WS_ENDPOINT, annotatedEndpoint, new SocketSupervisor.Handler() {
+
+                    @Override
+                    public void subscribe(Session session, Collection<String> rooms) throws IOException {
+                        sendSubscribe(session, rooms);
+                    }
+
+                    @Override
+                    public void heartbeat(Session session) throws IOException {
+                        session.getBasicRemote().sendText(WS_PING);
+                    }
+
+                    @Override
+                    public void backfill(Collection<String> rooms, Instant since) throws IOException {
+                        for (String room : rooms) {
+                            if (room.startsWith(ROOM_TRANSACTIONS)) {
+                                backfillTrades(room.substring(ROOM_TRANSACTIONS.length()));
+                            }
+                        }
+                    }
+
+                }, this::getNow, getSocketSettings());
+
+                scheduleSocket(supervisor);
+
+            }
+
+            s = supervisor;
+
+        }
+
+        s.subscribe(ROOM_WHOLE + pair);
+
+        s.subscribe(ROOM_DIFF + pair);
+
+        s.subscribe(ROOM_TRANSACTIONS + pair);
+
+        s.subscribe(ROOM_TICKER + pair);
+
+        return true;
+
+    }
+
+    @VisibleForTesting
+    void scheduleSocket(SocketSupervisor s) {
+        s.start();
+    }
+
+    @VisibleForTesting
+    void sendSubscribe(Session s, Collection<String> rooms) throws IOException {
+
+        for (String room : rooms) {
+
+            JsonArray request = new JsonArray();
+            request.add("join-room");
+            request.add(room);
+
+            s.getBasicRemote().sendText(WS_EVENT + gson.toJson(request));
+
+        }
+
+    }
+
+    /**
+     * Seeds the tape with the latest trades, which the room only delivers as they occur.
+     */
+    @VisibleForTesting
+    void backfillTrades(String pair) throws IOException {
+
+        ProductType product = ProductType.find(convertProduct(pair));
+
+        if (product == null) {
+            return;
+        }
+
+        Transactions t;
+
+        try {
+            t = getLocalApi().getTransaction(product.getPair());
+        } catch (Exception e) {
+            throw new IOException("Failed to retrieve transactions : " + pair, e);
+        }
+
+        if (t == null || ArrayUtils.isEmpty(t.transactions)) {
+            return;
+        }
+
+        List<BitbankTrade> trades = Stream.of(t.transactions)
+                .filter(Objects::nonNull)
+                .map(v -> BitbankTrade.builder()
+                        .id(v.transactionId)
+                        .side(v.side)
+                        .timestamp(v.executedAt == null ? null : Instant.ofEpochMilli(v.executedAt.getTime()))
+                        .price(BigDecimal.valueOf(v.price))
+                        .size(v.amount)
+                        .build())
+                .collect(toList());
+
+        realtime.merge(getNow(), pair, trades, listener);
+
+    }
+
+    @OnOpen
+    public void onWebSocketOpen(Session s) {
+
+        log.debug("Socket opened : {}", s.getId());
+
+        realtime.reset();
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onOpen(s);
+        }
+
+    }
+
+    @OnError
+    public void onWebSocketError(Session s, Throwable t) {
+
+        log.debug("Socket error : " + s.getId(), t);
+
+        IOUtils.closeQuietly(s);
+
+    }
+
+    @OnClose
+    public void onWebSocketClose(Session s, CloseReason reason) {
+
+        log.debug("Socket closed : {}", s.getId());
+
+        realtime.reset();
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onClose(s);
+        }
+
+    }
+
+    @OnMessage
+    public void onWebSocketPong(PongMessage message) {
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onMessage();
+        }
+
+    }
+
+    /**
+     * Applies the socket.io event packets of ["message", {"room_name":..., "message":{"data":{...}}}], while the
+     * other packets, such as the handshake and the pongs, only keep the connection alive.
+     */
+    @OnMessage
+    public void onWebSocketMessage(String message, Session s) {
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onMessage();
+        }
+
+        if (StringUtils.isEmpty(message) || !message.startsWith(WS_EVENT)) {
+            return;
+        }
+
+        JsonElement event = new JsonParser().parse(message.substring(WS_EVENT.length()));
+
+        if (!event.isJsonArray() || event.getAsJsonArray().size() < 2) {
+            return;
+        }
+
+        JsonElement body = event.getAsJsonArray().get(1);
+
+        if (!body.isJsonObject() || body.getAsJsonObject().get("room_name") == null) {
+            return;
+        }
+
+        String room = body.getAsJsonObject().get("room_name").getAsString();
+
+        JsonElement content = body.getAsJsonObject().get("message");
+
+        JsonElement data = content == null || !content.isJsonObject() ? null : content.getAsJsonObject().get("data");
+
+        if (data != null && data.isJsonObject()) {
+            realtime.apply(getNow(), room, data.getAsJsonObject(), listener);
+        }
+
+    }
+
     @VisibleForTesting
     Optional<BitbankDepth> fetchDepth(Key key) {
 
+        String pair = convertPair(key.getInstrument());
+
+        BitbankDepth streamed = subscribe(pair) ? realtime.getDepth(getNow(), getRealtimeExpiry(), pair) : null;
+
+        if (streamed != null) {
+            return Optional.of(streamed);
+        }
+
         return Optional.ofNullable(findCached(BitbankDepth.class, key, () -> {
 
             ProductType product = ProductType.find(key.getInstrument());
@@ -125,12 +512,12 @@ public class BitbankContext extends TemplateContext implements BitbankService {
 
     @Override
     public Map<BigDecimal, BigDecimal> getAskPrices(Key key) {
-        return fetchDepth(key).map(BitbankDepth::getAsks).orElse(null);
+        return findLevels(key, true, () -> fetchDepth(key).map(BitbankDepth::getAsks).orElse(null));
     }
 
     @Override
     public Map<BigDecimal, BigDecimal> getBidPrices(Key key) {
-        return fetchDepth(key).map(BitbankDepth::getBids).orElse(null);
+        return findLevels(key, false, () -> fetchDepth(key).map(BitbankDepth::getBids).orElse(null));
     }
 
     @VisibleForTesting
@@ -162,21 +549,113 @@ public class BitbankContext extends TemplateContext implements BitbankService {
 
     @Override
     public BigDecimal getLastPrice(Key key) {
+
+        String pair = convertPair(key.getInstrument());
+
+        BigDecimal streamed = subscribe(pair) ? realtime.getLastPrice(getNow(), getRealtimeExpiry(), pair) : null;
+
+        if (streamed != null) {
+            return streamed;
+        }
+
         return trimToEmpty(fetchTransactions(key)).stream()
                 .filter(Objects::nonNull)
                 .filter(t -> t.getTimestamp() != null)
                 .max(Comparator.comparing(BitbankTransaction::getTimestamp))
                 .map(BitbankTransaction::getPrice)
                 .orElse(null);
+
     }
 
     @Override
     public List<Trade> listTrades(Key key, Instant fromTime) {
+
+        String pair = convertPair(key.getInstrument());
+
+        List<? extends Trade> streamed = subscribe(pair)
+                ? realtime.getTrades(getNow(), getRealtimeExpiry(), pair, fromTime) : null;
+
+        if (streamed != null) {
+            return new ArrayList<>(streamed);
+        }
+
         return trimToEmpty(fetchTransactions(key)).stream()
                 .filter(Objects::nonNull)
                 .filter(t -> t.getTimestamp() != null)
                 .filter(t -> fromTime == null || !t.getTimestamp().isBefore(fromTime))
                 .collect(toList());
+
+    }
+
+    @Override
+    public NavigableMap<Instant, BigDecimal> collapsePrices(Key key,
+                                                            Duration interval, Instant from, Instant to, boolean sum) {
+        return collapseTape(getTape(key, TradeTape.start(interval, from)), interval, from, to, sum);
+    }
+
+    @Override
+    public Optional<Trade> findLastTrade(Key key, Instant fromTime) {
+
+        TradeTape tape = getTape(key, fromTime);
+
+        return tape == null ? super.findLastTrade(key, fromTime) : Optional.ofNullable(tape.latest(fromTime));
+
+    }
+
+    @Override
+    public TradeSummary summarizeTrades(Key key, Instant fromTime, Instant toTime) {
+
+        TradeTape tape = getTape(key, fromTime);
+
+        return tape == null ? super.summarizeTrades(key, fromTime, toTime) : tape.summarize(fromTime, toTime);
+
+    }
+
+    @Override
+    public boolean visitTrades(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        TradeTape tape = getTape(key, fromTime);
+
+        if (tape == null) {
+            return super.visitTrades(key, fromTime, toTime, visitor);
+        }
+
+        tape.visit(fromTime, toTime, visitor);
+
+        return true;
+
+    }
+
+    /**
+     * Visits the tape of the streamed trades if it covers the period, without subscribing to it.
+     */
+    @Override
+    public boolean visitHistory(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        String pair = key == null ? null : convertPair(key.getInstrument());
+
+        TradeTape tape = pair == null ? null : realtime.getTape(getNow(), getRealtimeExpiry(), pair, fromTime);
+
+        if (tape == null) {
+            return super.visitHistory(key, fromTime, toTime, visitor);
+        }
+
+        tape.visit(fromTime, toTime, visitor);
+
+        return true;
+
+    }
+
+    /**
+     * Tape of the streamed trades covering the period since the time, or null if not available.
+     */
+    private TradeTape getTape(Key key, Instant fromTime) {
+
+        String pair = convertPair(key.getInstrument());
+
+        return subscribe(pair)
+                ? realtime.getTape(getNow(), getRealtimeExpiry(), pair, fromTime) : null;
+
     }
 
     @Override
@@ -391,46 +870,76 @@ public class BitbankContext extends TemplateContext implements BitbankService {
 
     }
 
+    /**
+     * Derives the executions from the orders cached. Only the active ones are queried, and those found terminated are
+     * indexed with their executions, to be served as derived until evicted or expired by "cache.order.expiry" millis
+     * (non-positive to retain) after the termination.
+     */
     @Override
     public List<Execution> listExecutions(Key key) {
 
         // API not available : https://bitbank.cc/blog/20171227trade-history/
 
+        Instant now = getNow();
+
+        long expiry = getLongProperty("cache.order.expiry", ORDER_EXPIRY);
+
+        while (expiry > 0 && !terminations.isEmpty() && terminations.first().time.plusMillis(expiry).isBefore(now)) {
+            evictOrder(terminations.first().id);
+        }
+
         List<Execution> executions = new ArrayList<>();
 
         for (Map.Entry<Long, BitbankOrder> entry : cachedOrders.entrySet()) {
 
             Long id = entry.getKey();
 
-            BitbankOrder order = entry.getValue();
+            Termination termination = terminatedOrders.get(id);
 
-            if (order == null || !Objects.equals(FALSE, order.getActive())) {
+            if (termination == null) {
 
-                order = findOrder(key, id.toString());
+                BitbankOrder order = entry.getValue();
 
-                if (order != null) {
-                    cachedOrders.put(id, order);
+                if (order == null || !Objects.equals(FALSE, order.getActive())) {
+                    order = findOrder(key, id.toString());
                 }
 
-            }
-
-            if (order != null) {
-
-                if (order.getFilledQuantity() != null && order.getFilledQuantity().signum() != 0) {
+                if (order == null) {
 
-                    executions.add(new BitbankExecution(order.getDelegate()));
+                    cachedOrders.remove(id);
 
                     continue;
 
                 }
 
+                cachedOrders.put(id, order);
+
+                BitbankExecution execution = order.getFilledQuantity() == null
+                        || order.getFilledQuantity().signum() == 0 ? null : new BitbankExecution(order.getDelegate());
+
                 if (!Objects.equals(FALSE, order.getActive())) {
+
+                    if (execution != null) {
+                        executions.add(execution);
+                    }
+
                     continue;
+
                 }
 
+                Instant time = execution == null || execution.getTime() == null ? now : execution.getTime();
+
+                termination = new Termination(id, time, execution);
+
+                terminatedOrders.put(id, termination);
+
+                terminations.add(termination);
+
             }
 
-            cachedOrders.remove(id);
+            if (termination.execution != null) {
+                executions.add(termination.execution); // Terminated, thus no longer queried.
+            }
 
         }
 
@@ -477,23 +986,7 @@ public class BitbankContext extends TemplateContext implements BitbankService {
 
                     results.put(i, String.valueOf(order.orderId));
 
-                    int capacity = getIntProperty("cache.order", 32);
-
-                    while (true) {
-
-                        if (cachedOrders.isEmpty()) {
-                            break;
-                        }
-
-                        if (cachedOrders.size() < capacity) {
-                            break;
-                        }
-
-                        cachedOrders.pollFirstEntry();
-
-                    }
-
-                    cachedOrders.put(order.orderId, new BitbankOrder(order));
+                    cacheOrder(new BitbankOrder(order));
 
                 } else {
 
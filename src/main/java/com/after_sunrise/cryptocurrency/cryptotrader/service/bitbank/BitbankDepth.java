@@ -10,6 +10,7 @@ import java.math.BigDecimal;
 import java.time.Instant;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
 
@@ -41,6 +42,28 @@ public class BitbankDepth {
 
     }
 
+    public BitbankDepth(Instant timestamp, Map<BigDecimal, BigDecimal> asks, Map<BigDecimal, BigDecimal> bids) {
+
+        this.timestamp = timestamp;
+
+        this.asks = copy(asks, NATURAL);
+
+        this.bids = copy(bids, REVERSE);
+
+    }
+
+    private NavigableMap<BigDecimal, BigDecimal> copy(Map<BigDecimal, BigDecimal> levels, Comparator<BigDecimal> c) {
+
+        NavigableMap<BigDecimal, BigDecimal> map = new TreeMap<>(c);
+
+        if (levels != null) {
+            map.putAll(levels);
+        }
+
+        return Collections.unmodifiableNavigableMap(map);
+
+    }
+
     @VisibleForTesting
     NavigableMap<BigDecimal, BigDecimal> convert(BigDecimal[][] quotes, Comparator<BigDecimal> c) {
 
@@ -0,0 +1,417 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.bitbank;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape.TapeTrade;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+import static java.util.Collections.reverseOrder;
+
+/**
+ * Books, trade tapes and tickers of the pairs, maintained locally from the rooms of the public stream.
+ *
+ * The book is rebuilt from each "depth_whole" message, and the "depth_diff" messages with the sequence IDs after
+ * the whole are applied on top of it. The diffs received before the first whole are buffered and replayed on top of
+ * it, as the wholes are throttled. A pair is served only while the stream has not been silent for longer than the
+ * expiry, and the trades are served only for the periods covered since the first batch.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class BitbankRealtime {
+
+    static final String ROOM_WHOLE = "depth_whole_";
+
+    static final String ROOM_DIFF = "depth_diff_";
+
+    static final String ROOM_TRANSACTIONS = "transactions_";
+
+    static final String ROOM_TICKER = "ticker_";
+
+    private static final int PENDING_LIMIT = 256;
+
+    private static final int TRADE_LIMIT = 65536;
+
+    private static final Duration TRADE_EXPIRY = Duration.ofHours(24);
+
+    public interface Listener {
+
+        default void onTrade(String pair, BitbankTrade trade) {
+        }
+
+        default void onBook(String pair, Map.Entry<BigDecimal, BigDecimal> ask, Map.Entry<BigDecimal, BigDecimal> bid) {
+        }
+
+        default void onTick(String pair, BigDecimal last, BigDecimal ask, BigDecimal bid) {
+        }
+
+    }
+
+    private final Map<String, NavigableMap<BigDecimal, BigDecimal>> asks = new HashMap<>();
+
+    private final Map<String, NavigableMap<BigDecimal, BigDecimal>> bids = new HashMap<>();
+
+    private final Map<String, Long> sequences = new HashMap<>();
+
+    private final Map<String, Deque<JsonObject>> pending = new HashMap<>();
+
+    private final Map<String, BigDecimal> lasts = new HashMap<>();
+
+    private final Map<String, TradeTape> trades = new HashMap<>();
+
+    private final Map<String, Instant> covered = new HashMap<>();
+
+    private final Gson gson;
+
+    private Instant timestamp;
+
+    public BitbankRealtime(Gson gson) {
+        this.gson = gson;
+    }
+
+    /**
+     * Discards all the pairs, which are rebuilt from the messages of the next connection.
+     */
+    public synchronized void reset() {
+
+        asks.clear();
+
+        bids.clear();
+
+        sequences.clear();
+
+        pending.clear();
+
+        lasts.clear();
+
+        trades.clear();
+
+        covered.clear();
+
+        timestamp = null;
+
+    }
+
+    /**
+     * Applies the data of a room, and notifies the trades not yet in the tape, the best levels and the tickers.
+     */
+    public synchronized void apply(Instant now, String room, JsonObject data, Listener listener) {
+
+        timestamp = now;
+
+        if (room == null || data == null) {
+            return;
+        }
+
+        if (room.startsWith(ROOM_WHOLE)) {
+
+            String pair = room.substring(ROOM_WHOLE.length());
+
+            applyWhole(pair, data);
+
+            notifyBook(pair, listener);
+
+        }
+
+        if (room.startsWith(ROOM_DIFF)) {
+
+            String pair = room.substring(ROOM_DIFF.length());
+
+            if (!sequences.containsKey(pair)) {
+
+                Deque<JsonObject> diffs = pending.computeIfAbsent(pair, p -> new ArrayDeque<>());
+
+                if (diffs.size() >= PENDING_LIMIT) {
+                    diffs.removeFirst();
+                }
+
+                diffs.addLast(data);
+
+                return;
+
+            }
+
+            if (applyDiff(pair, data)) {
+                notifyBook(pair, listener);
+            }
+
+        }
+
+        if (room.startsWith(ROOM_TRANSACTIONS) && data.get("transactions") != null) {
+
+            List<BitbankTrade> values = new ArrayList<>();
+
+            data.get("transactions").getAsJsonArray().forEach(e -> values.add(gson.fromJson(e, BitbankTrade.class)));
+
+            merge(now, room.substring(ROOM_TRANSACTIONS.length()), values, listener);
+
+        }
+
+        if (room.startsWith(ROOM_TICKER)) {
+
+            String pair = room.substring(ROOM_TICKER.length());
+
+            BigDecimal last = getDecimal(data, "last");
+
+            if (last != null) {
+                lasts.put(pair, last);
+            }
+
+            if (listener != null) {
+                listener.onTick(pair, last, getDecimal(data, "sell"), getDecimal(data, "buy"));
+            }
+
+        }
+
+    }
+
+    private void applyWhole(String pair, JsonObject data) {
+
+        Long sequence = getLong(data, "sequenceId");
+
+        if (sequence == null) {
+            return;
+        }
+
+        NavigableMap<BigDecimal, BigDecimal> askLevels = new TreeMap<>();
+
+        NavigableMap<BigDecimal, BigDecimal> bidLevels = new TreeMap<>(reverseOrder());
+
+        update(askLevels, data.get("asks"));
+
+        update(bidLevels, data.get("bids"));
+
+        asks.put(pair, askLevels);
+
+        bids.put(pair, bidLevels);
+
+        sequences.put(pair, sequence);
+
+        Deque<JsonObject> diffs = pending.remove(pair);
+
+        if (diffs != null) {
+            diffs.forEach(diff -> applyDiff(pair, diff));
+        }
+
+    }
+
+    private boolean applyDiff(String pair, JsonObject data) {
+
+        Long sequence = getLong(data, "s");
+
+        if (sequence == null || sequence <= sequences.get(pair)) {
+            return false; // Already in the whole.
+        }
+
+        update(asks.get(pair), data.get("a"));
+
+        update(bids.get(pair), data.get("b"));
+
+        sequences.put(pair, sequence);
+
+        return true;
+
+    }
+
+    private void update(Map<BigDecimal, BigDecimal> levels, JsonElement element) {
+
+        if (element == null || !element.isJsonArray()) {
+            return;
+        }
+
+        for (JsonElement e : element.getAsJsonArray()) {
+
+            JsonArray level = e.isJsonArray() ? e.getAsJsonArray() : null;
+
+            if (level == null || level.size() < 2) {
+                continue;
+            }
+
+            BigDecimal price = level.get(0).getAsBigDecimal();
+
+            BigDecimal size = level.get(1).getAsBigDecimal();
+
+            if (size.signum() <= 0) {
+                levels.remove(price);
+            } else {
+                levels.put(price, size);
+            }
+
+        }
+
+    }
+
+    private void notifyBook(String pair, Listener listener) {
+
+        NavigableMap<BigDecimal, BigDecimal> askLevels = asks.get(pair);
+
+        NavigableMap<BigDecimal, BigDecimal> bidLevels = bids.get(pair);
+
+        if (listener != null && askLevels != null && bidLevels != null) {
+            listener.onBook(pair, askLevels.firstEntry(), bidLevels.firstEntry());
+        }
+
+    }
+
+    /**
+     * Merges the latest trades into the tape of the pair, and notifies the trades not yet in the tape.
+     */
+    public synchronized void merge(Instant now, String pair, List<BitbankTrade> values, Listener listener) {
+
+        if (now == null || pair == null || values == null) {
+            return;
+        }
+
+        TradeTape tape = trades.computeIfAbsent(pair, p -> new TradeTape());
+
+        Instant oldest = null;
+
+        for (BitbankTrade trade : values) {
+
+            if (trade == null || trade.getId() == null || trade.getTimestamp() == null) {
+                continue;
+            }
+
+            if (trade.getPrice() == null || trade.getSize() == null) {
+                continue;
+            }
+
+            oldest = oldest == null || oldest.isAfter(trade.getTimestamp()) ? trade.getTimestamp() : oldest;
+
+            boolean added = tape.add(trade.getId(), trade.getTimestamp(), trade.getPrice(), trade.getSize());
+
+            if (added && listener != null) {
+                listener.onTrade(pair, trade);
+            }
+
+        }
+
+        if (oldest != null) {
+            covered.merge(pair, oldest, (v1, v2) -> v1.isBefore(v2) ? v1 : v2);
+        }
+
+        Instant evicted = tape.trim(now.minus(TRADE_EXPIRY), TRADE_LIMIT);
+
+        if (evicted != null) {
+
+            // Trades until the evicted ones are no longer covered.
+            Instant bound = evicted.plusNanos(1);
+
+            covered.computeIfPresent(pair, (k, v) -> v.isAfter(bound) ? v : bound);
+
+        }
+
+    }
+
+    private boolean isAvailable(Instant now, Duration expiry) {
+
+        if (timestamp == null || now == null || expiry == null) {
+            return false;
+        }
+
+        return Duration.between(timestamp, now).compareTo(expiry) <= 0;
+
+    }
+
+    /**
+     * Copy of the book of the pair, or null if the book is not available.
+     */
+    public synchronized BitbankDepth getDepth(Instant now, Duration expiry, String pair) {
+
+        NavigableMap<BigDecimal, BigDecimal> askLevels = asks.get(pair);
+
+        NavigableMap<BigDecimal, BigDecimal> bidLevels = bids.get(pair);
+
+        if (!isAvailable(now, expiry) || askLevels == null || bidLevels == null) {
+            return null;
+        }
+
+        return new BitbankDepth(timestamp, askLevels, bidLevels);
+
+    }
+
+    /**
+     * Last price of the ticker, or of the latest trade if no ticker has been received, or null if not available.
+     */
+    public synchronized BigDecimal getLastPrice(Instant now, Duration expiry, String pair) {
+
+        if (!isAvailable(now, expiry)) {
+            return null;
+        }
+
+        BigDecimal last = lasts.get(pair);
+
+        TapeTrade trade = trades.containsKey(pair) ? trades.get(pair).last() : null;
+
+        if (last == null && trade != null) {
+            last = trade.getPrice();
+        }
+
+        return last;
+
+    }
+
+    /**
+     * Retrieves the trades of the pair since the time, or null if the stream is not available or the tape does not
+     * cover the entire period.
+     */
+    public List<TapeTrade> getTrades(Instant now, Duration expiry, String pair, Instant fromTime) {
+
+        TradeTape tape;
+
+        synchronized (this) {
+
+            Instant since = covered.get(pair);
+
+            if (!isAvailable(now, expiry) || since == null || fromTime == null || fromTime.isBefore(since)) {
+                return null;
+            }
+
+            tape = trades.get(pair);
+
+        }
+
+        return tape == null ? Collections.emptyList() : tape.list(fromTime);
+
+    }
+
+    /**
+     * Retrieves the tape of the pair, or null if the stream is not available or the tape does not cover the entire
+     * period since the time.
+     */
+    public synchronized TradeTape getTape(Instant now, Duration expiry, String pair, Instant fromTime) {
+
+        Instant since = covered.get(pair);
+
+        if (!isAvailable(now, expiry) || since == null || fromTime == null || fromTime.isBefore(since)) {
+            return null;
+        }
+
+        return trades.get(pair);
+
+    }
+
+    private static BigDecimal getDecimal(JsonObject object, String name) {
+
+        JsonElement element = object.get(name);
+
+        return element == null || !element.isJsonPrimitive() ? null : element.getAsBigDecimal();
+
+    }
+
+    private static Long getLong(JsonObject object, String name) {
+
+        JsonElement element = object.get(name);
+
+        return element == null || !element.isJsonPrimitive() ? null : element.getAsLong();
+
+    }
+
+}
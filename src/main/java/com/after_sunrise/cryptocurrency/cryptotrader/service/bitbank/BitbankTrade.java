@@ -0,0 +1,37 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.bitbank;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import com.google.gson.annotations.SerializedName;
+import lombok.*;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+/**
+ * Trade of the "transactions" room of the public stream.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+@Getter
+@Builder
+@ToString
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class BitbankTrade implements Trade {
+
+    @SerializedName("transaction_id")
+    private Long id;
+
+    @SerializedName("side")
+    private String side;
+
+    @SerializedName("executed_at")
+    private Instant timestamp;
+
+    @SerializedName("price")
+    private BigDecimal price;
+
+    @SerializedName("amount")
+    private BigDecimal size;
+
+}
@@ -1,28 +1,35 @@
 package com.after_sunrise.cryptocurrency.cryptotrader.service.bitfinex;
 
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.PriceLevels;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.SocketSupervisor;
 import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.reflect.TypeToken;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializer;
+import com.google.gson.*;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import javax.websocket.*;
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.math.BigDecimal;
+import java.net.URI;
 import java.net.URLEncoder;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.function.Consumer;
 
+import static com.after_sunrise.cryptocurrency.cryptotrader.service.bitfinex.BitfinexRealtime.*;
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.util.Collections.unmodifiableList;
-import static java.util.stream.Collectors.toList;
 
 /**
  * @author takanori.takase
  * @version 0.0.1
  */
+@ClientEndpoint
 public class BitfinexContext extends TemplateContext implements BitfinexService {
 
     static final String URL_TICKER = "https://api.bitfinex.com/v1/pubticker/";
@@ -32,8 +39,24 @@ public class BitfinexContext extends TemplateContext implements BitfinexService
     private static final Type TYPE_TRADE = new TypeToken<List<BitfinexTrade>>() {
     }.getType();
 
+    private static final URI WS_ENDPOINT = URI.create("wss://api-pub.bitfinex.com/ws/2");
+
+    private static final int WS_FLAG_CHECKSUM = 131072;
+
+    private static final String WS_BOOK_DEPTH = "25";
+
+    private static final long REALTIME_EXPIRY = Duration.ofSeconds(30).toMillis();
+
+    private final Object annotatedEndpoint;
+
     private final Gson gson;
 
+    private final BitfinexRealtime realtime;
+
+    private final BitfinexRealtime.Listener listener;
+
+    private volatile SocketSupervisor supervisor;
+
     public BitfinexContext() {
 
         super(ID);
@@ -52,11 +75,246 @@ public class BitfinexContext extends TemplateContext implements BitfinexService
 
         gson = builder.create();
 
+        annotatedEndpoint = this;
+
+        realtime = new BitfinexRealtime();
+
+        listener = new BitfinexRealtime.Listener() {
+
+            @Override
+            public void onTrade(String symbol, BitfinexTrade trade) {
+                publishTrade(symbol, trade.getTimestamp(), trade.getPrice(), trade.getSize());
+            }
+
+            @Override
+            public void onTick(String symbol, BitfinexTick tick) {
+                publishTick(symbol, getNow(), tick.getLast(), tick.getAsk(), null, tick.getBid(), null);
+            }
+
+        };
+
+    }
+
+    @Override
+    public void close() throws Exception {
+
+        SocketSupervisor s = supervisor;
+
+        if (s != null) {
+            s.close();
+        }
+
+        super.close();
+
+    }
+
+    @VisibleForTesting
+    Duration getRealtimeExpiry() {
+        return Duration.ofMillis(getLongProperty("realtime.expiry", REALTIME_EXPIRY));
+    }
+
+    /**
+     * Symbol of the v2 feed (e.g. "tBTCUSD"), or null if the product is empty.
+     */
+    @VisibleForTesting
+    static String convertSymbol(String product) {
+        return StringUtils.isEmpty(product) ? null : "t" + product.toUpperCase(Locale.US);
+    }
+
+    /**
+     * Subscribes the topic of the v2 feed, connecting the socket on the first call.
+     * Returns false if the realtime feed is disabled.
+     */
+    @VisibleForTesting
+    boolean subscribe(String topic) {
+
+        if (StringUtils.isEmpty(topic) || getRealtimeExpiry().toMillis() <= 0) {
+            return false;
+        }
+
+        SocketSupervisor s;
+
+        synchronized (realtime) {
+
+            if (supervisor == null) {
+
+                supervisor = new SocketSupervisor(getClass().getSimpleName(),
+                        WS_ENDPOINT, annotatedEndpoint, new SocketSupervisor.Handler() {
+
+                    @Override
+                    public void subscribe(Session session, Collection<String> channels) throws IOException {
+                        sendSubscribe(session, channels);
+                    }
+
+                    @Override
+                    public void heartbeat(Session session) throws IOException {
+                        session.getBasicRemote().sendText("{\"event\":\"ping\"}");
+                    }
+
+                    @Override
+                    public void backfill(Collection<String> channels, Instant since) throws IOException {
+                        for (String channel : channels) {
+                            if (channel.startsWith(CHANNEL_TRADES + ":")) {
+                                backfillTrades(channel.substring(CHANNEL_TRADES.length() + 1));
+                            }
+                        }
+                    }
+
+                }, this::getNow, getSocketSettings());
+
+                scheduleSocket(supervisor);
+
+            }
+
+            s = supervisor;
+
+        }
+
+        s.subscribe(topic);
+
+        return true;
+
+    }
+
+    @VisibleForTesting
+    void scheduleSocket(SocketSupervisor s) {
+        s.start();
+    }
+
+    @VisibleForTesting
+    void sendSubscribe(Session s, Collection<String> topics) throws IOException {
+
+        Map<String, Object> conf = new LinkedHashMap<>();
+        conf.put("event", "conf");
+        conf.put("flags", WS_FLAG_CHECKSUM);
+
+        s.getBasicRemote().sendText(gson.toJson(conf));
+
+        for (String topic : topics) {
+
+            int index = topic.indexOf(':');
+
+            Map<String, Object> request = new LinkedHashMap<>();
+            request.put("event", "subscribe");
+            request.put("channel", topic.substring(0, index));
+            request.put("symbol", topic.substring(index + 1));
+
+            if (topic.startsWith(CHANNEL_BOOK + ":")) {
+                request.put("prec", "P0");
+                request.put("len", WS_BOOK_DEPTH);
+            }
+
+            s.getBasicRemote().sendText(gson.toJson(request));
+
+        }
+
+    }
+
+    /**
+     * Seeds the tape with the latest trades, which the snapshot of the channel may not cover.
+     */
+    @VisibleForTesting
+    void backfillTrades(String symbol) throws IOException {
+
+        String product = URLEncoder.encode(symbol.substring(1).toLowerCase(Locale.US), UTF_8.name());
+
+        String data = request(URL_TRADE + product);
+
+        if (StringUtils.isEmpty(data)) {
+            return;
+        }
+
+        List<BitfinexTrade> trades = gson.fromJson(data, TYPE_TRADE);
+
+        realtime.merge(getNow(), symbol, trades, listener);
+
+    }
+
+    @OnOpen
+    public void onWebSocketOpen(Session s) {
+
+        log.debug("Socket opened : {}", s.getId());
+
+        realtime.reset();
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onOpen(s);
+        }
+
+    }
+
+    @OnError
+    public void onWebSocketError(Session s, Throwable t) {
+
+        log.debug("Socket error : " + s.getId(), t);
+
+        IOUtils.closeQuietly(s);
+
+    }
+
+    @OnClose
+    public void onWebSocketClose(Session s, CloseReason reason) {
+
+        log.debug("Socket closed : {}", s.getId());
+
+        realtime.reset();
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onClose(s);
+        }
+
+    }
+
+    @OnMessage
+    public void onWebSocketPong(PongMessage message) {
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onMessage();
+        }
+
+    }
+
+    @OnMessage
+    public void onWebSocketMessage(String message, Session s) {
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onMessage();
+        }
+
+        if (StringUtils.isEmpty(message)) {
+            return;
+        }
+
+        if (!realtime.apply(getNow(), new JsonParser().parse(message), listener)) {
+
+            log.warn("Book checksum mismatched. Reconnecting : {}", s.getId());
+
+            IOUtils.closeQuietly(s); // Resubscribed with the snapshots.
+
+        }
+
     }
 
     @VisibleForTesting
     Optional<BitfinexTick> queryTick(Key key) {
 
+        String symbol = convertSymbol(key.getInstrument());
+
+        BitfinexTick streamed = subscribe(topic(CHANNEL_TICKER, symbol))
+                ? realtime.getTick(getNow(), getRealtimeExpiry(), symbol) : null;
+
+        if (streamed != null) {
+            return Optional.of(streamed);
+        }
+
         BitfinexTick tick = findCached(BitfinexTick.class, key, () -> {
 
             String product = URLEncoder.encode(key.getInstrument(), UTF_8.name());
@@ -90,33 +348,127 @@ public class BitfinexContext extends TemplateContext implements BitfinexService
         return queryTick(key).map(BitfinexTick::getLast).orElse(null);
     }
 
+    @Override
+    public Map<BigDecimal, BigDecimal> getAskPrices(Key key) {
+
+        String symbol = convertSymbol(key.getInstrument());
+
+        PriceLevels levels = findLevels(key, true, () -> subscribe(topic(CHANNEL_BOOK, symbol))
+                ? realtime.getAsks(getNow(), getRealtimeExpiry(), symbol) : null);
+
+        return levels != null ? levels : super.getAskPrices(key);
+
+    }
+
+    @Override
+    public Map<BigDecimal, BigDecimal> getBidPrices(Key key) {
+
+        String symbol = convertSymbol(key.getInstrument());
+
+        PriceLevels levels = findLevels(key, false, () -> subscribe(topic(CHANNEL_BOOK, symbol))
+                ? realtime.getBids(getNow(), getRealtimeExpiry(), symbol) : null);
+
+        return levels != null ? levels : super.getBidPrices(key);
+
+    }
+
     @Override
     public List<Trade> listTrades(Key key, Instant fromTime) {
 
-        List<BitfinexTrade> values = listCached(BitfinexTrade.class, key, () -> {
+        String symbol = convertSymbol(key.getInstrument());
+
+        List<? extends Trade> streamed = subscribe(topic(CHANNEL_TRADES, symbol))
+                ? realtime.getTrades(getNow(), getRealtimeExpiry(), symbol, fromTime) : null;
+
+        if (streamed != null) {
+            return new ArrayList<>(streamed);
+        }
+
+        return listIncremental(BitfinexTrade.class, key, fromTime, BitfinexTrade::getId, latest -> {
 
             String product = URLEncoder.encode(key.getInstrument(), UTF_8.name());
 
-            String data = request(URL_TRADE + product);
+            String data = request(URL_TRADE + product
+                    + (latest == null ? "" : "?timestamp=" + latest.getTimestamp().getEpochSecond()));
 
             if (StringUtils.isEmpty(data)) {
                 return null;
             }
 
-            List<BitfinexTrade> trades = gson.fromJson(data, TYPE_TRADE);
-
-            return Collections.unmodifiableList(trades);
+            return gson.fromJson(data, TYPE_TRADE);
 
         });
 
-        if (fromTime == null) {
-            return new ArrayList<>(values);
+    }
+
+    @Override
+    public NavigableMap<Instant, BigDecimal> collapsePrices(Key key,
+                                                            Duration interval, Instant from, Instant to, boolean sum) {
+        return collapseTape(getTape(key, TradeTape.start(interval, from)), interval, from, to, sum);
+    }
+
+    @Override
+    public Optional<Trade> findLastTrade(Key key, Instant fromTime) {
+
+        TradeTape tape = getTape(key, fromTime);
+
+        return tape == null ? super.findLastTrade(key, fromTime) : Optional.ofNullable(tape.latest(fromTime));
+
+    }
+
+    @Override
+    public TradeSummary summarizeTrades(Key key, Instant fromTime, Instant toTime) {
+
+        TradeTape tape = getTape(key, fromTime);
+
+        return tape == null ? super.summarizeTrades(key, fromTime, toTime) : tape.summarize(fromTime, toTime);
+
+    }
+
+    @Override
+    public boolean visitTrades(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        TradeTape tape = getTape(key, fromTime);
+
+        if (tape == null) {
+            return super.visitTrades(key, fromTime, toTime, visitor);
+        }
+
+        tape.visit(fromTime, toTime, visitor);
+
+        return true;
+
+    }
+
+    /**
+     * Visits the tape of the streamed trades if it covers the period, without subscribing to it.
+     */
+    @Override
+    public boolean visitHistory(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        String symbol = key == null ? null : convertSymbol(key.getInstrument());
+
+        TradeTape tape = symbol == null ? null : realtime.getTape(getNow(), getRealtimeExpiry(), symbol, fromTime);
+
+        if (tape == null) {
+            return super.visitHistory(key, fromTime, toTime, visitor);
         }
 
-        return unmodifiableList(values.stream()
-                .filter(e -> Objects.nonNull(e.getTimestamp()))
-                .filter(e -> !e.getTimestamp().isBefore(fromTime))
-                .collect(toList()));
+        tape.visit(fromTime, toTime, visitor);
+
+        return true;
+
+    }
+
+    /**
+     * Tape of the streamed trades covering the period since the time, or null if not available.
+     */
+    private TradeTape getTape(Key key, Instant fromTime) {
+
+        String symbol = convertSymbol(key.getInstrument());
+
+        return subscribe(topic(CHANNEL_TRADES, symbol))
+                ? realtime.getTape(getNow(), getRealtimeExpiry(), symbol, fromTime) : null;
 
     }
 
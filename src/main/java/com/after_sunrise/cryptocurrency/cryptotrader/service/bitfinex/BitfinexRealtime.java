@@ -0,0 +1,478 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.bitfinex;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape.TapeTrade;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static java.util.Collections.reverseOrder;
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * Channels of the v2 feed, maintained locally from the "book", "trades" and "ticker" messages.
+ *
+ * The channel IDs are assigned by the "subscribed" events, and the data of a channel is served only after its
+ * snapshot has been received, and only while the feed has not been silent for longer than the expiry. The book is
+ * verified against the "cs" checksums (enabled by the "conf" flag), which are the CRC32 of the top levels in the
+ * representation received, so the raw values of the levels are retained.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class BitfinexRealtime {
+
+    static final String CHANNEL_BOOK = "book";
+
+    static final String CHANNEL_TRADES = "trades";
+
+    static final String CHANNEL_TICKER = "ticker";
+
+    private static final int CHECKSUM_DEPTH = 25;
+
+    private static final int TRADE_LIMIT = 65536;
+
+    private static final Duration TRADE_EXPIRY = Duration.ofHours(24);
+
+    public interface Listener {
+
+        default void onTrade(String symbol, BitfinexTrade trade) {
+        }
+
+        default void onTick(String symbol, BitfinexTick tick) {
+        }
+
+    }
+
+    private final Map<Long, String> channels = new HashMap<>();
+
+    private final Map<String, NavigableMap<BigDecimal, String[]>> asks = new HashMap<>();
+
+    private final Map<String, NavigableMap<BigDecimal, String[]>> bids = new HashMap<>();
+
+    private final Map<String, BitfinexTick> ticks = new HashMap<>();
+
+    private final Map<String, TradeTape> trades = new HashMap<>();
+
+    private final Map<String, Instant> covered = new HashMap<>();
+
+    private Instant timestamp;
+
+    /**
+     * Topic of the channel for the symbol (e.g. "book:tBTCUSD"), or null if the symbol is null.
+     */
+    public static String topic(String channel, String symbol) {
+        return symbol == null ? null : channel + ":" + symbol;
+    }
+
+    /**
+     * Discards all the channels, which are rebuilt from the snapshots of the next subscription.
+     */
+    public synchronized void reset() {
+
+        channels.clear();
+
+        asks.clear();
+
+        bids.clear();
+
+        ticks.clear();
+
+        trades.clear();
+
+        covered.clear();
+
+        timestamp = null;
+
+    }
+
+    /**
+     * Applies a message of the feed, and notifies the trades not yet received and the ticks. Returns false if the
+     * book fails the checksum, in which case the book is discarded until the next snapshot.
+     */
+    public synchronized boolean apply(Instant now, JsonElement message, Listener listener) {
+
+        timestamp = now;
+
+        if (message == null) {
+            return true;
+        }
+
+        if (message.isJsonObject()) {
+
+            applyEvent(message.getAsJsonObject());
+
+            return true;
+
+        }
+
+        if (!message.isJsonArray() || message.getAsJsonArray().size() < 2) {
+            return true;
+        }
+
+        JsonArray array = message.getAsJsonArray();
+
+        String topic = array.get(0).isJsonPrimitive() ? channels.get(array.get(0).getAsLong()) : null;
+
+        if (topic == null) {
+            return true;
+        }
+
+        String channel = topic.substring(0, topic.indexOf(':'));
+
+        String symbol = topic.substring(topic.indexOf(':') + 1);
+
+        JsonElement body = array.get(1);
+
+        if (body.isJsonPrimitive()) {
+
+            String type = body.getAsString();
+
+            if ("cs".equals(type) && array.size() > 2 && CHANNEL_BOOK.equals(channel)) {
+                return verifyBook(symbol, array.get(2).getAsInt());
+            }
+
+            if ("te".equals(type) && array.size() > 2 && CHANNEL_TRADES.equals(channel)) {
+                merge(now, symbol, Collections.singletonList(convertTrade(array.get(2))), listener);
+            }
+
+            return true; // "hb" and "tu"
+
+        }
+
+        if (!body.isJsonArray()) {
+            return true;
+        }
+
+        JsonArray values = body.getAsJsonArray();
+
+        boolean snapshot = values.size() > 0 && values.get(0).isJsonArray();
+
+        if (CHANNEL_BOOK.equals(channel)) {
+
+            if (snapshot) {
+
+                asks.put(symbol, new TreeMap<>());
+
+                bids.put(symbol, new TreeMap<>(reverseOrder()));
+
+                values.forEach(e -> applyBook(symbol, e));
+
+            } else {
+
+                applyBook(symbol, values);
+
+            }
+
+        }
+
+        if (CHANNEL_TRADES.equals(channel) && snapshot) {
+
+            List<BitfinexTrade> list = new ArrayList<>(values.size());
+
+            values.forEach(e -> list.add(convertTrade(e)));
+
+            merge(now, symbol, list, listener);
+
+        }
+
+        if (CHANNEL_TICKER.equals(channel) && values.size() > 6) {
+
+            BitfinexTick tick = BitfinexTick.builder()
+                    .bid(values.get(0).getAsBigDecimal())
+                    .ask(values.get(2).getAsBigDecimal())
+                    .last(values.get(6).getAsBigDecimal())
+                    .build();
+
+            ticks.put(symbol, tick);
+
+            if (listener != null) {
+                listener.onTick(symbol, tick);
+            }
+
+        }
+
+        return true;
+
+    }
+
+    private void applyEvent(JsonObject event) {
+
+        String type = getString(event, "event");
+
+        String channel = getString(event, "channel");
+
+        String id = getString(event, "chanId");
+
+        if ("subscribed".equals(type) && channel != null && id != null) {
+            channels.put(Long.valueOf(id), topic(channel, getString(event, "symbol")));
+        }
+
+        if ("unsubscribed".equals(type) && id != null) {
+            channels.remove(Long.valueOf(id));
+        }
+
+    }
+
+    /**
+     * Applies a level of [PRICE, COUNT, AMOUNT], where the positive amounts are bids and the negative are asks.
+     */
+    private void applyBook(String symbol, JsonElement element) {
+
+        NavigableMap<BigDecimal, String[]> askLevels = asks.get(symbol);
+
+        NavigableMap<BigDecimal, String[]> bidLevels = bids.get(symbol);
+
+        if (askLevels == null || bidLevels == null || !element.isJsonArray()) {
+            return; // Before the snapshot.
+        }
+
+        JsonArray level = element.getAsJsonArray();
+
+        if (level.size() < 3) {
+            return;
+        }
+
+        String price = level.get(0).getAsString();
+
+        String amount = level.get(2).getAsString();
+
+        BigDecimal value = new BigDecimal(amount);
+
+        Map<BigDecimal, String[]> levels = value.signum() > 0 ? bidLevels : askLevels;
+
+        if (level.get(1).getAsLong() == 0) {
+            levels.remove(new BigDecimal(price));
+        } else {
+            levels.put(new BigDecimal(price), new String[]{price, amount});
+        }
+
+    }
+
+    private boolean verifyBook(String symbol, int checksum) {
+
+        NavigableMap<BigDecimal, String[]> askLevels = asks.get(symbol);
+
+        NavigableMap<BigDecimal, String[]> bidLevels = bids.get(symbol);
+
+        if (askLevels == null || bidLevels == null) {
+            return true; // Before the snapshot.
+        }
+
+        int calculated = checksum(bidLevels.values(), askLevels.values());
+
+        if (calculated == checksum) {
+            return true;
+        }
+
+        asks.remove(symbol);
+
+        bids.remove(symbol);
+
+        return false;
+
+    }
+
+    /**
+     * CRC32 of the top levels interleaved as "bid price:bid amount:ask price:ask amount:..." in the representation
+     * received, with the negative ask amounts.
+     */
+    static int checksum(Collection<String[]> bidLevels, Collection<String[]> askLevels) {
+
+        List<String> values = new ArrayList<>(CHECKSUM_DEPTH * 4);
+
+        Iterator<String[]> bidItr = bidLevels.iterator();
+
+        Iterator<String[]> askItr = askLevels.iterator();
+
+        for (int i = 0; i < CHECKSUM_DEPTH; i++) {
+
+            if (bidItr.hasNext()) {
+                values.addAll(Arrays.asList(bidItr.next()));
+            }
+
+            if (askItr.hasNext()) {
+                values.addAll(Arrays.asList(askItr.next()));
+            }
+
+        }
+
+        CRC32 crc = new CRC32();
+
+        crc.update(String.join(":", values).getBytes(StandardCharsets.UTF_8));
+
+        return (int) crc.getValue();
+
+    }
+
+    /**
+     * Converts a trade of [ID, MTS, AMOUNT, PRICE], where the negative amounts are sells.
+     */
+    private BitfinexTrade convertTrade(JsonElement element) {
+
+        if (element == null || !element.isJsonArray() || element.getAsJsonArray().size() < 4) {
+            return null;
+        }
+
+        JsonArray values = element.getAsJsonArray();
+
+        return BitfinexTrade.builder()
+                .id(values.get(0).getAsLong())
+                .timestamp(Instant.ofEpochMilli(values.get(1).getAsLong()))
+                .size(values.get(2).getAsBigDecimal().abs())
+                .price(values.get(3).getAsBigDecimal())
+                .build();
+
+    }
+
+    /**
+     * Merges the latest trades into the tape of the symbol, and notifies the trades not yet in the tape.
+     */
+    public synchronized void merge(Instant now, String symbol, List<BitfinexTrade> values, Listener listener) {
+
+        if (now == null || symbol == null || values == null) {
+            return;
+        }
+
+        TradeTape tape = trades.computeIfAbsent(symbol, s -> new TradeTape());
+
+        Instant oldest = null;
+
+        for (BitfinexTrade trade : values) {
+
+            if (trade == null || trade.getId() == null || trade.getTimestamp() == null) {
+                continue;
+            }
+
+            if (trade.getPrice() == null || trade.getSize() == null) {
+                continue;
+            }
+
+            oldest = oldest == null || oldest.isAfter(trade.getTimestamp()) ? trade.getTimestamp() : oldest;
+
+            boolean added = tape.add(trade.getId(), trade.getTimestamp(), trade.getPrice(), trade.getSize());
+
+            if (added && listener != null) {
+                listener.onTrade(symbol, trade);
+            }
+
+        }
+
+        if (oldest != null) {
+            covered.merge(symbol, oldest, (v1, v2) -> v1.isBefore(v2) ? v1 : v2);
+        }
+
+        Instant evicted = tape.trim(now.minus(TRADE_EXPIRY), TRADE_LIMIT);
+
+        if (evicted != null) {
+
+            // Trades until the evicted ones are no longer covered.
+            Instant bound = evicted.plusNanos(1);
+
+            covered.computeIfPresent(symbol, (k, v) -> v.isAfter(bound) ? v : bound);
+
+        }
+
+    }
+
+    private boolean isAvailable(Instant now, Duration expiry) {
+
+        if (timestamp == null || now == null || expiry == null) {
+            return false;
+        }
+
+        return Duration.between(timestamp, now).compareTo(expiry) <= 0;
+
+    }
+
+    /**
+     * Retrieves the latest tick of the symbol, or null if the channel is not available.
+     */
+    public synchronized BitfinexTick getTick(Instant now, Duration expiry, String symbol) {
+        return isAvailable(now, expiry) ? ticks.get(symbol) : null;
+    }
+
+    /**
+     * Retrieves the ask levels of the symbol, or null if the book is not available.
+     */
+    public synchronized Map<BigDecimal, BigDecimal> getAsks(Instant now, Duration expiry, String symbol) {
+        return isAvailable(now, expiry) ? convert(asks.get(symbol)) : null;
+    }
+
+    /**
+     * Retrieves the bid levels of the symbol, or null if the book is not available.
+     */
+    public synchronized Map<BigDecimal, BigDecimal> getBids(Instant now, Duration expiry, String symbol) {
+        return isAvailable(now, expiry) ? convert(bids.get(symbol)) : null;
+    }
+
+    private Map<BigDecimal, BigDecimal> convert(NavigableMap<BigDecimal, String[]> levels) {
+
+        if (levels == null) {
+            return null;
+        }
+
+        Map<BigDecimal, BigDecimal> values = new LinkedHashMap<>();
+
+        levels.forEach((price, raw) -> values.put(price, new BigDecimal(raw[1]).abs()));
+
+        return unmodifiableMap(values);
+
+    }
+
+    /**
+     * Retrieves the trades of the symbol since the time, or null if the channel is not available or the tape does
+     * not cover the entire period.
+     */
+    public List<TapeTrade> getTrades(Instant now, Duration expiry, String symbol, Instant fromTime) {
+
+        TradeTape tape;
+
+        synchronized (this) {
+
+            Instant since = covered.get(symbol);
+
+            if (!isAvailable(now, expiry) || since == null || fromTime == null || fromTime.isBefore(since)) {
+                return null;
+            }
+
+            tape = trades.get(symbol);
+
+        }
+
+        return tape == null ? Collections.emptyList() : tape.list(fromTime);
+
+    }
+
+    /**
+     * Retrieves the tape of the symbol, or null if the channel is not available or the tape does not cover the entire
+     * period since the time.
+     */
+    public synchronized TradeTape getTape(Instant now, Duration expiry, String symbol, Instant fromTime) {
+
+        Instant since = covered.get(symbol);
+
+        if (!isAvailable(now, expiry) || since == null || fromTime == null || fromTime.isBefore(since)) {
+            return null;
+        }
+
+        return trades.get(symbol);
+
+    }
+
+    private static String getString(JsonObject object, String name) {
+
+        JsonElement element = object.get(name);
+
+        return element == null || !element.isJsonPrimitive() ? null : element.getAsString();
+
+    }
+
+}
@@ -26,4 +26,7 @@ public class BitfinexTrade implements Trade {
     @SerializedName("amount")
     private BigDecimal size;
 
+    @SerializedName("tid")
+    private Long id;
+
 }
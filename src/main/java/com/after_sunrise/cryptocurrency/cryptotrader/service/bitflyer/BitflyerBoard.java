@@ -1,12 +1,17 @@
 package com.after_sunrise.cryptocurrency.cryptotrader.service.bitflyer;
 
 import com.after_sunrise.cryptocurrency.bitflyer4j.entity.Board;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.PriceLevels;
 import lombok.Getter;
 import lombok.ToString;
 
+import java.math.BigDecimal;
 import java.time.Instant;
+import java.util.*;
 
 /**
+ * Immutable view of the price levels, sorted from the best price.
+ *
  * @author takanori.takase
  * @version 0.0.1
  */
@@ -18,9 +23,52 @@ public class BitflyerBoard {
 
     private final Board delegate;
 
+    private final PriceLevels asks;
+
+    private final PriceLevels bids;
+
     public BitflyerBoard(Instant timestamp, Board delegate) {
+
         this.timestamp = timestamp;
+
         this.delegate = delegate;
+
+        Map<BigDecimal, BigDecimal> a = new HashMap<>();
+
+        Map<BigDecimal, BigDecimal> b = new HashMap<>();
+
+        if (delegate != null) {
+
+            Optional.ofNullable(delegate.getAsk()).orElse(Collections.emptyList()).stream()
+                    .filter(Objects::nonNull)
+                    .filter(q -> q.getPrice() != null)
+                    .filter(q -> q.getSize() != null)
+                    .forEach(q -> a.put(q.getPrice(), q.getSize()));
+
+            Optional.ofNullable(delegate.getBid()).orElse(Collections.emptyList()).stream()
+                    .filter(Objects::nonNull)
+                    .filter(q -> q.getPrice() != null)
+                    .filter(q -> q.getSize() != null)
+                    .forEach(q -> b.put(q.getPrice(), q.getSize()));
+
+        }
+
+        this.asks = PriceLevels.ofAsks(a);
+
+        this.bids = PriceLevels.ofBids(b);
+
+    }
+
+    public BitflyerBoard(Instant timestamp, Map<BigDecimal, BigDecimal> asks, Map<BigDecimal, BigDecimal> bids) {
+
+        this.timestamp = timestamp;
+
+        this.delegate = null;
+
+        this.asks = PriceLevels.ofAsks(asks);
+
+        this.bids = PriceLevels.ofBids(bids);
+
     }
 
 }
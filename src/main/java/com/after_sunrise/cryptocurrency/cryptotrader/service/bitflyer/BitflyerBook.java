@@ -0,0 +1,253 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.bitflyer;
+
+import com.after_sunrise.cryptocurrency.bitflyer4j.entity.Board;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+import static java.util.Collections.reverseOrder;
+
+/**
+ * Order book of a product, maintained locally by applying the realtime board deltas on top of a snapshot.
+ *
+ * The board channel carries no sequence numbers, so a gap is detected as a delta without a preceding snapshot,
+ * a silence longer than the allowed interval (e.g. reconnection), or a crossed book after applying a delta.
+ * On a gap, {@link #apply(Instant, Board, Duration)} requests the caller to fetch a snapshot. While the book has
+ * no valid base, the deltas are buffered and then replayed on top of the next snapshot. A crossed book has stale
+ * levels whose removal has been missed, so the book is invalidated as soon as crossed, and the crossing delta is
+ * buffered along with the subsequent ones. While replaying, the levels crossed by a delta are dropped in favor of
+ * the delta, which is newer.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class BitflyerBook {
+
+    private static final int PENDING_LIMIT = 256;
+
+    private final NavigableMap<BigDecimal, BigDecimal> asks = new TreeMap<>();
+
+    private final NavigableMap<BigDecimal, BigDecimal> bids = new TreeMap<>(reverseOrder());
+
+    private final Deque<Board> pending = new ArrayDeque<>();
+
+    private Instant timestamp;
+
+    private long sequence;
+
+    private boolean synced;
+
+    private boolean resyncing;
+
+    /**
+     * Replaces the levels with the snapshot, and replays the deltas buffered since the gap.
+     */
+    public synchronized void reset(Instant now, Board snapshot) {
+
+        asks.clear();
+
+        bids.clear();
+
+        update(snapshot);
+
+        trim(snapshot);
+
+        pending.forEach(delta -> {
+
+            update(delta);
+
+            trim(delta);
+
+        });
+
+        pending.clear();
+
+        timestamp = now;
+
+        sequence = 0;
+
+        synced = true;
+
+        resyncing = false;
+
+        if (isCrossed()) {
+
+            // Crossed by the levels not in the deltas. Cannot tell which is stale.
+
+            asks.clear();
+
+            bids.clear();
+
+            synced = false;
+
+        }
+
+    }
+
+    /**
+     * Applies the delta, and returns true if the caller should fetch a snapshot and call
+     * {@link #reset(Instant, Board)}, or {@link #abort()} if failed to fetch.
+     */
+    public synchronized boolean apply(Instant now, Board delta, Duration interval) {
+
+        if (synced && timestamp != null && now != null && interval != null
+                && Duration.between(timestamp, now).compareTo(interval) > 0) {
+            synced = false; // Silent for too long, deltas may have been lost.
+        }
+
+        if (!synced) {
+            return buffer(delta);
+        }
+
+        update(delta);
+
+        timestamp = now;
+
+        sequence++;
+
+        if (!isCrossed()) {
+            return false;
+        }
+
+        synced = false; // Not to apply the deltas to the stale book, which is to be replaced.
+
+        return buffer(delta);
+
+    }
+
+    /**
+     * Allows the next delta to request the snapshot again.
+     */
+    public synchronized void abort() {
+        resyncing = false;
+    }
+
+    /**
+     * Copy of the current levels, or null if the book has no valid base.
+     */
+    public synchronized BitflyerBoard snapshot() {
+        return synced ? new BitflyerBoard(timestamp, asks, bids) : null;
+    }
+
+    /**
+     * Best ask level, or null if the book has no valid base or no ask.
+     */
+    public synchronized Map.Entry<BigDecimal, BigDecimal> getBestAsk() {
+        return synced ? asks.firstEntry() : null;
+    }
+
+    /**
+     * Best bid level, or null if the book has no valid base or no bid.
+     */
+    public synchronized Map.Entry<BigDecimal, BigDecimal> getBestBid() {
+        return synced ? bids.firstEntry() : null;
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    private boolean buffer(Board delta) {
+
+        if (pending.size() >= PENDING_LIMIT) {
+            pending.removeFirst();
+        }
+
+        pending.addLast(delta);
+
+        return request();
+
+    }
+
+    private boolean isCrossed() {
+        return !asks.isEmpty() && !bids.isEmpty() && asks.firstKey().compareTo(bids.firstKey()) <= 0;
+    }
+
+    private boolean request() {
+
+        if (resyncing) {
+            return false;
+        }
+
+        resyncing = true;
+
+        return true;
+
+    }
+
+    private void update(Board board) {
+
+        if (board == null) {
+            return;
+        }
+
+        update(asks, board.getAsk());
+
+        update(bids, board.getBid());
+
+    }
+
+    private void update(Map<BigDecimal, BigDecimal> levels, List<? extends Board.Quote> quotes) {
+
+        if (quotes == null) {
+            return;
+        }
+
+        quotes.stream().filter(Objects::nonNull).filter(q -> q.getPrice() != null).forEach(q -> {
+
+            if (q.getSize() == null || q.getSize().signum() <= 0) {
+                levels.remove(q.getPrice());
+            } else {
+                levels.put(q.getPrice(), q.getSize());
+            }
+
+        });
+
+    }
+
+    /**
+     * Removes the opposite levels crossed by the levels of the update, which are newer.
+     */
+    private void trim(Board board) {
+
+        if (!isCrossed()) {
+            return;
+        }
+
+        BigDecimal lowestAsk = lowest(board == null ? null : board.getAsk());
+
+        if (lowestAsk != null) {
+            bids.headMap(lowestAsk, true).clear();
+        }
+
+        BigDecimal highestBid = highest(board == null ? null : board.getBid());
+
+        if (highestBid != null) {
+            asks.headMap(highestBid, true).clear();
+        }
+
+    }
+
+    private BigDecimal lowest(List<? extends Board.Quote> quotes) {
+        return quotes == null ? null : quotes.stream()
+                .filter(Objects::nonNull)
+                .filter(q -> q.getPrice() != null)
+                .filter(q -> q.getSize() != null && q.getSize().signum() > 0)
+                .map(Board.Quote::getPrice)
+                .min(Comparator.naturalOrder())
+                .orElse(null);
+    }
+
+    private BigDecimal highest(List<? extends Board.Quote> quotes) {
+        return quotes == null ? null : quotes.stream()
+                .filter(Objects::nonNull)
+                .filter(q -> q.getPrice() != null)
+                .filter(q -> q.getSize() != null && q.getSize().signum() > 0)
+                .map(Board.Quote::getPrice)
+                .max(Comparator.naturalOrder())
+                .orElse(null);
+    }
+
+}
@@ -9,26 +9,60 @@ import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.Cance
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CreateInstruction;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Order;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.SocketSupervisor;
 import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeBatch;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeJournal;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.reflect.TypeToken;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
 import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import javax.websocket.ClientEndpoint;
+import javax.websocket.CloseReason;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.PongMessage;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.lang.reflect.Type;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.net.URI;
+import java.nio.file.Path;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
@@ -50,12 +84,14 @@ import static java.time.temporal.ChronoUnit.SECONDS;
 import static java.util.Collections.*;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
+import static lombok.AccessLevel.PACKAGE;
 import static org.apache.commons.lang3.math.NumberUtils.LONG_ONE;
 
 /**
  * @author takanori.takase
  * @version 0.0.1
  */
+@ClientEndpoint
 public class BitflyerContext extends TemplateContext implements BitflyerService, RealtimeListener {
 
     private static final Pattern EXPIRY_PATTERN = Pattern.compile("^[A-Z]{6}[0-9]{2}[A-Z]{3}[0-9]{4}$");
@@ -78,6 +114,23 @@ public class BitflyerContext extends TemplateContext implements BitflyerService,
 
     private static final int REALTIME_QUERIES = 32;
 
+    private static final int REALTIME_THREADS = 4;
+
+    private static final String TRANSPORT_SOCKET = "jsonrpc";
+
+    private static final URI WS_ENDPOINT = URI.create("wss://ws.lightstream.bitflyer.com/json-rpc");
+
+    private static final String WS_BOARD_SNAPSHOT = "lightning_board_snapshot_";
+
+    private static final String WS_BOARD = "lightning_board_";
+
+    private static final String WS_TICKER = "lightning_ticker_";
+
+    private static final String WS_EXECUTIONS = "lightning_executions_";
+
+    private static final Type TYPE_EXECUTIONS = new TypeToken<List<Execution>>() {
+    }.getType();
+
     private static final Set<StatusType> HALTS = EnumSet.of(
             StatusType.NO_ORDER,
             StatusType.STOP
@@ -102,11 +155,21 @@ public class BitflyerContext extends TemplateContext implements BitflyerService,
 
     private final Map<String, Lock> realtimeLocks;
 
-    private final Map<String, Optional<BitflyerBoard>> realtimeBoards;
+    private final Map<String, BitflyerBook> realtimeBoards;
 
     private final Map<String, Optional<Tick>> realtimeTicks;
 
-    private final Map<String, NavigableMap<Instant, BitflyerTrade>> realtimeTrades;
+    private final Map<String, TradeTape> realtimeTrades;
+
+    private final Map<String, Backfill> realtimeBackfills;
+
+    private final Object annotatedEndpoint;
+
+    private final Gson gson;
+
+    private volatile SocketSupervisor supervisor;
+
+    private volatile ExecutorService backfiller;
 
     public BitflyerContext() {
 
@@ -127,6 +190,8 @@ public class BitflyerContext extends TemplateContext implements BitflyerService,
 
         realtimeTrades = new ConcurrentHashMap<>();
 
+        realtimeBackfills = new ConcurrentHashMap<>();
+
         bitflyer4j = api;
 
         accountService = bitflyer4j.getAccountService();
@@ -139,6 +204,12 @@ public class BitflyerContext extends TemplateContext implements BitflyerService,
 
         realtimeService.addListener(this);
 
+        annotatedEndpoint = this;
+
+        gson = new GsonBuilder().registerTypeAdapter(ZonedDateTime.class,
+                (JsonDeserializer<ZonedDateTime>) (j, t, c) -> parseTime(j.getAsString())
+        ).create();
+
         log.debug("Initialized.");
 
     }
@@ -146,13 +217,301 @@ public class BitflyerContext extends TemplateContext implements BitflyerService,
     @Override
     public void close() throws Exception {
 
+        SocketSupervisor s = supervisor;
+
+        if (s != null) {
+            s.close();
+        }
+
+        ExecutorService b = backfiller;
+
+        if (b != null) {
+            b.shutdownNow();
+        }
+
         bitflyer4j.close();
 
     }
 
+    /**
+     * Parses the timestamps of the socket messages, which may come without the zone (UTC) as in the REST responses.
+     */
+    @VisibleForTesting
+    static ZonedDateTime parseTime(String value) {
+
+        if (StringUtils.isEmpty(value)) {
+            return null;
+        }
+
+        TemporalAccessor time = DateTimeFormatter.ISO_DATE_TIME.parseBest(value, ZonedDateTime::from, LocalDateTime::from);
+
+        if (time instanceof ZonedDateTime) {
+            return (ZonedDateTime) time;
+        }
+
+        return ((LocalDateTime) time).atZone(ZoneOffset.UTC);
+
+    }
+
+    /**
+     * Returns true if the realtime data is to be received through the native JSON-RPC socket, instead of PubNub.
+     */
+    @VisibleForTesting
+    boolean isSocketTransport() {
+        return TRANSPORT_SOCKET.equalsIgnoreCase(getStringProperty("realtime.transport", null));
+    }
+
+    @VisibleForTesting
+    void subscribeBoard(String product) {
+
+        if (isSocketTransport()) {
+
+            // Snapshot first, so that the deltas are applied on top of it.
+
+            subscribeSocket(WS_BOARD_SNAPSHOT + product);
+
+            subscribeSocket(WS_BOARD + product);
+
+            return;
+
+        }
+
+        realtimeService.subscribeBoard(singletonList(product));
+
+    }
+
+    @VisibleForTesting
+    void subscribeTick(String product) {
+
+        if (isSocketTransport()) {
+
+            subscribeSocket(WS_TICKER + product);
+
+            return;
+
+        }
+
+        realtimeService.subscribeTick(singletonList(product));
+
+    }
+
+    @VisibleForTesting
+    void subscribeExecution(String product) {
+
+        if (isSocketTransport()) {
+
+            subscribeSocket(WS_EXECUTIONS + product);
+
+            return;
+
+        }
+
+        realtimeService.subscribeExecution(singletonList(product));
+
+    }
+
+    /**
+     * Subscribes the channel of the native socket, connecting the socket on the first call.
+     */
+    @VisibleForTesting
+    void subscribeSocket(String channel) {
+
+        SocketSupervisor s;
+
+        synchronized (annotatedEndpoint) {
+
+            if (supervisor == null) {
+
+                supervisor = new SocketSupervisor(getClass().getSimpleName(),
+                        WS_ENDPOINT, annotatedEndpoint, this::sendSubscribe, this::getNow, getSocketSettings());
+
+                // No backfill : the board snapshot is resent on the resubscription, and the missed executions
+                // are not recovered, as with the PubNub transport.
+
+                scheduleSocket(supervisor);
+
+            }
+
+            s = supervisor;
+
+        }
+
+        s.subscribe(channel);
+
+    }
+
+    @VisibleForTesting
+    void scheduleSocket(SocketSupervisor s) {
+        s.start();
+    }
+
+    @VisibleForTesting
+    void sendSubscribe(Session s, Collection<String> channels) throws IOException {
+
+        for (String channel : channels) {
+
+            Map<String, Object> params = new LinkedHashMap<>();
+            params.put("channel", channel);
+
+            Map<String, Object> request = new LinkedHashMap<>();
+            request.put("jsonrpc", "2.0");
+            request.put("method", "subscribe");
+            request.put("params", params);
+
+            s.getBasicRemote().sendText(gson.toJson(request));
+
+        }
+
+    }
+
+    @OnOpen
+    public void onWebSocketOpen(Session s) {
+
+        log.debug("Socket opened : {}", s.getId());
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onOpen(s);
+        }
+
+    }
+
+    @OnError
+    public void onWebSocketError(Session s, Throwable t) {
+
+        log.debug("Socket error : " + s.getId(), t);
+
+        IOUtils.closeQuietly(s);
+
+    }
+
+    @OnClose
+    public void onWebSocketClose(Session s, CloseReason reason) {
+
+        log.debug("Socket closed : {}", s.getId());
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onClose(s);
+        }
+
+    }
+
+    private void markReceived() {
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onMessage();
+        }
+
+    }
+
+    @OnMessage
+    public void onWebSocketPong(PongMessage message) {
+        markReceived();
+    }
+
+    /**
+     * {"jsonrpc":"2.0","method":"channelMessage","params":{"channel":"lightning_ticker_BTC_JPY","message":{...}}}
+     */
+    @OnMessage
+    public void onWebSocketMessage(String message) {
+
+        markReceived();
+
+        if (StringUtils.isEmpty(message)) {
+            return;
+        }
+
+        try {
+
+            JsonElement element = new JsonParser().parse(message);
+
+            if (!element.isJsonObject()) {
+                return;
+            }
+
+            JsonObject object = element.getAsJsonObject();
+
+            if (!object.has("method") || !"channelMessage".equals(object.get("method").getAsString())) {
+                return; // Subscription responses
+            }
+
+            JsonObject params = object.getAsJsonObject("params");
+
+            dispatch(params.get("channel").getAsString(), params.get("message"));
+
+        } catch (RuntimeException e) {
+
+            log.debug("Skipped socket message : " + message, e);
+
+        }
+
+    }
+
+    @VisibleForTesting
+    void dispatch(String channel, JsonElement message) {
+
+        if (channel == null || message == null || message.isJsonNull()) {
+            return;
+        }
+
+        // Snapshot before board, whose prefix is shared.
+
+        if (channel.startsWith(WS_BOARD_SNAPSHOT)) {
+
+            String product = channel.substring(WS_BOARD_SNAPSHOT.length());
+
+            onBoardsSnapshot(product, gson.fromJson(message, Board.class));
+
+        } else if (channel.startsWith(WS_BOARD)) {
+
+            String product = channel.substring(WS_BOARD.length());
+
+            onBoards(product, gson.fromJson(message, Board.class));
+
+        } else if (channel.startsWith(WS_TICKER)) {
+
+            String product = channel.substring(WS_TICKER.length());
+
+            onTicks(product, singletonList(gson.fromJson(message, Tick.class)));
+
+        } else if (channel.startsWith(WS_EXECUTIONS)) {
+
+            String product = channel.substring(WS_EXECUTIONS.length());
+
+            onExecutions(product, gson.fromJson(message, TYPE_EXECUTIONS));
+
+        }
+
+    }
+
     @Override
     public void onBoards(String product, Board value) {
-        // TODO
+
+        if (value == null) {
+            return;
+        }
+
+        String key = StringUtils.trimToEmpty(product);
+
+        BitflyerBook book = realtimeBoards.get(key);
+
+        if (book == null) {
+            return;
+        }
+
+        Instant timestamp = getNow();
+
+        if (book.apply(timestamp, value, REALTIME_EXPIRY)) {
+            resyncBoard(key, book);
+        }
+
+        publishBook(key, timestamp, book.getBestAsk(), book.getBestBid());
+
     }
 
     @Override
@@ -166,7 +525,46 @@ public class BitflyerContext extends TemplateContext implements BitflyerService,
 
         Instant timestamp = getNow();
 
-        realtimeBoards.put(key, Optional.of(new BitflyerBoard(timestamp, value)));
+        BitflyerBook book = realtimeBoards.computeIfAbsent(key, k -> new BitflyerBook());
+
+        book.reset(timestamp, value);
+
+        publishBook(key, timestamp, book.getBestAsk(), book.getBestBid());
+
+    }
+
+    @VisibleForTesting
+    void resyncBoard(String product, BitflyerBook book) {
+
+        log.debug("Resyncing board : {}", product);
+
+        Board.Request request = Board.Request.builder().product(product).build();
+
+        CompletableFuture<Board> future = marketService.getBoard(request);
+
+        if (future == null) {
+
+            book.abort();
+
+            return;
+
+        }
+
+        future.whenComplete((board, e) -> {
+
+            if (board == null) {
+
+                log.warn("Failed to resync board : {} - {}", product, e);
+
+                book.abort();
+
+                return;
+
+            }
+
+            book.reset(getNow(), board);
+
+        });
 
     }
 
@@ -183,6 +581,11 @@ public class BitflyerContext extends TemplateContext implements BitflyerService,
 
             realtimeTicks.put(key, Optional.of(t));
 
+            Instant timestamp = t.getTimestamp() == null ? getNow() : t.getTimestamp().toInstant();
+
+            publishTick(key, timestamp, t.getTradePrice(),
+                    t.getBestAskPrice(), t.getBestAskSize(), t.getBestBidPrice(), t.getBestBidSize());
+
         });
 
     }
@@ -196,64 +599,86 @@ public class BitflyerContext extends TemplateContext implements BitflyerService,
 
         String id = StringUtils.trimToEmpty(product);
 
-        NavigableMap<Instant, BitflyerTrade> trades = realtimeTrades.get(id);
+        TradeTape trades = realtimeTrades.get(id);
 
         if (trades == null) {
             return;
         }
 
-        updateExecutions(trades, values);
+        updateExecutions(id, trades, values);
+
+        values.stream().filter(Objects::nonNull)
+                .filter(exec -> exec.getTimestamp() != null)
+                .filter(exec -> exec.getPrice() != null)
+                .filter(exec -> exec.getSize() != null)
+                .forEach(exec -> publishTrade(id, exec.getTimestamp().toInstant(), exec.getPrice(), exec.getSize()));
 
     }
 
+    /**
+     * Accumulates the executions into the per-second buckets, keyed by the epoch seconds of the bucket ends, and
+     * appends them to the journal of the product, or defers the journaling while the product is being backfilled.
+     */
     @VisibleForTesting
-    void updateExecutions(NavigableMap<Instant, BitflyerTrade> trades, List<Execution> values) {
+    void updateExecutions(String product, TradeTape trades, List<Execution> values) {
 
         if (trades == null || values == null) {
             return;
         }
 
-        values.stream().filter(Objects::nonNull)
+        List<Execution> execs = mergeExecutions(trades, values);
+
+        Backfill backfill = realtimeBackfills.get(product);
+
+        if (backfill != null && backfill.defer(execs)) {
+            return;
+        }
+
+        journalExecutions(product, execs);
+
+    }
+
+    /**
+     * Accumulates the valid executions into the tape in the order of their timestamps, and returns them in the order.
+     * The buckets are collected first and accumulated in bulk, so that the backfilled ones older than the latest are
+     * merged into each segment once, instead of per execution.
+     */
+    private List<Execution> mergeExecutions(TradeTape trades, List<Execution> values) {
+
+        List<Execution> execs = values.stream().filter(Objects::nonNull)
                 .filter(exec -> exec.getTimestamp() != null)
                 .filter(exec -> exec.getPrice() != null)
                 .filter(exec -> exec.getPrice().signum() != 0)
                 .filter(exec -> exec.getSize() != null)
                 .filter(exec -> exec.getSize().signum() != 0)
-                .forEach(exec -> {
-
-                    Instant time = exec.getTimestamp().plus(LONG_ONE, SECONDS).truncatedTo(SECONDS).toInstant();
-
-                    BitflyerTrade trade = trades.get(time);
-
-                    if (trade != null) {
+                .sorted(Comparator.comparing(Execution::getTimestamp))
+                .collect(toList());
 
-                        trade.accumulate(exec.getPrice(), exec.getSize());
+        TradeBatch batch = new TradeBatch(Math.max(execs.size(), 1));
 
-                        return;
+        execs.forEach(exec -> addBucket(batch, exec.getTimestamp().toInstant(), exec.getPrice(), exec.getSize()));
 
-                    }
+        trades.accumulate(batch);
 
-                    trades.put(time, new BitflyerTrade(time, exec.getPrice(), exec.getSize()));
+        trades.trim(getNow().minus(REALTIME_TRADE), Integer.MAX_VALUE);
 
-                });
+        return execs;
 
-        Instant cutoff = getNow().minus(REALTIME_TRADE);
+    }
 
-        while (true) {
+    private void journalExecutions(String product, List<Execution> execs) {
 
-            Map.Entry<Instant, BitflyerTrade> entry = trades.firstEntry();
+        execs.forEach(exec -> journalTrade(
+                product, exec.getId(), exec.getTimestamp().toInstant(), exec.getPrice(), exec.getSize()
+        ));
 
-            if (entry == null) {
-                break;
-            }
+    }
 
-            if (entry.getKey().isAfter(cutoff)) {
-                break;
-            }
+    private static void addBucket(TradeBatch batch, Instant time, BigDecimal price, BigDecimal size) {
 
-            trades.remove(entry.getKey());
+        Instant bucket = time.plus(LONG_ONE, SECONDS).truncatedTo(SECONDS);
 
-        }
+        batch.add(bucket.getEpochSecond(), bucket, price, size);
 
     }
 
@@ -289,20 +714,22 @@ public class BitflyerContext extends TemplateContext implements BitflyerService,
 
             String instrument = StringUtils.trimToEmpty(convertProductAlias(key));
 
-            Optional<BitflyerBoard> realtime = realtimeBoards.get(instrument);
+            BitflyerBook book = realtimeBoards.get(instrument);
 
-            if (realtime == null) {
+            if (book == null) {
 
                 // Initiate subscription if nothing is cached.
 
-                realtime = Optional.empty();
+                book = new BitflyerBook();
 
-                realtimeBoards.put(instrument, realtime);
+                realtimeBoards.put(instrument, book);
 
-                realtimeService.subscribeBoard(singletonList(instrument));
+                subscribeBoard(instrument);
 
             }
 
+            Optional<BitflyerBoard> realtime = Optional.ofNullable(book.snapshot());
+
             if (realtime
                     .filter(board -> board.getTimestamp() != null)
                     .map(board -> Duration.between(board.getTimestamp(), key.getTimestamp()))
@@ -344,7 +771,7 @@ public class BitflyerContext extends TemplateContext implements BitflyerService,
 
                 realtimeTicks.put(instrument, realtime);
 
-                realtimeService.subscribeTick(singletonList(instrument));
+                subscribeTick(instrument);
 
             }
 
@@ -459,53 +886,116 @@ public class BitflyerContext extends TemplateContext implements BitflyerService,
 
         BitflyerBoard b = getBoard(key);
 
-        if (b == null) {
-            return super.getAskPrices(key);
-        }
+        return b == null ? super.getAskPrices(key) : b.getAsks();
 
-        Map<BigDecimal, BigDecimal> values = new HashMap<>();
+    }
 
-        trimToEmpty(b.getDelegate().getAsk()).stream()
-                .filter(Objects::nonNull)
-                .filter(q -> q.getPrice() != null)
-                .filter(q -> q.getSize() != null)
-                .filter(q -> q.getSize().signum() != 0)
-                .forEach(q -> values.put(q.getPrice(), q.getSize()));
+    @Override
+    public Map<BigDecimal, BigDecimal> getBidPrices(Key key) {
 
-        return values;
+        BitflyerBoard b = getBoard(key);
+
+        return b == null ? super.getBidPrices(key) : b.getBids();
 
     }
 
     @Override
-    public Map<BigDecimal, BigDecimal> getBidPrices(Key key) {
+    public List<Trade> listTrades(Key key, Instant fromTime) {
 
-        BitflyerBoard b = getBoard(key);
+        String id = StringUtils.trimToEmpty(convertProductAlias(key));
 
-        if (b == null) {
-            return super.getBidPrices(key);
-        }
+        TradeTape trades = getRealtimeTrades(id);
 
-        Map<BigDecimal, BigDecimal> values = new HashMap<>();
+        Instant cutoff = fromTime != null ? fromTime : getNow().minus(REALTIME_TRADE);
 
-        trimToEmpty(b.getDelegate().getBid()).stream()
-                .filter(Objects::nonNull)
-                .filter(q -> q.getPrice() != null)
-                .filter(q -> q.getSize() != null)
-                .filter(q -> q.getSize().signum() != 0)
-                .forEach(q -> values.put(q.getPrice(), q.getSize()));
+        return new ArrayList<>(trades.list(cutoff.plusNanos(1)));
 
-        return values;
+    }
+
+    @Override
+    public NavigableMap<Instant, BigDecimal> collapsePrices(Key key,
+                                                            Duration interval, Instant from, Instant to, boolean sum) {
+
+        String id = StringUtils.trimToEmpty(convertProductAlias(key));
+
+        return collapseTape(getRealtimeTrades(id), interval, from, to, sum);
 
     }
 
     @Override
-    public List<Trade> listTrades(Key key, Instant fromTime) {
+    public Optional<Trade> findLastTrade(Key key, Instant fromTime) {
 
         String id = StringUtils.trimToEmpty(convertProductAlias(key));
 
-        Lock lock = realtimeLocks.computeIfAbsent(id, k -> new ReentrantLock());
+        return Optional.ofNullable(getRealtimeTrades(id).latest(fromTime));
+
+    }
+
+    @Override
+    public TradeSummary summarizeTrades(Key key, Instant fromTime, Instant toTime) {
+
+        String id = StringUtils.trimToEmpty(convertProductAlias(key));
+
+        return getRealtimeTrades(id).summarize(fromTime, toTime);
+
+    }
+
+    @Override
+    public boolean visitTrades(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        String id = StringUtils.trimToEmpty(convertProductAlias(key));
+
+        getRealtimeTrades(id).visit(fromTime, toTime, visitor);
+
+        return true;
+
+    }
+
+    /**
+     * Visits the tape of the product if initialized and covering the period, or else the journal of the product.
+     * The instrument is required to be the product code, as the aliases are resolved by querying the exchange.
+     */
+    @Override
+    public boolean visitHistory(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        TradeTape tape = key == null || key.getInstrument() == null ? null : realtimeTrades.get(key.getInstrument());
+
+        if (tape == null || !tape.covers(fromTime)) {
+            return super.visitHistory(key, fromTime, toTime, visitor);
+        }
+
+        tape.visit(fromTime, toTime, visitor);
+
+        return true;
+
+    }
+
+    /**
+     * Imports into the journal of the product, which is named by the product code instead of its alias.
+     */
+    @Override
+    public Long importTrades(Key key, Path path) {
+
+        String id = convertProductAlias(key);
 
-        NavigableMap<Instant, BitflyerTrade> trades;
+        return id == null ? null : super.importTrades(Key.build(key).instrument(id).build(), path);
+
+    }
+
+    /**
+     * Retrieves the tape of the product, initializing it on the first call from the journal and the latest page of
+     * the executions. The rest of the history is backfilled in the background, so the readers get the recent window
+     * filled so far, instead of waiting for the whole history.
+     */
+    private TradeTape getRealtimeTrades(String id) {
+
+        TradeTape trades = realtimeTrades.get(id);
+
+        if (trades != null) {
+            return trades;
+        }
+
+        Lock lock = realtimeLocks.computeIfAbsent(id, k -> new ReentrantLock());
 
         try {
 
@@ -515,56 +1005,355 @@ public class BitflyerContext extends TemplateContext implements BitflyerService,
 
             if (trades == null) {
 
-                realtimeService.subscribeExecution(singletonList(id));
+                subscribeExecution(id);
 
-                trades = new ConcurrentSkipListMap<>();
+                TradeTape tape = new TradeTape();
 
-                Execution.Request.RequestBuilder b = Execution.Request.builder().product(id).count(REALTIME_COUNT);
+                Instant cutoff = getNow().minus(REALTIME_TRADE);
 
-                int queries = getIntProperty("trade.queries", REALTIME_QUERIES);
+                TradeBatch replayed = new TradeBatch();
 
-                Instant cutoff = getNow().minus(REALTIME_TRADE);
+                TradeJournal journal = replayJournal(id, cutoff, (i, t, p, s) -> addBucket(replayed, t, p, s));
 
-                Long minimumId = null;
+                tape.accumulate(replayed);
 
-                for (int i = 0; i < queries; i++) {
+                Long journaled = journal == null ? null : journal.getMaxId();
 
-                    Execution.Request r = b.before(minimumId).build();
+                int queries = getIntProperty("trade.queries", REALTIME_QUERIES);
 
-                    List<Execution> execs = trimToEmpty(extractQuietly(marketService.getExecutions(r), TIMEOUT));
+                List<Execution> execs = emptyList();
 
-                    updateExecutions(trades, execs);
+                if (queries > 0) {
 
-                    minimumId = execs.stream().filter(Objects::nonNull)
-                            .filter(e -> e.getId() != null)
-                            .filter(e -> e.getTimestamp() != null)
-                            .filter(e -> e.getTimestamp().toInstant().isAfter(cutoff))
-                            .min(Comparator.comparing(Execution::getId))
-                            .map(Execution::getId)
-                            .orElse(null);
+                    Execution.Request r = Execution.Request.builder().product(id).count(REALTIME_COUNT).build();
 
-                    if (minimumId == null) {
-                        break;
-                    }
+                    execs = trimToEmpty(extractQuietly(marketService.getExecutions(r), TIMEOUT));
 
                 }
 
+                Backfill backfill = new Backfill();
+
+                realtimeBackfills.put(id, backfill);
+
+                updateExecutions(id, tape, execs.stream().filter(Objects::nonNull)
+                        .filter(e -> journaled == null || (e.getId() != null && e.getId() > journaled))
+                        .collect(toList()));
+
+                trades = tape;
+
                 realtimeTrades.put(id, trades);
 
+                int threads = getIntProperty("trade.threads", REALTIME_THREADS);
+
+                List<Partition> partitions = planPartitions(execs, cutoff, journaled, queries - 1, threads);
+
+                backfill(id, tape, cutoff, partitions, backfill);
+
             }
 
         } finally {
             lock.unlock();
         }
 
-        Instant cutoff = fromTime != null ? fromTime : getNow().minus(REALTIME_TRADE);
+        return trades;
+
+    }
+
+    /**
+     * Executions of the product whose journaling is deferred while the history is being backfilled, so that the
+     * journal is never left with a gap below its latest ID, from which the history is resumed after a restart.
+     * If the backfill has left a gap, the executions are dropped instead, until the restart.
+     */
+    private static class Backfill {
+
+        private List<Execution> deferred = new ArrayList<>();
+
+        private boolean abandoned;
+
+        /**
+         * Defers (or drops) the executions, or returns false if the backfill has been completed.
+         */
+        synchronized boolean defer(List<Execution> execs) {
+
+            if (abandoned) {
+                return true;
+            }
+
+            if (deferred == null) {
+                return false;
+            }
+
+            deferred.addAll(execs);
+
+            return true;
+
+        }
+
+        synchronized List<Execution> complete(boolean journal) {
+
+            List<Execution> execs = deferred;
+
+            deferred = null;
+
+            abandoned = !journal;
+
+            return execs == null ? emptyList() : execs;
+
+        }
+
+    }
+
+    /**
+     * Range of the execution IDs to backfill, walking down the pages from the ID before (exclusive) to the ID after
+     * (exclusive), or to the cutoff time if the ID after is null, within the number of the queries.
+     */
+    @Getter
+    @ToString(exclude = "executions")
+    @RequiredArgsConstructor(access = PACKAGE)
+    @VisibleForTesting
+    static class Partition {
+
+        private final long before;
+
+        private final Long after;
+
+        private final int queries;
+
+        private final List<Execution> executions = new ArrayList<>();
 
-        return trades.values().stream()
-                .filter(trade -> trade.getTimestamp() != null)
-                .filter(trade -> trade.getTimestamp().isAfter(cutoff))
-                .map(BitflyerTrade::snapshot)
+        private boolean complete;
+
+    }
+
+    /**
+     * Splits the history below the probed page into the partitions to be fetched concurrently.
+     *
+     * The IDs down to the journaled ID, or to the cutoff time, are estimated from the rate of the IDs over the time
+     * in the page, and the most recent part which the queries can cover is split evenly by the IDs. The lowest
+     * partition is bounded only by the journaled ID and the cutoff time, so that the history is still walked down to
+     * them if the estimate falls short.
+     */
+    @VisibleForTesting
+    static List<Partition> planPartitions(List<Execution> probe, Instant cutoff, Long journaled, int queries,
+                                          int threads) {
+
+        List<Execution> execs = Optional.ofNullable(probe).orElse(emptyList()).stream()
+                .filter(Objects::nonNull)
+                .filter(e -> e.getId() != null)
+                .filter(e -> e.getTimestamp() != null)
+                .sorted(Comparator.comparing(Execution::getId))
                 .collect(toList());
 
+        if (execs.isEmpty() || cutoff == null || queries <= 0) {
+            return emptyList();
+        }
+
+        Execution first = execs.get(0);
+
+        Execution last = execs.get(execs.size() - 1);
+
+        if (!first.getTimestamp().toInstant().isAfter(cutoff) || (journaled != null && first.getId() <= journaled)) {
+            return emptyList(); // Already reached the cutoff, or the journaled.
+        }
+
+        long upper = first.getId();
+
+        long ids = last.getId() - first.getId();
+
+        long millis = Duration.between(first.getTimestamp(), last.getTimestamp()).toMillis();
+
+        Long lower = journaled;
+
+        if (lower == null && ids > 0 && millis > 0) {
+
+            double elapsed = Duration.between(cutoff, first.getTimestamp().toInstant()).toMillis();
+
+            lower = (long) Math.max(upper - Math.ceil(elapsed * ids / millis), 0);
+
+        }
+
+        if (lower == null || ids <= 0) {
+            return singletonList(new Partition(upper, journaled, queries)); // No rate to estimate with.
+        }
+
+        long range = upper - lower - 1; // Exclusive on both ends.
+
+        if (range <= 0) {
+            return emptyList();
+        }
+
+        long pages = Math.min((range + ids - 1) / ids, queries);
+
+        int count = (int) Math.min(pages, Math.max(threads, 1));
+
+        long width = Math.min(range, pages * ids);
+
+        long step = (width + count - 1) / count;
+
+        List<Partition> partitions = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+
+            long before = upper - step * i;
+
+            Long after = i == count - 1 ? journaled : Long.valueOf(before - step - 1);
+
+            int budget = queries / count + (i < queries % count ? 1 : 0);
+
+            partitions.add(new Partition(before, after, budget));
+
+        }
+
+        return partitions;
+
+    }
+
+    /**
+     * Walks down the pages of the partition, collecting the executions in its range. The partition is complete if
+     * the walk has reached its lower bound, or the end of the history.
+     */
+    @VisibleForTesting
+    void fetchPartition(String id, Partition partition, Instant cutoff) {
+
+        Long before = partition.getBefore();
+
+        Long after = partition.getAfter();
+
+        for (int i = 0; i < partition.getQueries(); i++) {
+
+            Execution.Request r = Execution.Request.builder().product(id).count(REALTIME_COUNT).before(before).build();
+
+            List<Execution> execs = extractQuietly(marketService.getExecutions(r), TIMEOUT);
+
+            if (execs == null) {
+                return; // Failed, leaving the rest of the partition.
+            }
+
+            Long upper = before;
+
+            execs.stream().filter(Objects::nonNull)
+                    .filter(e -> e.getId() != null)
+                    .filter(e -> e.getId() < upper)
+                    .filter(e -> after == null || e.getId() > after)
+                    .forEach(partition.executions::add);
+
+            before = execs.stream().filter(Objects::nonNull)
+                    .filter(e -> e.getId() != null)
+                    .filter(e -> e.getTimestamp() != null)
+                    .filter(e -> e.getTimestamp().toInstant().isAfter(cutoff))
+                    .min(Comparator.comparing(Execution::getId))
+                    .map(Execution::getId)
+                    .orElse(null);
+
+            if (before == null || (after != null && before - after <= 1)) {
+
+                partition.complete = true; // Reached the cutoff, or the lower bound.
+
+                return;
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Fetches the partitions concurrently, merging each into the tape as it arrives, regardless of the order. Once
+     * all are done, the partitions and the deferred executions are journaled in the order of their IDs, only if the
+     * partitions are complete down to the journaled ID, so that the journal has no gap below its latest ID. The lowest
+     * partition without the journaled ID may stop short of the cutoff, as the executions fetched are contiguous.
+     */
+    private void backfill(String id, TradeTape tape, Instant cutoff, List<Partition> partitions, Backfill backfill) {
+
+        Executor executor = getBackfillExecutor();
+
+        List<CompletableFuture<List<Execution>>> futures = new ArrayList<>(partitions.size());
+
+        for (Partition partition : partitions) {
+
+            futures.add(CompletableFuture.supplyAsync(() -> {
+
+                fetchPartition(id, partition, cutoff);
+
+                return mergeExecutions(tape, partition.getExecutions());
+
+            }, executor));
+
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).whenComplete((v, t) -> {
+
+            List<Execution> execs = new ArrayList<>();
+
+            boolean complete = true;
+
+            for (int i = 0; i < partitions.size() && complete; i++) {
+
+                List<Execution> values = extractQuietly(futures.get(i), TIMEOUT);
+
+                Partition partition = partitions.get(i);
+
+                complete = values != null && (partition.isComplete() || partition.getAfter() == null);
+
+                execs.addAll(trimToEmpty(values));
+
+            }
+
+            synchronized (backfill) { // Blocks the executions to defer, until journaled.
+
+                execs.addAll(backfill.complete(complete));
+
+                if (!complete) {
+
+                    log.warn("Skipped journaling executions with a gap : {} (partitions={})", id, partitions.size());
+
+                    return;
+
+                }
+
+                realtimeBackfills.remove(id, backfill);
+
+                NavigableMap<Long, Execution> sorted = new TreeMap<>();
+
+                execs.stream().filter(e -> e.getId() != null).forEach(e -> sorted.putIfAbsent(e.getId(), e));
+
+                journalExecutions(id, new ArrayList<>(sorted.values()));
+
+                log.debug("Backfilled executions : {} (partitions={}, journaled={})",
+                        id, partitions.size(), sorted.size());
+
+            }
+
+        });
+
+    }
+
+    /**
+     * Executor of the backfills, created on the first call with the number of the threads configured, which
+     * limits the number of the queries in flight.
+     */
+    @VisibleForTesting
+    Executor getBackfillExecutor() {
+
+        synchronized (realtimeBackfills) {
+
+            if (backfiller == null) {
+
+                int threads = Math.max(getIntProperty("trade.threads", REALTIME_THREADS), 1);
+
+                backfiller = Executors.newFixedThreadPool(threads, r -> {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    t.setName(getClass().getSimpleName() + "-backfill");
+                    return t;
+                });
+
+            }
+
+            return backfiller;
+
+        }
+
     }
 
     @VisibleForTesting
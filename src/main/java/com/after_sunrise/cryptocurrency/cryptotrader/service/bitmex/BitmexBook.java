@@ -17,6 +17,12 @@ public class BitmexBook {
 
     public static final String SIDE_BUY = "Buy";
 
+    /**
+     * Identifier of the price level.
+     */
+    @SerializedName("id")
+    private Long id;
+
     /**
      * "Buy", "Sell"
      */
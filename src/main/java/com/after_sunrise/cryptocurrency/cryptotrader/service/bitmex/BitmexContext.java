@@ -4,39 +4,49 @@ import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.Cance
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CreateInstruction;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Order;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.NonceSequencer;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.SocketSupervisor;
 import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.HttpResponseException;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import javax.websocket.*;
 import java.io.IOException;
 import java.lang.reflect.Type;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.security.GeneralSecurityException;
+import java.net.URI;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 import static com.after_sunrise.cryptocurrency.cryptotrader.service.bitmex.BitmexService.SideType.BUY;
 import static com.after_sunrise.cryptocurrency.cryptotrader.service.bitmex.BitmexService.SideType.SELL;
+import static com.after_sunrise.cryptocurrency.cryptotrader.service.bitmex.BitmexRealtime.*;
 import static com.after_sunrise.cryptocurrency.cryptotrader.service.bitmex.BitmexTick.UNLISTED;
+import static com.after_sunrise.cryptocurrency.cryptotrader.service.template.RequestSigner.HMAC_SHA256;
 import static com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext.RequestType.GET;
 import static java.math.BigDecimal.*;
 import static java.math.RoundingMode.HALF_UP;
+import static java.time.temporal.ChronoUnit.MILLIS;
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
 import static java.util.stream.Collectors.toList;
 import static org.apache.commons.lang3.math.NumberUtils.INTEGER_ZERO;
 
@@ -44,6 +54,7 @@ import static org.apache.commons.lang3.math.NumberUtils.INTEGER_ZERO;
  * @author takanori.takase
  * @version 0.0.1
  */
+@ClientEndpoint
 public class BitmexContext extends TemplateContext implements BitmexService {
 
     private static final String URL = "https://www.bitmex.com";
@@ -94,10 +105,35 @@ public class BitmexContext extends TemplateContext implements BitmexService {
 
     private static final Duration BUCKETED = Duration.ofHours(1);
 
-    private final AtomicLong lastNonce = new AtomicLong();
+    private static final int TRADE_COUNT = 500;
+
+    private static final int TRADE_PAGES = 10;
+
+    private static final int SEQUENCE_BITS = 20;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final URI WS_ENDPOINT = URI.create("wss://www.bitmex.com/realtime");
+
+    private static final String WS_PING = "ping";
+
+    private static final long REALTIME_EXPIRY = Duration.ofSeconds(30).toMillis();
+
+    private static final Predicate<HttpResponseException> NONCE_REJECTION =
+            NonceSequencer.rejection(401, "Nonce is not increasing");
+
+    private final NonceSequencer nonceSequencer = new NonceSequencer(MICROSECONDS);
+
+    private final Object annotatedEndpoint;
 
     private final Gson gson;
 
+    private final BitmexRealtime realtime;
+
+    private final Map<String, Map<String, Long>> matches = new ConcurrentHashMap<>();
+
+    private volatile SocketSupervisor supervisor;
+
     public BitmexContext() throws ConfigurationException {
 
         super(ID);
@@ -110,6 +146,154 @@ public class BitmexContext extends TemplateContext implements BitmexService {
 
         gson = builder.create();
 
+        annotatedEndpoint = this;
+
+        realtime = new BitmexRealtime(gson);
+
+    }
+
+    @Override
+    public void close() throws Exception {
+
+        SocketSupervisor s = supervisor;
+
+        if (s != null) {
+            s.close();
+        }
+
+        super.close();
+
+    }
+
+    @VisibleForTesting
+    Duration getRealtimeExpiry() {
+        return Duration.ofMillis(getLongProperty("realtime.expiry", REALTIME_EXPIRY));
+    }
+
+    /**
+     * Subscribes the topic of the realtime feed, connecting the socket on the first call.
+     * Returns false if the realtime feed is disabled.
+     */
+    @VisibleForTesting
+    boolean subscribe(String topic) {
+
+        if (StringUtils.isEmpty(topic) || getRealtimeExpiry().toMillis() <= 0) {
+            return false;
+        }
+
+        SocketSupervisor s;
+
+        synchronized (realtime) {
+
+            if (supervisor == null) {
+
+                supervisor = new SocketSupervisor(getClass().getSimpleName(),
+                        WS_ENDPOINT, annotatedEndpoint, new SocketSupervisor.Handler() {
+
+                    @Override
+                    public void subscribe(Session session, Collection<String> channels) throws IOException {
+                        sendSubscribe(session, channels);
+                    }
+
+                    @Override
+                    public void heartbeat(Session session) throws IOException {
+                        session.getBasicRemote().sendText(WS_PING);
+                    }
+
+                    // No backfill : the trades are served only for the periods covered since the partial.
+
+                }, this::getNow, getSocketSettings());
+
+                scheduleSocket(supervisor);
+
+            }
+
+            s = supervisor;
+
+        }
+
+        s.subscribe(topic);
+
+        return true;
+
+    }
+
+    @VisibleForTesting
+    void scheduleSocket(SocketSupervisor s) {
+        s.start();
+    }
+
+    @VisibleForTesting
+    void sendSubscribe(Session s, Collection<String> topics) throws IOException {
+
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("op", "subscribe");
+        request.put("args", new ArrayList<>(topics));
+
+        s.getBasicRemote().sendText(gson.toJson(request));
+
+    }
+
+    @OnOpen
+    public void onWebSocketOpen(Session s) {
+
+        log.debug("Socket opened : {}", s.getId());
+
+        realtime.reset();
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onOpen(s);
+        }
+
+    }
+
+    @OnError
+    public void onWebSocketError(Session s, Throwable t) {
+
+        log.debug("Socket error : " + s.getId(), t);
+
+        IOUtils.closeQuietly(s);
+
+    }
+
+    @OnClose
+    public void onWebSocketClose(Session s, CloseReason reason) {
+
+        log.debug("Socket closed : {}", s.getId());
+
+        realtime.reset();
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onClose(s);
+        }
+
+    }
+
+    @OnMessage
+    public void onWebSocketMessage(String message) {
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onMessage();
+        }
+
+        if (StringUtils.isEmpty(message) || message.startsWith("pong")) {
+            return;
+        }
+
+        JsonElement element = new JsonParser().parse(message);
+
+        if (element.isJsonObject()) {
+            realtime.apply(getNow(), element.getAsJsonObject(), (symbol, trade) ->
+                    publishTrade(symbol, trade.getTimestamp(), trade.getPrice(), trade.getSize())
+            );
+        }
+
     }
 
     @VisibleForTesting
@@ -139,7 +323,7 @@ public class BitmexContext extends TemplateContext implements BitmexService {
 
         BitmexAlias alias = findCached(BitmexAlias.class, newKey, () -> {
 
-            String data = request(GET, URL + URL_ALIAS, null, null);
+            String data = request(URL + URL_ALIAS);
 
             if (StringUtils.isEmpty(data)) {
                 return null;
@@ -175,9 +359,11 @@ public class BitmexContext extends TemplateContext implements BitmexService {
 
         Key newKey = Key.build(key).instrument(WILDCARD).build();
 
-        List<BitmexTick> ticks = listCached(BitmexTick.class, newKey, () -> {
+        List<BitmexTick> ticks = subscribe(TABLE_INSTRUMENT) ? realtime.getTicks(getNow(), getRealtimeExpiry()) : null;
+
+        ticks = ticks != null ? ticks : listCached(BitmexTick.class, newKey, () -> {
 
-            String data = request(GET, URL + URL_TICKER, null, null);
+            String data = request(URL + URL_TICKER);
 
             if (StringUtils.isEmpty(data)) {
                 return null;
@@ -223,14 +409,19 @@ public class BitmexContext extends TemplateContext implements BitmexService {
             return Collections.emptyList();
         }
 
-        List<BitmexBook> books = listCached(BitmexBook.class, key, () -> {
+        String symbol = convertAlias(key);
+
+        List<BitmexBook> books = subscribe(topic(TABLE_BOOK, symbol))
+                ? realtime.getBooks(getNow(), getRealtimeExpiry(), symbol) : null;
+
+        books = books != null ? books : listCached(BitmexBook.class, key, () -> {
 
             Map<String, String> parameters = new LinkedHashMap<>();
             parameters.put("symbol", convertAlias(key));
             parameters.put("depth", TEN.toPlainString());
             String path = URL + URL_BOOK + buildQueryParameter(parameters);
 
-            String data = request(GET, path, null, null);
+            String data = request(path);
 
             if (StringUtils.isEmpty(data)) {
                 return null;
@@ -309,17 +500,21 @@ public class BitmexContext extends TemplateContext implements BitmexService {
             return emptyMap();
         }
 
-        Map<BigDecimal, BigDecimal> values = new LinkedHashMap<>();
+        return findLevels(key, true, () -> {
 
-        queryBooks(key).stream()
-                .filter(Objects::nonNull)
-                .filter(b -> b.getSide() != null)
-                .filter(b -> b.getPrice() != null)
-                .filter(b -> b.getSize() != null)
-                .filter(b -> !BitmexBook.SIDE_BUY.equals(b.getSide()))
-                .forEach(b -> values.put(b.getPrice(), b.getSize()));
+            Map<BigDecimal, BigDecimal> values = new HashMap<>();
+
+            queryBooks(key).stream()
+                    .filter(Objects::nonNull)
+                    .filter(b -> b.getSide() != null)
+                    .filter(b -> b.getPrice() != null)
+                    .filter(b -> b.getSize() != null)
+                    .filter(b -> !BitmexBook.SIDE_BUY.equals(b.getSide()))
+                    .forEach(b -> values.put(b.getPrice(), b.getSize()));
 
-        return values;
+            return values;
+
+        });
 
     }
 
@@ -330,17 +525,21 @@ public class BitmexContext extends TemplateContext implements BitmexService {
             return emptyMap();
         }
 
-        Map<BigDecimal, BigDecimal> values = new LinkedHashMap<>();
+        return findLevels(key, false, () -> {
 
-        queryBooks(key).stream()
-                .filter(Objects::nonNull)
-                .filter(b -> b.getSide() != null)
-                .filter(b -> b.getPrice() != null)
-                .filter(b -> b.getSize() != null)
-                .filter(b -> BitmexBook.SIDE_BUY.equals(b.getSide()))
-                .forEach(b -> values.put(b.getPrice(), b.getSize()));
+            Map<BigDecimal, BigDecimal> values = new HashMap<>();
 
-        return values;
+            queryBooks(key).stream()
+                    .filter(Objects::nonNull)
+                    .filter(b -> b.getSide() != null)
+                    .filter(b -> b.getPrice() != null)
+                    .filter(b -> b.getSize() != null)
+                    .filter(b -> BitmexBook.SIDE_BUY.equals(b.getSide()))
+                    .forEach(b -> values.put(b.getPrice(), b.getSize()));
+
+            return values;
+
+        });
 
     }
 
@@ -369,28 +568,60 @@ public class BitmexContext extends TemplateContext implements BitmexService {
 
         }
 
-        List<? extends Trade> trades = listCached(BitmexTrade.class, key, () -> {
+        String symbol = convertAlias(key);
 
-            Map<String, String> parameters = new LinkedHashMap<>();
-            parameters.put("count", "500");
-            parameters.put("reverse", "true");
-            parameters.put("symbol", convertAlias(key));
+        List<? extends Trade> streamed = subscribe(topic(TABLE_TRADE, symbol))
+                ? realtime.getTrades(getNow(), getRealtimeExpiry(), symbol, fromTime) : null;
 
-            String path = URL + URL_TRADE + buildQueryParameter(parameters);
+        Map<BitmexTrade, Long> sequences = new IdentityHashMap<>();
 
-            String data = request(path);
+        List<? extends Trade> trades = streamed != null ? streamed : listIncremental(
+                BitmexTrade.class, key, null, sequences::get, latest -> {
 
-            if (StringUtils.isEmpty(data)) {
-                return null;
-            }
+                    List<BitmexTrade> values = new ArrayList<>();
 
-            return Collections.unmodifiableList(gson.fromJson(data, TYPE_TRADE));
+                    for (int i = 0; i < TRADE_PAGES; i++) {
 
-        });
+                        Map<String, String> parameters = new LinkedHashMap<>();
+                        parameters.put("count", String.valueOf(TRADE_COUNT));
+                        parameters.put("reverse", String.valueOf(latest == null));
+                        parameters.put("symbol", symbol);
+
+                        if (latest != null) {
+                            parameters.put("startTime", latest.getTimestamp().truncatedTo(MILLIS).toString());
+                        }
+
+                        if (!values.isEmpty()) {
+                            parameters.put("start", String.valueOf(values.size()));
+                        }
+
+                        String data = request(URL + URL_TRADE + buildQueryParameter(parameters));
+
+                        List<BitmexTrade> page = StringUtils.isEmpty(data) ? null : gson.fromJson(data, TYPE_TRADE);
+
+                        if (page == null) {
+                            break;
+                        }
+
+                        values.addAll(page);
+
+                        if (latest == null || page.size() < TRADE_COUNT) {
+                            break;
+                        }
+
+                    }
+
+                    Map<String, Long> known = matches.computeIfAbsent(symbol, s -> new HashMap<>());
+
+                    sequences.putAll(sequence(values, latest == null, known));
+
+                    return values;
+
+                });
 
         Instant cutoff = key.getTimestamp().minus(BUCKETED);
 
-        if (trimToEmpty(trades).stream()
+        if (streamed == null && trimToEmpty(trades).stream()
                 .filter(Objects::nonNull)
                 .filter(t -> t.getTimestamp() != null)
                 .noneMatch(t -> t.getTimestamp().isBefore(cutoff))) {
@@ -430,6 +661,78 @@ public class BitmexContext extends TemplateContext implements BitmexService {
 
     }
 
+    /**
+     * Sequences the trades by their timestamps in millis and their trade match IDs, as the IDs are not ordered. The
+     * lower bits are hashed from the ID, and probed upward if taken by another trade in the same millis. The start time
+     * of the next query is inclusive, so the trades in the latest millis are fetched again, and keep the sequences
+     * assigned previously, which are kept in the known map until the latest millis advances. The trades without
+     * timestamp or ID are skipped.
+     */
+    @VisibleForTesting
+    static Map<BitmexTrade, Long> sequence(List<BitmexTrade> trades, boolean reversed, Map<String, Long> known) {
+
+        List<BitmexTrade> values = Optional.ofNullable(trades).orElse(Collections.emptyList()).stream()
+                .filter(Objects::nonNull)
+                .filter(t -> t.getTimestamp() != null)
+                .filter(t -> t.getId() != null)
+                .collect(toList());
+
+        if (reversed) {
+            Collections.reverse(values);
+        }
+
+        values.sort(Comparator.comparing(BitmexTrade::getTimestamp));
+
+        Map<BitmexTrade, Long> sequences = new IdentityHashMap<>();
+
+        Map<String, Long> assigned = new HashMap<>(known);
+
+        Set<Long> taken = new HashSet<>(known.values());
+
+        long latest = Long.MIN_VALUE;
+
+        for (BitmexTrade t : values) {
+
+            long base = t.getTimestamp().toEpochMilli() << SEQUENCE_BITS;
+
+            Long sequence = assigned.get(t.getId());
+
+            if (sequence == null) {
+
+                long hash = t.getId().hashCode() & SEQUENCE_MASK;
+
+                while (!taken.add(base | hash)) {
+                    hash = (hash + 1) & SEQUENCE_MASK;
+                }
+
+                sequence = base | hash;
+
+                assigned.put(t.getId(), sequence);
+
+            }
+
+            sequences.put(t, sequence);
+
+            latest = Math.max(latest, base);
+
+        }
+
+        if (!values.isEmpty()) {
+
+            long millis = latest;
+
+            known.clear();
+
+            assigned.entrySet().stream()
+                    .filter(e -> (e.getValue() & ~SEQUENCE_MASK) == millis)
+                    .forEach(e -> known.put(e.getKey(), e.getValue()));
+
+        }
+
+        return sequences;
+
+    }
+
     @Override
     public CurrencyType getInstrumentCurrency(Key key) {
 
@@ -528,31 +831,7 @@ public class BitmexContext extends TemplateContext implements BitmexService {
 
     @VisibleForTesting
     String computeHash(String secret, String method, String path, String nonce, String data) throws IOException {
-
-        try {
-
-            Mac mac = Mac.getInstance("HmacSHA256");
-
-            mac.init(new SecretKeySpec(secret.getBytes(), "HmacSHA256"));
-
-            String raw = method + path + nonce + StringUtils.trimToEmpty(data);
-
-            byte[] hash = mac.doFinal(raw.getBytes());
-
-            StringBuilder sb = new StringBuilder(hash.length);
-
-            for (byte b : hash) {
-                sb.append(String.format("%02x", b & 0xff));
-            }
-
-            return sb.toString();
-
-        } catch (GeneralSecurityException e) {
-
-            throw new IOException("Failed to compute hash.", e);
-
-        }
-
+        return computeHash(HMAC_SHA256, secret, method, path, nonce, data);
     }
 
     @VisibleForTesting
@@ -567,29 +846,9 @@ public class BitmexContext extends TemplateContext implements BitmexService {
 
         String suffix = buildQueryParameter(parameters);
 
-        String result;
-
-        synchronized (lastNonce) {
-
-            long millis = 0;
-
-            for (int i = 0; i < Short.MAX_VALUE; i++) {
-
-                millis = getNow().toEpochMilli();
+        return nonceSequencer.execute(this::getNow, NONCE_REJECTION, n -> {
 
-                if (lastNonce.get() < millis) {
-
-                    lastNonce.set(millis);
-
-                    break;
-
-                }
-
-                Thread.yield();
-
-            }
-
-            String nonce = String.valueOf(millis);
+            String nonce = String.valueOf(n);
             String hash = computeHash(secret, type.name(), url + suffix, nonce, data);
 
             Map<String, String> headers = new HashMap<>();
@@ -598,11 +857,9 @@ public class BitmexContext extends TemplateContext implements BitmexService {
             headers.put("api-nonce", nonce);
             headers.put("api-signature", hash);
 
-            result = request(type, URL + url + suffix, headers, data);
-
-        }
+            return request(type, URL + url + suffix, headers, data);
 
-        return result;
+        });
 
     }
 
@@ -0,0 +1,361 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.bitmex;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Tables of the realtime feed, maintained locally from the "partial", "insert", "update" and "delete" actions.
+ *
+ * A table (or a table filtered by symbol, such as "orderBookL2:XBTUSD") is served only after its partial has been
+ * received, and only while the feed has not been silent for longer than the expiry. Actions received before the
+ * partial are dropped, as the partial already contains them. The trades are accumulated since the partial, so they
+ * are served only for the periods fully covered by the feed.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class BitmexRealtime {
+
+    static final String TABLE_INSTRUMENT = "instrument";
+
+    static final String TABLE_BOOK = "orderBookL2";
+
+    static final String TABLE_TRADE = "trade";
+
+    private static final String SYMBOL = "symbol";
+
+    private static final int TRADE_LIMIT = 65536;
+
+    private static final Duration TRADE_EXPIRY = Duration.ofHours(24);
+
+    private final Map<String, JsonObject> instruments = new HashMap<>();
+
+    private final Map<String, Map<Long, BitmexBook>> books = new HashMap<>();
+
+    private final Map<String, Deque<BitmexTrade>> trades = new HashMap<>();
+
+    private final Map<String, Instant> partials = new HashMap<>();
+
+    private final Gson gson;
+
+    private Instant timestamp;
+
+    public BitmexRealtime(Gson gson) {
+        this.gson = gson;
+    }
+
+    /**
+     * Topic of the table filtered by the symbol, or null if the symbol is null.
+     */
+    public static String topic(String table, String symbol) {
+        return symbol == null ? null : table + ":" + symbol;
+    }
+
+    /**
+     * Discards all the tables, which are rebuilt from the partials of the next subscription.
+     */
+    public synchronized void reset() {
+
+        instruments.clear();
+
+        books.clear();
+
+        trades.clear();
+
+        partials.clear();
+
+        timestamp = null;
+
+    }
+
+    /**
+     * Applies a message of the feed. Messages other than the table actions (e.g. subscription responses) are ignored.
+     */
+    public void apply(Instant now, JsonObject message) {
+        apply(now, message, null);
+    }
+
+    /**
+     * Applies a message of the feed, and notifies the trades inserted after the partial with their symbols.
+     */
+    public synchronized void apply(Instant now, JsonObject message, BiConsumer<String, BitmexTrade> listener) {
+
+        timestamp = now;
+
+        String table = getString(message, "table");
+
+        String action = getString(message, "action");
+
+        JsonElement data = message.get("data");
+
+        if (table == null || action == null || data == null || !data.isJsonArray()) {
+            return;
+        }
+
+        List<JsonObject> rows = new ArrayList<>();
+
+        data.getAsJsonArray().forEach(e -> {
+            if (e != null && e.isJsonObject()) {
+                rows.add(e.getAsJsonObject());
+            }
+        });
+
+        if ("partial".equals(action)) {
+
+            JsonElement filter = message.get("filter");
+
+            String symbol = filter != null && filter.isJsonObject() ? getString(filter.getAsJsonObject(), SYMBOL) : null;
+
+            partial(now, table, symbol, rows);
+
+            return;
+
+        }
+
+        for (JsonObject row : rows) {
+
+            String symbol = getString(row, SYMBOL);
+
+            if (symbol == null) {
+                continue;
+            }
+
+            if (TABLE_INSTRUMENT.equals(table) && partials.containsKey(TABLE_INSTRUMENT)) {
+                applyInstrument(action, symbol, row);
+            }
+
+            if (TABLE_BOOK.equals(table) && partials.containsKey(topic(TABLE_BOOK, symbol))) {
+                applyBook(action, symbol, row);
+            }
+
+            if (TABLE_TRADE.equals(table) && partials.containsKey(topic(TABLE_TRADE, symbol))) {
+
+                BitmexTrade trade = applyTrade(now, action, symbol, row);
+
+                if (trade != null && listener != null) {
+                    listener.accept(symbol, trade);
+                }
+
+            }
+
+        }
+
+    }
+
+    private void partial(Instant now, String table, String symbol, List<JsonObject> rows) {
+
+        if (TABLE_INSTRUMENT.equals(table)) {
+
+            instruments.clear();
+
+            rows.forEach(row -> applyInstrument("insert", getString(row, SYMBOL), row));
+
+            partials.put(TABLE_INSTRUMENT, now);
+
+        }
+
+        if (TABLE_BOOK.equals(table) && symbol != null) {
+
+            books.remove(symbol);
+
+            rows.forEach(row -> applyBook("insert", symbol, row));
+
+            partials.put(topic(TABLE_BOOK, symbol), now);
+
+        }
+
+        if (TABLE_TRADE.equals(table) && symbol != null) {
+
+            trades.remove(symbol);
+
+            rows.forEach(row -> applyTrade(now, "insert", symbol, row));
+
+            partials.put(topic(TABLE_TRADE, symbol), now);
+
+        }
+
+    }
+
+    private void applyInstrument(String action, String symbol, JsonObject row) {
+
+        if (symbol == null) {
+            return;
+        }
+
+        if ("delete".equals(action)) {
+
+            instruments.remove(symbol);
+
+            return;
+
+        }
+
+        JsonObject current = "update".equals(action) ? instruments.get(symbol) : null;
+
+        JsonObject merged = current == null ? new JsonObject() : current;
+
+        row.entrySet().forEach(e -> merged.add(e.getKey(), e.getValue()));
+
+        instruments.put(symbol, merged);
+
+    }
+
+    private void applyBook(String action, String symbol, JsonObject row) {
+
+        BitmexBook book = gson.fromJson(row, BitmexBook.class);
+
+        if (book.getId() == null) {
+            return;
+        }
+
+        Map<Long, BitmexBook> levels = books.computeIfAbsent(symbol, s -> new HashMap<>());
+
+        if ("delete".equals(action)) {
+
+            levels.remove(book.getId());
+
+            return;
+
+        }
+
+        BitmexBook current = "update".equals(action) ? levels.get(book.getId()) : null;
+
+        if (current != null) {
+
+            book = BitmexBook.builder()
+                    .id(book.getId())
+                    .side(book.getSide() != null ? book.getSide() : current.getSide())
+                    .price(book.getPrice() != null ? book.getPrice() : current.getPrice())
+                    .size(book.getSize() != null ? book.getSize() : current.getSize())
+                    .build();
+
+        }
+
+        levels.put(book.getId(), book);
+
+    }
+
+    private BitmexTrade applyTrade(Instant now, String action, String symbol, JsonObject row) {
+
+        if (!"insert".equals(action)) {
+            return null; // Trades are append-only.
+        }
+
+        BitmexTrade trade = gson.fromJson(row, BitmexTrade.class);
+
+        if (trade.getTimestamp() == null || trade.getPrice() == null || trade.getSize() == null) {
+            return null;
+        }
+
+        Deque<BitmexTrade> values = trades.computeIfAbsent(symbol, s -> new ArrayDeque<>());
+
+        values.addLast(trade);
+
+        Instant cutoff = now.minus(TRADE_EXPIRY);
+
+        while (!values.isEmpty()) {
+
+            BitmexTrade first = values.getFirst();
+
+            if (values.size() <= TRADE_LIMIT && first.getTimestamp().isAfter(cutoff)) {
+                break;
+            }
+
+            values.removeFirst();
+
+            // Trades until the evicted one are no longer covered.
+            Instant covered = first.getTimestamp().plusNanos(1);
+
+            partials.computeIfPresent(topic(TABLE_TRADE, symbol), (k, v) -> v.isAfter(covered) ? v : covered);
+
+        }
+
+        return trade;
+
+    }
+
+    private boolean isAvailable(Instant now, Duration expiry, String topic) {
+
+        if (timestamp == null || now == null || expiry == null) {
+            return false;
+        }
+
+        if (Duration.between(timestamp, now).compareTo(expiry) > 0) {
+            return false;
+        }
+
+        return partials.containsKey(topic);
+
+    }
+
+    /**
+     * Retrieves the instruments, or null if the table is not available.
+     */
+    public synchronized List<BitmexTick> getTicks(Instant now, Duration expiry) {
+
+        if (!isAvailable(now, expiry, TABLE_INSTRUMENT)) {
+            return null;
+        }
+
+        List<BitmexTick> values = new ArrayList<>(instruments.size());
+
+        instruments.values().forEach(v -> values.add(gson.fromJson(v, BitmexTick.class)));
+
+        return unmodifiableList(values);
+
+    }
+
+    /**
+     * Retrieves the price levels of the symbol, or null if the table is not available.
+     */
+    public synchronized List<BitmexBook> getBooks(Instant now, Duration expiry, String symbol) {
+
+        if (!isAvailable(now, expiry, topic(TABLE_BOOK, symbol))) {
+            return null;
+        }
+
+        Map<Long, BitmexBook> levels = books.getOrDefault(symbol, Collections.emptyMap());
+
+        return unmodifiableList(new ArrayList<>(levels.values()));
+
+    }
+
+    /**
+     * Retrieves the trades of the symbol since the time, or null if the table is not available or does not cover
+     * the entire period.
+     */
+    public synchronized List<BitmexTrade> getTrades(Instant now, Duration expiry, String symbol, Instant fromTime) {
+
+        String topic = topic(TABLE_TRADE, symbol);
+
+        if (!isAvailable(now, expiry, topic) || fromTime == null || fromTime.isBefore(partials.get(topic))) {
+            return null;
+        }
+
+        List<BitmexTrade> values = new ArrayList<>();
+
+        trades.getOrDefault(symbol, new ArrayDeque<>()).stream()
+                .filter(t -> !fromTime.isAfter(t.getTimestamp()))
+                .forEach(values::add);
+
+        return unmodifiableList(values);
+
+    }
+
+    private static String getString(JsonObject object, String name) {
+
+        JsonElement element = object.get(name);
+
+        return element == null || !element.isJsonPrimitive() ? null : element.getAsString();
+
+    }
+
+}
@@ -4,6 +4,7 @@ import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.Cance
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CreateInstruction;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Order;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.NonceSequencer;
 import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.reflect.TypeToken;
@@ -11,6 +12,8 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonDeserializer;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.http.client.HttpResponseException;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
@@ -21,13 +24,15 @@ import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
+import static com.after_sunrise.cryptocurrency.cryptotrader.service.template.RequestSigner.HMAC_SHA256;
 import static com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext.RequestType.POST;
 import static java.lang.Boolean.FALSE;
 import static java.math.BigDecimal.ONE;
 import static java.util.Collections.*;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.apache.commons.codec.digest.DigestUtils.md5Hex;
 
 /**
@@ -47,6 +52,11 @@ public class BtcboxContext extends TemplateContext implements BtcboxService {
     private static final Type TYPE_ORDER = new TypeToken<List<BtcboxOrder>>() {
     }.getType();
 
+    private static final Predicate<HttpResponseException> NONCE_REJECTION =
+            NonceSequencer.rejection(401, "nonce");
+
+    private final NonceSequencer nonceSequencer = new NonceSequencer(MILLISECONDS);
+
     private final Gson gson;
 
     public BtcboxContext() {
@@ -139,12 +149,12 @@ public class BtcboxContext extends TemplateContext implements BtcboxService {
 
     @Override
     public Map<BigDecimal, BigDecimal> getAskPrices(Key key) {
-        return fetchDepth(key).map(BtcboxDepth::getAskPrices).orElse(null);
+        return findLevels(key, true, () -> fetchDepth(key).map(BtcboxDepth::getAskPrices).orElse(null));
     }
 
     @Override
     public Map<BigDecimal, BigDecimal> getBidPrices(Key key) {
-        return fetchDepth(key).map(BtcboxDepth::getBidPrices).orElse(null);
+        return findLevels(key, false, () -> fetchDepth(key).map(BtcboxDepth::getBidPrices).orElse(null));
     }
 
     @Override
@@ -154,29 +164,28 @@ public class BtcboxContext extends TemplateContext implements BtcboxService {
             return null;
         }
 
-        List<BtcboxTrade> values = listCached(BtcboxTrade.class, key, () -> {
+        return listIncremental(BtcboxTrade.class, key, fromTime, BtcboxContext::parseId, latest -> {
 
-            String data = request(ENDPOINT + "/api/v1/orders");
+            String data = request(ENDPOINT + "/api/v1/orders" + (latest == null ? "" : "?since=" + latest.getId()));
 
             if (StringUtils.isEmpty(data)) {
                 return null;
             }
 
-            return unmodifiableList(trimToEmpty(gson.<List<BtcboxTrade>>fromJson(data, TYPE_TRADE))
-                    .stream()
-                    .filter(Objects::nonNull)
-                    .filter(t -> t.getId() != null)
-                    .filter(t -> t.getTimestamp() != null)
-                    .collect(Collectors.toList())
-            );
+            return gson.fromJson(data, TYPE_TRADE);
 
         });
 
-        return trimToEmpty(values).stream()
-                .filter(Objects::nonNull)
-                .filter(v -> v.getTimestamp() != null)
-                .filter(v -> fromTime == null || !v.getTimestamp().isBefore(fromTime))
-                .collect(Collectors.toList());
+    }
+
+    /**
+     * Trade ID (tid) as a number, which increases with the trades, or null if not numeric.
+     */
+    private static Long parseId(BtcboxTrade trade) {
+
+        String id = trade.getId();
+
+        return NumberUtils.isDigits(id) && id.length() < 19 ? Long.valueOf(id) : null;
 
     }
 
@@ -274,7 +283,7 @@ public class BtcboxContext extends TemplateContext implements BtcboxService {
     }
 
     @VisibleForTesting
-    String post(String path, Map<String, String> parameters) throws IOException, InterruptedException {
+    String post(String path, Map<String, String> parameters) throws IOException {
 
         String apiKey = getStringProperty("api.id", null);
         String secret = getStringProperty("api.secret", null);
@@ -283,33 +292,26 @@ public class BtcboxContext extends TemplateContext implements BtcboxService {
             return null;
         }
 
-        String result;
-
-        synchronized (ENDPOINT) {
-
-            // Avoid duplicate nonce
-            TimeUnit.MILLISECONDS.sleep(1);
+        return nonceSequencer.execute(this::getNow, NONCE_REJECTION, nonce -> {
 
             Map<String, String> map = new LinkedHashMap<>(trimToEmpty(parameters));
             map.put("key", apiKey);
-            map.put("nonce", String.valueOf(getNow().toEpochMilli()));
+            map.put("nonce", String.valueOf(nonce));
 
             String body = StringUtils.join(
                     map.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).toArray(String[]::new),
                     "&"
             );
 
-            String sign = computeHash("HmacSHA256", md5Hex(secret).getBytes(), body.getBytes());
+            String sign = computeHash(HMAC_SHA256, md5Hex(secret), body);
 
             String data = body + "&signature=" + sign;
 
             Map<String, String> headers = singletonMap("Content-Type", "application/x-www-form-urlencoded");
 
-            result = request(POST, ENDPOINT + path, headers, data);
+            return request(POST, ENDPOINT + path, headers, data);
 
-        }
-
-        return result;
+        });
 
     }
 
@@ -3,13 +3,19 @@ package com.after_sunrise.cryptocurrency.cryptotrader.service.coincheck;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CancelInstruction;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CreateInstruction;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Order;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.PriceLevels;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.NonceSequencer;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.SocketSupervisor;
 import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeJournal;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.gson.*;
-import com.google.gson.stream.JsonReader;
+import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.HttpResponseException;
 
 import javax.websocket.*;
 import java.io.IOException;
@@ -23,22 +29,18 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import static com.after_sunrise.cryptocurrency.cryptotrader.service.coincheck.CoincheckService.SideType.*;
+import static com.after_sunrise.cryptocurrency.cryptotrader.service.template.RequestSigner.HMAC_SHA256;
 import static com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext.RequestType.*;
 import static java.lang.Boolean.TRUE;
 import static java.math.BigDecimal.ONE;
-import static java.math.RoundingMode.HALF_UP;
 import static java.util.Collections.emptyList;
-import static java.util.Collections.synchronizedMap;
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
 import static java.util.stream.Collectors.toList;
 
 /**
@@ -66,19 +68,32 @@ public class CoincheckContext extends TemplateContext implements CoincheckServic
 
     private static final URI WS_ENDPOINT = URI.create("wss://ws-api.coincheck.com/");
 
-    private static final Duration WS_INTERVAL = Duration.ofSeconds(5);
+    private static final String WS_TRADES = "-trades";
+
+    private static final String WS_BOOK = "-orderbook";
+
+    private static final int BACKFILL_LIMIT = 100;
+
+    private static final int BACKFILL_PAGES = 10;
 
     private static final Duration TRADE_EXPIRY = Duration.ofHours(24);
 
+    private static final long REALTIME_EXPIRY = Duration.ofSeconds(30).toMillis();
+
+    private static final Predicate<HttpResponseException> NONCE_REJECTION =
+            NonceSequencer.rejection(401, "Nonce must be incremented");
+
     private final Object annotatedEndpoint;
 
     private final Gson gson;
 
-    private final Map<String, NavigableMap<Instant, CoincheckTrade>> trades;
+    private final Map<String, TradeTape> trades;
+
+    private final Map<String, CoincheckOrderBook> books;
 
-    private final AtomicLong lastNonce;
+    private final NonceSequencer nonceSequencer;
 
-    private final ExecutorService executor;
+    private volatile SocketSupervisor supervisor;
 
     public CoincheckContext() {
 
@@ -105,23 +120,22 @@ public class CoincheckContext extends TemplateContext implements CoincheckServic
 
         gson = builder.create();
 
-        trades = synchronizedMap(new HashMap<>());
+        trades = new ConcurrentHashMap<>();
 
-        lastNonce = new AtomicLong();
+        books = new ConcurrentHashMap<>();
 
-        executor = Executors.newCachedThreadPool(r -> {
-            Thread t = new Thread(r);
-            t.setDaemon(true);
-            t.setName(getClass().getSimpleName());
-            return t;
-        });
+        nonceSequencer = new NonceSequencer(MICROSECONDS);
 
     }
 
     @Override
     public void close() throws Exception {
 
-        executor.shutdown();
+        SocketSupervisor s = supervisor;
+
+        if (s != null) {
+            s.close();
+        }
 
         super.close();
 
@@ -163,6 +177,18 @@ public class CoincheckContext extends TemplateContext implements CoincheckServic
             return Optional.empty();
         }
 
+        Instant now = getNow();
+
+        Duration expiry = getRealtimeExpiry();
+
+        CoincheckOrderBook realtime = expiry.toMillis() <= 0 ? null : startSocket().get(product.getId());
+
+        CoincheckBook snapshot = realtime == null ? null : realtime.snapshot(now, expiry);
+
+        if (snapshot != null) {
+            return Optional.of(snapshot);
+        }
+
         Key newKey = Key.build(key).instrument(WILDCARD).build();
 
         CoincheckBook book = findCached(CoincheckBook.class, newKey, () -> {
@@ -177,6 +203,10 @@ public class CoincheckContext extends TemplateContext implements CoincheckServic
 
         });
 
+        if (realtime != null && book != null) {
+            realtime.reset(book); // Base for the diffs received since.
+        }
+
         return Optional.ofNullable(book);
 
     }
@@ -208,12 +238,20 @@ public class CoincheckContext extends TemplateContext implements CoincheckServic
 
     @Override
     public Map<BigDecimal, BigDecimal> getAskPrices(Key key) {
-        return queryBook(key).map(CoincheckBook::getAsks).orElseGet(() -> super.getAskPrices(key));
+
+        PriceLevels levels = findLevels(key, true, () -> queryBook(key).map(CoincheckBook::getAsks).orElse(null));
+
+        return levels != null ? levels : super.getAskPrices(key);
+
     }
 
     @Override
     public Map<BigDecimal, BigDecimal> getBidPrices(Key key) {
-        return queryBook(key).map(CoincheckBook::getBids).orElseGet(() -> super.getBidPrices(key));
+
+        PriceLevels levels = findLevels(key, false, () -> queryBook(key).map(CoincheckBook::getBids).orElse(null));
+
+        return levels != null ? levels : super.getBidPrices(key);
+
     }
 
     @Override
@@ -225,74 +263,245 @@ public class CoincheckContext extends TemplateContext implements CoincheckServic
             return Collections.emptyList();
         }
 
-        NavigableMap<Instant, CoincheckTrade> map;
+        startSocket();
 
-        synchronized (executor) {
+        return new ArrayList<>(trades.get(product.getId()).list(fromTime));
 
-            if (trades.isEmpty()) {
+    }
 
-                executor.submit(() -> scheduleSocket(WS_ENDPOINT, WS_INTERVAL));
+    @Override
+    public NavigableMap<Instant, BigDecimal> collapsePrices(Key key,
+                                                            Duration interval, Instant from, Instant to, boolean sum) {
 
-            }
+        return collapseTape(getTape(key), interval, from, to, sum);
+
+    }
+
+    @Override
+    public Optional<Trade> findLastTrade(Key key, Instant fromTime) {
+
+        TradeTape tape = getTape(key);
+
+        return tape == null ? super.findLastTrade(key, fromTime) : Optional.ofNullable(tape.latest(fromTime));
+
+    }
+
+    @Override
+    public TradeSummary summarizeTrades(Key key, Instant fromTime, Instant toTime) {
 
-            map = trades.computeIfAbsent(product.getId(), id -> new ConcurrentSkipListMap<>());
+        TradeTape tape = getTape(key);
 
+        return tape == null ? super.summarizeTrades(key, fromTime, toTime) : tape.summarize(fromTime, toTime);
+
+    }
+
+    @Override
+    public boolean visitTrades(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        TradeTape tape = getTape(key);
+
+        if (tape == null) {
+            return super.visitTrades(key, fromTime, toTime, visitor);
         }
 
-        return map.values().stream()
-                .filter(Objects::nonNull)
-                .filter(e -> Objects.nonNull(e.getTimestamp()))
-                .filter(e -> fromTime == null || !e.getTimestamp().isBefore(fromTime))
-                .collect(toList());
+        tape.visit(fromTime, toTime, visitor);
+
+        return true;
+
+    }
+
+    /**
+     * Visits the tape of the streamed trades if it covers the period, without starting the socket, or else the
+     * journal of the product.
+     */
+    @Override
+    public boolean visitHistory(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        ProductType product = key == null ? null : ProductType.find(key.getInstrument());
+
+        if (product == null) {
+            return super.visitHistory(key, fromTime, toTime, visitor);
+        }
+
+        TradeTape tape = trades.get(product.getId());
+
+        if (tape == null || !tape.covers(fromTime)) {
+            return super.visitHistory(Key.build(key).instrument(product.getId()).build(), fromTime, toTime, visitor);
+        }
+
+        tape.visit(fromTime, toTime, visitor);
+
+        return true;
+
+    }
+
+    /**
+     * Tape of the streamed trades of the product, starting the socket on the first call, or null if unknown.
+     */
+    private TradeTape getTape(Key key) {
+
+        ProductType product = ProductType.find(key.getInstrument());
+
+        if (product == null) {
+            return null;
+        }
+
+        startSocket();
+
+        return trades.get(product.getId());
 
     }
 
     @VisibleForTesting
-    void scheduleSocket(URI uri, Duration interval) {
+    Duration getRealtimeExpiry() {
+        return Duration.ofMillis(getLongProperty("realtime.expiry", REALTIME_EXPIRY));
+    }
 
-        Session session = null;
+    /**
+     * Starts the socket on the first call, and returns the order books of the subscribed pairs.
+     */
+    @VisibleForTesting
+    Map<String, CoincheckOrderBook> startSocket() {
 
-        while (!executor.isShutdown()) {
+        synchronized (trades) {
 
-            try {
+            if (supervisor == null) {
+
+                supervisor = new SocketSupervisor(getClass().getSimpleName(),
+                        WS_ENDPOINT, annotatedEndpoint, new SocketSupervisor.Handler() {
+
+                    @Override
+                    public void subscribe(Session session, Collection<String> channels) throws IOException {
+                        sendSubscribe(session, channels);
+                    }
+
+                    @Override
+                    public void backfill(Collection<String> channels, Instant since) throws IOException {
+                        for (ProductType product : ProductType.values()) {
+                            if (channels.contains(product.getId() + WS_TRADES)) {
+                                backfillTrades(product, since);
+                            }
+                        }
+                    }
 
-                if (session == null || !session.isOpen()) {
+                }, this::getNow, getSocketSettings());
 
-                    WebSocketContainer c = ContainerProvider.getWebSocketContainer();
+                for (ProductType product : ProductType.values()) {
 
-                    session = c.connectToServer(annotatedEndpoint, uri);
+                    TradeTape tape = new TradeTape();
 
-                    log.debug("Initialized socket : {}", session.getId());
+                    replayJournal(product.getId(), getNow().minus(TRADE_EXPIRY), tape::add);
+
+                    trades.put(product.getId(), tape);
+
+                    books.put(product.getId(), new CoincheckOrderBook());
+
+                    supervisor.subscribe(product.getId() + WS_TRADES);
+
+                    supervisor.subscribe(product.getId() + WS_BOOK);
 
                 }
 
-            } catch (Exception e) {
-                log.debug("Scheduling failure.", e);
-            }
+                scheduleSocket(supervisor);
 
-            try {
-                MILLISECONDS.sleep(interval.toMillis());
-            } catch (InterruptedException e) {
-                log.debug("Scheduling interrupted.");
             }
 
         }
 
-        IOUtils.closeQuietly(session);
+        return books;
+
+    }
+
+    @VisibleForTesting
+    void scheduleSocket(SocketSupervisor s) {
+        s.start();
+    }
+
+    @VisibleForTesting
+    void sendSubscribe(Session s, Collection<String> channels) throws IOException {
+
+        for (String channel : channels) {
+
+            Map<String, String> request = new LinkedHashMap<>();
+            request.put("type", "subscribe");
+            request.put("channel", channel);
+
+            String message = gson.toJson(request);
+            s.getBasicRemote().sendText(message);
+
+        }
+
+    }
+
+    /**
+     * Fetches the latest trades, and then the older pages until reaching the time, or the last journaled trade on the
+     * first connection. Trades already received through the socket or restored from the journal are skipped by their
+     * ids.
+     */
+    @VisibleForTesting
+    void backfillTrades(ProductType product, Instant since) throws IOException {
+
+        TradeJournal journal = since == null ? getJournal(product.getId()) : null;
+
+        Instant bound = journal == null ? since : journal.getLastTime();
+
+        Long cursor = null;
+
+        int pages = bound == null ? 1 : getIntProperty("backfill.pages", BACKFILL_PAGES);
+
+        for (int i = 0; i < pages; i++) {
+
+            Map<String, String> parameters = new LinkedHashMap<>();
+            parameters.put("pair", product.getId());
+            parameters.put("limit", String.valueOf(BACKFILL_LIMIT));
+            parameters.put("order", "desc");
+            parameters.put("starting_after", cursor == null ? null : cursor.toString());
+
+            String data = request(URL_TRADE + buildQueryParameter(parameters));
+
+            CoincheckTrade.Container container = StringUtils.isEmpty(data) ? null
+                    : gson.fromJson(data, CoincheckTrade.Container.class);
+
+            if (container == null || CollectionUtils.isEmpty(container.getTrades())) {
+                return;
+            }
+
+            boolean reached = false;
+
+            for (CoincheckTrade trade : container.getTrades()) {
+
+                if (trade == null || trade.getId() == null) {
+                    continue;
+                }
+
+                appendCache(product.getId(), trade);
+
+                cursor = trade.getId();
+
+                reached |= bound == null || (trade.getTimestamp() != null && !trade.getTimestamp().isAfter(bound));
+
+            }
+
+            if (reached) {
+                return;
+            }
+
+        }
 
     }
 
     @OnOpen
-    public void onWebSocketOpen(Session s) throws IOException {
+    public void onWebSocketOpen(Session s) {
 
         log.debug("Socket opened : {}", s.getId());
 
-        Map<String, String> request = new HashMap<>();
-        request.put("type", "subscribe");
-        request.put("channel", "btc_jpy-trades");
+        books.values().forEach(CoincheckOrderBook::invalidate);
+
+        SocketSupervisor supervisor = this.supervisor;
 
-        String message = gson.toJson(request);
-        s.getBasicRemote().sendText(message);
+        if (supervisor != null) {
+            supervisor.onOpen(s);
+        }
 
     }
 
@@ -310,26 +519,89 @@ public class CoincheckContext extends TemplateContext implements CoincheckServic
 
         log.debug("Socket closed : {}", s.getId());
 
+        books.values().forEach(CoincheckOrderBook::invalidate);
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onClose(s);
+        }
+
+    }
+
+    private void markReceived() {
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onMessage();
+        }
+
+    }
+
+    @OnMessage
+    public void onWebSocketPong(PongMessage message) {
+        markReceived();
     }
 
     @OnMessage
     public void onWebSocketMessage(Reader message) throws IOException {
 
+        markReceived();
+
+        JsonElement element = new JsonParser().parse(message);
+
+        if (!element.isJsonArray() || element.getAsJsonArray().size() == 0) {
+            return;
+        }
+
+        JsonArray array = element.getAsJsonArray();
+
+        if (array.size() == 2 && array.get(1).isJsonObject()) {
+
+            // [pair, {"asks": [[price, size], ...], "bids": [[price, size], ...]}]
+            CoincheckOrderBook book = books.get(array.get(0).getAsString());
+
+            if (book != null) {
+
+                Instant timestamp = getNow();
+
+                book.apply(timestamp, gson.fromJson(array.get(1), CoincheckBook.class));
+
+                publishBook(array.get(0).getAsString(), timestamp, book.getBestAsk(), book.getBestBid());
+
+            }
+
+            return;
+
+        }
+
+        if (array.get(0).isJsonArray()) {
+
+            // [[timestamp, id, pair, price, size, side, ...], ...]
+            for (JsonElement e : array) {
+
+                JsonArray values = e.getAsJsonArray();
+
+                appendCache(values.get(2).getAsString(), CoincheckTrade.builder()
+                        .id(values.get(1).getAsLong())
+                        .timestamp(Instant.ofEpochSecond(values.get(0).getAsLong()))
+                        .price(values.get(3).getAsBigDecimal())
+                        .size(values.get(4).getAsBigDecimal())
+                        .build());
+
+            }
+
+            return;
+
+        }
+
         // [id, pair, price, size, side]
-        JsonReader reader = gson.newJsonReader(message);
-        reader.beginArray();
-        reader.skipValue();
-        String pair = reader.nextString();
-        String price = reader.nextString();
-        String size = reader.nextString();
-        reader.skipValue();
-        reader.endArray();
-        reader.close();
-
-        appendCache(pair, CoincheckTrade.builder()
+        appendCache(array.get(1).getAsString(), CoincheckTrade.builder()
+                .id(array.get(0).getAsLong())
                 .timestamp(getNow())
-                .price(new BigDecimal(price))
-                .size(new BigDecimal(size))
+                .price(array.get(2).getAsBigDecimal())
+                .size(array.get(3).getAsBigDecimal())
                 .build());
 
     }
@@ -337,7 +609,7 @@ public class CoincheckContext extends TemplateContext implements CoincheckServic
     @VisibleForTesting
     boolean appendCache(String id, CoincheckTrade trade) {
 
-        if (trade == null || trade.getTimestamp() == null) {
+        if (trade == null || trade.getId() == null || trade.getTimestamp() == null) {
             return false;
         }
 
@@ -349,48 +621,22 @@ public class CoincheckContext extends TemplateContext implements CoincheckServic
             return false;
         }
 
-        NavigableMap<Instant, CoincheckTrade> map = trades.get(StringUtils.trimToEmpty(id));
+        TradeTape tape = trades.get(StringUtils.trimToEmpty(id));
 
-        if (map == null) {
+        if (tape == null) {
             return false;
         }
 
-        Instant timestamp = trade.getTimestamp().truncatedTo(ChronoUnit.SECONDS);
-
-        CoincheckTrade truncated = CoincheckTrade.builder()
-                .id(timestamp.getEpochSecond())
-                .timestamp(timestamp)
-                .price(trade.getPrice())
-                .size(trade.getSize())
-                .build();
-
-        map.merge(timestamp, truncated, (t1, t2) -> {
-
-            BigDecimal n1 = t1.getPrice().multiply(t1.getSize());
-            BigDecimal n2 = t2.getPrice().multiply(t2.getSize());
-
-            BigDecimal n = n1.add(n2);
-            BigDecimal s = t1.getSize().add(t2.getSize());
-            BigDecimal p = n.divide(s, SCALE, HALF_UP);
-
-            return CoincheckTrade.builder().id(timestamp.getEpochSecond())
-                    .timestamp(timestamp).price(p).size(s).build();
-
-        });
-
-        Instant cutoff = timestamp.minus(TRADE_EXPIRY);
-
-        while (true) {
-
-            Map.Entry<Instant, ?> entry = map.firstEntry();
+        if (!tape.add(trade.getId(), trade.getTimestamp(), trade.getPrice(), trade.getSize())) {
+            return false; // Prints are immutable, and may be re-delivered after reconnection.
+        }
 
-            if (entry == null || entry.getKey().isAfter(cutoff)) {
-                break;
-            }
+        journalTrade(StringUtils.trimToEmpty(id),
+                trade.getId(), trade.getTimestamp(), trade.getPrice(), trade.getSize());
 
-            map.remove(entry.getKey());
+        publishTrade(StringUtils.trimToEmpty(id), trade.getTimestamp(), trade.getPrice(), trade.getSize());
 
-        }
+        tape.trim(trade.getTimestamp().minus(TRADE_EXPIRY), Integer.MAX_VALUE);
 
         return true;
 
@@ -468,26 +714,12 @@ public class CoincheckContext extends TemplateContext implements CoincheckServic
             return null;
         }
 
-        String result;
+        String path = url + buildQueryParameter(parameters);
 
-        synchronized (lastNonce) {
+        return nonceSequencer.execute(this::getNow, NONCE_REJECTION, n -> {
 
-            long currNonce = 0;
-
-            while (currNonce <= lastNonce.get()) {
-
-                TimeUnit.MILLISECONDS.sleep(1);
-
-                currNonce = getNow().toEpochMilli();
-
-            }
-
-            lastNonce.set(currNonce);
-
-            String path = url + buildQueryParameter(parameters);
-            String nonce = String.valueOf(currNonce);
-            String message = nonce + path + StringUtils.trimToEmpty(data);
-            String hash = computeHash("HmacSHA256", secret.getBytes(), message.getBytes());
+            String nonce = String.valueOf(n);
+            String hash = computeHash(HMAC_SHA256, secret, nonce, path, data);
 
             Map<String, String> headers = new LinkedHashMap<>();
             headers.put("Content-Type", "application/json");
@@ -495,12 +727,9 @@ public class CoincheckContext extends TemplateContext implements CoincheckServic
             headers.put("ACCESS-NONCE", nonce);
             headers.put("ACCESS-SIGNATURE", hash);
 
-            result = request(type, path, headers, data);
-
+            return request(type, path, headers, data);
 
-        }
-
-        return result;
+        });
 
     }
 
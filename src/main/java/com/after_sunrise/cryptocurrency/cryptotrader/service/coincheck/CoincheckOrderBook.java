@@ -0,0 +1,208 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.coincheck;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+import static java.util.Collections.reverseOrder;
+
+/**
+ * Order book of a pair, maintained locally by applying the "orderbook" channel diffs on top of a REST snapshot.
+ *
+ * The channel carries no sequence numbers, so the diffs received before the snapshot are buffered and replayed on
+ * top of it. Crossing levels are stale levels whose removal has been missed, and are dropped in favor of the newer
+ * diff. If the book is crossed by the levels not in the diff, or if the socket has been silent for longer than the
+ * expiry, the book is considered unsynced until the next snapshot.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class CoincheckOrderBook {
+
+    private static final int PENDING_LIMIT = 256;
+
+    private final NavigableMap<BigDecimal, BigDecimal> asks = new TreeMap<>();
+
+    private final NavigableMap<BigDecimal, BigDecimal> bids = new TreeMap<>(reverseOrder());
+
+    private final Deque<CoincheckBook> pending = new ArrayDeque<>();
+
+    private Instant timestamp;
+
+    private boolean synced;
+
+    /**
+     * Replaces the levels with the snapshot, and replays the diffs buffered since the last reset. The book stays
+     * stale until the next diff, if the socket has been silent.
+     */
+    public synchronized void reset(CoincheckBook snapshot) {
+
+        asks.clear();
+
+        bids.clear();
+
+        update(snapshot);
+
+        pending.forEach(this::update);
+
+        CoincheckBook latest = pending.isEmpty() ? snapshot : pending.getLast();
+
+        pending.clear();
+
+        synced = true;
+
+        trim(latest);
+
+    }
+
+    /**
+     * Applies the diff, or buffers it until the next snapshot if the book is not synced.
+     */
+    public synchronized void apply(Instant now, CoincheckBook diff) {
+
+        timestamp = now;
+
+        if (!synced) {
+
+            if (pending.size() >= PENDING_LIMIT) {
+                pending.removeFirst();
+            }
+
+            pending.addLast(diff);
+
+            return;
+
+        }
+
+        update(diff);
+
+        trim(diff);
+
+    }
+
+    /**
+     * Discards the levels, which are rebuilt from the next snapshot (e.g. after reconnection).
+     */
+    public synchronized void invalidate() {
+
+        asks.clear();
+
+        bids.clear();
+
+        pending.clear();
+
+        synced = false;
+
+    }
+
+    public synchronized boolean isSynced(Instant now, Duration expiry) {
+
+        if (!synced || timestamp == null || now == null || expiry == null) {
+            return false;
+        }
+
+        return Duration.between(timestamp, now).compareTo(expiry) <= 0;
+
+    }
+
+    /**
+     * Copy of the current levels, or null if the book is not synced or is silent for longer than the expiry.
+     */
+    public synchronized CoincheckBook snapshot(Instant now, Duration expiry) {
+
+        if (!isSynced(now, expiry)) {
+            return null;
+        }
+
+        return CoincheckBook.builder().asks(convert(asks)).bids(convert(bids)).build();
+
+    }
+
+    /**
+     * Best ask level, or null if the book is not synced or has no ask.
+     */
+    public synchronized Map.Entry<BigDecimal, BigDecimal> getBestAsk() {
+        return synced ? asks.firstEntry() : null;
+    }
+
+    /**
+     * Best bid level, or null if the book is not synced or has no bid.
+     */
+    public synchronized Map.Entry<BigDecimal, BigDecimal> getBestBid() {
+        return synced ? bids.firstEntry() : null;
+    }
+
+    private List<BigDecimal[]> convert(Map<BigDecimal, BigDecimal> levels) {
+
+        List<BigDecimal[]> values = new ArrayList<>(levels.size());
+
+        levels.forEach((p, s) -> values.add(new BigDecimal[]{p, s}));
+
+        return values;
+
+    }
+
+    private void update(CoincheckBook book) {
+
+        if (book == null) {
+            return;
+        }
+
+        update(asks, book.getAsks());
+
+        update(bids, book.getBids());
+
+    }
+
+    private void update(Map<BigDecimal, BigDecimal> levels, Map<BigDecimal, BigDecimal> values) {
+
+        values.forEach((price, size) -> {
+
+            if (size.signum() <= 0) {
+                levels.remove(price);
+            } else {
+                levels.put(price, size);
+            }
+
+        });
+
+    }
+
+    private void trim(CoincheckBook book) {
+
+        if (asks.isEmpty() || bids.isEmpty() || asks.firstKey().compareTo(bids.firstKey()) > 0) {
+            return;
+        }
+
+        BigDecimal lowestAsk = book == null ? null : book.getAsks().entrySet().stream()
+                .filter(e -> e.getValue().signum() > 0)
+                .map(Map.Entry::getKey)
+                .min(Comparator.naturalOrder())
+                .orElse(null);
+
+        if (lowestAsk != null) {
+            bids.headMap(lowestAsk, true).clear();
+        }
+
+        BigDecimal highestBid = book == null ? null : book.getBids().entrySet().stream()
+                .filter(e -> e.getValue().signum() > 0)
+                .map(Map.Entry::getKey)
+                .max(Comparator.naturalOrder())
+                .orElse(null);
+
+        if (highestBid != null) {
+            asks.headMap(highestBid, true).clear();
+        }
+
+        if (!asks.isEmpty() && !bids.isEmpty() && asks.firstKey().compareTo(bids.firstKey()) <= 0) {
+
+            // Crossed by the levels not in the diff. Cannot tell which is stale.
+
+            invalidate();
+
+        }
+
+    }
+
+}
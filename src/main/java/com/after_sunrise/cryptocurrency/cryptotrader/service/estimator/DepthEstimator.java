@@ -1,8 +1,8 @@
 package com.after_sunrise.cryptocurrency.cryptotrader.service.estimator;
 
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.PriceLevels;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Request;
-import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
 import com.google.common.annotations.VisibleForTesting;
 import org.apache.commons.math3.distribution.TDistribution;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
@@ -10,7 +10,6 @@ import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.List;
 import java.util.NavigableMap;
 import java.util.Objects;
 
@@ -56,27 +55,23 @@ public class DepthEstimator extends AbstractEstimator {
 
         BigDecimal ceiling = mid.multiply(ONE.add(deviation));
 
-        trimToEmpty(context.getAskPrices(key)).entrySet().stream()
-                .filter(e -> e.getValue() != null)
-                .filter(e -> e.getKey() != null)
-                .filter(e -> e.getKey().compareTo(ceiling) <= 0)
-                .forEach(e -> {
-                    averages[I_NOTIONAL] = averages[I_NOTIONAL] + e.getValue().doubleValue() * e.getKey().doubleValue();
-                    averages[I_QUANTITY] = averages[I_QUANTITY] + e.getValue().doubleValue();
-                    averages[I_SIZE_ASK] = averages[I_SIZE_ASK] + e.getValue().doubleValue();
-                });
+        PriceLevels asks = PriceLevels.ofAsks(context.getAskPrices(key));
+
+        int askCount = asks.countWithin(ceiling);
+
+        averages[I_NOTIONAL] = averages[I_NOTIONAL] + asks.getCumulativeNotional(askCount);
+        averages[I_QUANTITY] = averages[I_QUANTITY] + asks.getCumulativeSize(askCount);
+        averages[I_SIZE_ASK] = averages[I_SIZE_ASK] + asks.getCumulativeSize(askCount);
 
         BigDecimal floor = mid.multiply(ONE.subtract(deviation));
 
-        trimToEmpty(context.getBidPrices(key)).entrySet().stream()
-                .filter(e -> e.getValue() != null)
-                .filter(e -> e.getKey() != null)
-                .filter(e -> e.getKey().compareTo(floor) >= 0)
-                .forEach(e -> {
-                    averages[I_NOTIONAL] = averages[I_NOTIONAL] + e.getValue().doubleValue() * e.getKey().doubleValue();
-                    averages[I_QUANTITY] = averages[I_QUANTITY] + e.getValue().doubleValue();
-                    averages[I_SIZE_BID] = averages[I_SIZE_BID] + e.getValue().doubleValue();
-                });
+        PriceLevels bids = PriceLevels.ofBids(context.getBidPrices(key));
+
+        int bidCount = bids.countWithin(floor);
+
+        averages[I_NOTIONAL] = averages[I_NOTIONAL] + bids.getCumulativeNotional(bidCount);
+        averages[I_QUANTITY] = averages[I_QUANTITY] + bids.getCumulativeSize(bidCount);
+        averages[I_SIZE_BID] = averages[I_SIZE_BID] + bids.getCumulativeSize(bidCount);
 
         double average = averages[I_NOTIONAL] / averages[I_QUANTITY];
 
@@ -106,9 +101,8 @@ public class DepthEstimator extends AbstractEstimator {
 
         Instant from = request.getCurrentTime().minus(interval.toMillis() * getSamples(), MILLIS);
 
-        List<Trade> trades = context.listTrades(getKey(context, request), from.minus(interval));
-
-        NavigableMap<Instant, BigDecimal> prices = collapsePrices(trades, interval, from, to, false);
+        NavigableMap<Instant, BigDecimal> prices = collapsePrices(
+                context, getKey(context, request), interval, from, to, false);
 
         NavigableMap<Instant, BigDecimal> returns = calculateReturns(prices);
 
@@ -9,9 +9,6 @@ import com.google.common.annotations.VisibleForTesting;
 import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Comparator;
-import java.util.Objects;
-import java.util.Optional;
 
 import static java.math.BigDecimal.ONE;
 import static java.math.BigDecimal.ZERO;
@@ -25,8 +22,6 @@ import static org.apache.commons.lang3.math.NumberUtils.LONG_ONE;
  */
 public class LastEstimator extends AbstractEstimator {
 
-    private static final Comparator<Trade> COMPARATOR = Comparator.comparing(Trade::getTimestamp).reversed();
-
     @Override
     public Estimation estimate(Context context, Request request) {
 
@@ -46,22 +41,17 @@ public class LastEstimator extends AbstractEstimator {
 
         Instant from = now.minus(LONG_ONE, HOURS);
 
-        Optional<Trade> value = trimToEmpty(context.listTrades(key, from)).stream()
-                .filter(Objects::nonNull)
-                .filter(t -> Objects.nonNull(t.getTimestamp()))
-                .filter(t -> Objects.nonNull(t.getPrice()))
-                .sorted(COMPARATOR)
-                .findFirst();
+        Trade value = findLastTrade(context, key, from);
 
-        if (!value.isPresent()) {
+        if (value == null) {
             return BAIL;
         }
 
-        Instant time = value.get().getTimestamp();
+        Instant time = value.getTimestamp();
 
         BigDecimal confidence = calculateConfidence(time, now);
 
-        BigDecimal price = value.get().getPrice();
+        BigDecimal price = value.getPrice();
 
         log.debug("Estimated : {} (confidence=[{}] time=[{}])", price, confidence, time);
 
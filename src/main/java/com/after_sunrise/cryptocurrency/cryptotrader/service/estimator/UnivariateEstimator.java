@@ -2,13 +2,11 @@ package com.after_sunrise.cryptocurrency.cryptotrader.service.estimator;
 
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Request;
-import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
 import org.apache.commons.math3.stat.regression.SimpleRegression;
 
 import java.math.BigDecimal;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.List;
 import java.util.NavigableMap;
 
 import static java.math.BigDecimal.ZERO;
@@ -34,9 +32,8 @@ public class UnivariateEstimator extends AbstractEstimator {
 
         Instant from = request.getCurrentTime().minus(interval.toMillis() * getSamples(), MILLIS);
 
-        List<Trade> trades = context.listTrades(getKey(context, request), from.minus(interval));
-
-        NavigableMap<Instant, BigDecimal> prices = collapsePrices(trades, interval, from, now, false);
+        NavigableMap<Instant, BigDecimal> prices = collapsePrices(
+                context, getKey(context, request), interval, from, now, false);
 
         NavigableMap<Instant, BigDecimal> returns = calculateReturns(prices);
 
@@ -11,9 +11,7 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.List;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 import static java.math.BigDecimal.ZERO;
 import static java.math.RoundingMode.HALF_UP;
@@ -25,8 +23,6 @@ import static org.apache.commons.lang3.math.NumberUtils.INTEGER_ONE;
  */
 public class VwapEstimator extends AbstractEstimator {
 
-    private static final Comparator<Trade> COMPARATOR = Comparator.comparing(Trade::getTimestamp);
-
     private static final String DURATION_KEY = "duration";
 
     private static final int DURATION_VAL = 60;
@@ -48,34 +44,25 @@ public class VwapEstimator extends AbstractEstimator {
 
         Instant from = now.minus(getDuration());
 
-        List<Trade> trades = trimToEmpty(context.listTrades(key, from)).stream()
-                .filter(Objects::nonNull)
-                .filter(t -> t.getTimestamp() != null)
-                .filter(t -> Objects.nonNull(t.getPrice()))
-                .filter(t -> Objects.nonNull(t.getSize()))
-                .filter(t -> t.getSize().signum() > 0)
-                .sorted(COMPARATOR)
-                .collect(Collectors.toList());
+        Series series = new Series(now);
+
+        visitTrades(context, key, from, null, series);
 
-        if (trades.size() == 0) {
+        if (series.count == 0) {
             return BAIL; // Cannot calculate returns if less than 2 points.
         }
 
-        if (trades.size() == 1) {
-
-            BigDecimal price = trades.get(trades.size() - 1).getPrice();
-
-            return Estimation.builder().price(price).confidence(ZERO).build();
-
+        if (series.count == 1) {
+            return Estimation.builder().price(series.lastPrice).confidence(ZERO).build();
         }
 
-        double vwap = calculateVwap(trades, now);
+        double vwap = series.sumNotional / series.sumQuantity;
 
-        double deviation = calculateDeviation(trades);
+        double deviation = series.calculateDeviation();
 
-        double sigma = new TDistribution(trades.size() - 1).inverseCumulativeProbability(PROBABILITY);
+        double sigma = new TDistribution(series.count - 1).inverseCumulativeProbability(PROBABILITY);
 
-        double last = trades.get(trades.size() - 1).getPrice().doubleValue();
+        double last = series.lastPrice.doubleValue();
 
         double drift = Math.min(1, Math.abs(Math.log(last / vwap)) / (deviation * sigma));
 
@@ -84,7 +71,7 @@ public class VwapEstimator extends AbstractEstimator {
         BigDecimal c = Double.isNaN(drift) ? ZERO : BigDecimal.valueOf(1 - drift).setScale(SCALE, HALF_UP);
 
         log.debug("Estimated : {} (confidence=[{}] points=[{}] sigma=[{}] deviation=[{}])",
-                p, c, trades.size(), sigma, deviation);
+                p, c, series.count, sigma, deviation);
 
         return Estimation.builder().price(p).confidence(c).build();
 
@@ -98,15 +85,45 @@ public class VwapEstimator extends AbstractEstimator {
 
     }
 
-    private double calculateVwap(List<Trade> trades, Instant currentTime) {
+    /**
+     * Accumulates the time-weighted VWAP and the latest price as the trades are visited, instead of listing the
+     * trades. The prices are kept as the primitive columns for their deviation, which is calculated in the order of
+     * the timestamps, and are sorted only if visited out of order.
+     */
+    private static class Series implements Consumer<Trade> {
+
+        private final long now;
+
+        private double sumNotional;
+
+        private double sumQuantity;
+
+        private long[] times = new long[64];
 
-        double sumNotional = 0;
+        private double[] prices = new double[64];
 
-        double sumQuantity = 0;
+        private int count;
 
-        for (Trade t : trades) {
+        private boolean sorted = true;
 
-            long elapsed = currentTime.getEpochSecond() - t.getTimestamp().getEpochSecond();
+        private Instant lastTime;
+
+        private BigDecimal lastPrice;
+
+        private Series(Instant now) {
+            this.now = now.getEpochSecond();
+        }
+
+        @Override
+        public void accept(Trade t) {
+
+            if (t.getTimestamp() == null || t.getPrice() == null || t.getSize() == null || t.getSize().signum() <= 0) {
+                return;
+            }
+
+            Instant timestamp = t.getTimestamp();
+
+            long elapsed = now - timestamp.getEpochSecond();
 
             double weight = 1.0 / Math.log10(Math.max(elapsed, 10));
 
@@ -114,35 +131,72 @@ public class VwapEstimator extends AbstractEstimator {
 
             sumQuantity += t.getSize().doubleValue() * weight;
 
+            if (count == times.length) {
+                times = Arrays.copyOf(times, count * 2);
+                prices = Arrays.copyOf(prices, count * 2);
+            }
+
+            long time = timestamp.getEpochSecond() * 1_000_000_000L + timestamp.getNano();
+
+            sorted = sorted && (count == 0 || times[count - 1] <= time);
+
+            times[count] = time;
+
+            prices[count] = t.getPrice().doubleValue();
+
+            count++;
+
+            if (lastTime == null || !timestamp.isBefore(lastTime)) {
+
+                lastTime = timestamp;
+
+                lastPrice = t.getPrice();
+
+            }
+
         }
 
-        return sumNotional / sumQuantity;
+        private double calculateDeviation() {
 
-    }
+            double[] values = prices;
 
-    private double calculateDeviation(List<Trade> trades) {
+            if (!sorted) {
 
-        double[] rates = new double[trades.size() - 1];
+                Integer[] order = new Integer[count];
 
-        double sum = 0;
+                for (int i = 0; i < count; i++) {
+                    order[i] = i;
+                }
 
-        for (int i = 1; i < trades.size(); i++) {
+                Arrays.sort(order, Comparator.comparingLong(i -> times[i])); // Stable on the same time.
 
-            double previous = trades.get(i - 1).getPrice().doubleValue();
+                values = new double[count];
 
-            double current = trades.get(i).getPrice().doubleValue();
+                for (int i = 0; i < count; i++) {
+                    values[i] = prices[order[i]];
+                }
 
-            rates[i - 1] = Math.log(current / previous);
+            }
 
-            sum += rates[i - 1];
+            double[] rates = new double[count - 1];
 
-        }
+            double sum = 0;
+
+            for (int i = 1; i < count; i++) {
+
+                rates[i - 1] = Math.log(values[i] / values[i - 1]);
 
-        double average = sum / rates.length;
+                sum += rates[i - 1];
 
-        double variance = Arrays.stream(rates).map(r -> r - average).map(r -> r * r).sum();
+            }
 
-        return Math.sqrt(variance / Math.max(rates.length - INTEGER_ONE, INTEGER_ONE));
+            double average = sum / rates.length;
+
+            double variance = Arrays.stream(rates).map(r -> r - average).map(r -> r * r).sum();
+
+            return Math.sqrt(variance / Math.max(rates.length - INTEGER_ONE, INTEGER_ONE));
+
+        }
 
     }
 
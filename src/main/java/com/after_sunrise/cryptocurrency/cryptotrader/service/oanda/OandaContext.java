@@ -1,22 +1,31 @@
 package com.after_sunrise.cryptocurrency.cryptotrader.service.oanda;
 
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.SocketSupervisor;
 import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.*;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.math.BigDecimal;
 import java.net.URLEncoder;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonMap;
 
@@ -28,6 +37,8 @@ public class OandaContext extends TemplateContext implements OandaService {
 
     static final String URL_TICKER = "https://api-fxtrade.oanda.com/v1/prices?instruments=";
 
+    static final String URL_STREAM = "https://stream-fxtrade.oanda.com/v1/prices?accountId=";
+
     private static final String KEY_TICKER = "prices";
 
     private static final String AUTH_KEY = "Authorization";
@@ -39,8 +50,18 @@ public class OandaContext extends TemplateContext implements OandaService {
     private static final Type TYPE_TICKER = new TypeToken<Map<String, List<OandaTick>>>() {
     }.getType();
 
+    private static final long REALTIME_EXPIRY = Duration.ofSeconds(30).toMillis();
+
+    private final Set<String> instruments = ConcurrentHashMap.newKeySet();
+
     private final Gson gson;
 
+    private final OandaRealtime realtime;
+
+    private final Consumer<OandaTick> listener;
+
+    private volatile ExecutorService streamer;
+
     public OandaContext() {
 
         super(ID);
@@ -64,11 +85,177 @@ public class OandaContext extends TemplateContext implements OandaService {
 
         gson = builder.create();
 
+        realtime = new OandaRealtime(gson);
+
+        listener = t -> {
+            if (!HALTED.equals(t.getStatus())) {
+                BigDecimal mid = OandaTick.OandaTrade.builder().delegate(t).build().getPrice();
+                publishTick(t.getInstrument(), t.getTimestamp(), mid, t.getAsk(), null, t.getBid(), null);
+            }
+        };
+
+    }
+
+    @Override
+    public void close() throws Exception {
+
+        ExecutorService s = streamer;
+
+        if (s != null) {
+            s.shutdownNow();
+        }
+
+        super.close(); // Also closes the connection being streamed.
+
+    }
+
+    @VisibleForTesting
+    Duration getRealtimeExpiry() {
+        return Duration.ofMillis(getLongProperty("realtime.expiry", REALTIME_EXPIRY));
+    }
+
+    /**
+     * Adds the instrument to the streaming prices, starting the stream on the first call.
+     * Returns false if the streaming is disabled, or the account to stream with is not configured.
+     */
+    @VisibleForTesting
+    boolean subscribe(String instrument) {
+
+        if (StringUtils.isEmpty(instrument) || getRealtimeExpiry().toMillis() <= 0) {
+            return false;
+        }
+
+        if (StringUtils.isEmpty(getStringProperty("api.account", null))) {
+            return false;
+        }
+
+        instruments.add(instrument);
+
+        synchronized (realtime) {
+
+            if (streamer == null) {
+
+                streamer = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    t.setName(getClass().getSimpleName() + "-stream");
+                    return t;
+                });
+
+                scheduleStream(streamer);
+
+            }
+
+        }
+
+        return true;
+
+    }
+
+    @VisibleForTesting
+    void scheduleStream(ExecutorService executor) {
+        executor.execute(this::runStream);
+    }
+
+    /**
+     * Keeps streaming until interrupted, reconnecting with exponential backoff on failures. A reconnection after a
+     * stream which has delivered any message is attempted immediately, such as for the newly added instruments.
+     */
+    @VisibleForTesting
+    void runStream() {
+
+        SocketSupervisor.Settings settings = getSocketSettings();
+
+        Duration backoff = Duration.ZERO;
+
+        while (!Thread.currentThread().isInterrupted()) {
+
+            boolean received = false;
+
+            try {
+                received = streamPrices(settings.getTimeout());
+            } catch (Exception e) {
+                log.debug("Stream failure.", e);
+            }
+
+            if (received) {
+                backoff = Duration.ZERO;
+            } else {
+
+                realtime.reset();
+
+                backoff = backoff.isZero() ? settings.getBackoffMin() : backoff.multipliedBy(2);
+
+                backoff = backoff.compareTo(settings.getBackoffMax()) > 0 ? settings.getBackoffMax() : backoff;
+
+            }
+
+            try {
+                MILLISECONDS.sleep(backoff.toMillis());
+            } catch (InterruptedException e) {
+                return;
+            }
+
+        }
+
+    }
+
+    /**
+     * Streams the prices of the instruments subscribed so far, until an instrument is added, the server disconnects,
+     * or no message (including the heartbeats) is received within the timeout.
+     * Returns true if any message has been received.
+     */
+    @VisibleForTesting
+    boolean streamPrices(Duration timeout) throws IOException {
+
+        String token = getStringProperty("api.secret", null);
+
+        String account = getStringProperty("api.account", null);
+
+        Set<String> subscribed = new TreeSet<>(instruments);
+
+        if (StringUtils.isEmpty(token) || StringUtils.isEmpty(account) || subscribed.isEmpty()) {
+            return false;
+        }
+
+        String url = URL_STREAM + URLEncoder.encode(account, UTF_8.name())
+                + "&instruments=" + URLEncoder.encode(String.join(",", subscribed), UTF_8.name());
+
+        Map<String, String> parameters = singletonMap(AUTH_KEY, AUTH_VAL + token);
+
+        AtomicBoolean received = new AtomicBoolean();
+
+        requestLines(url, parameters, timeout, line -> {
+
+            if (!realtime.apply(getNow(), line, listener)) {
+
+                log.warn("Stream disconnected : {}", line);
+
+                return false;
+
+            }
+
+            received.set(true);
+
+            return subscribed.size() == instruments.size(); // Reconnect with the new instruments.
+
+        });
+
+        return received.get();
+
     }
 
     @VisibleForTesting
     Optional<OandaTick> queryTick(Key key) {
 
+        String instrument = key.getInstrument();
+
+        OandaTick streamed = subscribe(instrument) ? realtime.getTick(getNow(), getRealtimeExpiry(), instrument) : null;
+
+        if (streamed != null) {
+            return HALTED.equals(streamed.getStatus()) ? Optional.empty() : Optional.of(streamed);
+        }
+
         OandaTick tick = findCached(OandaTick.class, key, () -> {
 
             String token = getStringProperty("api.secret", null);
@@ -81,7 +268,7 @@ public class OandaContext extends TemplateContext implements OandaService {
 
             Map<String, String> parameters = singletonMap(AUTH_KEY, AUTH_VAL + token);
 
-            String data = request(RequestType.GET, URL_TICKER + product, parameters, null);
+            String data = request(URL_TICKER + product, parameters);
 
             if (StringUtils.isEmpty(data)) {
                 return null;
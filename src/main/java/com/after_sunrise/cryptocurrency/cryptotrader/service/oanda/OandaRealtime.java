@@ -0,0 +1,112 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.oanda;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.commons.lang3.StringUtils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Quote table of the instruments, maintained locally from the streaming prices.
+ *
+ * Each line of the stream is either a tick {"tick":{...}}, which replaces the quote of the instrument, or a
+ * heartbeat {"heartbeat":{...}}, which only tells that the stream is alive. The halted quotes are kept as they are,
+ * so that the halted instruments are known without polling. The table is served only while the stream has not been
+ * silent for longer than the expiry.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class OandaRealtime {
+
+    private final Map<String, OandaTick> ticks = new HashMap<>();
+
+    private final Gson gson;
+
+    private Instant timestamp;
+
+    public OandaRealtime(Gson gson) {
+        this.gson = gson;
+    }
+
+    /**
+     * Discards all the quotes, which are rebuilt from the next connection.
+     */
+    public synchronized void reset() {
+
+        ticks.clear();
+
+        timestamp = null;
+
+    }
+
+    /**
+     * Applies a line of the stream, and notifies the updated quote. Returns false if the server has requested to
+     * disconnect, in which case the stream should be reconnected.
+     */
+    public synchronized boolean apply(Instant now, String line, Consumer<OandaTick> listener) {
+
+        if (StringUtils.isBlank(line)) {
+            return true; // Keep-alive
+        }
+
+        JsonElement element = new JsonParser().parse(line);
+
+        if (!element.isJsonObject()) {
+            return true;
+        }
+
+        JsonObject object = element.getAsJsonObject();
+
+        if (object.has("disconnect")) {
+            return false;
+        }
+
+        timestamp = now;
+
+        JsonElement value = object.get("tick");
+
+        if (value != null && value.isJsonObject()) {
+
+            OandaTick tick = gson.fromJson(value, OandaTick.class);
+
+            if (tick.getInstrument() != null) {
+
+                ticks.put(tick.getInstrument(), tick);
+
+                if (listener != null) {
+                    listener.accept(tick);
+                }
+
+            }
+
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Retrieves the latest quote of the instrument, which may be halted, or null if the stream is not available.
+     */
+    public synchronized OandaTick getTick(Instant now, Duration expiry, String instrument) {
+
+        if (timestamp == null || now == null || expiry == null) {
+            return null;
+        }
+
+        if (Duration.between(timestamp, now).compareTo(expiry) > 0) {
+            return null;
+        }
+
+        return ticks.get(instrument);
+
+    }
+
+}
@@ -1,30 +1,38 @@
 package com.after_sunrise.cryptocurrency.cryptotrader.service.poloniex;
 
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.PriceLevels;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.SocketSupervisor;
 import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.*;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import javax.websocket.*;
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.math.BigDecimal;
+import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.function.Consumer;
 
 import static java.time.format.DateTimeFormatter.ofPattern;
-import static java.util.Collections.unmodifiableList;
-import static java.util.stream.Collectors.toList;
 
 /**
  * @author takanori.takase
  * @version 0.0.1
  */
+@ClientEndpoint
 public class PoloniexContext extends TemplateContext implements PoloniexService {
 
     static final String URL_TICKER = "https://poloniex.com/public?command=returnTicker";
@@ -37,8 +45,20 @@ public class PoloniexContext extends TemplateContext implements PoloniexService
     private static final Type TYPE_TRADE = new TypeToken<List<PoloniexTrade>>() {
     }.getType();
 
+    private static final URI WS_ENDPOINT = URI.create("wss://api2.poloniex.com");
+
+    private static final long REALTIME_EXPIRY = Duration.ofSeconds(30).toMillis();
+
+    private final Object annotatedEndpoint;
+
     private final Gson gson;
 
+    private final PoloniexRealtime realtime;
+
+    private final PoloniexRealtime.Listener listener;
+
+    private volatile SocketSupervisor supervisor;
+
     public PoloniexContext() {
 
         super(ID);
@@ -62,11 +82,215 @@ public class PoloniexContext extends TemplateContext implements PoloniexService
 
         gson = builder.create();
 
+        annotatedEndpoint = this;
+
+        realtime = new PoloniexRealtime();
+
+        listener = new PoloniexRealtime.Listener() {
+
+            @Override
+            public void onTrade(String pair, PoloniexTrade trade) {
+                publishTrade(pair, trade.getTimestamp(), trade.getPrice(), trade.getSize());
+            }
+
+            @Override
+            public void onBook(String pair,
+                               Map.Entry<BigDecimal, BigDecimal> ask, Map.Entry<BigDecimal, BigDecimal> bid) {
+                publishBook(pair, getNow(), ask, bid);
+            }
+
+        };
+
+    }
+
+    @Override
+    public void close() throws Exception {
+
+        SocketSupervisor s = supervisor;
+
+        if (s != null) {
+            s.close();
+        }
+
+        super.close();
+
+    }
+
+    @VisibleForTesting
+    Duration getRealtimeExpiry() {
+        return Duration.ofMillis(getLongProperty("realtime.expiry", REALTIME_EXPIRY));
+    }
+
+    /**
+     * Subscribes the channel of the pair, connecting the socket on the first call.
+     * Returns false if the realtime feed is disabled.
+     */
+    @VisibleForTesting
+    boolean subscribe(String pair) {
+
+        if (StringUtils.isEmpty(pair) || getRealtimeExpiry().toMillis() <= 0) {
+            return false;
+        }
+
+        SocketSupervisor s;
+
+        synchronized (realtime) {
+
+            if (supervisor == null) {
+
+                supervisor = new SocketSupervisor(getClass().getSimpleName(),
+                        WS_ENDPOINT, annotatedEndpoint, new SocketSupervisor.Handler() {
+
+                    @Override
+                    public void subscribe(Session session, Collection<String> channels) throws IOException {
+                        sendSubscribe(session, channels);
+                    }
+
+                    @Override
+                    public void backfill(Collection<String> channels, Instant since) throws IOException {
+                        for (String channel : channels) {
+                            backfillTrades(channel);
+                        }
+                    }
+
+                }, this::getNow, getSocketSettings());
+
+                scheduleSocket(supervisor);
+
+            }
+
+            s = supervisor;
+
+        }
+
+        s.subscribe(pair);
+
+        return true;
+
+    }
+
+    @VisibleForTesting
+    void scheduleSocket(SocketSupervisor s) {
+        s.start();
+    }
+
+    @VisibleForTesting
+    void sendSubscribe(Session s, Collection<String> pairs) throws IOException {
+
+        for (String pair : pairs) {
+
+            Map<String, String> request = new LinkedHashMap<>();
+            request.put("command", "subscribe");
+            request.put("channel", pair);
+
+            s.getBasicRemote().sendText(gson.toJson(request));
+
+        }
+
+    }
+
+    /**
+     * Seeds the tape with the latest trades, which the channel only delivers as they occur.
+     */
+    @VisibleForTesting
+    void backfillTrades(String pair) throws IOException {
+
+        String data = request(URL_TRADE + URLEncoder.encode(pair, StandardCharsets.UTF_8.name()));
+
+        if (StringUtils.isEmpty(data)) {
+            return;
+        }
+
+        List<PoloniexTrade> trades = gson.fromJson(data, TYPE_TRADE);
+
+        realtime.merge(getNow(), pair, trades, listener);
+
+    }
+
+    @OnOpen
+    public void onWebSocketOpen(Session s) {
+
+        log.debug("Socket opened : {}", s.getId());
+
+        realtime.reset();
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onOpen(s);
+        }
+
+    }
+
+    @OnError
+    public void onWebSocketError(Session s, Throwable t) {
+
+        log.debug("Socket error : " + s.getId(), t);
+
+        IOUtils.closeQuietly(s);
+
+    }
+
+    @OnClose
+    public void onWebSocketClose(Session s, CloseReason reason) {
+
+        log.debug("Socket closed : {}", s.getId());
+
+        realtime.reset();
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onClose(s);
+        }
+
+    }
+
+    @OnMessage
+    public void onWebSocketPong(PongMessage message) {
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onMessage();
+        }
+
+    }
+
+    @OnMessage
+    public void onWebSocketMessage(String message, Session s) {
+
+        SocketSupervisor supervisor = this.supervisor;
+
+        if (supervisor != null) {
+            supervisor.onMessage();
+        }
+
+        if (StringUtils.isEmpty(message)) {
+            return;
+        }
+
+        if (!realtime.apply(getNow(), new JsonParser().parse(message), listener)) {
+
+            log.warn("Sequence gap detected. Reconnecting : {}", s.getId());
+
+            IOUtils.closeQuietly(s); // Resubscribed with the initial books.
+
+        }
+
     }
 
     @VisibleForTesting
     Optional<PoloniexTick> queryTick(Key key) {
 
+        String pair = key.getInstrument();
+
+        PoloniexTick streamed = subscribe(pair) ? realtime.getTick(getNow(), getRealtimeExpiry(), pair) : null;
+
+        if (streamed != null) {
+            return Optional.of(streamed);
+        }
+
         PoloniexTick tick = findCached(PoloniexTick.class, key, () -> {
 
             String data = request(URL_TICKER);
@@ -100,33 +324,127 @@ public class PoloniexContext extends TemplateContext implements PoloniexService
         return queryTick(key).map(PoloniexTick::getLast).orElse(null);
     }
 
+    @Override
+    public Map<BigDecimal, BigDecimal> getAskPrices(Key key) {
+
+        String pair = key.getInstrument();
+
+        PriceLevels levels = findLevels(key, true, () ->
+                subscribe(pair) ? realtime.getAsks(getNow(), getRealtimeExpiry(), pair) : null);
+
+        return levels != null ? levels : super.getAskPrices(key);
+
+    }
+
+    @Override
+    public Map<BigDecimal, BigDecimal> getBidPrices(Key key) {
+
+        String pair = key.getInstrument();
+
+        PriceLevels levels = findLevels(key, false, () ->
+                subscribe(pair) ? realtime.getBids(getNow(), getRealtimeExpiry(), pair) : null);
+
+        return levels != null ? levels : super.getBidPrices(key);
+
+    }
+
     @Override
     public List<Trade> listTrades(Key key, Instant fromTime) {
 
-        List<PoloniexTrade> values = listCached(PoloniexTrade.class, key, () -> {
+        String pair = key.getInstrument();
+
+        List<? extends Trade> streamed = subscribe(pair)
+                ? realtime.getTrades(getNow(), getRealtimeExpiry(), pair, fromTime) : null;
+
+        if (streamed != null) {
+            return new ArrayList<>(streamed);
+        }
+
+        return listIncremental(PoloniexTrade.class, key, fromTime, PoloniexTrade::getId, latest -> {
 
             String product = URLEncoder.encode(key.getInstrument(), StandardCharsets.UTF_8.name());
 
-            String data = request(URL_TRADE + product);
+            String data = request(URL_TRADE + product + (latest == null ? ""
+                    : "&start=" + latest.getTimestamp().getEpochSecond() + "&end=" + getNow().getEpochSecond()));
 
             if (StringUtils.isEmpty(data)) {
                 return null;
             }
 
-            List<PoloniexTrade> trades = gson.fromJson(data, TYPE_TRADE);
-
-            return Collections.unmodifiableList(trades);
+            return gson.fromJson(data, TYPE_TRADE);
 
         });
 
-        if (fromTime == null) {
-            return new ArrayList<>(values);
+    }
+
+    @Override
+    public NavigableMap<Instant, BigDecimal> collapsePrices(Key key,
+                                                            Duration interval, Instant from, Instant to, boolean sum) {
+        return collapseTape(getTape(key, TradeTape.start(interval, from)), interval, from, to, sum);
+    }
+
+    @Override
+    public Optional<Trade> findLastTrade(Key key, Instant fromTime) {
+
+        TradeTape tape = getTape(key, fromTime);
+
+        return tape == null ? super.findLastTrade(key, fromTime) : Optional.ofNullable(tape.latest(fromTime));
+
+    }
+
+    @Override
+    public TradeSummary summarizeTrades(Key key, Instant fromTime, Instant toTime) {
+
+        TradeTape tape = getTape(key, fromTime);
+
+        return tape == null ? super.summarizeTrades(key, fromTime, toTime) : tape.summarize(fromTime, toTime);
+
+    }
+
+    @Override
+    public boolean visitTrades(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        TradeTape tape = getTape(key, fromTime);
+
+        if (tape == null) {
+            return super.visitTrades(key, fromTime, toTime, visitor);
         }
 
-        return unmodifiableList(values.stream()
-                .filter(e -> Objects.nonNull(e.getTimestamp()))
-                .filter(e -> !e.getTimestamp().isBefore(fromTime))
-                .collect(toList()));
+        tape.visit(fromTime, toTime, visitor);
+
+        return true;
+
+    }
+
+    /**
+     * Visits the tape of the streamed trades if it covers the period, without subscribing to it.
+     */
+    @Override
+    public boolean visitHistory(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        String pair = key == null ? null : key.getInstrument();
+
+        TradeTape tape = pair == null ? null : realtime.getTape(getNow(), getRealtimeExpiry(), pair, fromTime);
+
+        if (tape == null) {
+            return super.visitHistory(key, fromTime, toTime, visitor);
+        }
+
+        tape.visit(fromTime, toTime, visitor);
+
+        return true;
+
+    }
+
+    /**
+     * Tape of the streamed trades covering the period since the time, or null if not available.
+     */
+    private TradeTape getTape(Key key, Instant fromTime) {
+
+        String pair = key.getInstrument();
+
+        return subscribe(pair)
+                ? realtime.getTape(getNow(), getRealtimeExpiry(), pair, fromTime) : null;
 
     }
 
@@ -0,0 +1,367 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.poloniex;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape.TapeTrade;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+import static java.util.Collections.reverseOrder;
+import static java.util.Collections.unmodifiableMap;
+
+/**
+ * Order books and trade tapes of the pairs, maintained locally from the push API.
+ *
+ * A message of a pair channel is [CHANNEL_ID, SEQUENCE, [UPDATE, ...]], where the updates are the initial book
+ * ("i"), the book updates ("o") and the trades ("t"). The pair of a channel ID is known only from its initial book,
+ * and the sequence increments by one per message, so a gap in the sequence means a lost message, after which the
+ * book is discarded and the channel needs to be resubscribed. A pair is served only while the feed has not been
+ * silent for longer than the expiry.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class PoloniexRealtime {
+
+    private static final int TRADE_LIMIT = 65536;
+
+    private static final Duration TRADE_EXPIRY = Duration.ofHours(24);
+
+    public interface Listener {
+
+        default void onTrade(String pair, PoloniexTrade trade) {
+        }
+
+        default void onBook(String pair, Map.Entry<BigDecimal, BigDecimal> ask, Map.Entry<BigDecimal, BigDecimal> bid) {
+        }
+
+    }
+
+    private final Map<Long, String> channels = new HashMap<>();
+
+    private final Map<Long, Long> sequences = new HashMap<>();
+
+    private final Map<String, NavigableMap<BigDecimal, BigDecimal>> asks = new HashMap<>();
+
+    private final Map<String, NavigableMap<BigDecimal, BigDecimal>> bids = new HashMap<>();
+
+    private final Map<String, TradeTape> trades = new HashMap<>();
+
+    private final Map<String, Instant> covered = new HashMap<>();
+
+    private Instant timestamp;
+
+    /**
+     * Discards all the pairs, which are rebuilt from the initial books of the next subscription.
+     */
+    public synchronized void reset() {
+
+        channels.clear();
+
+        sequences.clear();
+
+        asks.clear();
+
+        bids.clear();
+
+        trades.clear();
+
+        covered.clear();
+
+        timestamp = null;
+
+    }
+
+    /**
+     * Applies a message of the feed, and notifies the trades not yet in the tape and the best levels of the updated
+     * book. Returns false if a message has been lost, in which case the book of the pair is discarded until the next
+     * initial book.
+     */
+    public synchronized boolean apply(Instant now, JsonElement message, Listener listener) {
+
+        timestamp = now;
+
+        if (message == null || !message.isJsonArray() || message.getAsJsonArray().size() < 3) {
+            return true; // Heartbeats and acknowledgements.
+        }
+
+        JsonArray array = message.getAsJsonArray();
+
+        if (!array.get(0).isJsonPrimitive() || !array.get(2).isJsonArray()) {
+            return true;
+        }
+
+        long channel = array.get(0).getAsLong();
+
+        long sequence = array.get(1).getAsLong();
+
+        Long previous = sequences.put(channel, sequence);
+
+        String pair = channels.get(channel);
+
+        if (pair != null && previous != null && sequence != previous + 1) {
+
+            channels.remove(channel);
+
+            asks.remove(pair);
+
+            bids.remove(pair);
+
+            return false;
+
+        }
+
+        boolean booked = false;
+
+        for (JsonElement element : array.get(2).getAsJsonArray()) {
+
+            if (!element.isJsonArray() || element.getAsJsonArray().size() < 2) {
+                continue;
+            }
+
+            JsonArray update = element.getAsJsonArray();
+
+            String type = update.get(0).getAsString();
+
+            if ("i".equals(type) && update.get(1).isJsonObject()) {
+
+                pair = initialize(channel, update.get(1).getAsJsonObject());
+
+                booked = pair != null;
+
+                continue;
+
+            }
+
+            if (pair == null) {
+                continue; // Before the initial book.
+            }
+
+            if ("o".equals(type) && update.size() >= 4) {
+
+                Map<BigDecimal, BigDecimal> levels = update.get(1).getAsInt() == 1 ? bids.get(pair) : asks.get(pair);
+
+                BigDecimal price = update.get(2).getAsBigDecimal();
+
+                BigDecimal size = update.get(3).getAsBigDecimal();
+
+                if (size.signum() <= 0) {
+                    levels.remove(price);
+                } else {
+                    levels.put(price, size);
+                }
+
+                booked = true;
+
+            }
+
+            if ("t".equals(type) && update.size() >= 6) {
+
+                PoloniexTrade trade = PoloniexTrade.builder()
+                        .id(update.get(1).getAsLong())
+                        .price(update.get(3).getAsBigDecimal())
+                        .size(update.get(4).getAsBigDecimal())
+                        .timestamp(Instant.ofEpochSecond(update.get(5).getAsLong()))
+                        .build();
+
+                merge(now, pair, Collections.singletonList(trade), listener);
+
+            }
+
+        }
+
+        if (booked && listener != null) {
+            listener.onBook(pair, asks.get(pair).firstEntry(), bids.get(pair).firstEntry());
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Registers the pair of the channel, and replaces its book with {"currencyPair":..., "orderBook":[ASKS, BIDS]}.
+     */
+    private String initialize(long channel, JsonObject value) {
+
+        JsonElement pair = value.get("currencyPair");
+
+        JsonElement book = value.get("orderBook");
+
+        if (pair == null || book == null || !book.isJsonArray() || book.getAsJsonArray().size() < 2) {
+            return null;
+        }
+
+        channels.put(channel, pair.getAsString());
+
+        asks.put(pair.getAsString(), convert(book.getAsJsonArray().get(0), new TreeMap<>()));
+
+        bids.put(pair.getAsString(), convert(book.getAsJsonArray().get(1), new TreeMap<>(reverseOrder())));
+
+        return pair.getAsString();
+
+    }
+
+    private NavigableMap<BigDecimal, BigDecimal> convert(JsonElement element,
+                                                         NavigableMap<BigDecimal, BigDecimal> map) {
+
+        if (element.isJsonObject()) {
+            element.getAsJsonObject().entrySet().forEach(e ->
+                    map.put(new BigDecimal(e.getKey()), e.getValue().getAsBigDecimal())
+            );
+        }
+
+        return map;
+
+    }
+
+    /**
+     * Merges the latest trades into the tape of the pair, and notifies the trades not yet in the tape.
+     */
+    public synchronized void merge(Instant now, String pair, List<PoloniexTrade> values, Listener listener) {
+
+        if (now == null || pair == null || values == null) {
+            return;
+        }
+
+        TradeTape tape = trades.computeIfAbsent(pair, p -> new TradeTape());
+
+        Instant oldest = null;
+
+        for (PoloniexTrade trade : values) {
+
+            if (trade == null || trade.getId() == null || trade.getTimestamp() == null) {
+                continue;
+            }
+
+            if (trade.getPrice() == null || trade.getSize() == null) {
+                continue;
+            }
+
+            oldest = oldest == null || oldest.isAfter(trade.getTimestamp()) ? trade.getTimestamp() : oldest;
+
+            boolean added = tape.add(trade.getId(), trade.getTimestamp(), trade.getPrice(), trade.getSize());
+
+            if (added && listener != null) {
+                listener.onTrade(pair, trade);
+            }
+
+        }
+
+        if (oldest != null) {
+            covered.merge(pair, oldest, (v1, v2) -> v1.isBefore(v2) ? v1 : v2);
+        }
+
+        Instant evicted = tape.trim(now.minus(TRADE_EXPIRY), TRADE_LIMIT);
+
+        if (evicted != null) {
+
+            // Trades until the evicted ones are no longer covered.
+            Instant bound = evicted.plusNanos(1);
+
+            covered.computeIfPresent(pair, (k, v) -> v.isAfter(bound) ? v : bound);
+
+        }
+
+    }
+
+    private boolean isAvailable(Instant now, Duration expiry) {
+
+        if (timestamp == null || now == null || expiry == null) {
+            return false;
+        }
+
+        return Duration.between(timestamp, now).compareTo(expiry) <= 0;
+
+    }
+
+    /**
+     * Derives the tick of the pair from the best levels and the latest trade, or null if not available.
+     */
+    public synchronized PoloniexTick getTick(Instant now, Duration expiry, String pair) {
+
+        NavigableMap<BigDecimal, BigDecimal> askLevels = asks.get(pair);
+
+        NavigableMap<BigDecimal, BigDecimal> bidLevels = bids.get(pair);
+
+        TapeTrade trade = trades.containsKey(pair) ? trades.get(pair).last() : null;
+
+        if (!isAvailable(now, expiry) || askLevels == null || bidLevels == null || trade == null) {
+            return null;
+        }
+
+        return PoloniexTick.builder()
+                .ask(askLevels.isEmpty() ? null : askLevels.firstKey())
+                .bid(bidLevels.isEmpty() ? null : bidLevels.firstKey())
+                .last(trade.getPrice())
+                .build();
+
+    }
+
+    /**
+     * Retrieves the ask levels of the pair, or null if the book is not available.
+     */
+    public synchronized Map<BigDecimal, BigDecimal> getAsks(Instant now, Duration expiry, String pair) {
+
+        NavigableMap<BigDecimal, BigDecimal> levels = asks.get(pair);
+
+        return !isAvailable(now, expiry) || levels == null ? null : unmodifiableMap(new LinkedHashMap<>(levels));
+
+    }
+
+    /**
+     * Retrieves the bid levels of the pair, or null if the book is not available.
+     */
+    public synchronized Map<BigDecimal, BigDecimal> getBids(Instant now, Duration expiry, String pair) {
+
+        NavigableMap<BigDecimal, BigDecimal> levels = bids.get(pair);
+
+        return !isAvailable(now, expiry) || levels == null ? null : unmodifiableMap(new LinkedHashMap<>(levels));
+
+    }
+
+    /**
+     * Retrieves the trades of the pair since the time, or null if the feed is not available or the tape does not
+     * cover the entire period.
+     */
+    public List<TapeTrade> getTrades(Instant now, Duration expiry, String pair, Instant fromTime) {
+
+        TradeTape tape;
+
+        synchronized (this) {
+
+            Instant since = covered.get(pair);
+
+            if (!isAvailable(now, expiry) || since == null || fromTime == null || fromTime.isBefore(since)) {
+                return null;
+            }
+
+            tape = trades.get(pair);
+
+        }
+
+        return tape == null ? Collections.emptyList() : tape.list(fromTime);
+
+    }
+
+    /**
+     * Retrieves the tape of the pair, or null if the feed is not available or the tape does not cover the entire
+     * period since the time.
+     */
+    public synchronized TradeTape getTape(Instant now, Duration expiry, String pair, Instant fromTime) {
+
+        Instant since = covered.get(pair);
+
+        if (!isAvailable(now, expiry) || since == null || fromTime == null || fromTime.isBefore(since)) {
+            return null;
+        }
+
+        return trades.get(pair);
+
+    }
+
+}
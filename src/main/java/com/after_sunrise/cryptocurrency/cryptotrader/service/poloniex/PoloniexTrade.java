@@ -26,4 +26,7 @@ public class PoloniexTrade implements Trade {
     @SerializedName("amount")
     private BigDecimal size;
 
+    @SerializedName("tradeID")
+    private Long id;
+
 }
@@ -0,0 +1,721 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import com.google.common.annotations.VisibleForTesting;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static com.after_sunrise.cryptocurrency.cryptotrader.framework.Service.SATOSHI;
+import static java.math.RoundingMode.HALF_UP;
+import static lombok.AccessLevel.PRIVATE;
+
+/**
+ * Bars of the trades at the multiple resolutions, updated incrementally as the trades arrive, so that the prices
+ * collapsed into the buckets of an interval are sliced from the pre-aggregated bars, instead of rescanning the trades.
+ *
+ * Each bar is keyed by its end in epoch seconds, aligned to its resolution, and aggregates the trades in
+ * (end - resolution, end], which is the same convention as the buckets of the collapsed prices. A period is covered by
+ * the coarsest bars aligned within it, by the finer bars towards its edges, and by the trades of the partial seconds
+ * at its edges if not aligned to the seconds, which are supplied by the owner of the trades.
+ *
+ * The bars older than a block of the resolution behind the latest are sealed into the blocks packed by the series
+ * codec, instead of the objects and the tree nodes per bar. The bars updated after sealed are merged onto the sealed
+ * ones as read, and are sealed into their blocks again as the later bars are sealed. The bars which do not fit into
+ * the unscaled longs are left unsealed.
+ *
+ * Not thread-safe : the owner serializes the access.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class BarStore {
+
+    private static final long NANOS = 1_000_000_000L;
+
+    private static final int BLOCK = 600;
+
+    public enum Resolution {
+
+        SECOND(1),
+
+        MINUTE(60),
+
+        FIVE_MINUTES(300),
+
+        HOUR(3600);
+
+        private final long seconds;
+
+        Resolution(long seconds) {
+            this.seconds = seconds;
+        }
+
+        public Duration getDuration() {
+            return Duration.ofSeconds(seconds);
+        }
+
+    }
+
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @AllArgsConstructor(access = PRIVATE)
+    public static class Bar {
+
+        private final Instant end;
+
+        private final Instant firstTime;
+
+        private final Instant lastTime;
+
+        private final BigDecimal open;
+
+        private final BigDecimal high;
+
+        private final BigDecimal low;
+
+        private final BigDecimal close;
+
+        /**
+         * Size of the trade at the close, which may be zero.
+         */
+        private final BigDecimal closeSize;
+
+        private final BigDecimal size;
+
+        private final BigDecimal notional;
+
+        /**
+         * Volume-weighted average price rounded to satoshi, or null if the size is zero.
+         */
+        public BigDecimal getVwap() {
+            return size.signum() == 0 ? null : notional.divide(size, SATOSHI.scale(), HALF_UP);
+        }
+
+        /**
+         * Bar of the single trade, ending at the end of its second.
+         */
+        static Bar of(Instant time, BigDecimal price, BigDecimal size) {
+
+            Instant end = Instant.ofEpochSecond(toEnd(toNanos(time), Resolution.SECOND));
+
+            return new Bar(end, time, time, price, price, price, price, size, size, price.multiply(size));
+
+        }
+
+        /**
+         * Merges the two bars, with the close of the latter on the same last time. Either of them may be null.
+         */
+        static Bar merge(Bar b1, Bar b2) {
+
+            if (b1 == null || b2 == null) {
+                return b1 == null ? b2 : b1;
+            }
+
+            Bar first = b2.firstTime.isBefore(b1.firstTime) ? b2 : b1;
+
+            Bar last = b1.lastTime.isAfter(b2.lastTime) ? b1 : b2;
+
+            return new Bar(
+                    b1.end.isAfter(b2.end) ? b1.end : b2.end,
+                    first.firstTime,
+                    last.lastTime,
+                    first.open,
+                    b1.high.max(b2.high),
+                    b1.low.min(b2.low),
+                    last.close,
+                    last.closeSize,
+                    b1.size.add(b2.size),
+                    b1.notional.add(b2.notional)
+            );
+
+        }
+
+    }
+
+    /**
+     * Bars sealed into a block, whose ends are in [firstEnd, lastEnd] without any other block in between.
+     */
+    @AllArgsConstructor(access = PRIVATE)
+    private static class Block {
+
+        private final long firstEnd;
+
+        private final long lastEnd;
+
+        private final int count;
+
+        private final long[] packed;
+
+        /**
+         * Bars decoded, cached for the latest block read of the resolution.
+         */
+        private Bar[] decoded;
+
+    }
+
+    private final Map<Resolution, NavigableMap<Long, Bar>> bars = new EnumMap<>(Resolution.class);
+
+    private final Map<Resolution, NavigableMap<Long, Block>> blocks = new EnumMap<>(Resolution.class);
+
+    private final Map<Resolution, Block> cached = new EnumMap<>(Resolution.class);
+
+    private final long[] latestEnds = new long[Resolution.values().length];
+
+    private final long[] sealEnds = new long[Resolution.values().length];
+
+    private final int block;
+
+    /**
+     * Latest end trimmed, at or before which the sealed bars are discarded.
+     */
+    private long floor;
+
+    public BarStore() {
+        this(BLOCK);
+    }
+
+    @VisibleForTesting
+    BarStore(int block) {
+
+        this.block = Math.max(block, 1);
+
+        for (Resolution r : Resolution.values()) {
+            bars.put(r, new TreeMap<>());
+            blocks.put(r, new TreeMap<>());
+        }
+
+        clear();
+
+    }
+
+    private static long toNanos(Instant time) {
+        return TradeTape.toNanos(time);
+    }
+
+    /**
+     * End of the bar of the resolution, in epoch seconds, which contains the time in epoch nanos.
+     */
+    private static long toEnd(long nanos, Resolution resolution) {
+        return (Math.floorDiv(nanos - 1, resolution.seconds * NANOS) + 1) * resolution.seconds;
+    }
+
+    /**
+     * Discards all the bars.
+     */
+    public void clear() {
+
+        bars.values().forEach(Map::clear);
+
+        blocks.values().forEach(Map::clear);
+
+        cached.clear();
+
+        Arrays.fill(latestEnds, Long.MIN_VALUE);
+
+        Arrays.fill(sealEnds, Long.MIN_VALUE);
+
+        floor = Long.MIN_VALUE;
+
+    }
+
+    /**
+     * Adds the trade. The trades without size are also added, which become the close of the bar if the latest.
+     */
+    public void add(Instant time, BigDecimal price, BigDecimal size) {
+
+        if (time == null || price == null || size == null) {
+            return;
+        }
+
+        update(time, price, size, price.multiply(size), size);
+
+    }
+
+    /**
+     * Adds the size and the notional to the bars containing the time, with the price and the size of the trade as
+     * the latest at the time. Used for the trades accumulated in place, whose deltas are added.
+     */
+    public void update(Instant time, BigDecimal price, BigDecimal size, BigDecimal notional, BigDecimal closeSize) {
+
+        if (time == null || price == null || size == null || notional == null || closeSize == null) {
+            return;
+        }
+
+        long nanos = toNanos(time);
+
+        if (nanos == Long.MIN_VALUE || nanos == Long.MAX_VALUE) {
+            return;
+        }
+
+        for (Map.Entry<Resolution, NavigableMap<Long, Bar>> entry : bars.entrySet()) {
+
+            long end = toEnd(nanos, entry.getKey());
+
+            Bar bar = new Bar(Instant.ofEpochSecond(end), time, time, price, price, price, price, closeSize, size,
+                    notional);
+
+            entry.getValue().merge(end, bar, Bar::merge);
+
+            int o = entry.getKey().ordinal();
+
+            latestEnds[o] = Math.max(latestEnds[o], end);
+
+            if (latestEnds[o] >= sealEnds[o]) {
+
+                long span = entry.getKey().seconds * block;
+
+                seal(entry.getKey(), latestEnds[o] - span);
+
+                sealEnds[o] = latestEnds[o] + span;
+
+            }
+
+        }
+
+    }
+
+    private static long endOf(Bar bar) {
+        return bar.getEnd().getEpochSecond();
+    }
+
+    /**
+     * Seals the bars ending at or before the bound into the blocks of up to the block size. The blocks containing
+     * the bars updated after sealed are decoded and sealed again with them.
+     */
+    private void seal(Resolution resolution, long bound) {
+
+        if (bound <= floor) {
+            return;
+        }
+
+        NavigableMap<Long, Bar> open = bars.get(resolution);
+
+        NavigableMap<Long, Bar> pending = open.subMap(floor, false, bound, true);
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        NavigableMap<Long, Block> sealed = blocks.get(resolution);
+
+        NavigableMap<Long, Bar> merged = new TreeMap<>();
+
+        for (Long end : pending.keySet()) {
+
+            Map.Entry<Long, Block> entry = sealed.floorEntry(end);
+
+            if (entry == null || entry.getValue().lastEnd < end) {
+                continue;
+            }
+
+            sealed.remove(entry.getKey());
+
+            for (Bar bar : unpack(resolution, entry.getValue())) {
+
+                if (endOf(bar) > floor) {
+                    merged.put(endOf(bar), bar);
+                }
+
+            }
+
+        }
+
+        pending.forEach((end, bar) -> merged.merge(end, bar, Bar::merge));
+
+        pending.clear();
+
+        List<Bar> chunk = new ArrayList<>();
+
+        for (Map.Entry<Long, Bar> entry : merged.entrySet()) {
+
+            if (!chunk.isEmpty()) {
+
+                Long next = sealed.higherKey(endOf(chunk.get(0)));
+
+                if (chunk.size() >= block || (next != null && next < entry.getKey())) {
+
+                    flush(resolution, chunk);
+
+                    chunk = new ArrayList<>();
+
+                }
+
+            }
+
+            chunk.add(entry.getValue());
+
+        }
+
+        flush(resolution, chunk);
+
+    }
+
+    private void flush(Resolution resolution, List<Bar> chunk) {
+
+        Block b = pack(resolution, chunk);
+
+        if (b != null) {
+
+            blocks.get(resolution).put(b.firstEnd, b);
+
+            return;
+
+        }
+
+        chunk.forEach(bar -> bars.get(resolution).put(endOf(bar), bar));
+
+    }
+
+    /**
+     * Packs the bars in the order of their ends, or returns null if any of the values does not fit.
+     */
+    private static Block pack(Resolution resolution, List<Bar> values) {
+
+        SeriesCodec.Writer writer = new SeriesCodec.Writer();
+
+        SeriesCodec.Sequence endColumn = new SeriesCodec.Sequence();
+
+        SeriesCodec.Scaled[] columns = {
+                new SeriesCodec.Scaled(true), // Open
+                new SeriesCodec.Scaled(true), // High
+                new SeriesCodec.Scaled(true), // Low
+                new SeriesCodec.Scaled(true), // Close
+                new SeriesCodec.Scaled(false), // Close size
+                new SeriesCodec.Scaled(false), // Size
+                new SeriesCodec.Scaled(false), // Notional
+        };
+
+        for (Bar bar : values) {
+
+            long end = endOf(bar);
+
+            long first = toNanos(bar.firstTime);
+
+            long last = toNanos(bar.lastTime);
+
+            if (!isFinite(first) || !isFinite(last)) {
+                return null;
+            }
+
+            BigDecimal[] decimals = {bar.open, bar.high, bar.low, bar.close, bar.closeSize, bar.size, bar.notional};
+
+            for (BigDecimal d : decimals) {
+
+                if (d.unscaledValue().bitLength() > 63) {
+                    return null;
+                }
+
+            }
+
+            endColumn.write(writer, end);
+
+            writer.writeSigned(first - (end - resolution.seconds) * NANOS);
+
+            writer.writeSigned(last - first);
+
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].write(writer, decimals[i].unscaledValue().longValue(), decimals[i].scale());
+            }
+
+        }
+
+        long firstEnd = endOf(values.get(0));
+
+        long lastEnd = endOf(values.get(values.size() - 1));
+
+        return new Block(firstEnd, lastEnd, values.size(), writer.toArray(), null);
+
+    }
+
+    private static boolean isFinite(long nanos) {
+        return nanos != Long.MIN_VALUE && nanos != Long.MAX_VALUE;
+    }
+
+    private static Bar[] unpack(Resolution resolution, Block b) {
+
+        SeriesCodec.Reader reader = new SeriesCodec.Reader(b.packed);
+
+        SeriesCodec.Sequence endColumn = new SeriesCodec.Sequence();
+
+        SeriesCodec.Scaled[] columns = {
+                new SeriesCodec.Scaled(true),
+                new SeriesCodec.Scaled(true),
+                new SeriesCodec.Scaled(true),
+                new SeriesCodec.Scaled(true),
+                new SeriesCodec.Scaled(false),
+                new SeriesCodec.Scaled(false),
+                new SeriesCodec.Scaled(false),
+        };
+
+        BigDecimal[] decimals = new BigDecimal[columns.length];
+
+        Bar[] values = new Bar[b.count];
+
+        for (int i = 0; i < values.length; i++) {
+
+            long end = endColumn.read(reader);
+
+            long first = (end - resolution.seconds) * NANOS + reader.readSigned();
+
+            long last = first + reader.readSigned();
+
+            for (int j = 0; j < columns.length; j++) {
+
+                columns[j].read(reader);
+
+                decimals[j] = BigDecimal.valueOf(columns[j].getUnscaled(), columns[j].getScale());
+
+            }
+
+            values[i] = new Bar(Instant.ofEpochSecond(end), TradeTape.toInstant(first), TradeTape.toInstant(last),
+                    decimals[0], decimals[1], decimals[2], decimals[3], decimals[4], decimals[5], decimals[6]);
+
+        }
+
+        return values;
+
+    }
+
+    /**
+     * Bar of the resolution ending at the end in epoch seconds, merging the sealed one and the one updated after.
+     */
+    private Bar get(Resolution resolution, long end) {
+
+        Bar open = bars.get(resolution).get(end);
+
+        Map.Entry<Long, Block> entry = end <= floor ? null : blocks.get(resolution).floorEntry(end);
+
+        if (entry == null || entry.getValue().lastEnd < end) {
+            return open;
+        }
+
+        Block b = entry.getValue();
+
+        if (b.decoded == null) {
+
+            Block previous = cached.put(resolution, b);
+
+            if (previous != null) {
+                previous.decoded = null;
+            }
+
+            b.decoded = unpack(resolution, b);
+
+        }
+
+        int low = 0;
+
+        int high = b.decoded.length - 1;
+
+        while (low <= high) {
+
+            int mid = (low + high) >>> 1;
+
+            long e = endOf(b.decoded[mid]);
+
+            if (e < end) {
+                low = mid + 1;
+            } else if (e > end) {
+                high = mid - 1;
+            } else {
+                return open == null ? b.decoded[mid] : Bar.merge(b.decoded[mid], open);
+            }
+
+        }
+
+        return open;
+
+    }
+
+    /**
+     * Discards the bars ending at or before the time.
+     */
+    public void trim(Instant cutoff) {
+
+        if (cutoff == null) {
+            return;
+        }
+
+        long end = Math.floorDiv(toNanos(cutoff), NANOS);
+
+        bars.values().forEach(m -> m.headMap(end, true).clear());
+
+        floor = Math.max(floor, end);
+
+        for (NavigableMap<Long, Block> sealed : blocks.values()) {
+
+            Iterator<Block> itr = sealed.values().iterator();
+
+            while (itr.hasNext() && itr.next().lastEnd <= floor) {
+                itr.remove();
+            }
+
+        }
+
+    }
+
+    /**
+     * Bars of the resolution, ending after the time (null for all).
+     */
+    public List<Bar> list(Resolution resolution, Instant fromTime) {
+
+        if (resolution == null) {
+            return Collections.emptyList();
+        }
+
+        NavigableMap<Long, Bar> values = bars.get(resolution);
+
+        long from = fromTime == null ? Long.MIN_VALUE : Math.floorDiv(toNanos(fromTime), NANOS);
+
+        if (fromTime != null) {
+            values = values.tailMap(from, false);
+        }
+
+        NavigableMap<Long, Block> sealed = blocks.get(resolution);
+
+        if (sealed.isEmpty()) {
+            return Collections.unmodifiableList(new ArrayList<>(values.values()));
+        }
+
+        long lower = Math.max(from, floor);
+
+        Long start = sealed.floorKey(lower);
+
+        NavigableMap<Long, Bar> merged = new TreeMap<>();
+
+        for (Block b : (start == null ? sealed : sealed.tailMap(start, true)).values()) {
+
+            if (b.lastEnd <= lower) {
+                continue;
+            }
+
+            for (Bar bar : b.decoded != null ? b.decoded : unpack(resolution, b)) {
+
+                if (endOf(bar) > lower) {
+                    merged.put(endOf(bar), bar);
+                }
+
+            }
+
+        }
+
+        values.forEach((end, bar) -> merged.merge(end, bar, Bar::merge));
+
+        return Collections.unmodifiableList(new ArrayList<>(merged.values()));
+
+    }
+
+    /**
+     * Trades of the partial seconds at the edges of the buckets, which are not covered by the bars.
+     */
+    public interface Partial {
+
+        /**
+         * Aggregates the trades in (lower, upper] epoch nanos, or returns null if no trades.
+         */
+        Bar aggregate(long lower, long upper);
+
+    }
+
+    /**
+     * Aggregates the trades into the buckets ending at [from, from + interval, ...) before the time, each of which
+     * contains the trades in (end - interval, end], as in the prices collapsed from the trades listed. The whole
+     * seconds within the bucket are merged from the bars, and the partial seconds at its edges from the trades
+     * supplied. The bucket is mapped to null if no trades. Returns null if any of the arguments is null, or the
+     * interval is less than a millisecond.
+     */
+    public NavigableMap<Instant, Bar> collapse(Duration interval, Instant from, Instant to, Partial partial) {
+
+        if (interval == null || from == null || to == null || partial == null || interval.toMillis() <= 0) {
+            return null;
+        }
+
+        NavigableMap<Instant, Bar> collapsed = new TreeMap<>();
+
+        long step = interval.toMillis();
+
+        for (long i = from.toEpochMilli(); i < to.toEpochMilli(); i += step) {
+
+            Instant end = Instant.ofEpochMilli(i);
+
+            collapsed.put(end, aggregate(toNanos(end.minusMillis(step)), toNanos(end), partial));
+
+        }
+
+        return collapsed;
+
+    }
+
+    /**
+     * Merges the trades in (lower, upper] epoch nanos, from the bars of the whole seconds within, and the partial
+     * seconds at the edges.
+     */
+    private Bar aggregate(long lower, long upper, Partial partial) {
+
+        long lo = -Math.floorDiv(-lower, NANOS); // Rounded up
+
+        long hi = Math.floorDiv(upper, NANOS);
+
+        if (lo >= hi) {
+            return partial.aggregate(lower, upper);
+        }
+
+        Bar head = lower < lo * NANOS ? partial.aggregate(lower, lo * NANOS) : null;
+
+        Bar tail = hi * NANOS < upper ? partial.aggregate(hi * NANOS, upper) : null;
+
+        return Bar.merge(Bar.merge(head, aggregate(lo, hi)), tail);
+
+    }
+
+    /**
+     * Merges the bars in (lo, hi] epoch seconds, walking down from the end with the coarsest bar aligned within.
+     */
+    private Bar aggregate(long lo, long hi) {
+
+        Bar merged = null;
+
+        long end = hi;
+
+        while (end > lo) {
+
+            Resolution resolution = Resolution.SECOND;
+
+            for (Resolution r : Resolution.values()) {
+
+                if (Math.floorMod(end, r.seconds) == 0 && end - r.seconds >= lo) {
+                    resolution = r;
+                }
+
+            }
+
+            Bar bar = get(resolution, end);
+
+            if (bar != null) {
+                merged = merged == null ? bar : Bar.merge(bar, merged);
+            }
+
+            end -= resolution.seconds;
+
+        }
+
+        return merged;
+
+    }
+
+}
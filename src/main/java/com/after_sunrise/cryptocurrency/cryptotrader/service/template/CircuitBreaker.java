@@ -0,0 +1,252 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+
+import static java.math.RoundingMode.HALF_UP;
+import static lombok.AccessLevel.PRIVATE;
+
+/**
+ * Count-based circuit breaker, guarding a single endpoint of a site.
+ *
+ * Calls are recorded in a fixed-size window. The breaker opens when the ratio of failed (or slow) calls
+ * in a full window reaches the threshold, rejects calls while the cool-down elapses, and then lets a
+ * limited number of probe calls through (half-open) to decide whether to close or to re-open.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class CircuitBreaker {
+
+    public enum Status {
+
+        /**
+         * Calls are permitted.
+         */
+        CLOSED,
+
+        /**
+         * Calls are rejected until the cool-down elapses.
+         */
+        OPEN,
+
+        /**
+         * Limited number of probe calls are permitted.
+         */
+        HALF_OPEN
+
+    }
+
+    @Getter
+    @Builder
+    @ToString
+    @AllArgsConstructor(access = PRIVATE)
+    public static class Threshold {
+
+        /**
+         * Number of calls to evaluate. Zero or negative to disable the breaker.
+         */
+        private final int window;
+
+        /**
+         * Ratio of failed calls in the window to open the breaker. Null or zero to disable.
+         */
+        private final BigDecimal failureRate;
+
+        /**
+         * Calls slower than this duration are counted as failures. Null or zero to disable.
+         */
+        private final Duration latency;
+
+        /**
+         * Duration to reject the calls, before permitting the probes.
+         */
+        private final Duration cooldown;
+
+        /**
+         * Number of successful probe calls required to close the breaker.
+         */
+        private final int probes;
+
+    }
+
+    /**
+     * Thrown in place of the call, when the breaker does not permit it.
+     */
+    public static class RejectedException extends IOException {
+
+        public RejectedException(String message) {
+            super(message);
+        }
+
+    }
+
+    private boolean[] outcomes = new boolean[0];
+
+    private int cursor;
+
+    private int count;
+
+    private int failures;
+
+    private Status status = Status.CLOSED;
+
+    private Instant openedAt;
+
+    private int probesSent;
+
+    private int probesSucceeded;
+
+    public synchronized Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Determines if a call is permitted, transitioning from open to half-open if the cool-down has elapsed.
+     */
+    public synchronized boolean acquire(Instant now, Threshold threshold) {
+
+        if (threshold == null || threshold.getWindow() <= 0) {
+            return true;
+        }
+
+        if (status == Status.OPEN) {
+
+            Duration cooldown = threshold.getCooldown() == null ? Duration.ZERO : threshold.getCooldown();
+
+            if (now.isBefore(openedAt.plus(cooldown))) {
+                return false;
+            }
+
+            status = Status.HALF_OPEN;
+
+            probesSent = 0;
+
+            probesSucceeded = 0;
+
+        }
+
+        if (status == Status.HALF_OPEN) {
+
+            if (probesSent >= Math.max(threshold.getProbes(), 1)) {
+                return false;
+            }
+
+            probesSent++;
+
+        }
+
+        return true;
+
+    }
+
+    /**
+     * Records the outcome of a call which has been permitted by {@link #acquire(Instant, Threshold)}.
+     */
+    public synchronized void release(Instant now, Duration elapsed, boolean success, Threshold threshold) {
+
+        if (threshold == null || threshold.getWindow() <= 0) {
+            return;
+        }
+
+        Duration latency = threshold.getLatency();
+
+        boolean failure = !success || (latency != null && !latency.isZero()
+                && elapsed != null && elapsed.compareTo(latency) > 0);
+
+        if (status == Status.HALF_OPEN) {
+
+            if (failure) {
+
+                trip(now);
+
+                return;
+
+            }
+
+            if (++probesSucceeded >= Math.max(threshold.getProbes(), 1)) {
+                reset(threshold.getWindow());
+            }
+
+            return;
+
+        }
+
+        if (status == Status.OPEN) {
+            return; // Late completion of a call issued before tripping.
+        }
+
+        if (outcomes.length != threshold.getWindow()) {
+            reset(threshold.getWindow());
+        }
+
+        if (count == outcomes.length) {
+            failures -= outcomes[cursor] ? 1 : 0;
+        } else {
+            count++;
+        }
+
+        outcomes[cursor] = failure;
+
+        failures += failure ? 1 : 0;
+
+        cursor = (cursor + 1) % outcomes.length;
+
+        BigDecimal failureRate = threshold.getFailureRate();
+
+        if (count < outcomes.length || failureRate == null || failureRate.signum() <= 0) {
+            return;
+        }
+
+        BigDecimal rate = BigDecimal.valueOf(failures).divide(BigDecimal.valueOf(count), 4, HALF_UP);
+
+        if (rate.compareTo(failureRate) >= 0) {
+            trip(now);
+        }
+
+    }
+
+    /**
+     * Returns the permit of a call which has not been made, such as a request failed to be built, without recording
+     * any outcome.
+     */
+    public synchronized void abandon() {
+
+        if (status == Status.HALF_OPEN && probesSent > 0) {
+            probesSent--;
+        }
+
+    }
+
+    private void trip(Instant now) {
+
+        status = Status.OPEN;
+
+        openedAt = now;
+
+    }
+
+    private void reset(int window) {
+
+        outcomes = new boolean[window];
+
+        cursor = 0;
+
+        count = 0;
+
+        failures = 0;
+
+        status = Status.CLOSED;
+
+        openedAt = null;
+
+    }
+
+}
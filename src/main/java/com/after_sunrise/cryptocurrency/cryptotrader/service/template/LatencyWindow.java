@@ -0,0 +1,71 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent calls to a single endpoint, to estimate the percentiles.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class LatencyWindow {
+
+    private final long[] samples;
+
+    private int cursor;
+
+    private int count;
+
+    public LatencyWindow(int size) {
+        this.samples = new long[Math.max(size, 1)];
+    }
+
+    public synchronized void record(Duration elapsed) {
+
+        if (elapsed == null || elapsed.isNegative()) {
+            return;
+        }
+
+        samples[cursor] = elapsed.toNanos();
+
+        cursor = (cursor + 1) % samples.length;
+
+        count = Math.min(count + 1, samples.length);
+
+    }
+
+    /**
+     * Nearest-rank percentile of the recorded latencies, or null if fewer than the minimum have been recorded.
+     *
+     * @param percentile Percentile in (0, 1].
+     * @param minimum    Number of samples required for the estimate.
+     */
+    public Duration percentile(BigDecimal percentile, int minimum) {
+
+        if (percentile == null || percentile.signum() <= 0 || percentile.compareTo(BigDecimal.ONE) > 0) {
+            return null;
+        }
+
+        long[] sorted;
+
+        synchronized (this) {
+
+            if (count == 0 || count < minimum) {
+                return null;
+            }
+
+            sorted = Arrays.copyOf(samples, count);
+
+        }
+
+        Arrays.sort(sorted);
+
+        int rank = (int) Math.ceil(percentile.doubleValue() * sorted.length);
+
+        return Duration.ofNanos(sorted[Math.max(rank, 1) - 1]);
+
+    }
+
+}
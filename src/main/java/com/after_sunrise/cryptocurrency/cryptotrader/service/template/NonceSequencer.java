@@ -0,0 +1,101 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.HttpResponseException;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Lock-free generator of strictly increasing nonces, derived from the wall clock.
+ *
+ * The nonce is the current time in the configured unit, or the previous nonce plus one if the clock has not
+ * advanced. Calls never wait for the clock, and the nonces keep increasing across restarts as long as the
+ * burst rate stays below one call per unit on average.
+ *
+ * As the requests are signed and sent without a lock, a request may reach the venue after the one with a later
+ * nonce, and be rejected as such. A signed request rejected with the venue's own nonce error, after its nonce has
+ * been overtaken, is therefore signed again with a fresh nonce and resent once. Other errors are never resent, so
+ * that the rejected orders do not draw from the private rate limits twice.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class NonceSequencer {
+
+    private final AtomicLong last = new AtomicLong();
+
+    private final TimeUnit unit;
+
+    public NonceSequencer(TimeUnit unit) {
+        this.unit = unit;
+    }
+
+    public long next(Instant now) {
+
+        long candidate = unit.convert(now.getEpochSecond(), SECONDS) + unit.convert(now.getNano(), NANOSECONDS);
+
+        while (true) {
+
+            long previous = last.get();
+
+            long next = Math.max(previous + 1, candidate);
+
+            if (last.compareAndSet(previous, next)) {
+                return next;
+            }
+
+        }
+
+    }
+
+    /**
+     * Request signed with the nonce given.
+     */
+    public interface Signed<T> {
+
+        T send(long nonce) throws IOException;
+
+    }
+
+    /**
+     * Rejection of the nonce, as the response with the status code whose message, including the body, contains the
+     * error text of the venue.
+     */
+    public static Predicate<HttpResponseException> rejection(int status, String text) {
+        return e -> e.getStatusCode() == status && StringUtils.contains(e.getMessage(), text);
+    }
+
+    /**
+     * Sends the request signed with the next nonce, and resends it once with a fresh nonce if the nonce is rejected
+     * after a later nonce has been issued in the meantime, which may have reached the venue first.
+     */
+    public <T> T execute(Supplier<Instant> clock, Predicate<HttpResponseException> rejection,
+                         Signed<T> request) throws IOException {
+
+        long nonce = next(clock.get());
+
+        try {
+
+            return request.send(nonce);
+
+        } catch (HttpResponseException e) {
+
+            if (last.get() == nonce || !rejection.test(e)) {
+                throw e;
+            }
+
+            return request.send(next(clock.get()));
+
+        }
+
+    }
+
+}
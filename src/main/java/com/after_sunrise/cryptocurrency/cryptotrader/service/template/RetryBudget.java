@@ -0,0 +1,50 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+/**
+ * Token bucket limiting the additional calls (retries and hedges) to a ratio of the original calls.
+ *
+ * Each original call deposits a fraction of a token, and each additional call withdraws a whole token, so that
+ * a failing endpoint is not flooded with retries. The bucket starts full, to allow retries right after start-up.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class RetryBudget {
+
+    private final double capacity;
+
+    private double balance;
+
+    public RetryBudget(double capacity) {
+
+        this.capacity = Math.max(capacity, 0);
+
+        this.balance = this.capacity;
+
+    }
+
+    public synchronized void deposit(double ratio) {
+
+        if (ratio > 0) {
+            balance = Math.min(balance + ratio, capacity);
+        }
+
+    }
+
+    public synchronized boolean withdraw() {
+
+        if (balance < 1) {
+            return false;
+        }
+
+        balance -= 1;
+
+        return true;
+
+    }
+
+    public synchronized double getBalance() {
+        return balance;
+    }
+
+}
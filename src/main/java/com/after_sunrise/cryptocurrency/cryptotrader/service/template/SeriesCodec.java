@@ -0,0 +1,288 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import java.util.Arrays;
+
+/**
+ * Bit-packed encoding of the columns of the time series, for the sealed blocks of the trades and the bars.
+ *
+ * The sequences such as the IDs and the timestamps are encoded as the delta-of-deltas, which are mostly zero or small
+ * for the regular series. The decimals are encoded as the scaled integers : the scale, the trailing decimal zeros,
+ * and the remaining digits, each as the difference from the previous value of the column, so that the repeated
+ * scales and the nearby prices take a few bits. Each signed value is written as its zig-zag form with a prefix of
+ * its length, which is a single bit for zero, and up to 69 bits for the full range of a long.
+ *
+ * The values are decoded in the same order as written, sequentially from the start of the block.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class SeriesCodec {
+
+    private static final int[] LENGTHS = {7, 12, 20, 32};
+
+    private static final long[] POWERS = new long[19];
+
+    static {
+
+        POWERS[0] = 1;
+
+        for (int i = 1; i < POWERS.length; i++) {
+            POWERS[i] = POWERS[i - 1] * 10;
+        }
+
+    }
+
+    private SeriesCodec() {
+    }
+
+    /**
+     * Appends the bits into the words, from the least significant bits of each word.
+     */
+    public static class Writer {
+
+        private long[] words = new long[16];
+
+        private long position;
+
+        public void write(long value, int bits) {
+
+            if (bits == 0) {
+                return;
+            }
+
+            int index = (int) (position >>> 6);
+
+            int offset = (int) (position & 63);
+
+            if (index + 1 >= words.length) {
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+
+            long v = bits == 64 ? value : value & ((1L << bits) - 1);
+
+            words[index] |= v << offset;
+
+            if (offset + bits > 64) {
+                words[index + 1] |= v >>> (64 - offset);
+            }
+
+            position += bits;
+
+        }
+
+        /**
+         * Writes the value in zig-zag form, prefixed with its length : 0 (zero), 10 (7 bits), 110 (12 bits),
+         * 1110 (20 bits), 11110 (32 bits) or 11111 (64 bits).
+         */
+        public void writeSigned(long value) {
+
+            long zigzag = (value << 1) ^ (value >> 63);
+
+            if (zigzag == 0) {
+
+                write(0, 1);
+
+                return;
+
+            }
+
+            for (int i = 0; i < LENGTHS.length; i++) {
+
+                if (zigzag >>> LENGTHS[i] == 0) {
+
+                    write((1L << (i + 1)) - 1, i + 2); // i + 1 ones, followed by a zero.
+
+                    write(zigzag, LENGTHS[i]);
+
+                    return;
+
+                }
+
+            }
+
+            write((1L << (LENGTHS.length + 1)) - 1, LENGTHS.length + 1);
+
+            write(zigzag, 64);
+
+        }
+
+        /**
+         * Number of the bits written.
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * The words written, trimmed to the bits written.
+         */
+        public long[] toArray() {
+            return Arrays.copyOf(words, (int) ((position + 63) >>> 6));
+        }
+
+    }
+
+    /**
+     * Reads the bits written by the writer, sequentially.
+     */
+    public static class Reader {
+
+        private final long[] words;
+
+        private long position;
+
+        public Reader(long[] words) {
+            this.words = words;
+        }
+
+        public long read(int bits) {
+
+            if (bits == 0) {
+                return 0;
+            }
+
+            int index = (int) (position >>> 6);
+
+            int offset = (int) (position & 63);
+
+            long v = words[index] >>> offset;
+
+            if (offset + bits > 64) {
+                v |= words[index + 1] << (64 - offset);
+            }
+
+            position += bits;
+
+            return bits == 64 ? v : v & ((1L << bits) - 1);
+
+        }
+
+        public long readSigned() {
+
+            int prefix = 0;
+
+            while (prefix <= LENGTHS.length && read(1) == 1) {
+                prefix++;
+            }
+
+            if (prefix == 0) {
+                return 0;
+            }
+
+            long zigzag = read(prefix > LENGTHS.length ? 64 : LENGTHS[prefix - 1]);
+
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+
+        }
+
+    }
+
+    /**
+     * Column of the longs encoded as the delta-of-deltas, such as the IDs and the timestamps. The differences wrap
+     * around on overflow, which are restored as the same values.
+     */
+    public static class Sequence {
+
+        private long previous;
+
+        private long delta;
+
+        public void write(Writer writer, long value) {
+
+            long d = value - previous;
+
+            writer.writeSigned(d - delta);
+
+            delta = d;
+
+            previous = value;
+
+        }
+
+        public long read(Reader reader) {
+
+            delta += reader.readSigned();
+
+            previous += delta;
+
+            return previous;
+
+        }
+
+    }
+
+    /**
+     * Column of the decimals, as the unscaled longs with their scales. The digits without the trailing zeros are
+     * encoded as the difference from the previous one if differential, such as the prices, or as is otherwise, such
+     * as the sizes which are not correlated.
+     */
+    public static class Scaled {
+
+        private final boolean differential;
+
+        private long digits;
+
+        private int zeros;
+
+        private int scale;
+
+        private long unscaled;
+
+        public Scaled(boolean differential) {
+            this.differential = differential;
+        }
+
+        public void write(Writer writer, long unscaled, int scale) {
+
+            long d = unscaled;
+
+            int z = 0;
+
+            while (d != 0 && d % 10 == 0 && z < POWERS.length - 1) {
+
+                d /= 10;
+
+                z++;
+
+            }
+
+            writer.writeSigned(scale - this.scale);
+
+            writer.writeSigned(z - zeros);
+
+            writer.writeSigned(differential ? d - digits : d);
+
+            this.scale = scale;
+
+            this.zeros = z;
+
+            this.digits = d;
+
+        }
+
+        /**
+         * Reads the value, whose unscaled value and scale are available from the column until the next read.
+         */
+        public void read(Reader reader) {
+
+            scale += (int) reader.readSigned();
+
+            zeros += (int) reader.readSigned();
+
+            digits = differential ? digits + reader.readSigned() : reader.readSigned();
+
+            unscaled = digits * POWERS[zeros];
+
+        }
+
+        public long getUnscaled() {
+            return unscaled;
+        }
+
+        public int getScale() {
+            return scale;
+        }
+
+    }
+
+}
@@ -0,0 +1,441 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import com.google.common.annotations.VisibleForTesting;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.websocket.ContainerProvider;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Supplier;
+
+import static java.util.Collections.singleton;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static lombok.AccessLevel.PRIVATE;
+
+/**
+ * Keeps a websocket connected, for the contexts streaming the market data.
+ *
+ * The connection is checked periodically on a dedicated thread. A failed connection is retried with exponential
+ * backoff, an idle connection is kept alive with heartbeats, and a connection without any message (including the
+ * responses to the heartbeats) for longer than the timeout is closed and reconnected. On every open, all the channels
+ * are subscribed again, and the handler is requested to backfill the period since the last message received, so
+ * that the realtime caches stay complete across the reconnections.
+ *
+ * The annotated endpoint of the context should forward its open, message and close events to this instance.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class SocketSupervisor implements AutoCloseable {
+
+    private static final ByteBuffer PING = ByteBuffer.allocate(0);
+
+    public interface Handler {
+
+        /**
+         * Sends the subscription requests of the channels.
+         */
+        void subscribe(Session session, Collection<String> channels) throws IOException;
+
+        /**
+         * Sends a message to keep the connection alive, to which the server is expected to respond.
+         */
+        default void heartbeat(Session session) throws IOException {
+            session.getBasicRemote().sendPing(PING.duplicate());
+        }
+
+        /**
+         * Retrieves the data of the channels, which may have been missed since the time (null for the first open).
+         */
+        default void backfill(Collection<String> channels, Instant since) throws IOException {
+        }
+
+    }
+
+    @Getter
+    @Builder
+    @ToString
+    @AllArgsConstructor(access = PRIVATE)
+    public static class Settings {
+
+        /**
+         * Interval to check the connection.
+         */
+        private final Duration interval;
+
+        /**
+         * Delay before the first retry of a failed connection, doubled on every consecutive failure.
+         */
+        private final Duration backoffMin;
+
+        /**
+         * Maximum delay between the connection attempts.
+         */
+        private final Duration backoffMax;
+
+        /**
+         * Idle duration before sending a heartbeat. Null or zero to disable.
+         */
+        private final Duration heartbeat;
+
+        /**
+         * Duration without any message before reconnecting. Null or zero to disable.
+         */
+        private final Duration timeout;
+
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Set<String> channels = ConcurrentHashMap.newKeySet();
+
+    private final String name;
+
+    private final URI uri;
+
+    private final Object endpoint;
+
+    private final Handler handler;
+
+    private final Supplier<Instant> clock;
+
+    private final Settings settings;
+
+    private ScheduledExecutorService executor;
+
+    private Session session;
+
+    private Instant nextAttempt;
+
+    private Duration backoff;
+
+    private Instant lastMessage;
+
+    private Instant lastSent;
+
+    private Instant openedAt;
+
+    private boolean recovering;
+
+    public SocketSupervisor(String name, URI uri, Object endpoint,
+                            Handler handler, Supplier<Instant> clock, Settings settings) {
+        this.name = name;
+        this.uri = uri;
+        this.endpoint = endpoint;
+        this.handler = handler;
+        this.clock = clock;
+        this.settings = settings;
+    }
+
+    /**
+     * Starts the supervision on the first call. Subsequent calls are ignored.
+     */
+    public synchronized void start() {
+
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            t.setName(name + "-socket");
+            return t;
+        });
+
+        long interval = Math.max(settings.getInterval().toMillis(), 1);
+
+        executor.scheduleWithFixedDelay(() -> check(clock.get()), 0, interval, MILLISECONDS);
+
+    }
+
+    public synchronized boolean isStarted() {
+        return executor != null;
+    }
+
+    @Override
+    public void close() {
+
+        Session s;
+
+        synchronized (this) {
+
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+
+            s = session;
+
+            session = null;
+
+        }
+
+        IOUtils.closeQuietly(s);
+
+    }
+
+    /**
+     * Adds the channel to subscribe, and subscribes it immediately if connected.
+     * Returns false if the channel has already been added.
+     */
+    public boolean subscribe(String channel) {
+
+        if (!channels.add(channel)) {
+            return false;
+        }
+
+        Session s;
+
+        synchronized (this) {
+            s = session;
+        }
+
+        if (s != null && s.isOpen()) {
+
+            try {
+                handler.subscribe(s, singleton(channel));
+            } catch (Exception e) {
+                log.debug("Failed to subscribe : " + channel, e);
+            }
+
+        }
+
+        return true;
+
+    }
+
+    public Collection<String> getChannels() {
+        return new ArrayList<>(channels);
+    }
+
+    public synchronized boolean isConnected() {
+        return session != null && session.isOpen();
+    }
+
+    public synchronized Instant getLastMessage() {
+        return lastMessage;
+    }
+
+    /**
+     * To be called by the endpoint when the session is opened.
+     * Resubscribes all the channels, and requests the backfill since the last message.
+     */
+    public void onOpen(Session s) {
+
+        Instant since;
+
+        synchronized (this) {
+
+            session = s;
+
+            since = lastMessage;
+
+            openedAt = clock.get();
+
+            recovering = true;
+
+        }
+
+        List<String> values = new ArrayList<>(channels);
+
+        try {
+            handler.subscribe(s, values);
+        } catch (Exception e) {
+            log.debug("Failed to subscribe : " + values, e);
+        }
+
+        ScheduledExecutorService e;
+
+        synchronized (this) {
+            e = executor;
+        }
+
+        if (e != null && !e.isShutdown()) {
+            e.execute(() -> backfill(values, since));
+        } else {
+            backfill(values, since);
+        }
+
+    }
+
+    @VisibleForTesting
+    void backfill(Collection<String> values, Instant since) {
+
+        try {
+            handler.backfill(values, since);
+        } catch (Exception e) {
+            log.debug("Failed to backfill : " + values, e);
+        }
+
+    }
+
+    /**
+     * To be called by the endpoint on every message received, including the responses to the heartbeats.
+     */
+    public synchronized void onMessage() {
+
+        lastMessage = clock.get();
+
+        if (recovering) {
+
+            backoff = null; // Stable enough to receive.
+
+            nextAttempt = null;
+
+            recovering = false;
+
+        }
+
+    }
+
+    /**
+     * To be called by the endpoint when the session is closed.
+     */
+    public synchronized void onClose(Session s) {
+
+        if (session == s) {
+            session = null;
+        }
+
+    }
+
+    @VisibleForTesting
+    Session connect() throws Exception {
+        return ContainerProvider.getWebSocketContainer().connectToServer(endpoint, uri);
+    }
+
+    @VisibleForTesting
+    void check(Instant now) {
+
+        Session s;
+
+        synchronized (this) {
+            s = session;
+        }
+
+        if (s == null || !s.isOpen()) {
+
+            reconnect(now);
+
+            return;
+
+        }
+
+        Instant received;
+
+        Instant active;
+
+        synchronized (this) {
+
+            received = latest(lastMessage, openedAt);
+
+            active = latest(received, lastSent);
+
+        }
+
+        if (isElapsed(received, now, settings.getTimeout())) {
+
+            log.debug("Socket timeout : {}", s.getId());
+
+            synchronized (this) {
+                session = null;
+            }
+
+            IOUtils.closeQuietly(s);
+
+            reconnect(now);
+
+            return;
+
+        }
+
+        if (isElapsed(active, now, settings.getHeartbeat())) {
+
+            try {
+
+                handler.heartbeat(s);
+
+                synchronized (this) {
+                    lastSent = now;
+                }
+
+            } catch (Exception e) {
+                log.debug("Heartbeat failure : " + s.getId(), e);
+            }
+
+        }
+
+    }
+
+    private Instant latest(Instant i1, Instant i2) {
+
+        if (i1 == null || i2 == null) {
+            return i1 == null ? i2 : i1;
+        }
+
+        return i1.isAfter(i2) ? i1 : i2;
+
+    }
+
+    private boolean isElapsed(Instant from, Instant now, Duration duration) {
+
+        if (from == null || now == null || duration == null || duration.isZero() || duration.isNegative()) {
+            return false;
+        }
+
+        return Duration.between(from, now).compareTo(duration) >= 0;
+
+    }
+
+    private void reconnect(Instant now) {
+
+        synchronized (this) {
+
+            if (nextAttempt != null && now.isBefore(nextAttempt)) {
+                return;
+            }
+
+            Duration min = settings.getBackoffMin();
+
+            Duration max = settings.getBackoffMax();
+
+            backoff = backoff == null ? min : backoff.multipliedBy(2);
+
+            backoff = max != null && backoff.compareTo(max) > 0 ? max : backoff;
+
+            nextAttempt = now.plus(backoff);
+
+        }
+
+        try {
+
+            Session s = connect();
+
+            log.debug("Initialized socket : {}", s.getId());
+
+        } catch (Exception e) {
+
+            log.debug("Connection failure : " + uri, e);
+
+        }
+
+    }
+
+}
@@ -4,6 +4,7 @@ import com.after_sunrise.cryptocurrency.cryptotrader.core.Composite;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.*;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.Key;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.StateType;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.TradeSummary;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Estimator.Estimation;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.impl.AbstractService;
 import com.google.common.annotations.VisibleForTesting;
@@ -195,9 +196,7 @@ public class TemplateAdviser extends AbstractService implements Adviser {
 
                 Instant from = to.minus(interval.toMillis() * samples, MILLIS);
 
-                List<Trade> trades = context.listTrades(key, from.minus(interval));
-
-                NavigableMap<Instant, BigDecimal> prices = collapsePrices(trades, interval, from, to, false);
+                NavigableMap<Instant, BigDecimal> prices = collapsePrices(context, key, interval, from, to, false);
 
                 NavigableMap<Instant, BigDecimal> returns = calculateReturns(prices);
 
@@ -434,23 +433,11 @@ public class TemplateAdviser extends AbstractService implements Adviser {
 
             Instant cutoff = request.getCurrentTime().plus(duration);
 
-            double[] average = {0.0, 0.0, 0.0};
+            TradeSummary summary = summarizeTrades(context, key, cutoff, null);
 
-            trimToEmpty(context.listTrades(key, cutoff)).stream()
-                    .filter(Objects::nonNull)
-                    .filter(t -> t.getTimestamp() != null)
-                    .filter(t -> t.getTimestamp().isAfter(cutoff))
-                    .filter(t -> t.getPrice() != null)
-                    .filter(t -> t.getPrice().signum() != 0)
-                    .filter(t -> t.getSize() != null)
-                    .filter(t -> t.getSize().signum() != 0)
-                    .forEach(t -> {
-                        average[0] += t.getSize().multiply(t.getPrice()).doubleValue();
-                        average[1] += t.getSize().doubleValue();
-                        average[2] += 1;
-                    });
-
-            price = average[2] > 0 ? BigDecimal.valueOf(average[0] / average[1]).setScale(SCALE, HALF_UP) : null;
+            boolean empty = summary == null || summary.getCount() == 0 || summary.getSize().signum() == 0;
+
+            price = empty ? null : summary.getNotional().divide(summary.getSize(), SCALE, HALF_UP);
 
         } else {
 
@@ -3,17 +3,28 @@ package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CancelInstruction;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CreateInstruction;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.MarketBus;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Order;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.PriceLevels;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.impl.AbstractService;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.inject.Inject;
 import org.apache.commons.collections.MapUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStream;
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -21,29 +32,36 @@ import org.apache.http.impl.client.HttpClients;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.net.URLEncoder;
-import java.security.GeneralSecurityException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.*;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.apache.commons.lang3.math.NumberUtils.INTEGER_ZERO;
 
 /**
@@ -77,6 +95,8 @@ public abstract class TemplateContext extends AbstractService implements Context
 
             HttpRequestBase request = delegate.apply(url);
 
+            request.setHeader(HttpHeaders.ACCEPT_ENCODING, ACCEPT_ENCODING);
+
             Optional.ofNullable(headers).orElse(emptyMap()).forEach(request::setHeader);
 
             Optional.ofNullable(data)
@@ -93,28 +113,101 @@ public abstract class TemplateContext extends AbstractService implements Context
 
     private static final Logger LOG = LoggerFactory.getLogger(RequestType.class);
 
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
     private static final long CACHE_SIZE = Byte.MAX_VALUE;
 
     private static final Duration CACHE_DURATION = Duration.ofMinutes(1);
 
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private static final int BREAKER_WINDOW = 20;
+
+    private static final BigDecimal BREAKER_FAILURE = HALF;
+
+    private static final long BREAKER_LATENCY = Duration.ofSeconds(10).toMillis();
+
+    private static final long BREAKER_COOLDOWN = Duration.ofSeconds(30).toMillis();
+
+    private static final int BREAKER_PROBES = 1;
+
+    private static final int RETRY_COUNT = 0;
+
+    private static final long RETRY_BACKOFF = Duration.ofMillis(100).toMillis();
+
+    private static final BigDecimal RETRY_BUDGET = new BigDecimal("0.1");
+
+    private static final double RETRY_BUDGET_CAPACITY = 10;
+
+    private static final BigDecimal HEDGE_PERCENTILE = BigDecimal.ZERO;
+
+    private static final int HEDGE_SAMPLES = 20;
+
+    private static final int LATENCY_SAMPLES = 100;
+
+    private static final Pattern ID_SEGMENT = Pattern.compile("^[0-9]+$|^(?=.*[0-9])[0-9A-Za-z_-]{8,}$");
+
+    private static final String ID_PLACEHOLDER = "{id}";
+
+    private static final long SOCKET_INTERVAL = Duration.ofSeconds(1).toMillis();
+
+    private static final long SOCKET_BACKOFF_MIN = Duration.ofSeconds(1).toMillis();
+
+    private static final long SOCKET_BACKOFF_MAX = Duration.ofMinutes(1).toMillis();
+
+    private static final long SOCKET_HEARTBEAT = Duration.ofSeconds(10).toMillis();
+
+    private static final long SOCKET_TIMEOUT = Duration.ofSeconds(30).toMillis();
+
+    private static final Duration CURSOR_EXPIRY = Duration.ofHours(24);
+
+    private static final int CURSOR_LIMIT = 65536;
+
     private final Map<Class<?>, Cache<Key, Optional<?>>> singleCache = new ConcurrentHashMap<>();
 
     private final Map<Class<?>, Cache<Key, Optional<List<?>>>> listCache = new ConcurrentHashMap<>();
 
+    private final Map<String, TradeTape> cursorTapes = new ConcurrentHashMap<>();
+
+    private final Cache<Key, Optional<PriceLevels>> askCache = createCache();
+
+    private final Cache<Key, Optional<PriceLevels>> bidCache = createCache();
+
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final Map<String, TrafficMeter> traffics = new ConcurrentHashMap<>();
+
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+    private final RetryBudget retryBudget = new RetryBudget(RETRY_BUDGET_CAPACITY);
+
     private final String id;
 
     private final CloseableHttpClient client;
 
     private final AtomicReference<StateType> state;
 
+    private final ExecutorService hedger;
+
+    private final Map<String, Optional<TradeJournal>> journals = new ConcurrentHashMap<>();
+
+    private volatile MarketBus marketBus;
+
     protected TemplateContext(String id) {
 
         this.id = id;
 
-        this.client = HttpClients.createDefault();
+        this.client = HttpClients.custom().disableContentCompression().build(); // Decoded in 'request'
 
         this.state = new AtomicReference<>(StateType.ACTIVE);
 
+        this.hedger = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            t.setName(getClass().getSimpleName() + "-hedge");
+            return t;
+        });
+
     }
 
     @Override
@@ -125,8 +218,16 @@ public abstract class TemplateContext extends AbstractService implements Context
     @Override
     public void close() throws Exception {
 
+        hedger.shutdown();
+
         client.close();
 
+        for (Optional<TradeJournal> journal : journals.values()) {
+            if (journal.isPresent()) {
+                journal.get().close();
+            }
+        }
+
         state.set(StateType.TERMINATE);
 
     }
@@ -142,30 +243,8 @@ public abstract class TemplateContext extends AbstractService implements Context
     }
 
     @VisibleForTesting
-    public String computeHash(String algorithm, byte[] key, byte[] data) throws IOException {
-
-        try {
-
-            Mac mac = Mac.getInstance(algorithm);
-
-            mac.init(new SecretKeySpec(key, algorithm));
-
-            byte[] hash = mac.doFinal(data);
-
-            StringBuilder sb = new StringBuilder(hash.length);
-
-            for (byte b : hash) {
-                sb.append(String.format("%02x", b & 0xff));
-            }
-
-            return sb.toString();
-
-        } catch (GeneralSecurityException e) {
-
-            throw new IOException("Failed to compute hash.", e);
-
-        }
-
+    public String computeHash(String algorithm, String secret, CharSequence... message) throws IOException {
+        return RequestSigner.get(algorithm).sign(secret, message);
     }
 
     @VisibleForTesting
@@ -200,7 +279,169 @@ public abstract class TemplateContext extends AbstractService implements Context
 
     @VisibleForTesting
     public String request(String path) throws IOException {
-        return request(RequestType.GET, path, null, null);
+        return request(path, null);
+    }
+
+    /**
+     * Idempotent GET, which is retried and hedged as configured per site. Never to be used for the signed
+     * requests, whose nonces cannot be replayed.
+     *
+     * Retries are attempted on connection failures and server errors (5xx), with linear backoff. A hedge is
+     * the same request sent again when the first has not completed within the configured percentile of the
+     * recent latencies, taking whichever succeeds first. Both retries and hedges draw from a budget which is
+     * refilled as a ratio of the original requests, so that a failing server is not flooded.
+     */
+    @VisibleForTesting
+    public String request(String path, Map<String, String> headers) throws IOException {
+
+        int retries = getIntProperty("retry.count", RETRY_COUNT);
+
+        long backoff = getLongProperty("retry.backoff", RETRY_BACKOFF);
+
+        retryBudget.deposit(trimToZero(getDecimalProperty("retry.budget", RETRY_BUDGET)).doubleValue());
+
+        for (int attempt = 1; ; attempt++) {
+
+            try {
+
+                return requestHedged(path, headers);
+
+            } catch (IOException e) {
+
+                if (attempt > retries || !isRetryable(e) || !retryBudget.withdraw()) {
+                    throw e;
+                }
+
+                LOG.debug("[RETRY][{}/{}][{}] {}", attempt, retries, path, e.getMessage());
+
+                try {
+                    MILLISECONDS.sleep(Math.max(backoff, 0) * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(ie.getMessage());
+                }
+
+            }
+
+        }
+
+    }
+
+    private String requestHedged(String path, Map<String, String> headers) throws IOException {
+
+        Duration delay = getHedgeDelay(getEndpoint(RequestType.GET, path));
+
+        if (delay == null) {
+            return request(RequestType.GET, path, headers, null);
+        }
+
+        CompletableFuture<String> result = new CompletableFuture<>();
+
+        AtomicInteger pending = new AtomicInteger(1);
+
+        Runnable task = () -> {
+            try {
+                result.complete(request(RequestType.GET, path, headers, null));
+            } catch (Throwable e) {
+                if (pending.decrementAndGet() == 0) {
+                    result.completeExceptionally(e);
+                }
+            }
+        };
+
+        hedger.execute(task);
+
+        try {
+
+            try {
+                return result.get(delay.toNanos(), NANOSECONDS);
+            } catch (TimeoutException e) {
+                // Fall through to hedge.
+            }
+
+            if (retryBudget.withdraw()) {
+
+                LOG.debug("[HEDGE][{}][{}]", delay, path);
+
+                if (pending.getAndIncrement() > 0) {
+                    hedger.execute(task);
+                } else {
+                    pending.decrementAndGet(); // Failed in the meantime.
+                }
+
+            }
+
+            return result.get();
+
+        } catch (InterruptedException e) {
+
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException(e.getMessage());
+
+        } catch (ExecutionException e) {
+
+            Throwable cause = e.getCause();
+
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+
+        }
+
+    }
+
+    private boolean isRetryable(IOException e) {
+
+        if (e instanceof CircuitBreaker.RejectedException || e instanceof InterruptedIOException) {
+            return false;
+        }
+
+        if (e instanceof HttpResponseException) {
+            return ((HttpResponseException) e).getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+        }
+
+        return true; // Connection failure, timeout, etc.
+
+    }
+
+    @VisibleForTesting
+    Duration getHedgeDelay(String endpoint) {
+
+        BigDecimal percentile = trimToZero(getDecimalProperty("hedge.percentile", HEDGE_PERCENTILE));
+
+        if (percentile.signum() <= 0) {
+            return null;
+        }
+
+        LatencyWindow window = latencies.get(endpoint);
+
+        return window == null ? null : window.percentile(percentile, HEDGE_SAMPLES);
+
+    }
+
+    /**
+     * Method and path of the request, without the query parameters, and with the path segments of the resource IDs,
+     * such as the order IDs, replaced by a placeholder, so that the calls of the same endpoint share their breaker
+     * and statistics.
+     */
+    @VisibleForTesting
+    static String getEndpoint(RequestType type, String path) {
+
+        String base = StringUtils.substringBefore(StringUtils.defaultString(path), "?");
+
+        int scheme = base.indexOf("://");
+
+        int root = base.indexOf('/', scheme < 0 ? 0 : scheme + 3);
+
+        StringBuilder sb = new StringBuilder().append(type).append(' ');
+
+        sb.append(root < 0 ? base : base.substring(0, root));
+
+        for (String segment : root < 0 ? new String[0] : base.substring(root + 1).split("/", -1)) {
+            sb.append('/').append(ID_SEGMENT.matcher(segment).matches() ? ID_PLACEHOLDER : segment);
+        }
+
+        return sb.toString();
+
     }
 
     @VisibleForTesting
@@ -208,30 +449,391 @@ public abstract class TemplateContext extends AbstractService implements Context
 
         LOG.trace("[SEND][{}][{}][{}] {}", type, path, headers, data);
 
-        HttpUriRequest request = type.create(path, headers, data);
+        String endpoint = getEndpoint(type, path);
+
+        CircuitBreaker breaker = breakers.computeIfAbsent(endpoint, k -> new CircuitBreaker());
+
+        CircuitBreaker.Threshold threshold = getBreakerThreshold();
 
-        return client.execute(request, response -> {
+        if (!breaker.acquire(getNow(), threshold)) {
+            throw new CircuitBreaker.RejectedException("Circuit open : " + endpoint);
+        }
+
+        HttpUriRequest request = null;
+
+        AtomicReference<StatusLine> status = new AtomicReference<>();
+
+        long start = System.nanoTime();
+
+        try {
+
+            request = type.create(path, headers, data);
+
+            return client.execute(request, response -> {
+
+                HttpEntity entity = response.getEntity();
+
+                CountingInputStream wire = new CountingInputStream(
+                        entity == null ? new ByteArrayInputStream(new byte[0]) : entity.getContent());
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                try (InputStream in = decode(wire, entity)) {
+                    ByteStreams.copy(in, out);
+                }
+
+                traffics.computeIfAbsent(endpoint, k -> new TrafficMeter()).record(wire.getCount(), out.size());
 
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
+                String body = new String(out.toByteArray(), UTF_8);
 
-            response.getEntity().writeTo(out);
+                StatusLine statusLine = response.getStatusLine();
 
-            String body = new String(out.toByteArray(), UTF_8);
+                status.set(statusLine);
 
-            StatusLine statusLine = response.getStatusLine();
+                LOG.trace("[RECV][{}][{}][{} -> {} bytes] {}",
+                        statusLine, response.getAllHeaders(), wire.getCount(), out.size(), body);
 
-            LOG.trace("[RECV][{}][{}] {}", statusLine, response.getAllHeaders(), body);
+                if (HttpStatus.SC_OK == statusLine.getStatusCode()) {
+                    return body;
+                }
+
+                throw new HttpResponseException(statusLine.getStatusCode(), statusLine + " : " + body);
+
+            });
+
+        } finally {
+
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+            if (request == null) {
+
+                breaker.abandon(); // Not sent, such as the malformed URI.
+
+            } else {
+
+                breaker.release(getNow(), elapsed, isHealthy(status.get()), threshold);
 
-            if (HttpStatus.SC_OK == statusLine.getStatusCode()) {
-                return body;
             }
 
-            throw new IOException(statusLine + " : " + body);
+            if (status.get() != null) {
+                latencies.computeIfAbsent(endpoint, k -> new LatencyWindow(LATENCY_SAMPLES)).record(elapsed);
+            }
 
-        });
+        }
+
+    }
+
+    /**
+     * Reads the lines of a streaming response, such as the chunked HTTP streams, as they arrive. Returns when the
+     * handler returns false or the server ends the stream, and fails if no data has been received within the timeout
+     * (null or zero to wait indefinitely). The connection is discarded afterwards, instead of draining the stream.
+     */
+    @VisibleForTesting
+    public void requestLines(String path, Map<String, String> headers, Duration timeout,
+                             Predicate<String> handler) throws IOException {
+
+        LOG.trace("[SEND][STREAM][{}][{}]", path, headers);
+
+        HttpUriRequest request = RequestType.GET.create(path, headers, null);
+
+        if (timeout != null && !timeout.isZero()) {
+            HttpRequestBase.class.cast(request).setConfig(RequestConfig.custom()
+                    .setConnectTimeout((int) timeout.toMillis())
+                    .setSocketTimeout((int) timeout.toMillis())
+                    .build());
+        }
+
+        try (CloseableHttpResponse response = client.execute(request)) {
+
+            StatusLine status = response.getStatusLine();
+
+            HttpEntity entity = response.getEntity();
+
+            if (HttpStatus.SC_OK != status.getStatusCode() || entity == null) {
+                throw new HttpResponseException(status.getStatusCode(), status.toString());
+            }
+
+            try {
+
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(decode(entity.getContent(), entity), UTF_8));
+
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+
+                    LOG.trace("[RECV][STREAM][{}] {}", path, line);
+
+                    if (!handler.test(line)) {
+                        break;
+                    }
+
+                }
+
+            } finally {
+                request.abort(); // Closing the stream would otherwise read until its end.
+            }
+
+        }
+
+    }
+
+    /**
+     * Decompresses the response stream while reading, as per the content encoding negotiated by the request.
+     */
+    private InputStream decode(InputStream in, HttpEntity entity) throws IOException {
+
+        Header header = entity == null ? null : entity.getContentEncoding();
+
+        String encoding = StringUtils.trimToEmpty(header == null ? null : header.getValue()).toLowerCase(Locale.US);
+
+        switch (encoding) {
+            case "":
+            case "identity":
+                return in;
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(in);
+            case "deflate":
+                return new DeflateInputStream(in);
+            default:
+                throw new IOException("Unsupported content encoding : " + encoding);
+        }
+
+    }
+
+    /**
+     * Rejections by the server (4xx) are responses of a healthy server, except for the rate limiting.
+     */
+    private boolean isHealthy(StatusLine status) {
+
+        if (status == null) {
+            return false; // Connection failure, timeout, etc.
+        }
+
+        int code = status.getStatusCode();
+
+        return code < HttpStatus.SC_INTERNAL_SERVER_ERROR && code != SC_TOO_MANY_REQUESTS;
+
+    }
+
+    @VisibleForTesting
+    CircuitBreaker.Threshold getBreakerThreshold() {
+        return CircuitBreaker.Threshold.builder()
+                .window(getIntProperty("breaker.window", BREAKER_WINDOW))
+                .failureRate(getDecimalProperty("breaker.failure", BREAKER_FAILURE))
+                .latency(Duration.ofMillis(getLongProperty("breaker.latency", BREAKER_LATENCY)))
+                .cooldown(Duration.ofMillis(getLongProperty("breaker.cooldown", BREAKER_COOLDOWN)))
+                .probes(getIntProperty("breaker.probes", BREAKER_PROBES))
+                .build();
+    }
+
+    protected SocketSupervisor.Settings getSocketSettings() {
+        return SocketSupervisor.Settings.builder()
+                .interval(Duration.ofMillis(getLongProperty("socket.interval", SOCKET_INTERVAL)))
+                .backoffMin(Duration.ofMillis(getLongProperty("socket.backoff.min", SOCKET_BACKOFF_MIN)))
+                .backoffMax(Duration.ofMillis(getLongProperty("socket.backoff.max", SOCKET_BACKOFF_MAX)))
+                .heartbeat(Duration.ofMillis(getLongProperty("socket.heartbeat", SOCKET_HEARTBEAT)))
+                .timeout(Duration.ofMillis(getLongProperty("socket.timeout", SOCKET_TIMEOUT)))
+                .build();
+    }
+
+    @Inject(optional = true)
+    @VisibleForTesting
+    public void setMarketBus(MarketBus marketBus) {
+        this.marketBus = marketBus;
+    }
+
+    /**
+     * Publishes the realtime ticker update to the market bus, if any.
+     */
+    protected void publishTick(String instrument, Instant timestamp, BigDecimal last,
+                               BigDecimal askPrice, BigDecimal askSize, BigDecimal bidPrice, BigDecimal bidSize) {
+
+        MarketBus bus = marketBus;
+
+        if (bus != null) {
+            bus.publishTick(id, instrument, timestamp, last, askPrice, askSize, bidPrice, bidSize);
+        }
+
+    }
+
+    /**
+     * Publishes the best levels of the realtime order book to the market bus, if any.
+     */
+    protected void publishBook(String instrument, Instant timestamp,
+                               Map.Entry<BigDecimal, BigDecimal> ask, Map.Entry<BigDecimal, BigDecimal> bid) {
+
+        MarketBus bus = marketBus;
+
+        if (bus != null && (ask != null || bid != null)) {
+            bus.publishBook(id, instrument, timestamp,
+                    ask == null ? null : ask.getKey(), ask == null ? null : ask.getValue(),
+                    bid == null ? null : bid.getKey(), bid == null ? null : bid.getValue());
+        }
+
+    }
+
+    /**
+     * Publishes the realtime trade print to the market bus, if any.
+     */
+    protected void publishTrade(String instrument, Instant timestamp, BigDecimal price, BigDecimal size) {
+
+        MarketBus bus = marketBus;
+
+        if (bus != null) {
+            bus.publishTrade(id, instrument, timestamp, price, size);
+        }
 
     }
 
+    /**
+     * Journal of the trades of the instrument, opened on the first call under the directory configured by
+     * "journal.path", or null if not configured or failed to open.
+     */
+    protected TradeJournal getJournal(String instrument) {
+
+        String directory = getStringProperty("journal.path", null);
+
+        if (StringUtils.isBlank(directory) || StringUtils.isBlank(instrument)) {
+            return null;
+        }
+
+        return journals.computeIfAbsent(instrument, key -> {
+
+            String name = key.replaceAll("[^A-Za-z0-9_.-]", "_") + ".journal";
+
+            Path path = Paths.get(directory, id, name);
+
+            try {
+
+                TradeJournal journal = TradeJournal.open(path);
+
+                log.info("Opened journal : {} ({} trades)", path, journal.size());
+
+                return Optional.of(journal);
+
+            } catch (IOException | RuntimeException e) {
+
+                log.warn("Failed to open journal : " + path, e);
+
+                return Optional.empty();
+
+            }
+
+        }).orElse(null);
+
+    }
+
+    /**
+     * Replays the journaled trades of the instrument since the cutoff, and then drops the older ones from the journal.
+     * Returns the journal, or null if not available.
+     */
+    protected TradeJournal replayJournal(String instrument, Instant cutoff, TradeJournal.Visitor visitor) {
+
+        TradeJournal journal = getJournal(instrument);
+
+        if (journal == null) {
+            return null;
+        }
+
+        try {
+
+            int count = journal.replay(cutoff, visitor);
+
+            int dropped = journal.compact(cutoff);
+
+            log.debug("Replayed journal : {} (replayed={}, dropped={})", instrument, count, dropped);
+
+            return journal;
+
+        } catch (IOException | RuntimeException e) {
+
+            log.warn("Failed to replay journal : " + instrument, e);
+
+            return null;
+
+        }
+
+    }
+
+    /**
+     * Appends the trade to the journal of the instrument, if any.
+     */
+    protected void journalTrade(String instrument, Long tradeId, Instant timestamp, BigDecimal price, BigDecimal size) {
+
+        TradeJournal journal = tradeId == null ? null : getJournal(instrument);
+
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            journal.append(tradeId, timestamp, price, size);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to journal trade : {} - {}", instrument, e.getMessage());
+        }
+
+    }
+
+    /**
+     * Collapses the trades of the tape into the prices of the buckets, from its bars instead of the rows, in the same
+     * way as the trades listed. Returns null if the tape is null, or the bars are not available for the period.
+     */
+    protected NavigableMap<Instant, BigDecimal> collapseTape(TradeTape tape,
+                                                             Duration interval, Instant from, Instant to, boolean sum) {
+
+        NavigableMap<Instant, BarStore.Bar> bars = tape == null ? null : tape.collapse(interval, from, to);
+
+        if (bars == null) {
+            return null;
+        }
+
+        NavigableMap<Instant, BigDecimal> prices = new TreeMap<>();
+
+        BigDecimal previous = null;
+
+        for (Map.Entry<Instant, BarStore.Bar> entry : bars.entrySet()) {
+
+            BarStore.Bar bar = entry.getValue();
+
+            BigDecimal current = previous;
+
+            BigDecimal size = bar == null ? null : sum ? bar.getSize() : bar.getCloseSize();
+
+            if (size != null && size.signum() != 0) {
+                current = sum ? bar.getNotional().divide(size, SCALE, RoundingMode.HALF_UP)
+                        : bar.getClose().setScale(SCALE, RoundingMode.HALF_UP);
+            }
+
+            prices.put(entry.getKey(), current);
+
+            previous = current;
+
+        }
+
+        return prices;
+
+    }
+
+    @VisibleForTesting
+    Map<String, CircuitBreaker.Status> getBreakerStatus() {
+
+        Map<String, CircuitBreaker.Status> statuses = new TreeMap<>();
+
+        breakers.forEach((k, v) -> statuses.put(k, v.getStatus()));
+
+        return statuses;
+
+    }
+
+    /**
+     * Response sizes per endpoint (as {@link #getEndpoint(RequestType, String)}), since this context started.
+     */
+    public Map<String, TrafficMeter> getTraffics() {
+        return unmodifiableMap(new TreeMap<>(traffics));
+    }
+
     @VisibleForTesting
     public void clear() {
 
@@ -241,6 +843,12 @@ public abstract class TemplateContext extends AbstractService implements Context
 
         listCache.forEach((k, v) -> v.invalidateAll());
 
+        askCache.invalidateAll();
+
+        bidCache.invalidateAll();
+
+        cursorTapes.clear();
+
     }
 
     protected <T> T findCached(Class<T> type, Key key, Callable<T> c) {
@@ -319,6 +927,104 @@ public abstract class TemplateContext extends AbstractService implements Context
 
     }
 
+    /**
+     * Fetches the trades after the latest one in the tape of the instrument.
+     */
+    @FunctionalInterface
+    protected interface TradeFetcher<T extends Trade> {
+
+        /**
+         * Fetches the trades after (or since) the latest one, or the latest trades if the tape is empty (null).
+         */
+        List<T> fetch(TradeTape.TapeTrade latest) throws Exception;
+
+    }
+
+    /**
+     * Lists the trades of the tape kept per instrument, which is topped up once per key (as in the list cache) with
+     * only the trades after its high-water mark, so that the traffic and the parsing are proportional to the new
+     * trades instead of the whole page. The trades fetched are merged by their IDs, which are required to increase
+     * with the trades, so that the overlaps of the inclusive cursors are deduplicated. The trades without ID are
+     * skipped, and the trades older than a day from the latest are evicted.
+     */
+    protected <T extends Trade> List<Trade> listIncremental(Class<T> type, Key key, Instant fromTime,
+                                                            Function<T, Long> ids, TradeFetcher<T> fetcher) {
+
+        if (type == null || key == null || key.getInstrument() == null) {
+            return emptyList();
+        }
+
+        TradeTape tape = cursorTapes.computeIfAbsent(key.getInstrument(), k -> new TradeTape());
+
+        listCached(type, key, () -> {
+
+            List<T> values = trimToEmpty(fetcher.fetch(tape.last()));
+
+            int count = 0;
+
+            for (T t : values) {
+
+                Long id = t == null ? null : ids.apply(t);
+
+                if (id != null && tape.add(id, t.getTimestamp(), t.getPrice(), t.getSize())) {
+                    count++;
+                }
+
+            }
+
+            TradeTape.TapeTrade last = tape.last();
+
+            if (last != null) {
+                tape.trim(last.getTimestamp().minus(CURSOR_EXPIRY), CURSOR_LIMIT);
+            }
+
+            log.trace("Merged trades : {} ({}/{})", key, count, values.size());
+
+            return values;
+
+        });
+
+        return new ArrayList<>(tape.list(fromTime));
+
+    }
+
+    /**
+     * Sorts the levels of the snapshot only once per key, so that all the readers in the cycle share the same.
+     */
+    protected PriceLevels findLevels(Key key, boolean ask, Callable<Map<BigDecimal, BigDecimal>> c) {
+
+        if (key == null) {
+            return null;
+        }
+
+        Optional<PriceLevels> cached;
+
+        try {
+
+            cached = (ask ? askCache : bidCache).get(key, () -> {
+
+                Map<BigDecimal, BigDecimal> levels = c.call();
+
+                if (levels == null) {
+                    return Optional.empty();
+                }
+
+                return Optional.of(ask ? PriceLevels.ofAsks(levels) : PriceLevels.ofBids(levels));
+
+            });
+
+        } catch (Exception e) {
+
+            log.warn("Failed to cache levels : {} - {}", key, e);
+
+            cached = Optional.empty();
+
+        }
+
+        return cached.orElse(null);
+
+    }
+
     private <K0, K1 extends K0, V0, V1 extends V0> Cache<K1, V1> createCache() {
         return CacheBuilder.newBuilder()
                 .maximumSize(CACHE_SIZE)
@@ -366,9 +1072,43 @@ public abstract class TemplateContext extends AbstractService implements Context
         }
     }
 
+    /**
+     * Downgrades the state if any of the endpoints are failing : {@link StateType#SUSPEND} if the order entry
+     * (non-GET) endpoints or all of the endpoints are failing, otherwise {@link StateType#WARNING}.
+     */
     @Override
     public StateType getState(Key key) {
-        return state.get();
+
+        StateType current = state.get();
+
+        if (current != StateType.ACTIVE) {
+            return current;
+        }
+
+        Map<String, CircuitBreaker.Status> statuses = getBreakerStatus();
+
+        long failing = 0;
+
+        for (Map.Entry<String, CircuitBreaker.Status> entry : statuses.entrySet()) {
+
+            if (entry.getValue() == CircuitBreaker.Status.CLOSED) {
+                continue;
+            }
+
+            if (!entry.getKey().startsWith(RequestType.GET.name())) {
+                return StateType.SUSPEND;
+            }
+
+            failing++;
+
+        }
+
+        if (failing == 0) {
+            return current;
+        }
+
+        return failing == statuses.size() ? StateType.SUSPEND : StateType.WARNING;
+
     }
 
     @Override
@@ -438,6 +1178,129 @@ public abstract class TemplateContext extends AbstractService implements Context
         return null;
     }
 
+    @Override
+    public NavigableMap<Instant, BigDecimal> collapsePrices(Key key,
+                                                            Duration interval, Instant from, Instant to, boolean sum) {
+        return null;
+    }
+
+    @Override
+    public Optional<Trade> findLastTrade(Key key, Instant fromTime) {
+
+        List<Trade> trades = listTrades(key, fromTime);
+
+        return trades == null ? null : Optional.ofNullable(findLastTrade(trades, fromTime));
+
+    }
+
+    @Override
+    public TradeSummary summarizeTrades(Key key, Instant fromTime, Instant toTime) {
+        return summarizeTrades(listTrades(key, fromTime), fromTime, toTime);
+    }
+
+    @Override
+    public boolean visitTrades(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+        return visitTrades(listTrades(key, fromTime), fromTime, toTime, visitor);
+    }
+
+    /**
+     * Visits the tape of the incremental listing if it covers the period, or else the journal of the instrument if
+     * opened. Returns false if neither is kept, instead of listing the trades from the exchange.
+     */
+    @Override
+    public boolean visitHistory(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        String instrument = key == null ? null : key.getInstrument();
+
+        TradeTape tape = instrument == null ? null : cursorTapes.get(instrument);
+
+        if (tape != null && tape.covers(fromTime)) {
+
+            tape.visit(fromTime, toTime, visitor);
+
+            return true;
+
+        }
+
+        Optional<TradeJournal> journal = instrument == null ? Optional.empty() : journals.get(instrument);
+
+        if (journal == null || !journal.isPresent()) {
+            return false;
+        }
+
+        try {
+
+            journal.get().replay(fromTime, (i, t, p, s) -> {
+
+                if ((fromTime == null || t.isAfter(fromTime)) && (toTime == null || !t.isAfter(toTime))) {
+                    visitor.accept(new TradeTape.TapeTrade(i, t, p, s));
+                }
+
+            });
+
+            return true;
+
+        } catch (IOException | RuntimeException e) {
+
+            log.warn("Failed to replay journal : " + instrument, e);
+
+            return false;
+
+        }
+
+    }
+
+    /**
+     * Merges the trades of the file into the journal of the instrument, from which the trade tapes are restored as
+     * they are initialized. The path is resolved against the directory configured as "import.path", outside of
+     * which the files are not imported, nor the files with the trades without ID. Returns null if the journal or the
+     * directory is not available, or failed to import.
+     */
+    @Override
+    public Long importTrades(Key key, Path path) {
+
+        TradeJournal journal = key == null || path == null ? null : getJournal(key.getInstrument());
+
+        String directory = getStringProperty("import.path", null);
+
+        if (journal == null || StringUtils.isBlank(directory)) {
+            return null;
+        }
+
+        int threads = getIntProperty("import.threads", Runtime.getRuntime().availableProcessors());
+
+        try {
+
+            Path root = Paths.get(directory).toRealPath();
+
+            Path file = root.resolve(path).normalize();
+
+            if (!file.startsWith(root) || !file.toRealPath().startsWith(root)) {
+
+                log.warn("Refused to import trades : {} - {}", key.getInstrument(), path);
+
+                return null;
+
+            }
+
+            TradeBatch batch = new TradeImporter(threads).parse(file);
+
+            int count = journal.merge(batch);
+
+            log.info("Imported trades : {} - {} (parsed={}, added={})", key.getInstrument(), path, batch.size(), count);
+
+            return (long) count;
+
+        } catch (IOException | RuntimeException e) {
+
+            log.warn("Failed to import trades : " + path, e);
+
+            return null;
+
+        }
+
+    }
+
     @Override
     public CurrencyType getInstrumentCurrency(Key key) {
         return null;
@@ -0,0 +1,329 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Growable columnar batch of the trades, in the same primitive layout as the trade journal, so that the bulk loads
+ * are parsed, sorted and written without an object per trade.
+ *
+ * Not thread-safe : each batch is filled by a single thread, and handed over after.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class TradeBatch {
+
+    private static final int CAPACITY = 1024;
+
+    private long[] ids;
+
+    private long[] times;
+
+    private long[] prices;
+
+    private long[] sizes;
+
+    private byte[] priceScales;
+
+    private byte[] sizeScales;
+
+    private int count;
+
+    public TradeBatch() {
+        this(CAPACITY);
+    }
+
+    public TradeBatch(int capacity) {
+
+        int c = Math.max(capacity, 1);
+
+        ids = new long[c];
+        times = new long[c];
+        prices = new long[c];
+        sizes = new long[c];
+        priceScales = new byte[c];
+        sizeScales = new byte[c];
+
+    }
+
+    private void ensure(int capacity) {
+
+        if (capacity <= ids.length) {
+            return;
+        }
+
+        int c = Math.max(capacity, ids.length + (ids.length >> 1));
+
+        ids = Arrays.copyOf(ids, c);
+        times = Arrays.copyOf(times, c);
+        prices = Arrays.copyOf(prices, c);
+        sizes = Arrays.copyOf(sizes, c);
+        priceScales = Arrays.copyOf(priceScales, c);
+        sizeScales = Arrays.copyOf(sizeScales, c);
+
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Appends the trade, with the timestamp in epoch nanos, and the price and the size as unscaled longs with scales.
+     */
+    public void add(long id, long time, long price, int priceScale, long size, int sizeScale) {
+
+        ensure(count + 1);
+
+        ids[count] = id;
+        times[count] = time;
+        prices[count] = price;
+        sizes[count] = size;
+        priceScales[count] = (byte) priceScale;
+        sizeScales[count] = (byte) sizeScale;
+
+        count++;
+
+    }
+
+    /**
+     * Appends the trade, normalizing the values as in the trade tape.
+     */
+    public void add(long id, Instant time, BigDecimal price, BigDecimal size) {
+
+        if (time == null || price == null || size == null) {
+            return;
+        }
+
+        BigDecimal p = TradeTape.encode(price);
+
+        BigDecimal s = TradeTape.encode(size);
+
+        long nanos = TradeTape.toNanos(time);
+
+        add(id, nanos, p.unscaledValue().longValue(), p.scale(), s.unscaledValue().longValue(), s.scale());
+
+    }
+
+    /**
+     * Appends all the trades of the other batch.
+     */
+    public void addAll(TradeBatch other) {
+
+        ensure(count + other.count);
+
+        System.arraycopy(other.ids, 0, ids, count, other.count);
+        System.arraycopy(other.times, 0, times, count, other.count);
+        System.arraycopy(other.prices, 0, prices, count, other.count);
+        System.arraycopy(other.sizes, 0, sizes, count, other.count);
+        System.arraycopy(other.priceScales, 0, priceScales, count, other.count);
+        System.arraycopy(other.sizeScales, 0, sizeScales, count, other.count);
+
+        count += other.count;
+
+    }
+
+    public long getId(int i) {
+        return ids[i];
+    }
+
+    public void setId(int i, long id) {
+        ids[i] = id;
+    }
+
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    public long getUnscaledPrice(int i) {
+        return prices[i];
+    }
+
+    public int getPriceScale(int i) {
+        return priceScales[i];
+    }
+
+    public long getUnscaledSize(int i) {
+        return sizes[i];
+    }
+
+    public int getSizeScale(int i) {
+        return sizeScales[i];
+    }
+
+    public Instant getTimestamp(int i) {
+        return TradeTape.toInstant(times[i]);
+    }
+
+    public BigDecimal getPrice(int i) {
+        return BigDecimal.valueOf(prices[i], priceScales[i]);
+    }
+
+    public BigDecimal getSize(int i) {
+        return BigDecimal.valueOf(sizes[i], sizeScales[i]);
+    }
+
+    /**
+     * Sorts the trades stably by the IDs, or by the timestamps if specified. The batch is only scanned if sorted
+     * already, and only reversed if sorted in the reverse order, as the exports are usually in either order.
+     */
+    public void sort(boolean byTime) {
+
+        long[] keys = byTime ? times : ids;
+
+        if (isSorted(keys, false)) {
+            return;
+        }
+
+        int[] order = new int[count];
+
+        if (isSorted(keys, true)) {
+
+            for (int i = 0; i < count; i++) {
+                order[i] = count - 1 - i; // Reversed, keeping the ties in the order.
+            }
+
+            for (int lo = 0, hi; lo < count; lo = hi) {
+
+                hi = lo + 1;
+
+                while (hi < count && keys[order[hi]] == keys[order[lo]]) {
+                    hi++;
+                }
+
+                for (int i = lo, j = hi - 1; i < j; i++, j--) {
+                    int t = order[i];
+                    order[i] = order[j];
+                    order[j] = t;
+                }
+
+            }
+
+        } else {
+
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+
+            mergeSort(keys, order, new int[count], 0, count);
+
+        }
+
+        permute(order);
+
+    }
+
+    private boolean isSorted(long[] keys, boolean reversed) {
+
+        for (int i = 1; i < count; i++) {
+
+            if (reversed ? keys[i - 1] < keys[i] : keys[i - 1] > keys[i]) {
+                return false;
+            }
+
+        }
+
+        return true;
+
+    }
+
+    private static void mergeSort(long[] keys, int[] order, int[] work, int from, int to) {
+
+        if (to - from < 2) {
+            return;
+        }
+
+        int mid = (from + to) >>> 1;
+
+        mergeSort(keys, order, work, from, mid);
+
+        mergeSort(keys, order, work, mid, to);
+
+        if (keys[order[mid - 1]] <= keys[order[mid]]) {
+            return;
+        }
+
+        System.arraycopy(order, from, work, from, to - from);
+
+        for (int i = from, l = from, r = mid; i < to; i++) {
+
+            if (r >= to || (l < mid && keys[work[l]] <= keys[work[r]])) {
+                order[i] = work[l++];
+            } else {
+                order[i] = work[r++];
+            }
+
+        }
+
+    }
+
+    private void permute(int[] order) {
+
+        long[] i1 = new long[ids.length];
+        long[] t1 = new long[ids.length];
+        long[] p1 = new long[ids.length];
+        long[] s1 = new long[ids.length];
+        byte[] ps1 = new byte[ids.length];
+        byte[] ss1 = new byte[ids.length];
+
+        for (int i = 0; i < count; i++) {
+
+            int j = order[i];
+
+            i1[i] = ids[j];
+            t1[i] = times[j];
+            p1[i] = prices[j];
+            s1[i] = sizes[j];
+            ps1[i] = priceScales[j];
+            ss1[i] = sizeScales[j];
+
+        }
+
+        ids = i1;
+        times = t1;
+        prices = p1;
+        sizes = s1;
+        priceScales = ps1;
+        sizeScales = ss1;
+
+    }
+
+    /**
+     * Drops the trades with the same ID as the preceding one, expecting the batch to be sorted by the IDs.
+     * Returns the number of the trades dropped.
+     */
+    public int distinct() {
+
+        if (count == 0) {
+            return 0;
+        }
+
+        int n = 1;
+
+        for (int i = 1; i < count; i++) {
+
+            if (ids[i] == ids[n - 1]) {
+                continue;
+            }
+
+            ids[n] = ids[i];
+            times[n] = times[i];
+            prices[n] = prices[i];
+            sizes[n] = sizes[i];
+            priceScales[n] = priceScales[i];
+            sizeScales[n] = sizeScales[i];
+
+            n++;
+
+        }
+
+        int dropped = count - n;
+
+        count = n;
+
+        return dropped;
+
+    }
+
+}
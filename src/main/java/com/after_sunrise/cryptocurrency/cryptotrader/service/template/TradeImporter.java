@@ -0,0 +1,1049 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import com.google.common.annotations.VisibleForTesting;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Bulk loader of the trades exported by the venues, and of the trade journals, for warming up the trade tapes and
+ * for the offline research, instead of paging through the REST endpoints.
+ *
+ * The text files are memory-mapped and split into the chunks at the record boundaries, which are parsed concurrently
+ * into the columnar batches, with the numbers and the timestamps parsed from the bytes in place. The columns are
+ * recognized by their names, either in the header of a CSV (comma, tab or semicolon separated), or in the keys of the
+ * flat JSON objects (an array of them, or one per line). The sizes are imported as absolute values, as some venues
+ * sign them by the side. Trades without an ID are refused, as the journals are keyed by the IDs of the venues, unless
+ * synthesized for the offline research with the ID of (epoch millis * 1000 + sequence in the milli), which are not
+ * ordered with the IDs of the venues, and are not to be merged into their journals.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+@Slf4j
+public class TradeImporter {
+
+    public enum Format {
+
+        CSV,
+
+        JSON,
+
+        JOURNAL;
+
+        public static Format detect(Path path) {
+
+            String name = String.valueOf(path.getFileName()).toLowerCase(Locale.US);
+
+            if (name.endsWith(".journal")) {
+                return JOURNAL;
+            }
+
+            if (name.endsWith(".json") || name.endsWith(".jsonl") || name.endsWith(".ndjson")) {
+                return JSON;
+            }
+
+            return CSV;
+
+        }
+
+    }
+
+    static final long MISSING = Long.MIN_VALUE;
+
+    private static final int WINDOW = 65536;
+
+    private static final long MIN_CHUNK = 1L << 20;
+
+    private static final long MAX_CHUNK = 1L << 30;
+
+    private static final int NONE = -1;
+
+    private static final String VALUE_ENDS = ",}]{[";
+
+    private static final int ID = 0;
+
+    private static final int TIME = 1;
+
+    private static final int PRICE = 2;
+
+    private static final int SIZE = 3;
+
+    private static final byte[][][] NAMES = {
+            names("id", "tid", "tradeid", "execid", "executionid", "transactionid"),
+            names("timestamp", "time", "date", "datetime", "execdate", "createdat", "executedat", "ts"),
+            names("price", "rate"),
+            names("size", "amount", "quantity", "qty", "volume", "vol"),
+    };
+
+    private static final long NANOS = 1_000_000_000L;
+
+    private static final long[] POWERS = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L,
+            1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L};
+
+    private final int threads;
+
+    private final boolean synthetic;
+
+    public TradeImporter(int threads) {
+        this(threads, false);
+    }
+
+    public TradeImporter(int threads, boolean synthetic) {
+        this.threads = Math.max(threads, 1);
+        this.synthetic = synthetic;
+    }
+
+    private static byte[][] names(String... values) {
+
+        byte[][] bytes = new byte[values.length][];
+
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = values[i].getBytes(StandardCharsets.US_ASCII);
+        }
+
+        return bytes;
+
+    }
+
+    /**
+     * Imports the files into the journal : {@code TradeImporter <journal> <file>...}, where the journal of the
+     * contexts is at {@code <journal.path>/<site>/<instrument>.journal}.
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args == null || args.length < 2) {
+            throw new IllegalArgumentException("Usage : TradeImporter <journal> <file>...");
+        }
+
+        TradeImporter importer = new TradeImporter(Runtime.getRuntime().availableProcessors());
+
+        long start = System.nanoTime();
+
+        TradeBatch batch = new TradeBatch();
+
+        for (int i = 1; i < args.length; i++) {
+            batch.addAll(importer.parse(Paths.get(args[i])));
+        }
+
+        try (TradeJournal journal = TradeJournal.open(Paths.get(args[0]))) {
+
+            int count = journal.merge(batch);
+
+            log.info("Imported trades : {} (parsed={}, added={}, total={}, millis={})", args[0],
+                    batch.size(), count, journal.size(), (System.nanoTime() - start) / 1_000_000);
+
+        }
+
+    }
+
+    /**
+     * Parses the file into a batch sorted by the IDs, without the duplicate IDs. Fails if any trade is without ID,
+     * unless the IDs are synthesized.
+     */
+    public TradeBatch parse(Path path) throws IOException {
+
+        Format format = Format.detect(path);
+
+        TradeBatch batch;
+
+        if (format == Format.JOURNAL) {
+
+            if (!Files.isRegularFile(path)) {
+                throw new NoSuchFileException(path.toString());
+            }
+
+            batch = new TradeBatch();
+
+            try (TradeJournal journal = TradeJournal.open(path)) {
+                journal.copyTo(batch);
+            }
+
+        } else {
+
+            batch = parseText(path, format == Format.JSON);
+
+        }
+
+        if (synthetic) {
+            assignIds(batch);
+        } else if (isMissing(batch)) {
+            throw new IOException("Trades without ID : " + path);
+        }
+
+        batch.sort(false);
+
+        batch.distinct();
+
+        log.debug("Parsed trades : {} ({}, {} trades)", path, format, batch.size());
+
+        return batch;
+
+    }
+
+    /**
+     * Gives the IDs to the trades without, from their timestamps and their order within the same millisecond.
+     */
+    @VisibleForTesting
+    static void assignIds(TradeBatch batch) {
+
+        if (!isMissing(batch)) {
+            return;
+        }
+
+        batch.sort(true);
+
+        long millis = MISSING;
+
+        long sequence = 0;
+
+        for (int i = 0; i < batch.size(); i++) {
+
+            long m = Math.floorDiv(batch.getTime(i), 1_000_000L);
+
+            sequence = m == millis ? sequence + 1 : 0;
+
+            millis = m;
+
+            if (batch.getId(i) == MISSING) {
+                batch.setId(i, millis * 1000 + sequence);
+            }
+
+        }
+
+    }
+
+    private static boolean isMissing(TradeBatch batch) {
+
+        for (int i = 0; i < batch.size(); i++) {
+
+            if (batch.getId(i) == MISSING) {
+                return true;
+            }
+
+        }
+
+        return false;
+
+    }
+
+    private TradeBatch parseText(Path path, boolean json) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+
+            long size = channel.size();
+
+            long start = 0;
+
+            byte delimiter = ',';
+
+            int[] roles = null;
+
+            if (!json) {
+
+                long eol = find(channel, 0, (byte) '\n');
+
+                ByteBuffer header = channel.map(READ_ONLY, 0, eol);
+
+                delimiter = detectDelimiter(header);
+
+                roles = parseHeader(header, delimiter);
+
+                start = Math.min(eol + 1, size);
+
+            }
+
+            long length = size - start;
+
+            int chunks = (int) Math.max(Math.min(length / MIN_CHUNK + 1, threads * 4L), length / MAX_CHUNK + 1);
+
+            long[] bounds = new long[chunks + 1];
+
+            bounds[0] = start;
+
+            bounds[chunks] = size;
+
+            for (int i = 1; i < chunks; i++) {
+
+                long nominal = Math.max(start + length / chunks * i, bounds[i - 1]);
+
+                long found = find(channel, nominal, json ? (byte) '{' : (byte) '\n');
+
+                bounds[i] = json ? found : Math.min(found + 1, size);
+
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, chunks), r -> {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                t.setName(getClass().getSimpleName());
+                return t;
+            });
+
+            try {
+
+                List<Future<TradeBatch>> futures = new ArrayList<>(chunks);
+
+                for (int i = 0; i < chunks; i++) {
+
+                    long lo = bounds[i];
+
+                    long hi = bounds[i + 1];
+
+                    if (hi - lo > Integer.MAX_VALUE) {
+                        throw new IOException("Record too large : " + path + " (" + lo + ")");
+                    }
+
+                    byte d = delimiter;
+
+                    int[] r = roles;
+
+                    futures.add(executor.submit(() -> {
+
+                        ByteBuffer buffer = channel.map(READ_ONLY, lo, hi - lo);
+
+                        return json ? parseJson(buffer) : parseCsv(buffer, d, r);
+
+                    }));
+
+                }
+
+                TradeBatch batch = new TradeBatch();
+
+                for (Future<TradeBatch> future : futures) {
+                    batch.addAll(future.get());
+                }
+
+                return batch;
+
+            } catch (InterruptedException e) {
+
+                Thread.currentThread().interrupt();
+
+                throw new IOException("Interrupted : " + path, e);
+
+            } catch (ExecutionException e) {
+
+                throw new IOException("Failed to parse : " + path, e.getCause());
+
+            } finally {
+                executor.shutdownNow();
+            }
+
+        }
+
+    }
+
+    /**
+     * Position of the byte at or after the position, or the size of the file if not found.
+     */
+    private static long find(FileChannel channel, long from, byte target) throws IOException {
+
+        long size = channel.size();
+
+        for (long p = from; p < size; p += WINDOW) {
+
+            ByteBuffer buffer = channel.map(READ_ONLY, p, Math.min(WINDOW, size - p));
+
+            for (int i = 0; i < buffer.limit(); i++) {
+
+                if (buffer.get(i) == target) {
+                    return p + i;
+                }
+
+            }
+
+        }
+
+        return size;
+
+    }
+
+    @VisibleForTesting
+    static byte detectDelimiter(ByteBuffer header) {
+
+        int commas = 0;
+
+        int tabs = 0;
+
+        int semicolons = 0;
+
+        for (int i = 0; i < header.limit(); i++) {
+
+            byte b = header.get(i);
+
+            commas += b == ',' ? 1 : 0;
+
+            tabs += b == '\t' ? 1 : 0;
+
+            semicolons += b == ';' ? 1 : 0;
+
+        }
+
+        if (tabs > commas && tabs >= semicolons) {
+            return '\t';
+        }
+
+        return semicolons > commas ? (byte) ';' : (byte) ',';
+
+    }
+
+    /**
+     * Roles of the columns in the header, which is required to have the columns of the timestamp, the price and
+     * the size.
+     */
+    private static int[] parseHeader(ByteBuffer header, byte delimiter) throws IOException {
+
+        List<Integer> roles = new ArrayList<>();
+
+        boolean[] found = new boolean[NAMES.length];
+
+        int from = 0;
+
+        for (int i = 0; i <= header.limit(); i++) {
+
+            if (i < header.limit() && header.get(i) != delimiter) {
+                continue;
+            }
+
+            int role = roleOf(header, from, i);
+
+            if (role != NONE && found[role]) {
+                role = NONE; // First one wins.
+            }
+
+            if (role != NONE) {
+                found[role] = true;
+            }
+
+            roles.add(role);
+
+            from = i + 1;
+
+        }
+
+        if (!found[TIME] || !found[PRICE] || !found[SIZE]) {
+            throw new IOException("Columns not found : " + StandardCharsets.UTF_8.decode(header.duplicate()));
+        }
+
+        return roles.stream().mapToInt(Integer::intValue).toArray();
+
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '"' || b == '\'';
+    }
+
+    /**
+     * Role of the column name, compared in lower case without the blanks, the quotes, the underscores, the hyphens
+     * and the non-ASCII bytes.
+     */
+    private static int roleOf(ByteBuffer buffer, int from, int to) {
+
+        for (int role = 0; role < NAMES.length; role++) {
+
+            for (byte[] name : NAMES[role]) {
+
+                int n = 0;
+
+                boolean matched = true;
+
+                for (int i = from; i < to && matched; i++) {
+
+                    byte b = buffer.get(i);
+
+                    if (isBlank(b) || b == '_' || b == '-' || b < 0) {
+                        continue; // Including the byte order mark.
+                    }
+
+                    b = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+
+                    matched = n < name.length && name[n++] == b;
+
+                }
+
+                if (matched && n == name.length) {
+                    return role;
+                }
+
+            }
+
+        }
+
+        return NONE;
+
+    }
+
+    @VisibleForTesting
+    static TradeBatch parseCsv(ByteBuffer buffer, byte delimiter, int[] roles) {
+
+        TradeBatch batch = new TradeBatch();
+
+        Row row = new Row();
+
+        int field = 0;
+
+        int from = 0;
+
+        for (int i = 0; i <= buffer.limit(); i++) {
+
+            byte b = i < buffer.limit() ? buffer.get(i) : (byte) '\n';
+
+            if (b != delimiter && b != '\n') {
+                continue;
+            }
+
+            if (field < roles.length) {
+                row.set(roles[field], buffer, from, i);
+            }
+
+            field++;
+
+            from = i + 1;
+
+            if (b == '\n') {
+
+                row.emit(batch);
+
+                field = 0;
+
+            }
+
+        }
+
+        return batch;
+
+    }
+
+    /**
+     * Parses the values of the flat objects, each of which is a record. The arrays are scanned through, so that the
+     * objects wrapped in an array, or in an array of an outer object, are also parsed.
+     */
+    @VisibleForTesting
+    static TradeBatch parseJson(ByteBuffer buffer) {
+
+        TradeBatch batch = new TradeBatch();
+
+        Row row = new Row();
+
+        int limit = buffer.limit();
+
+        for (int i = 0; i < limit; i++) {
+
+            byte b = buffer.get(i);
+
+            if (b == '{') {
+
+                row.reset();
+
+                continue;
+
+            }
+
+            if (b == '}') {
+
+                row.emit(batch);
+
+                continue;
+
+            }
+
+            if (b != '"') {
+                continue;
+            }
+
+            int keyTo = skipString(buffer, i);
+
+            int j = skipBlanks(buffer, keyTo + 1);
+
+            if (j >= limit || buffer.get(j) != ':') {
+
+                i = keyTo; // String in an array.
+
+                continue;
+
+            }
+
+            int role = roleOf(buffer, i + 1, keyTo);
+
+            j = skipBlanks(buffer, j + 1);
+
+            if (j < limit && buffer.get(j) == '"') {
+
+                int valueTo = skipString(buffer, j);
+
+                row.set(role, buffer, j + 1, valueTo);
+
+                i = valueTo;
+
+                continue;
+
+            }
+
+            int valueFrom = j;
+
+            while (j < limit && !isBlank(buffer.get(j)) && VALUE_ENDS.indexOf(buffer.get(j)) < 0) {
+                j++;
+            }
+
+            row.set(role, buffer, valueFrom, j);
+
+            i = j - 1;
+
+        }
+
+        return batch;
+
+    }
+
+    private static int skipBlanks(ByteBuffer buffer, int from) {
+
+        int i = from;
+
+        while (i < buffer.limit() && buffer.get(i) != '"' && isBlank(buffer.get(i))) {
+            i++;
+        }
+
+        return i;
+
+    }
+
+    /**
+     * Position of the closing quote of the string starting at the position, or the limit if not closed.
+     */
+    private static int skipString(ByteBuffer buffer, int start) {
+
+        for (int i = start + 1; i < buffer.limit(); i++) {
+
+            byte b = buffer.get(i);
+
+            if (b == '\\') {
+                i++;
+            } else if (b == '"') {
+                return i;
+            }
+
+        }
+
+        return buffer.limit();
+
+    }
+
+    /**
+     * Values of the record being parsed, reused across the records.
+     */
+    private static class Row {
+
+        private final Decimal price = new Decimal();
+
+        private final Decimal size = new Decimal();
+
+        private long id = MISSING;
+
+        private long time = MISSING;
+
+        private boolean priced;
+
+        private boolean sized;
+
+        private void set(int role, ByteBuffer buffer, int from, int to) {
+
+            int lo = from;
+
+            int hi = to;
+
+            while (lo < hi && isBlank(buffer.get(lo))) {
+                lo++;
+            }
+
+            while (hi > lo && isBlank(buffer.get(hi - 1))) {
+                hi--;
+            }
+
+            switch (role) {
+                case ID:
+                    id = parseLong(buffer, lo, hi);
+                    break;
+                case TIME:
+                    time = parseTime(buffer, lo, hi);
+                    break;
+                case PRICE:
+                    priced = price.parse(buffer, lo, hi);
+                    break;
+                case SIZE:
+                    sized = size.parse(buffer, lo, hi);
+                    break;
+                default:
+                    break;
+            }
+
+        }
+
+        private void emit(TradeBatch batch) {
+
+            if (time != MISSING && priced && sized && price.unscaled != 0 && size.unscaled != 0) {
+                batch.add(id, time, price.unscaled, price.scale, Math.abs(size.unscaled), size.scale);
+            }
+
+            reset();
+
+        }
+
+        private void reset() {
+
+            id = MISSING;
+
+            time = MISSING;
+
+            priced = false;
+
+            sized = false;
+
+        }
+
+    }
+
+    /**
+     * Decimal parsed into an unscaled long and a scale, as normalized by the trade tape.
+     */
+    @VisibleForTesting
+    static class Decimal {
+
+        long unscaled;
+
+        int scale;
+
+        /**
+         * Parses the value, such as "-1.23" and "1.2E+3". Returns false if invalid.
+         */
+        boolean parse(ByteBuffer buffer, int from, int to) {
+
+            int i = from;
+
+            boolean negative = i < to && buffer.get(i) == '-';
+
+            i += i < to && (buffer.get(i) == '-' || buffer.get(i) == '+') ? 1 : 0;
+
+            long value = 0;
+
+            int digits = 0;
+
+            int fractions = 0;
+
+            boolean point = false;
+
+            boolean any = false;
+
+            for (; i < to; i++) {
+
+                byte b = buffer.get(i);
+
+                if (b >= '0' && b <= '9') {
+
+                    if (digits >= 18) {
+                        return parseSlow(buffer, from, to); // Beyond the precision of the long.
+                    }
+
+                    value = value * 10 + (b - '0');
+
+                    digits += value == 0 ? 0 : 1;
+
+                    fractions += point ? 1 : 0;
+
+                    any = true;
+
+                } else if (b == '.' && !point) {
+
+                    point = true;
+
+                } else if ((b == 'e' || b == 'E') && any) {
+
+                    long exponent = parseLong(buffer, i + 1 < to && buffer.get(i + 1) == '+' ? i + 2 : i + 1, to);
+
+                    if (exponent == MISSING || Math.abs(exponent) > Byte.MAX_VALUE) {
+                        return false;
+                    }
+
+                    fractions -= exponent;
+
+                    break;
+
+                } else {
+
+                    return false;
+
+                }
+
+            }
+
+            if (!any || fractions < Byte.MIN_VALUE || fractions > Byte.MAX_VALUE) {
+                return false;
+            }
+
+            unscaled = negative ? -value : value;
+
+            scale = fractions;
+
+            return true;
+
+        }
+
+        private boolean parseSlow(ByteBuffer buffer, int from, int to) {
+
+            byte[] bytes = new byte[to - from];
+
+            for (int i = from; i < to; i++) {
+                bytes[i - from] = buffer.get(i);
+            }
+
+            try {
+
+                BigDecimal value = TradeTape.encode(new BigDecimal(new String(bytes, StandardCharsets.US_ASCII)));
+
+                unscaled = value.unscaledValue().longValue();
+
+                scale = value.scale();
+
+                return true;
+
+            } catch (RuntimeException e) {
+                return false;
+            }
+
+        }
+
+    }
+
+    /**
+     * Parses the integer of up to 18 digits. Returns {@link #MISSING} if invalid.
+     */
+    @VisibleForTesting
+    static long parseLong(ByteBuffer buffer, int from, int to) {
+
+        int i = from;
+
+        boolean negative = i < to && buffer.get(i) == '-';
+
+        i += negative ? 1 : 0;
+
+        if (i >= to || to - i > 18) {
+            return MISSING;
+        }
+
+        long value = 0;
+
+        for (; i < to; i++) {
+
+            byte b = buffer.get(i);
+
+            if (b < '0' || b > '9') {
+                return MISSING;
+            }
+
+            value = value * 10 + (b - '0');
+
+        }
+
+        return negative ? -value : value;
+
+    }
+
+    /**
+     * Digits at the position as an int, or -1 if not all digits.
+     */
+    private static int digits(ByteBuffer buffer, int from, int count, int to) {
+
+        if (from + count > to) {
+            return -1;
+        }
+
+        int value = 0;
+
+        for (int i = from; i < from + count; i++) {
+
+            byte b = buffer.get(i);
+
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+
+            value = value * 10 + (b - '0');
+
+        }
+
+        return value;
+
+    }
+
+    /**
+     * Parses the timestamp into the epoch nanos, either of the ISO-8601 date-time (UTC if without the offset), or of
+     * the epoch number with the unit guessed from its digits : seconds (up to 10 digits), millis (13), micros (16)
+     * or nanos, with the optional fractions. Returns {@link #MISSING} if invalid.
+     */
+    @VisibleForTesting
+    static long parseTime(ByteBuffer buffer, int from, int to) {
+
+        if (to - from >= 19 && buffer.get(from + 4) == '-') {
+            return parseIso(buffer, from, to);
+        }
+
+        int i = from;
+
+        long value = 0;
+
+        int digits = 0;
+
+        while (i < to && buffer.get(i) >= '0' && buffer.get(i) <= '9') {
+
+            if (++digits > 19) {
+                return MISSING;
+            }
+
+            value = value * 10 + (buffer.get(i++) - '0');
+
+        }
+
+        if (digits == 0 || value < 0) {
+            return MISSING;
+        }
+
+        int power = digits <= 10 ? 9 : digits <= 13 ? 6 : digits <= 16 ? 3 : 0;
+
+        long fraction = 0;
+
+        if (i < to && buffer.get(i) == '.') {
+
+            for (int n = 0, j = i + 1; j < to; j++, n++) {
+
+                byte b = buffer.get(j);
+
+                if (b < '0' || b > '9') {
+                    return MISSING;
+                }
+
+                fraction += n < power ? (b - '0') * POWERS[power - n - 1] : 0;
+
+            }
+
+            i = to;
+
+        }
+
+        if (i != to) {
+            return MISSING;
+        }
+
+        try {
+            return Math.addExact(Math.multiplyExact(value, POWERS[power]), fraction);
+        } catch (ArithmeticException e) {
+            return MISSING;
+        }
+
+    }
+
+    private static long parseIso(ByteBuffer buffer, int from, int to) {
+
+        int year = digits(buffer, from, 4, to);
+        int month = digits(buffer, from + 5, 2, to);
+        int day = digits(buffer, from + 8, 2, to);
+        int hour = digits(buffer, from + 11, 2, to);
+        int minute = digits(buffer, from + 14, 2, to);
+        int second = digits(buffer, from + 17, 2, to);
+
+        byte separator = buffer.get(from + 10);
+
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 60
+                || buffer.get(from + 7) != '-' || (separator != 'T' && separator != ' ')
+                || buffer.get(from + 13) != ':' || buffer.get(from + 16) != ':') {
+            return MISSING;
+        }
+
+        int i = from + 19;
+
+        long nanos = 0;
+
+        if (i < to && buffer.get(i) == '.') {
+
+            int n = 0;
+
+            for (i++; i < to && buffer.get(i) >= '0' && buffer.get(i) <= '9'; i++, n++) {
+                nanos += n < 9 ? (buffer.get(i) - '0') * POWERS[8 - n] : 0;
+            }
+
+        }
+
+        long offset = 0;
+
+        if (i < to && buffer.get(i) == 'Z') {
+
+            i++;
+
+        } else if (i < to && (buffer.get(i) == '+' || buffer.get(i) == '-')) {
+
+            int sign = buffer.get(i) == '-' ? -1 : 1;
+
+            int h = digits(buffer, i + 1, 2, to);
+
+            int colon = i + 3 < to && buffer.get(i + 3) == ':' ? 1 : 0;
+
+            int m = i + 3 + colon < to ? digits(buffer, i + 3 + colon, 2, to) : 0;
+
+            if (h < 0 || m < 0) {
+                return MISSING;
+            }
+
+            offset = sign * (h * 3600L + m * 60L);
+
+            i = i + 3 + (i + 3 + colon < to ? colon + 2 : 0);
+
+        }
+
+        if (i != to) {
+            return MISSING;
+        }
+
+        long seconds = toEpochDay(year, month, day) * 86400L + hour * 3600L + minute * 60L + second - offset;
+
+        return seconds * NANOS + nanos;
+
+    }
+
+    /**
+     * Days since the epoch of the proleptic Gregorian date.
+     */
+    private static long toEpochDay(long year, long month, long day) {
+
+        long y = month <= 2 ? year - 1 : year;
+
+        long era = Math.floorDiv(y, 400);
+
+        long yoe = y - era * 400;
+
+        long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+
+        return era * 146097 + doe - 719468;
+
+    }
+
+}
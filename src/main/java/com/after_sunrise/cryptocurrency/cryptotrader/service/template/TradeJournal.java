@@ -0,0 +1,425 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Append-only journal of the trades of an instrument, in a memory-mapped file, so that the trade tapes are restored
+ * from the local disk after a restart, and only the gap since the shutdown is fetched from the venue.
+ *
+ * The file starts with a header, followed by the fixed-size records of [id, epoch nanos, unscaled price, unscaled
+ * size, price scale, size scale], each of which is committed by writing its marker after the values. The records
+ * after the last committed one, such as the one torn by a crash, are overwritten by the next append. The file is
+ * extended by the chunks, and is compacted on request by dropping the records older than the cutoff.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class TradeJournal implements AutoCloseable {
+
+    public interface Visitor {
+
+        void accept(long id, Instant timestamp, BigDecimal price, BigDecimal size);
+
+    }
+
+    private static final long MAGIC = 0x43544A524E4C0001L;
+
+    private static final int HEADER = 16;
+
+    private static final int RECORD = 40;
+
+    private static final int COMMITTED = 1;
+
+    private static final int CHUNK = 65536;
+
+    private final Path path;
+
+    private final int chunk;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private int count;
+
+    private Long maxId;
+
+    private Instant lastTime;
+
+    private TradeJournal(Path path, int chunk) {
+        this.path = path;
+        this.chunk = chunk;
+    }
+
+    /**
+     * Opens the journal, creating the file and its parent directories if not exist.
+     */
+    public static TradeJournal open(Path path) throws IOException {
+        return open(path, CHUNK);
+    }
+
+    @VisibleForTesting
+    static TradeJournal open(Path path, int chunk) throws IOException {
+
+        TradeJournal journal = new TradeJournal(path, Math.max(chunk, 1));
+
+        Path parent = path.toAbsolutePath().getParent();
+
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        journal.load();
+
+        return journal;
+
+    }
+
+    private void load() throws IOException {
+
+        channel = FileChannel.open(path, CREATE, READ, WRITE);
+
+        try {
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+
+            channel.read(header, 0);
+
+            if (header.getLong(0) != 0 && (header.getLong(0) != MAGIC || header.getInt(Long.BYTES) != RECORD)) {
+                throw new IOException("Invalid journal : " + path);
+            }
+
+            long records = Math.max((channel.size() - HEADER) / RECORD, 0);
+
+            map((int) Math.min(Math.max(records, chunk), Integer.MAX_VALUE / RECORD - 1));
+
+            buffer.putLong(0, MAGIC);
+
+            buffer.putInt(Long.BYTES, RECORD);
+
+            count = 0;
+
+            maxId = null;
+
+            lastTime = null;
+
+            while (count < capacity() && buffer.getInt(offset(count) + 36) == COMMITTED) {
+
+                long id = buffer.getLong(offset(count));
+
+                maxId = maxId == null ? id : Math.max(maxId, id);
+
+                lastTime = TradeTape.toInstant(buffer.getLong(offset(count) + 8));
+
+                count++;
+
+            }
+
+        } catch (IOException | RuntimeException e) {
+
+            channel.close();
+
+            throw e;
+
+        }
+
+    }
+
+    private void map(int records) throws IOException {
+        buffer = channel.map(READ_WRITE, 0, HEADER + (long) records * RECORD);
+    }
+
+    private int capacity() {
+        return (buffer.capacity() - HEADER) / RECORD;
+    }
+
+    private static int offset(int index) {
+        return HEADER + index * RECORD;
+    }
+
+    private void check() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Journal closed : " + path);
+        }
+    }
+
+    /**
+     * Number of the committed records.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * The largest ID of the records, or null if empty.
+     */
+    public synchronized Long getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * Timestamp of the last appended record, or null if empty.
+     */
+    public synchronized Instant getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * Appends the trade, and commits it. The values are normalized as in the trade tape.
+     */
+    public synchronized void append(long id, Instant timestamp, BigDecimal price, BigDecimal size) throws IOException {
+
+        check();
+
+        if (timestamp == null || price == null || size == null) {
+            return;
+        }
+
+        BigDecimal p = TradeTape.encode(price);
+
+        BigDecimal s = TradeTape.encode(size);
+
+        if (count >= capacity()) {
+            map(capacity() + chunk);
+        }
+
+        int offset = offset(count);
+
+        buffer.putLong(offset, id);
+        buffer.putLong(offset + 8, TradeTape.toNanos(timestamp));
+        buffer.putLong(offset + 16, p.unscaledValue().longValue());
+        buffer.putLong(offset + 24, s.unscaledValue().longValue());
+        buffer.put(offset + 32, (byte) p.scale());
+        buffer.put(offset + 33, (byte) s.scale());
+        buffer.putInt(offset + 36, COMMITTED); // Last
+
+        count++;
+
+        maxId = maxId == null ? id : Math.max(maxId, id);
+
+        lastTime = timestamp;
+
+    }
+
+    /**
+     * Visits the records in the order appended, whose timestamps are not before the time (null for all).
+     * Returns the number of the records visited.
+     */
+    public synchronized int replay(Instant fromTime, Visitor visitor) throws IOException {
+
+        check();
+
+        long from = fromTime == null ? Long.MIN_VALUE : TradeTape.toNanos(fromTime);
+
+        int visited = 0;
+
+        for (int i = 0; i < count; i++) {
+
+            int offset = offset(i);
+
+            long time = buffer.getLong(offset + 8);
+
+            if (time < from) {
+                continue;
+            }
+
+            BigDecimal price = BigDecimal.valueOf(buffer.getLong(offset + 16), buffer.get(offset + 32));
+
+            BigDecimal size = BigDecimal.valueOf(buffer.getLong(offset + 24), buffer.get(offset + 33));
+
+            visitor.accept(buffer.getLong(offset), TradeTape.toInstant(time), price, size);
+
+            visited++;
+
+        }
+
+        return visited;
+
+    }
+
+    /**
+     * Copies the committed records into the batch, in the order appended. Returns the number of the records copied.
+     */
+    public synchronized int copyTo(TradeBatch batch) throws IOException {
+
+        check();
+
+        for (int i = 0; i < count; i++) {
+
+            int offset = offset(i);
+
+            batch.add(
+                    buffer.getLong(offset),
+                    buffer.getLong(offset + 8),
+                    buffer.getLong(offset + 16),
+                    buffer.get(offset + 32),
+                    buffer.getLong(offset + 24),
+                    buffer.get(offset + 33)
+            );
+
+        }
+
+        return count;
+
+    }
+
+    /**
+     * Merges the trades into the journal, and rewrites the file with the records sorted by the IDs, keeping the
+     * journaled one if the ID is duplicate. Returns the number of the records added.
+     */
+    public synchronized int merge(TradeBatch batch) throws IOException {
+
+        check();
+
+        if (batch == null || batch.size() == 0) {
+            return 0;
+        }
+
+        TradeBatch merged = new TradeBatch(count + batch.size());
+
+        copyTo(merged);
+
+        merged.addAll(batch);
+
+        merged.sort(false);
+
+        merged.distinct();
+
+        Path temp = Paths.get(path.toString() + ".tmp");
+
+        try (FileChannel out = FileChannel.open(temp, CREATE, TRUNCATE_EXISTING, WRITE)) {
+
+            ByteBuffer records = ByteBuffer.allocate(HEADER + chunk * RECORD);
+
+            records.putLong(MAGIC).putInt(RECORD).putInt(0);
+
+            for (int i = 0; i < merged.size(); i++) {
+
+                if (records.remaining() < RECORD) {
+                    write(out, records);
+                }
+
+                records.putLong(merged.getId(i));
+                records.putLong(merged.getTime(i));
+                records.putLong(merged.getUnscaledPrice(i));
+                records.putLong(merged.getUnscaledSize(i));
+                records.put((byte) merged.getPriceScale(i));
+                records.put((byte) merged.getSizeScale(i));
+                records.putShort((short) 0);
+                records.putInt(COMMITTED);
+
+            }
+
+            write(out, records);
+
+            out.force(true);
+
+        }
+
+        int previous = count;
+
+        close();
+
+        Files.move(temp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+
+        load();
+
+        return count - previous;
+
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+
+    }
+
+    /**
+     * Rewrites the file without the leading records older than the cutoff, if they are the majority.
+     * Returns the number of the records dropped.
+     */
+    public synchronized int compact(Instant cutoff) throws IOException {
+
+        check();
+
+        long bound = cutoff == null ? Long.MIN_VALUE : TradeTape.toNanos(cutoff);
+
+        int head = 0;
+
+        while (head < count && buffer.getLong(offset(head) + 8) < bound) {
+            head++;
+        }
+
+        if (head == 0 || head * 2 < count) {
+            return 0;
+        }
+
+        Path temp = Paths.get(path.toString() + ".tmp");
+
+        try (FileChannel out = FileChannel.open(temp, CREATE, TRUNCATE_EXISTING, WRITE)) {
+
+            ByteBuffer header = buffer.duplicate();
+
+            header.limit(HEADER).position(0);
+
+            out.write(header);
+
+            ByteBuffer records = buffer.duplicate();
+
+            records.limit(offset(count)).position(offset(head));
+
+            while (records.hasRemaining()) {
+                out.write(records);
+            }
+
+            out.force(true);
+
+        }
+
+        close();
+
+        Files.move(temp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+
+        load();
+
+        return head;
+
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        if (buffer == null) {
+            return;
+        }
+
+        buffer.force();
+
+        buffer = null;
+
+        channel.close();
+
+    }
+
+}
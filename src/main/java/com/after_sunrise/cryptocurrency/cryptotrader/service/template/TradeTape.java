@@ -0,0 +1,1178 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.TradeSummary;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.BarStore.Bar;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.BarStore.Resolution;
+import com.google.common.annotations.VisibleForTesting;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.function.Consumer;
+
+import static com.after_sunrise.cryptocurrency.cryptotrader.framework.Service.SATOSHI;
+import static java.math.BigDecimal.ZERO;
+import static java.math.RoundingMode.HALF_UP;
+import static lombok.AccessLevel.PACKAGE;
+import static lombok.AccessLevel.PRIVATE;
+
+/**
+ * Columnar tape of the trades ordered by their IDs, such as the trade IDs of the venues or the epoch seconds of the
+ * per-second buckets.
+ *
+ * The rows are kept in the primitive arrays of fixed-size segments, with the timestamps in epoch nanos, and the
+ * prices and the sizes as unscaled longs with their scales, so that the values are restored exactly, instead of an
+ * object graph and a skip-list node per trade. Each segment also keeps the running maximum of the timestamps, which
+ * is monotonic even if the timestamps are not, so that the time ranges are binary-searched, and the oldest rows are
+ * trimmed by advancing the head of the tape and dropping the consumed segments.
+ *
+ * The writes are serialized on the instance, while the reads are lock-free. A row is appended by writing the arrays
+ * before publishing the count of the segment, and only the latest row is updated in place, whose values are also
+ * published as an immutable instance which the readers use instead of the arrays. Rows older than the latest are
+ * inserted or updated by copying their segment, and publishing the new set of the segments.
+ *
+ * The segments older than the latest few are sealed, by replacing them with the copies packed by the series codec,
+ * as the rows are no longer appended to them. The packed rows are decoded sequentially into the temporary arrays as
+ * the segment is read, except for the summary of the last row, which is kept to skip the segment without decoding.
+ *
+ * The rows are also aggregated into the bars as they are written, which are read under the lock of the writers.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class TradeTape {
+
+    private static final int SEGMENT = 1024;
+
+    private static final int UNSEALED = 2;
+
+    private static final long NANOS = 1_000_000_000L;
+
+    private static final MathContext PRECISION = new MathContext(18);
+
+    private static final Snapshot EMPTY = new Snapshot(new Segment[0], 0);
+
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @AllArgsConstructor(access = PACKAGE)
+    public static class TapeTrade implements Trade {
+
+        private final long id;
+
+        private final Instant timestamp;
+
+        private final BigDecimal price;
+
+        private final BigDecimal size;
+
+    }
+
+    private static class Segment {
+
+        private final long[] ids;
+
+        private final long[] times;
+
+        private final long[] maxTimes;
+
+        private final long[] prices;
+
+        private final long[] sizes;
+
+        private final byte[] priceScales;
+
+        private final byte[] sizeScales;
+
+        /**
+         * Rows packed by the series codec if sealed, in which case the arrays are null.
+         */
+        private final long[] packed;
+
+        private final long lastId;
+
+        private final long lastMaxTime;
+
+        private volatile int count;
+
+        private Segment(int capacity) {
+            ids = new long[capacity];
+            times = new long[capacity];
+            maxTimes = new long[capacity];
+            prices = new long[capacity];
+            sizes = new long[capacity];
+            priceScales = new byte[capacity];
+            sizeScales = new byte[capacity];
+            packed = null;
+            lastId = 0;
+            lastMaxTime = 0;
+        }
+
+        /**
+         * Sealed copy of the segment.
+         */
+        private Segment(Segment source) {
+
+            ids = null;
+            times = null;
+            maxTimes = null;
+            prices = null;
+            sizes = null;
+            priceScales = null;
+            sizeScales = null;
+
+            SeriesCodec.Writer writer = new SeriesCodec.Writer();
+
+            SeriesCodec.Sequence idColumn = new SeriesCodec.Sequence();
+
+            SeriesCodec.Sequence timeColumn = new SeriesCodec.Sequence();
+
+            SeriesCodec.Scaled priceColumn = new SeriesCodec.Scaled(true);
+
+            SeriesCodec.Scaled sizeColumn = new SeriesCodec.Scaled(false);
+
+            int rows = source.count;
+
+            for (int i = 0; i < rows; i++) {
+
+                idColumn.write(writer, source.ids[i]);
+
+                timeColumn.write(writer, source.times[i]);
+
+                priceColumn.write(writer, source.prices[i], source.priceScales[i]);
+
+                sizeColumn.write(writer, source.sizes[i], source.sizeScales[i]);
+
+            }
+
+            packed = writer.toArray();
+
+            lastId = source.ids[rows - 1];
+
+            lastMaxTime = source.maxTimes[rows - 1];
+
+            count = rows;
+
+        }
+
+        private boolean isSealed() {
+            return packed != null;
+        }
+
+        private long getLastId() {
+            return packed == null ? ids[count - 1] : lastId;
+        }
+
+        private long getLastMaxTime() {
+            return packed == null ? maxTimes[count - 1] : lastMaxTime;
+        }
+
+        /**
+         * The segment itself, or the rows decoded into a temporary segment if sealed.
+         */
+        private Segment rows() {
+
+            if (packed == null) {
+                return this;
+            }
+
+            int rows = count;
+
+            Segment segment = new Segment(rows);
+
+            SeriesCodec.Reader reader = new SeriesCodec.Reader(packed);
+
+            SeriesCodec.Sequence idColumn = new SeriesCodec.Sequence();
+
+            SeriesCodec.Sequence timeColumn = new SeriesCodec.Sequence();
+
+            SeriesCodec.Scaled priceColumn = new SeriesCodec.Scaled(true);
+
+            SeriesCodec.Scaled sizeColumn = new SeriesCodec.Scaled(false);
+
+            for (int i = 0; i < rows; i++) {
+
+                segment.ids[i] = idColumn.read(reader);
+
+                segment.times[i] = timeColumn.read(reader);
+
+                segment.maxTimes[i] = i == 0 ? segment.times[i] : Math.max(segment.maxTimes[i - 1], segment.times[i]);
+
+                priceColumn.read(reader);
+
+                segment.prices[i] = priceColumn.getUnscaled();
+
+                segment.priceScales[i] = (byte) priceColumn.getScale();
+
+                sizeColumn.read(reader);
+
+                segment.sizes[i] = sizeColumn.getUnscaled();
+
+                segment.sizeScales[i] = (byte) sizeColumn.getScale();
+
+            }
+
+            segment.count = rows;
+
+            return segment;
+
+        }
+
+        private void set(int i, long id, long time, BigDecimal price, BigDecimal size) {
+
+            ids[i] = id;
+
+            times[i] = time;
+
+            maxTimes[i] = i == 0 ? time : Math.max(maxTimes[i - 1], time);
+
+            update(i, price, size);
+
+        }
+
+        private void update(int i, BigDecimal price, BigDecimal size) {
+
+            prices[i] = price.unscaledValue().longValue();
+
+            priceScales[i] = (byte) price.scale();
+
+            sizes[i] = size.unscaledValue().longValue();
+
+            sizeScales[i] = (byte) size.scale();
+
+        }
+
+        private void copy(int i, Segment source, int j) {
+            set(i, source.ids[j], source.times[j], source.getPrice(j), source.getSize(j));
+        }
+
+        private BigDecimal getPrice(int i) {
+            return BigDecimal.valueOf(prices[i], priceScales[i]);
+        }
+
+        private BigDecimal getSize(int i) {
+            return BigDecimal.valueOf(sizes[i], sizeScales[i]);
+        }
+
+        private TapeTrade get(int i) {
+            return new TapeTrade(ids[i], toInstant(times[i]), getPrice(i), getSize(i));
+        }
+
+    }
+
+    @AllArgsConstructor(access = PRIVATE)
+    private static class Snapshot {
+
+        private final Segment[] segments;
+
+        /**
+         * Index of the first row in the first segment.
+         */
+        private final int head;
+
+        private int start(int segment) {
+            return segment == 0 ? head : 0;
+        }
+
+    }
+
+    private final int capacity;
+
+    private final int unsealed;
+
+    private volatile Snapshot snapshot = EMPTY;
+
+    private volatile TapeTrade latest;
+
+    private BigDecimal notional;
+
+    private final BarStore bars = new BarStore();
+
+    /**
+     * Latest timestamp of the rows evicted, in epoch nanos.
+     */
+    private long horizon = Long.MIN_VALUE;
+
+    public TradeTape() {
+        this(SEGMENT);
+    }
+
+    @VisibleForTesting
+    TradeTape(int capacity) {
+        this(capacity, UNSEALED);
+    }
+
+    @VisibleForTesting
+    TradeTape(int capacity, int unsealed) {
+        this.capacity = Math.max(capacity, 2);
+        this.unsealed = Math.max(unsealed, 1);
+    }
+
+    static long toNanos(Instant time) {
+
+        try {
+            return Math.addExact(Math.multiplyExact(time.getEpochSecond(), NANOS), time.getNano());
+        } catch (ArithmeticException e) {
+            return time.getEpochSecond() < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+
+    }
+
+    static Instant toInstant(long nanos) {
+        return Instant.ofEpochSecond(Math.floorDiv(nanos, NANOS), Math.floorMod(nanos, NANOS));
+    }
+
+    /**
+     * Normalizes the value to be restored from an unscaled long and a scale in a byte, rounding only the values
+     * beyond 18 significant digits.
+     */
+    static BigDecimal encode(BigDecimal value) {
+
+        BigDecimal v = value;
+
+        if (v.unscaledValue().bitLength() > 63 || v.scale() != (byte) v.scale()) {
+            v = v.stripTrailingZeros();
+        }
+
+        if (v.unscaledValue().bitLength() > 63) {
+            v = v.round(PRECISION);
+        }
+
+        if (v.scale() != (byte) v.scale()) {
+            throw new IllegalArgumentException("Scale out of range : " + value);
+        }
+
+        return v;
+
+    }
+
+    private static BigDecimal average(BigDecimal notional, BigDecimal size) {
+        return notional.divide(size, SATOSHI.scale(), HALF_UP);
+    }
+
+    /**
+     * Discards all the rows.
+     */
+    public synchronized void clear() {
+
+        snapshot = EMPTY;
+
+        latest = null;
+
+        notional = null;
+
+        bars.clear();
+
+        horizon = Long.MIN_VALUE;
+
+    }
+
+    /**
+     * Adds the trade, unless a trade with the same ID is already in the tape.
+     * Returns true if added.
+     */
+    public synchronized boolean add(long id, Instant time, BigDecimal price, BigDecimal size) {
+        return write(id, time, price, size, false);
+    }
+
+    /**
+     * Adds the trade, or accumulates it into the trade with the same ID, whose price becomes the volume-weighted
+     * average price rounded to satoshi, and whose timestamp is kept as is.
+     */
+    public synchronized void accumulate(long id, Instant time, BigDecimal price, BigDecimal size) {
+        write(id, time, price, size, true);
+    }
+
+    /**
+     * Accumulates the trades of the batch, as {@link #accumulate(long, Instant, BigDecimal, BigDecimal)} in the order
+     * of the batch, but in bulk : the trades with the same ID are collapsed first, and each segment with the rows
+     * older than the latest is rebuilt only once, instead of being copied per row. The batch is sorted by the IDs.
+     */
+    public synchronized void accumulate(TradeBatch batch) {
+
+        if (batch == null || batch.size() == 0) {
+            return;
+        }
+
+        batch.sort(false);
+
+        List<TapeTrade> rows = new ArrayList<>();
+
+        for (int i = 0, j; i < batch.size(); i = j) {
+
+            BigDecimal price = batch.getPrice(i);
+
+            BigDecimal size = batch.getSize(i);
+
+            BigDecimal sum = price.multiply(size);
+
+            for (j = i + 1; j < batch.size() && batch.getId(j) == batch.getId(i); j++) {
+
+                size = size.add(batch.getSize(j));
+
+                sum = sum.add(batch.getPrice(j).multiply(batch.getSize(j)));
+
+            }
+
+            if (j - i > 1 && size.signum() != 0) {
+                price = encode(average(sum, size));
+            }
+
+            rows.add(new TapeTrade(batch.getId(i), batch.getTimestamp(i), price, encode(size)));
+
+        }
+
+        Snapshot s = snapshot;
+
+        long lastId = s.segments.length == 0 ? Long.MIN_VALUE : s.segments[s.segments.length - 1].getLastId();
+
+        int older = 0;
+
+        while (older < rows.size() && rows.get(older).getId() < lastId) {
+            older++;
+        }
+
+        if (older > 0) {
+            splice(s, rows.subList(0, older));
+        }
+
+        for (TapeTrade row : rows.subList(older, rows.size())) {
+            write(row.getId(), row.getTimestamp(), row.getPrice(), row.getSize(), true);
+        }
+
+    }
+
+    /**
+     * Merges the rows older than the latest, sorted by the IDs, into the segments, replacing each segment affected
+     * with the copies of its merged rows, split evenly if beyond the capacity.
+     */
+    private void splice(Snapshot s, List<TapeTrade> rows) {
+
+        List<Segment> segments = new ArrayList<>(s.segments.length + 1);
+
+        int r = 0;
+
+        for (int k = 0; k < s.segments.length; k++) {
+
+            long bound = s.segments[k].getLastId();
+
+            int end = r;
+
+            while (end < rows.size() && rows.get(end).getId() <= bound) {
+                end++;
+            }
+
+            if (end == r) {
+
+                segments.add(s.segments[k]);
+
+                continue;
+
+            }
+
+            Segment source = s.segments[k].rows();
+
+            Segment merged = new Segment(source.count - s.start(k) + end - r);
+
+            int n = 0;
+
+            for (int j = s.start(k); j < source.count || r < end; r++) {
+
+                TapeTrade t = r < end ? rows.get(r) : null;
+
+                while (j < source.count && (t == null || source.ids[j] < t.getId())) {
+                    merged.copy(n++, source, j++);
+                }
+
+                if (t == null) {
+                    break;
+                }
+
+                if (j < source.count && source.ids[j] == t.getId()) {
+
+                    BigDecimal total = source.getSize(j).add(t.getSize());
+
+                    BigDecimal sum = source.getPrice(j).multiply(source.getSize(j))
+                            .add(t.getPrice().multiply(t.getSize()));
+
+                    BigDecimal p = total.signum() == 0 ? source.getPrice(j) : encode(average(sum, total));
+
+                    updateBar(toInstant(source.times[j]), source.getPrice(j), source.getSize(j), p, encode(total));
+
+                    merged.set(n++, t.getId(), source.times[j++], p, encode(total));
+
+                } else {
+
+                    updateBar(t.getTimestamp(), null, null, t.getPrice(), t.getSize());
+
+                    merged.set(n++, t.getId(), toNanos(t.getTimestamp()), t.getPrice(), t.getSize());
+
+                }
+
+            }
+
+            int pieces = (n + capacity - 1) / capacity;
+
+            for (int c = 0, i = 0; c < pieces; c++) {
+
+                Segment copy = new Segment(capacity);
+
+                int rowsInPiece = n / pieces + (c < n % pieces ? 1 : 0);
+
+                for (int x = 0; x < rowsInPiece; x++) {
+                    copy.copy(x, merged, i++);
+                }
+
+                copy.count = rowsInPiece;
+
+                segments.add(copy);
+
+            }
+
+        }
+
+        Segment[] array = segments.toArray(new Segment[segments.size()]);
+
+        int head = array[0] == s.segments[0] ? s.head : 0;
+
+        seal(array);
+
+        snapshot = new Snapshot(array, head);
+
+    }
+
+    private boolean write(long id, Instant time, BigDecimal price, BigDecimal size, boolean accumulate) {
+
+        if (time == null || price == null || size == null) {
+            return false;
+        }
+
+        Snapshot s = snapshot;
+
+        Segment last = s.segments.length == 0 ? null : s.segments[s.segments.length - 1];
+
+        long lastId = last == null ? Long.MIN_VALUE : last.ids[last.count - 1];
+
+        if (last == null || id > lastId) {
+
+            BigDecimal p = encode(price);
+
+            BigDecimal q = encode(size);
+
+            if (last != null && last.count < capacity) {
+
+                last.set(last.count, id, toNanos(time), p, q);
+
+                last.count = last.count + 1;
+
+            } else {
+
+                Segment segment = new Segment(capacity);
+
+                segment.set(0, id, toNanos(time), p, q);
+
+                segment.count = 1;
+
+                Segment[] segments = Arrays.copyOf(s.segments, s.segments.length + 1);
+
+                segments[segments.length - 1] = segment;
+
+                seal(segments);
+
+                snapshot = new Snapshot(segments, s.head);
+
+            }
+
+            latest = new TapeTrade(id, time, p, q);
+
+            notional = price.multiply(size);
+
+            updateBar(time, null, null, p, q);
+
+            return true;
+
+        }
+
+        if (id == lastId) {
+
+            if (!accumulate) {
+                return false;
+            }
+
+            int i = last.count - 1;
+
+            BigDecimal total = last.getSize(i).add(size);
+
+            notional = notional.add(price.multiply(size));
+
+            BigDecimal p = total.signum() == 0 ? last.getPrice(i) : encode(average(notional, total));
+
+            BigDecimal q = encode(total);
+
+            updateBar(toInstant(last.times[i]), last.getPrice(i), last.getSize(i), p, q);
+
+            last.update(i, p, q);
+
+            latest = new TapeTrade(id, toInstant(last.times[i]), p, q);
+
+            return true;
+
+        }
+
+        return rewrite(s, id, time, price, size, accumulate);
+
+    }
+
+    /**
+     * Replaces the segments other than the latest ones with their sealed copies, before the array is published.
+     * The segments are no longer appended to, and are only replaced if rewritten.
+     */
+    private void seal(Segment[] segments) {
+
+        for (int k = 0; k < segments.length - unsealed; k++) {
+
+            if (!segments[k].isSealed()) {
+                segments[k] = new Segment(segments[k]);
+            }
+
+        }
+
+    }
+
+    /**
+     * Adds the row to the bars, or the difference from its previous values if updated in place.
+     */
+    private void updateBar(Instant time, BigDecimal oldPrice, BigDecimal oldSize, BigDecimal price, BigDecimal size) {
+
+        if (toNanos(time) <= horizon) {
+            return;
+        }
+
+        if (oldPrice == null || oldSize == null) {
+
+            bars.add(time, price, size);
+
+            return;
+
+        }
+
+        BigDecimal notional = price.multiply(size).subtract(oldPrice.multiply(oldSize));
+
+        bars.update(time, price, size.subtract(oldSize), notional, size);
+
+    }
+
+    /**
+     * Inserts or updates a row older than the latest, by replacing its segment with a copy (or two, if full).
+     */
+    private boolean rewrite(Snapshot s, long id, Instant time, BigDecimal price, BigDecimal size, boolean accumulate) {
+
+        int k = 0;
+
+        while (s.segments[k].getLastId() < id) {
+            k++; // Always found, as the ID is less than the latest.
+        }
+
+        Segment source = s.segments[k].rows();
+
+        int start = s.start(k);
+
+        int index = Arrays.binarySearch(source.ids, start, source.count, id);
+
+        if (index >= 0 && !accumulate) {
+            return false;
+        }
+
+        int position = index >= 0 ? index : -index - 1;
+
+        int rows = source.count - start + (index >= 0 ? 0 : 1);
+
+        List<Segment> copies = new ArrayList<>();
+
+        copies.add(new Segment(capacity));
+
+        if (rows > capacity) {
+            copies.add(new Segment(capacity));
+        }
+
+        int split = rows > capacity ? rows / 2 : rows;
+
+        for (int r = 0, j = start; r < rows; r++) {
+
+            Segment target = copies.get(r < split ? 0 : 1);
+
+            int i = r < split ? r : r - split;
+
+            if (r != position - start) {
+
+                target.copy(i, source, j++);
+
+                continue;
+
+            }
+
+            if (index >= 0) {
+
+                BigDecimal total = source.getSize(j).add(size);
+
+                BigDecimal sum = source.getPrice(j).multiply(source.getSize(j)).add(price.multiply(size));
+
+                BigDecimal p = total.signum() == 0 ? source.getPrice(j) : average(sum, total);
+
+                updateBar(toInstant(source.times[j]), source.getPrice(j), source.getSize(j), encode(p), encode(total));
+
+                target.set(i, id, source.times[j++], encode(p), encode(total));
+
+            } else {
+
+                updateBar(time, null, null, encode(price), encode(size));
+
+                target.set(i, id, toNanos(time), encode(price), encode(size));
+
+            }
+
+        }
+
+        copies.get(0).count = split;
+
+        if (copies.size() > 1) {
+            copies.get(1).count = rows - split;
+        }
+
+        List<Segment> segments = new ArrayList<>(Arrays.asList(s.segments));
+
+        segments.remove(k);
+
+        segments.addAll(k, copies);
+
+        snapshot = new Snapshot(segments.toArray(new Segment[segments.size()]), k == 0 ? 0 : s.head);
+
+        return true;
+
+    }
+
+    /**
+     * Evicts the oldest rows, while the timestamps are not after the cutoff, and while the rows exceed the limit.
+     * Returns the latest timestamp of the evicted rows, or null if nothing has been evicted.
+     */
+    public synchronized Instant trim(Instant cutoff, int limit) {
+
+        Snapshot s = snapshot;
+
+        long bound = cutoff == null ? Long.MIN_VALUE : toNanos(cutoff);
+
+        int total = 0;
+
+        for (int k = 0; k < s.segments.length; k++) {
+            total += s.segments[k].count - s.start(k);
+        }
+
+        int evicted = Math.max(total - Math.max(limit, 0), 0);
+
+        int offset = 0;
+
+        for (int k = 0; k < s.segments.length; k++) {
+
+            Segment segment = s.segments[k];
+
+            int start = s.start(k);
+
+            if (segment.getLastMaxTime() <= bound) {
+
+                offset += segment.count - start;
+
+                continue;
+
+            }
+
+            offset += lowerBound(segment.rows().maxTimes, start, segment.count, bound + 1) - start;
+
+            break;
+
+        }
+
+        evicted = Math.max(evicted, offset);
+
+        if (evicted == 0) {
+            return null;
+        }
+
+        long max = Long.MIN_VALUE;
+
+        int k = 0;
+
+        int head = s.head;
+
+        while (evicted > 0) {
+
+            Segment segment = s.segments[k];
+
+            int rows = Math.min(segment.count - head, evicted);
+
+            int end = head + rows;
+
+            max = Math.max(max, end == segment.count ? segment.getLastMaxTime() : segment.rows().maxTimes[end - 1]);
+
+            evicted -= rows;
+
+            head += rows;
+
+            if (head == segment.count) {
+
+                k++;
+
+                head = 0;
+
+            }
+
+        }
+
+        snapshot = k == s.segments.length ? EMPTY
+                : new Snapshot(Arrays.copyOfRange(s.segments, k, s.segments.length), head);
+
+        horizon = Math.max(horizon, max);
+
+        bars.trim(toInstant(horizon));
+
+        return toInstant(max);
+
+    }
+
+    private static int lowerBound(long[] values, int from, int to, long key) {
+
+        int low = from;
+
+        int high = to;
+
+        while (low < high) {
+
+            int mid = (low + high) >>> 1;
+
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+
+        }
+
+        return low;
+
+    }
+
+    /**
+     * Number of the rows.
+     */
+    public int size() {
+
+        Snapshot s = snapshot;
+
+        int total = 0;
+
+        for (int k = 0; k < s.segments.length; k++) {
+            total += s.segments[k].count - s.start(k);
+        }
+
+        return total;
+
+    }
+
+    /**
+     * The trade with the largest ID, or null if empty.
+     */
+    public TapeTrade last() {
+
+        TapeTrade t = latest;
+
+        return snapshot.segments.length == 0 ? null : t;
+
+    }
+
+    /**
+     * Whether all the trades after the time are kept : none of them has been evicted, and the earliest row, if never
+     * evicted, is not after the time.
+     */
+    public synchronized boolean covers(Instant fromTime) {
+
+        Snapshot s = snapshot;
+
+        if (fromTime == null || s.segments.length == 0) {
+            return false;
+        }
+
+        long start = horizon != Long.MIN_VALUE ? horizon : s.segments[0].rows().times[s.head];
+
+        return start <= toNanos(fromTime);
+
+    }
+
+    /**
+     * Trades in the order of their IDs, whose timestamps are not before the time (null for all).
+     */
+    public List<TapeTrade> list(Instant fromTime) {
+
+        List<TapeTrade> values = new ArrayList<>();
+
+        long from = fromTime == null ? Long.MIN_VALUE : toNanos(fromTime);
+
+        scan(from, Long.MAX_VALUE, (segment, i, t) -> values.add(t != null ? t : segment.get(i)));
+
+        return Collections.unmodifiableList(values);
+
+    }
+
+    /**
+     * Visits the trades in (fromTime, toTime], without the bound if null, in the order of their IDs.
+     * Returns the number of the trades visited.
+     */
+    public long visit(Instant fromTime, Instant toTime, Consumer<? super TapeTrade> visitor) {
+
+        long[] count = {0};
+
+        scan(lower(fromTime), upper(toTime), (segment, i, t) -> {
+
+            visitor.accept(t != null ? t : segment.get(i));
+
+            count[0]++;
+
+        });
+
+        return count[0];
+
+    }
+
+    /**
+     * Aggregates of the trades in (fromTime, toTime], without the bound if null, excluding the zero prices and sizes.
+     */
+    public TradeSummary summarize(Instant fromTime, Instant toTime) {
+
+        long[] count = {0};
+
+        BigDecimal[] values = {ZERO, ZERO}; // [size, notional]
+
+        scan(lower(fromTime), upper(toTime), (segment, i, t) -> {
+
+            BigDecimal price = t != null ? t.getPrice() : segment.getPrice(i);
+
+            BigDecimal size = t != null ? t.getSize() : segment.getSize(i);
+
+            if (price.signum() == 0 || size.signum() == 0) {
+                return;
+            }
+
+            values[0] = values[0].add(size);
+
+            values[1] = values[1].add(price.multiply(size));
+
+            count[0]++;
+
+        });
+
+        return TradeSummary.builder().count(count[0]).size(values[0]).notional(values[1]).build();
+
+    }
+
+    /**
+     * The trade with the latest timestamp after the time (null for all), or null if none. The one with the smallest
+     * ID is returned if tied. The segments are walked down from the latest, skipping those whose running maximum of
+     * the timestamps cannot exceed the one found, which are most of them as the trades mostly arrive in order.
+     */
+    public TapeTrade latest(Instant fromTime) {
+
+        TapeTrade t = latest; // Rows after this one are not yet visible.
+
+        Snapshot s = snapshot;
+
+        if (t == null || s.segments.length == 0) {
+            return null;
+        }
+
+        long from = lower(fromTime);
+
+        long best = from;
+
+        Segment bestSegment = null;
+
+        int bestIndex = -1;
+
+        for (int k = s.segments.length - 1; k >= 0; k--) {
+
+            int count = s.segments[k].count;
+
+            if (s.segments[k].getLastMaxTime() < best) {
+                continue;
+            }
+
+            Segment segment = s.segments[k].rows();
+
+            for (int i = count - 1; i >= s.start(k); i--) {
+
+                long time = segment.times[i];
+
+                if (segment.ids[i] > t.getId() || time < best) {
+                    continue;
+                }
+
+                best = time;
+
+                bestSegment = segment;
+
+                bestIndex = i;
+
+            }
+
+        }
+
+        if (bestSegment == null) {
+            return null;
+        }
+
+        return bestSegment.ids[bestIndex] == t.getId() ? t : bestSegment.get(bestIndex);
+
+    }
+
+    private static long lower(Instant fromTime) {
+
+        long from = fromTime == null ? Long.MIN_VALUE : toNanos(fromTime);
+
+        return from == Long.MIN_VALUE || from == Long.MAX_VALUE ? from : from + 1;
+
+    }
+
+    private static long upper(Instant toTime) {
+        return toTime == null ? Long.MAX_VALUE : toNanos(toTime);
+    }
+
+    private interface RowVisitor {
+
+        /**
+         * Visits the row of the segment, with the latest trade if the row is the latest, whose values are used instead.
+         */
+        void visit(Segment segment, int index, TapeTrade latest);
+
+    }
+
+    /**
+     * Visits the visible rows whose timestamps are in [from, to] epoch nanos, in the order of their IDs.
+     */
+    private void scan(long from, long to, RowVisitor visitor) {
+
+        TapeTrade t = latest; // Rows after this one are not yet visible.
+
+        Snapshot s = snapshot;
+
+        if (t == null || s.segments.length == 0 || from > to) {
+            return;
+        }
+
+        boolean found = false;
+
+        for (int k = 0; k < s.segments.length; k++) {
+
+            int count = s.segments[k].count;
+
+            int start = s.start(k);
+
+            if (!found && s.segments[k].getLastMaxTime() < from) {
+                continue; // Including all the segments before.
+            }
+
+            Segment segment = s.segments[k].rows();
+
+            if (!found) {
+
+                start = lowerBound(segment.maxTimes, start, count, from);
+
+                found = true;
+
+            }
+
+            for (int i = start; i < count; i++) {
+
+                long id = segment.ids[i];
+
+                if (id > t.getId()) {
+                    return;
+                }
+
+                if (segment.times[i] < from || segment.times[i] > to) {
+                    continue;
+                }
+
+                visitor.visit(segment, i, id == t.getId() ? t : null);
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Bars of the resolution, ending after the time (null for all).
+     */
+    public synchronized List<Bar> listBars(Resolution resolution, Instant fromTime) {
+        return bars.list(resolution, fromTime);
+    }
+
+    /**
+     * Start of the period aggregated into the buckets from the time, which the tape is required to cover.
+     */
+    public static Instant start(Duration interval, Instant from) {
+
+        if (interval == null || from == null) {
+            return null;
+        }
+
+        return from.minus(interval).truncatedTo(ChronoUnit.SECONDS);
+
+    }
+
+    /**
+     * Aggregates the trades into the buckets ending at [from, from + interval, ...) before the time, as in the bar
+     * store, with the partial seconds at the edges aggregated from the rows. Returns null if not available, such as
+     * when the rows of the period have been evicted.
+     */
+    public synchronized NavigableMap<Instant, Bar> collapse(Duration interval, Instant from, Instant to) {
+
+        Instant start = start(interval, from);
+
+        if (start == null || toNanos(start) < horizon) {
+            return null;
+        }
+
+        return bars.collapse(interval, from, to, this::aggregate);
+
+    }
+
+    /**
+     * Aggregates the rows in (lower, upper] epoch nanos, in the order of their IDs, as the trades listed.
+     */
+    private Bar aggregate(long lower, long upper) {
+
+        Bar[] bar = {null};
+
+        scan(lower == Long.MAX_VALUE ? lower : lower + 1, upper, (segment, i, t) -> {
+
+            TapeTrade trade = t != null ? t : segment.get(i);
+
+            bar[0] = Bar.merge(bar[0], Bar.of(trade.getTimestamp(), trade.getPrice(), trade.getSize()));
+
+        });
+
+        return bar[0];
+
+    }
+
+}
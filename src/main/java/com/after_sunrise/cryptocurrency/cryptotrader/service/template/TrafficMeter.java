@@ -0,0 +1,46 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates the response sizes of a single endpoint, as received on the wire and after decompression.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class TrafficMeter {
+
+    private final LongAdder responses = new LongAdder();
+
+    private final LongAdder wireBytes = new LongAdder();
+
+    private final LongAdder decodedBytes = new LongAdder();
+
+    public void record(long wire, long decoded) {
+
+        responses.increment();
+
+        wireBytes.add(wire);
+
+        decodedBytes.add(decoded);
+
+    }
+
+    public long getResponses() {
+        return responses.sum();
+    }
+
+    public long getWireBytes() {
+        return wireBytes.sum();
+    }
+
+    public long getDecodedBytes() {
+        return decodedBytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("responses=%,d, wire=%,d, decoded=%,d", getResponses(), getWireBytes(), getDecodedBytes());
+    }
+
+}
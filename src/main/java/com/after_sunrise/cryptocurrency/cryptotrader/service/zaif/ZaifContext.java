@@ -1,39 +1,60 @@
 package com.after_sunrise.cryptocurrency.cryptotrader.service.zaif;
 
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.PriceLevels;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.SocketSupervisor;
 import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonDeserializer;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import javax.websocket.*;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Type;
 import java.math.BigDecimal;
+import java.net.URI;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.util.Collections.unmodifiableList;
-import static java.util.stream.Collectors.toList;
 
 /**
  * @author takanori.takase
  * @version 0.0.1
  */
+@ClientEndpoint
 public class ZaifContext extends TemplateContext implements ZaifService {
 
     static final String URL_TICKER = "https://api.zaif.jp/api/1/ticker/";
 
     static final String URL_TRADE = "https://api.zaif.jp/api/1/trades/";
 
+    static final String WS_ENDPOINT = "wss://ws.zaif.jp/stream?currency_pair=";
+
     private static final Type TYPE_TRADE = new TypeToken<List<ZaifTrade>>() {
     }.getType();
 
+    private static final long REALTIME_EXPIRY = Duration.ofSeconds(30).toMillis();
+
+    private final Object annotatedEndpoint;
+
     private final Gson gson;
 
+    private final ZaifRealtime realtime;
+
+    private final Map<String, SocketSupervisor> supervisors;
+
     public ZaifContext() {
 
         super(ID);
@@ -52,11 +73,244 @@ public class ZaifContext extends TemplateContext implements ZaifService {
 
         gson = builder.create();
 
+        annotatedEndpoint = this;
+
+        realtime = new ZaifRealtime();
+
+        supervisors = new ConcurrentHashMap<>();
+
+    }
+
+    @Override
+    public void close() throws Exception {
+
+        supervisors.values().forEach(SocketSupervisor::close);
+
+        super.close();
+
+    }
+
+    @VisibleForTesting
+    Duration getRealtimeExpiry() {
+        return Duration.ofMillis(getLongProperty("realtime.expiry", REALTIME_EXPIRY));
+    }
+
+    /**
+     * Subscribes the stream of the pair, connecting a socket per pair on the first call.
+     * Returns false if the realtime feed is disabled.
+     */
+    @VisibleForTesting
+    boolean subscribe(String pair) {
+
+        if (StringUtils.isEmpty(pair) || getRealtimeExpiry().toMillis() <= 0) {
+            return false;
+        }
+
+        synchronized (supervisors) {
+
+            if (!supervisors.containsKey(pair)) {
+
+                SocketSupervisor supervisor = new SocketSupervisor(getClass().getSimpleName() + "-" + pair,
+                        URI.create(WS_ENDPOINT + encode(pair)), annotatedEndpoint, new SocketSupervisor.Handler() {
+
+                    @Override
+                    public void subscribe(Session session, Collection<String> channels) {
+                        // Subscribed by the query parameter of the endpoint.
+                    }
+
+                    @Override
+                    public void backfill(Collection<String> channels, Instant since) throws IOException {
+                        backfillTrades(pair);
+                    }
+
+                }, this::getNow, getSocketSettings());
+
+                supervisor.subscribe(pair);
+
+                supervisors.put(pair, supervisor);
+
+                scheduleSocket(supervisor);
+
+            }
+
+        }
+
+        return true;
+
+    }
+
+    @VisibleForTesting
+    void scheduleSocket(SocketSupervisor s) {
+        s.start();
+    }
+
+    /**
+     * Seeds the tape with the latest trades, which the stream only delivers as they occur.
+     */
+    @VisibleForTesting
+    void backfillTrades(String pair) throws IOException {
+
+        String data = request(URL_TRADE + encode(pair));
+
+        if (StringUtils.isEmpty(data)) {
+            return;
+        }
+
+        List<ZaifTrade> trades = gson.fromJson(data, TYPE_TRADE);
+
+        realtime.merge(getNow(), pair, trades, this::publishTrade);
+
+    }
+
+    private void publishTrade(String pair, ZaifTrade trade) {
+        publishTrade(pair, trade.getTimestamp(), trade.getPrice(), trade.getSize());
+    }
+
+    private static String encode(String pair) {
+        try {
+            return URLEncoder.encode(pair, UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException(pair, e);
+        }
+    }
+
+    /**
+     * Extracts the pair from the query parameter of the endpoint, which the session has been connected to.
+     */
+    @VisibleForTesting
+    static String extractPair(Session s) {
+
+        URI uri = s == null ? null : s.getRequestURI();
+
+        String query = uri == null ? null : uri.getRawQuery();
+
+        String prefix = URI.create(WS_ENDPOINT).getRawQuery();
+
+        if (query == null || !query.startsWith(prefix)) {
+            return null;
+        }
+
+        try {
+            return URLDecoder.decode(query.substring(prefix.length()), UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+
+    }
+
+    private SocketSupervisor findSupervisor(Session s) {
+
+        String pair = extractPair(s);
+
+        return pair == null ? null : supervisors.get(pair);
+
+    }
+
+    @OnOpen
+    public void onWebSocketOpen(Session s) {
+
+        log.debug("Socket opened : {}", s.getId());
+
+        SocketSupervisor supervisor = findSupervisor(s);
+
+        if (supervisor != null) {
+
+            realtime.reset(extractPair(s));
+
+            supervisor.onOpen(s);
+
+        }
+
+    }
+
+    @OnError
+    public void onWebSocketError(Session s, Throwable t) {
+
+        log.debug("Socket error : " + s.getId(), t);
+
+        IOUtils.closeQuietly(s);
+
+    }
+
+    @OnClose
+    public void onWebSocketClose(Session s, CloseReason reason) {
+
+        log.debug("Socket closed : {}", s.getId());
+
+        SocketSupervisor supervisor = findSupervisor(s);
+
+        if (supervisor != null) {
+
+            realtime.reset(extractPair(s));
+
+            supervisor.onClose(s);
+
+        }
+
+    }
+
+    @OnMessage
+    public void onWebSocketPong(PongMessage message, Session s) {
+
+        SocketSupervisor supervisor = findSupervisor(s);
+
+        if (supervisor != null) {
+            supervisor.onMessage();
+        }
+
+    }
+
+    @OnMessage
+    public void onWebSocketMessage(String message, Session s) {
+
+        SocketSupervisor supervisor = findSupervisor(s);
+
+        if (supervisor != null) {
+            supervisor.onMessage();
+        }
+
+        if (StringUtils.isEmpty(message)) {
+            return;
+        }
+
+        ZaifStream stream = gson.fromJson(message, ZaifStream.class);
+
+        Instant now = getNow();
+
+        realtime.apply(now, stream, this::publishTrade);
+
+        if (stream != null && stream.getPair() != null) {
+            publishTick(stream.getPair(), now, stream.getLastPrice(),
+                    stream.getBestAskPrice(), stream.getBestAskSize(),
+                    stream.getBestBidPrice(), stream.getBestBidSize());
+        }
+
+    }
+
+    @VisibleForTesting
+    Optional<ZaifStream> queryStream(Key key) {
+
+        String pair = key.getInstrument();
+
+        ZaifStream stream = subscribe(pair) ? realtime.getStream(getNow(), getRealtimeExpiry(), pair) : null;
+
+        return Optional.ofNullable(stream);
+
     }
 
     @VisibleForTesting
     Optional<ZaifTick> queryTick(Key key) {
 
+        Optional<ZaifStream> stream = queryStream(key);
+
+        if (stream.isPresent()) {
+            return stream.map(s -> ZaifTick.builder()
+                    .last(s.getLastPrice())
+                    .ask(s.getBestAskPrice())
+                    .bid(s.getBestBidPrice())
+                    .build());
+        }
+
         ZaifTick tick = findCached(ZaifTick.class, key, () -> {
 
             String product = URLEncoder.encode(key.getInstrument(), UTF_8.name());
@@ -90,10 +344,37 @@ public class ZaifContext extends TemplateContext implements ZaifService {
         return queryTick(key).map(ZaifTick::getLast).orElse(null);
     }
 
+    @Override
+    public Map<BigDecimal, BigDecimal> getAskPrices(Key key) {
+
+        PriceLevels levels = findLevels(key, true, () -> queryStream(key).map(ZaifStream::getAsks).orElse(null));
+
+        return levels != null ? levels : super.getAskPrices(key);
+
+    }
+
+    @Override
+    public Map<BigDecimal, BigDecimal> getBidPrices(Key key) {
+
+        PriceLevels levels = findLevels(key, false, () -> queryStream(key).map(ZaifStream::getBids).orElse(null));
+
+        return levels != null ? levels : super.getBidPrices(key);
+
+    }
+
     @Override
     public List<Trade> listTrades(Key key, Instant fromTime) {
 
-        List<ZaifTrade> values = listCached(ZaifTrade.class, key, () -> {
+        String pair = key.getInstrument();
+
+        List<? extends Trade> streamed = subscribe(pair)
+                ? realtime.getTrades(getNow(), getRealtimeExpiry(), pair, fromTime) : null;
+
+        if (streamed != null) {
+            return new ArrayList<>(streamed);
+        }
+
+        return listIncremental(ZaifTrade.class, key, fromTime, ZaifTrade::getId, latest -> {
 
             String product = URLEncoder.encode(key.getInstrument(), UTF_8.name());
 
@@ -103,20 +384,80 @@ public class ZaifContext extends TemplateContext implements ZaifService {
                 return null;
             }
 
-            List<ZaifTrade> trades = gson.fromJson(data, TYPE_TRADE);
-
-            return Collections.unmodifiableList(trades);
+            return gson.fromJson(data, TYPE_TRADE);
 
         });
 
-        if (fromTime == null) {
-            return new ArrayList<>(values);
+    }
+
+    @Override
+    public NavigableMap<Instant, BigDecimal> collapsePrices(Key key,
+                                                            Duration interval, Instant from, Instant to, boolean sum) {
+        return collapseTape(getTape(key, TradeTape.start(interval, from)), interval, from, to, sum);
+    }
+
+    @Override
+    public Optional<Trade> findLastTrade(Key key, Instant fromTime) {
+
+        TradeTape tape = getTape(key, fromTime);
+
+        return tape == null ? super.findLastTrade(key, fromTime) : Optional.ofNullable(tape.latest(fromTime));
+
+    }
+
+    @Override
+    public TradeSummary summarizeTrades(Key key, Instant fromTime, Instant toTime) {
+
+        TradeTape tape = getTape(key, fromTime);
+
+        return tape == null ? super.summarizeTrades(key, fromTime, toTime) : tape.summarize(fromTime, toTime);
+
+    }
+
+    @Override
+    public boolean visitTrades(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        TradeTape tape = getTape(key, fromTime);
+
+        if (tape == null) {
+            return super.visitTrades(key, fromTime, toTime, visitor);
+        }
+
+        tape.visit(fromTime, toTime, visitor);
+
+        return true;
+
+    }
+
+    /**
+     * Visits the tape of the streamed trades if it covers the period, without subscribing to it.
+     */
+    @Override
+    public boolean visitHistory(Key key, Instant fromTime, Instant toTime, Consumer<Trade> visitor) {
+
+        String pair = key == null ? null : key.getInstrument();
+
+        TradeTape tape = pair == null ? null : realtime.getTape(getNow(), getRealtimeExpiry(), pair, fromTime);
+
+        if (tape == null) {
+            return super.visitHistory(key, fromTime, toTime, visitor);
         }
 
-        return unmodifiableList(values.stream()
-                .filter(e -> Objects.nonNull(e.getTimestamp()))
-                .filter(e -> !e.getTimestamp().isBefore(fromTime))
-                .collect(toList()));
+        tape.visit(fromTime, toTime, visitor);
+
+        return true;
+
+    }
+
+    /**
+     * Tape of the streamed trades covering the period since the time, or null if not available.
+     */
+    private TradeTape getTape(Key key, Instant fromTime) {
+
+        String pair = key.getInstrument();
+
+        return subscribe(pair)
+                ? realtime.getTape(getNow(), getRealtimeExpiry(), pair, fromTime) : null;
 
     }
 
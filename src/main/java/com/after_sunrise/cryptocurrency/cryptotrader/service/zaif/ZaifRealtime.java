@@ -0,0 +1,178 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.zaif;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape.TapeTrade;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Depth and trade tape of the pairs, maintained locally from the stream API.
+ *
+ * Each message of the stream carries the entire depth and the latest trades of the pair, so the depth is replaced
+ * by the latest message, and the trades are merged into the tape by their IDs, together with the latest trades
+ * retrieved on (re)connection. The tape covers the period since the oldest trade of the first batch, and a pair is
+ * served only while its stream has not been silent for longer than the expiry.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class ZaifRealtime {
+
+    private static final int TRADE_LIMIT = 65536;
+
+    private static final Duration TRADE_EXPIRY = Duration.ofHours(24);
+
+    private final Map<String, ZaifStream> streams = new HashMap<>();
+
+    private final Map<String, Instant> timestamps = new HashMap<>();
+
+    private final Map<String, TradeTape> trades = new HashMap<>();
+
+    private final Map<String, Instant> covered = new HashMap<>();
+
+    /**
+     * Discards the depth and the tape of the pair, which are rebuilt after the next connection.
+     */
+    public synchronized void reset(String pair) {
+
+        streams.remove(pair);
+
+        timestamps.remove(pair);
+
+        trades.remove(pair);
+
+        covered.remove(pair);
+
+    }
+
+    /**
+     * Applies a message of the stream, and notifies the trades not yet in the tape.
+     */
+    public synchronized void apply(Instant now, ZaifStream stream, BiConsumer<String, ZaifTrade> listener) {
+
+        if (now == null || stream == null || stream.getPair() == null) {
+            return;
+        }
+
+        streams.put(stream.getPair(), stream);
+
+        timestamps.put(stream.getPair(), now);
+
+        merge(now, stream.getPair(), stream.getTrades(), listener);
+
+    }
+
+    /**
+     * Merges the latest trades into the tape of the pair, and notifies the trades not yet in the tape.
+     */
+    public synchronized void merge(Instant now, String pair, List<ZaifTrade> values,
+                                   BiConsumer<String, ZaifTrade> listener) {
+
+        if (now == null || pair == null || values == null) {
+            return;
+        }
+
+        TradeTape tape = trades.computeIfAbsent(pair, p -> new TradeTape());
+
+        Instant oldest = null;
+
+        for (ZaifTrade trade : values) {
+
+            if (trade == null || trade.getId() == null || trade.getTimestamp() == null) {
+                continue;
+            }
+
+            if (trade.getPrice() == null || trade.getSize() == null) {
+                continue;
+            }
+
+            oldest = oldest == null || oldest.isAfter(trade.getTimestamp()) ? trade.getTimestamp() : oldest;
+
+            boolean added = tape.add(trade.getId(), trade.getTimestamp(), trade.getPrice(), trade.getSize());
+
+            if (added && listener != null) {
+                listener.accept(pair, trade);
+            }
+
+        }
+
+        if (oldest != null) {
+            covered.merge(pair, oldest, (v1, v2) -> v1.isBefore(v2) ? v1 : v2);
+        }
+
+        Instant evicted = tape.trim(now.minus(TRADE_EXPIRY), TRADE_LIMIT);
+
+        if (evicted != null) {
+
+            // Trades until the evicted ones are no longer covered.
+            Instant bound = evicted.plusNanos(1);
+
+            covered.computeIfPresent(pair, (k, v) -> v.isAfter(bound) ? v : bound);
+
+        }
+
+    }
+
+    private boolean isAvailable(Instant now, Duration expiry, String pair) {
+
+        Instant timestamp = timestamps.get(pair);
+
+        if (timestamp == null || now == null || expiry == null) {
+            return false;
+        }
+
+        return Duration.between(timestamp, now).compareTo(expiry) <= 0;
+
+    }
+
+    /**
+     * Retrieves the latest message of the pair, or null if the stream is not available.
+     */
+    public synchronized ZaifStream getStream(Instant now, Duration expiry, String pair) {
+        return isAvailable(now, expiry, pair) ? streams.get(pair) : null;
+    }
+
+    /**
+     * Retrieves the trades of the pair since the time, or null if the stream is not available or the tape does not
+     * cover the entire period.
+     */
+    public List<TapeTrade> getTrades(Instant now, Duration expiry, String pair, Instant fromTime) {
+
+        TradeTape tape;
+
+        synchronized (this) {
+
+            Instant since = covered.get(pair);
+
+            if (!isAvailable(now, expiry, pair) || since == null || fromTime == null || fromTime.isBefore(since)) {
+                return null;
+            }
+
+            tape = trades.get(pair);
+
+        }
+
+        return tape == null ? Collections.emptyList() : tape.list(fromTime);
+
+    }
+
+    /**
+     * Retrieves the tape of the pair, or null if the stream is not available or the tape does not cover the entire
+     * period since the time.
+     */
+    public synchronized TradeTape getTape(Instant now, Duration expiry, String pair, Instant fromTime) {
+
+        Instant since = covered.get(pair);
+
+        if (!isAvailable(now, expiry, pair) || since == null || fromTime == null || fromTime.isBefore(since)) {
+            return null;
+        }
+
+        return trades.get(pair);
+
+    }
+
+}
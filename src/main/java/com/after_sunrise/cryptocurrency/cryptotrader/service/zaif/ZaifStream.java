@@ -0,0 +1,122 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.zaif;
+
+import com.google.gson.annotations.SerializedName;
+import lombok.*;
+import org.apache.commons.collections4.CollectionUtils;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static java.util.Comparator.naturalOrder;
+import static java.util.Comparator.reverseOrder;
+
+/**
+ * Message of the stream API, which carries the entire depth and the recent trades of the pair.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+@Getter
+@Builder
+@ToString
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class ZaifStream {
+
+    private static final int I_PRICE = 0;
+
+    private static final int I_SIZE = 1;
+
+    @Getter
+    @Builder
+    @ToString
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    public static class LastPrice {
+
+        @SerializedName("action")
+        private String action;
+
+        @SerializedName("price")
+        private BigDecimal price;
+
+    }
+
+    @SerializedName("currency_pair")
+    private String pair;
+
+    @SerializedName("asks")
+    private List<BigDecimal[]> asks;
+
+    @SerializedName("bids")
+    private List<BigDecimal[]> bids;
+
+    @SerializedName("trades")
+    private List<ZaifTrade> trades;
+
+    @SerializedName("last_price")
+    private LastPrice last;
+
+    private BigDecimal extractBest(List<BigDecimal[]> input, boolean ascending, int index) {
+
+        if (CollectionUtils.isEmpty(input)) {
+            return null;
+        }
+
+        Comparator<BigDecimal> comparator = ascending ? naturalOrder() : reverseOrder();
+
+        return input.stream()
+                .filter(Objects::nonNull)
+                .filter(ps -> ps.length == 2)
+                .filter(ps -> ps[I_PRICE] != null)
+                .filter(ps -> ps[I_SIZE] != null)
+                .sorted((ps1, ps2) -> comparator.compare(ps1[I_PRICE], ps2[I_PRICE]))
+                .map(ps -> ps[index])
+                .findFirst().orElse(null);
+
+    }
+
+    private Map<BigDecimal, BigDecimal> convert(List<BigDecimal[]> input) {
+
+        Map<BigDecimal, BigDecimal> values = new LinkedHashMap<>();
+
+        if (input != null) {
+            input.stream()
+                    .filter(Objects::nonNull)
+                    .filter(ps -> ps.length == 2)
+                    .filter(ps -> ps[I_PRICE] != null)
+                    .filter(ps -> ps[I_SIZE] != null)
+                    .forEach(ps -> values.put(ps[I_PRICE], ps[I_SIZE]));
+        }
+
+        return Collections.unmodifiableMap(values);
+
+    }
+
+    public BigDecimal getBestAskPrice() {
+        return extractBest(asks, true, I_PRICE);
+    }
+
+    public BigDecimal getBestBidPrice() {
+        return extractBest(bids, false, I_PRICE);
+    }
+
+    public BigDecimal getBestAskSize() {
+        return extractBest(asks, true, I_SIZE);
+    }
+
+    public BigDecimal getBestBidSize() {
+        return extractBest(bids, false, I_SIZE);
+    }
+
+    public BigDecimal getLastPrice() {
+        return last == null ? null : last.getPrice();
+    }
+
+    public Map<BigDecimal, BigDecimal> getAsks() {
+        return convert(asks);
+    }
+
+    public Map<BigDecimal, BigDecimal> getBids() {
+        return convert(bids);
+    }
+
+}
@@ -26,4 +26,7 @@ public class ZaifTrade implements Trade {
     @SerializedName("amount")
     private BigDecimal size;
 
+    @SerializedName("tid")
+    private Long id;
+
 }
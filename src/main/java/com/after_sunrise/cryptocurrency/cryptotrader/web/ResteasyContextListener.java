@@ -3,8 +3,12 @@ package com.after_sunrise.cryptocurrency.cryptotrader.web;
 import com.after_sunrise.cryptocurrency.cryptotrader.Cryptotrader;
 import com.after_sunrise.cryptocurrency.cryptotrader.core.ConfigurationProvider;
 import com.after_sunrise.cryptocurrency.cryptotrader.core.CryptotraderImpl;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.Key;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trader;
+import com.after_sunrise.cryptocurrency.cryptotrader.web.TradeHistory.Bucket;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import lombok.extern.slf4j.Slf4j;
@@ -14,11 +18,19 @@ import org.apache.commons.configuration2.Configuration;
 import org.jboss.resteasy.plugins.guice.GuiceResteasyBootstrapServletContextListener;
 
 import javax.annotation.PreDestroy;
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.OutputStreamWriter;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -27,6 +39,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.format.DateTimeFormatter.ISO_INSTANT;
 
 /**
@@ -113,6 +126,12 @@ public class ResteasyContextListener extends GuiceResteasyBootstrapServletContex
 
         private static final Instant LAUNCH_TIME = Instant.now();
 
+        private static final Duration HISTORY_PERIOD = Duration.ofHours(1);
+
+        private static final Duration HISTORY_INTERVAL = Duration.ofMinutes(1);
+
+        private static final long HISTORY_BUCKETS = 100_000;
+
         private final AtomicReference<Instant> CONFIG_TIME = new AtomicReference<>(LAUNCH_TIME);
 
         private final Gson gson;
@@ -121,6 +140,8 @@ public class ResteasyContextListener extends GuiceResteasyBootstrapServletContex
 
         private final ConfigurationProvider configurationProvider;
 
+        private final Context context;
+
         @Inject
         public EndpointImpl(Injector injector) {
 
@@ -130,6 +151,8 @@ public class ResteasyContextListener extends GuiceResteasyBootstrapServletContex
 
             this.configurationProvider = injector.getInstance(ConfigurationProvider.class);
 
+            this.context = injector.getInstance(Context.class);
+
         }
 
         @POST
@@ -154,6 +177,194 @@ public class ResteasyContextListener extends GuiceResteasyBootstrapServletContex
 
         }
 
+        /**
+         * Imports the trades exported in the files on the server into the trade journal of the site and the
+         * instrument, such as for warming up the estimators on the next start. The paths are relative to the
+         * directory of the imports configured for the context. The count is omitted if failed.
+         */
+        @POST
+        @Path("/import")
+        @Produces(MediaType.APPLICATION_JSON)
+        public String importTrades(@QueryParam("site") String site,
+                                   @QueryParam("instrument") String instrument,
+                                   @QueryParam("path") List<String> paths) {
+
+            Key key = Key.builder().site(site).instrument(instrument).timestamp(Instant.now()).build();
+
+            List<Map<String, Object>> results = new ArrayList<>();
+
+            for (String path : Optional.ofNullable(paths).orElse(Collections.emptyList())) {
+
+                log.debug("Importing trades : {}:{} - {}", site, instrument, path);
+
+                Map<String, Object> map = new TreeMap<>();
+                map.put("path", path);
+                results.add(map);
+
+                try {
+                    map.put("count", context.importTrades(key, Paths.get(path))); // Omitted if failed.
+                } catch (InvalidPathException e) {
+                    log.debug("Invalid path : {}", path);
+                }
+
+            }
+
+            return gson.toJson(results);
+
+        }
+
+        /**
+         * Aggregates the trades of the site and the instrument in (from, to], into the buckets of the interval.
+         * The times are in ISO-8601 (to defaults to now, and from to an hour before), and the interval is in the
+         * ISO-8601 duration (defaults to PT1M).
+         */
+        private TradeHistory aggregate(String site, String instrument, String from, String to, String interval) {
+            return aggregate(site, instrument, from, to, interval, false);
+        }
+
+        /**
+         * Aggregates the trades as above, or into a single bucket of the whole range if total, whose number of
+         * buckets is therefore not limited by the range.
+         */
+        private TradeHistory aggregate(String site, String instrument,
+                                       String from, String to, String interval, boolean total) {
+
+            Instant end;
+
+            Instant start;
+
+            Duration step;
+
+            try {
+
+                end = to == null ? Instant.now() : Instant.parse(to);
+
+                start = from == null ? end.minus(HISTORY_PERIOD) : Instant.parse(from);
+
+                step = total ? Duration.between(start, end)
+                        : interval == null ? HISTORY_INTERVAL : Duration.parse(interval);
+
+                if (!start.isBefore(end) || step.isNegative() || step.isZero()) {
+                    throw new IllegalArgumentException("Invalid range : " + from + " - " + to + " / " + interval);
+                }
+
+                if (Duration.between(start, end).toNanos() / step.toNanos() >= HISTORY_BUCKETS) {
+                    throw new IllegalArgumentException("Too many buckets : " + from + " - " + to + " / " + interval);
+                }
+
+            } catch (RuntimeException e) {
+
+                throw new BadRequestException(e.getMessage(), e);
+
+            }
+
+            Key key = Key.builder().site(site).instrument(instrument).timestamp(end).build();
+
+            TradeHistory history = TradeHistory.aggregate(context, key, start, end, step);
+
+            if (history == null) {
+                throw new NotFoundException("Trades not kept : " + site + ":" + instrument);
+            }
+
+            return history;
+
+        }
+
+        /**
+         * Streams the bars of the buckets with trades, as a JSON array in the order of the time (end of the bucket).
+         */
+        @GET
+        @Path("/history/bars")
+        @Produces(MediaType.APPLICATION_JSON)
+        public StreamingOutput getBars(@QueryParam("site") String site,
+                                       @QueryParam("instrument") String instrument,
+                                       @QueryParam("from") String from,
+                                       @QueryParam("to") String to,
+                                       @QueryParam("interval") String interval) {
+
+            TradeHistory history = aggregate(site, instrument, from, to, interval);
+
+            return output -> {
+
+                JsonWriter writer = new JsonWriter(new OutputStreamWriter(output, UTF_8));
+
+                writer.beginArray();
+
+                for (Bucket b : history.getBuckets().values()) {
+
+                    writer.beginObject();
+                    writer.name("time").value(DTF.format(b.getEnd()));
+                    writer.name("open").value(b.getOpen());
+                    writer.name("high").value(b.getHigh());
+                    writer.name("low").value(b.getLow());
+                    writer.name("close").value(b.getClose());
+                    writer.name("size").value(b.getSize());
+                    writer.name("notional").value(b.getNotional());
+                    writer.name("vwap").value(b.getVwap());
+                    writer.name("count").value(b.getCount());
+                    writer.endObject();
+
+                }
+
+                writer.endArray();
+
+                writer.flush();
+
+            };
+
+        }
+
+        /**
+         * Volume-weighted average price of the trades in (from, to], aggregated into a single bucket of the range.
+         */
+        @GET
+        @Path("/history/vwap")
+        @Produces(MediaType.APPLICATION_JSON)
+        public String getVwap(@QueryParam("site") String site,
+                              @QueryParam("instrument") String instrument,
+                              @QueryParam("from") String from,
+                              @QueryParam("to") String to) {
+
+            TradeHistory history = aggregate(site, instrument, from, to, null, true);
+
+            Bucket total = history.getTotal();
+
+            Map<String, Object> map = new TreeMap<>();
+            map.put("from", DTF.format(history.getFrom()));
+            map.put("to", DTF.format(history.getTo()));
+            map.put("count", total != null ? total.getCount() : 0L);
+            map.put("size", total != null ? total.getSize() : null);
+            map.put("notional", total != null ? total.getNotional() : null);
+            map.put("vwap", total != null ? total.getVwap() : null);
+            return gson.toJson(map);
+
+        }
+
+        /**
+         * Realized volatility of the returns between the closes of the buckets of the interval in (from, to].
+         */
+        @GET
+        @Path("/history/volatility")
+        @Produces(MediaType.APPLICATION_JSON)
+        public String getVolatility(@QueryParam("site") String site,
+                                    @QueryParam("instrument") String instrument,
+                                    @QueryParam("from") String from,
+                                    @QueryParam("to") String to,
+                                    @QueryParam("interval") String interval) {
+
+            TradeHistory history = aggregate(site, instrument, from, to, interval);
+
+            Map<String, Object> map = new TreeMap<>();
+            map.put("from", DTF.format(history.getFrom()));
+            map.put("to", DTF.format(history.getTo()));
+            map.put("interval", history.getInterval().toString());
+            map.put("returns", history.getReturns().size());
+            map.put("volatility", history.getVolatility());
+            map.put("annualized", history.getAnnualizedVolatility());
+            return gson.toJson(map);
+
+        }
+
         @GET
         @Path("/configuration")
         @Produces(MediaType.APPLICATION_JSON)
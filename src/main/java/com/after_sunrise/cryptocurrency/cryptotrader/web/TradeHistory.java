@@ -0,0 +1,249 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.web;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.Key;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import static com.after_sunrise.cryptocurrency.cryptotrader.framework.Service.SATOSHI;
+import static java.math.BigDecimal.ZERO;
+import static java.math.RoundingMode.HALF_UP;
+import static lombok.AccessLevel.PRIVATE;
+
+/**
+ * Trades of a site and an instrument in (from, to], aggregated into the buckets of the interval, each of which ends at
+ * {@code from + interval * n} and contains the trades in (end - interval, end].
+ *
+ * The trades are visited from the tapes kept in memory by the context, or from its journals for the periods no longer
+ * in memory, so that the history is served without querying the exchanges. The history is not available for the
+ * instruments without either of them.
+ *
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+@Getter
+@RequiredArgsConstructor(access = PRIVATE)
+public class TradeHistory {
+
+    private static final double YEAR = Duration.ofDays(365).getSeconds();
+
+    @Getter
+    @ToString
+    @RequiredArgsConstructor(access = PRIVATE)
+    public static class Bucket {
+
+        private final Instant end;
+
+        private Instant firstTime;
+
+        private Instant lastTime;
+
+        private BigDecimal open;
+
+        private BigDecimal high;
+
+        private BigDecimal low;
+
+        private BigDecimal close;
+
+        private BigDecimal size = ZERO;
+
+        private BigDecimal notional = ZERO;
+
+        private long count;
+
+        private void add(Trade trade) {
+
+            Instant t = trade.getTimestamp();
+
+            BigDecimal p = trade.getPrice();
+
+            if (firstTime == null || t.isBefore(firstTime)) {
+                firstTime = t;
+                open = p;
+            }
+
+            if (lastTime == null || !t.isBefore(lastTime)) {
+                lastTime = t;
+                close = p;
+            }
+
+            high = high == null ? p : high.max(p);
+
+            low = low == null ? p : low.min(p);
+
+            size = size.add(trade.getSize());
+
+            notional = notional.add(p.multiply(trade.getSize()));
+
+            count++;
+
+        }
+
+        /**
+         * Volume-weighted average price rounded to satoshi, or null if the size is zero.
+         */
+        public BigDecimal getVwap() {
+            return size.signum() == 0 ? null : notional.divide(size, SATOSHI.scale(), HALF_UP);
+        }
+
+    }
+
+    private final Instant from;
+
+    private final Instant to;
+
+    private final Duration interval;
+
+    private final NavigableMap<Instant, Bucket> buckets;
+
+    /**
+     * Aggregates the trades kept by the context, or returns null if not kept. The trades without the price or the
+     * size are excluded.
+     */
+    public static TradeHistory aggregate(Context context, Key key, Instant from, Instant to, Duration interval) {
+
+        NavigableMap<Instant, Bucket> buckets = new TreeMap<>();
+
+        long step = interval.toNanos();
+
+        TradeHistory history = new TradeHistory(from, to, interval, Collections.unmodifiableNavigableMap(buckets));
+
+        Consumer<Trade> visitor = t -> {
+
+            Instant time = t == null ? null : t.getTimestamp();
+
+            if (time == null || t.getPrice() == null || t.getSize() == null) {
+                return;
+            }
+
+            if (t.getPrice().signum() == 0 || t.getSize().signum() == 0) {
+                return;
+            }
+
+            if (!time.isAfter(from) || time.isAfter(to)) {
+                return;
+            }
+
+            long elapsed = Duration.between(from, time).toNanos();
+
+            Instant end = from.plus(interval.multipliedBy((elapsed + step - 1) / step));
+
+            buckets.computeIfAbsent(end, Bucket::new).add(t);
+
+        };
+
+        return context.visitHistory(key, from, to, visitor) ? history : null;
+
+    }
+
+    /**
+     * Aggregate of all the buckets, ending at the end of the period, or null if no trades.
+     */
+    public Bucket getTotal() {
+
+        if (buckets.isEmpty()) {
+            return null;
+        }
+
+        Bucket total = new Bucket(to);
+
+        for (Bucket b : buckets.values()) {
+
+            if (total.firstTime == null || b.firstTime.isBefore(total.firstTime)) {
+                total.firstTime = b.firstTime;
+                total.open = b.open;
+            }
+
+            if (total.lastTime == null || !b.lastTime.isBefore(total.lastTime)) {
+                total.lastTime = b.lastTime;
+                total.close = b.close;
+            }
+
+            total.high = total.high == null ? b.high : total.high.max(b.high);
+
+            total.low = total.low == null ? b.low : total.low.min(b.low);
+
+            total.size = total.size.add(b.size);
+
+            total.notional = total.notional.add(b.notional);
+
+            total.count += b.count;
+
+        }
+
+        return total;
+
+    }
+
+    /**
+     * Logarithmic returns between the closes of the consecutive buckets with trades, keyed by the end of the latter.
+     */
+    public NavigableMap<Instant, Double> getReturns() {
+
+        NavigableMap<Instant, Double> returns = new TreeMap<>();
+
+        BigDecimal previous = null;
+
+        for (Map.Entry<Instant, Bucket> entry : buckets.entrySet()) {
+
+            BigDecimal close = entry.getValue().getClose();
+
+            if (previous != null) {
+                returns.put(entry.getKey(), Math.log(close.doubleValue() / previous.doubleValue()));
+            }
+
+            previous = close;
+
+        }
+
+        return returns;
+
+    }
+
+    /**
+     * Realized volatility of the period : square root of the sum of the squared returns, or null if no returns.
+     */
+    public Double getVolatility() {
+
+        NavigableMap<Instant, Double> returns = getReturns();
+
+        if (returns.isEmpty()) {
+            return null;
+        }
+
+        double sum = 0;
+
+        for (Double r : returns.values()) {
+            sum += r * r;
+        }
+
+        return Math.sqrt(sum);
+
+    }
+
+    /**
+     * Realized volatility scaled to a year of 365 days, or null if no returns.
+     */
+    public Double getAnnualizedVolatility() {
+
+        Double volatility = getVolatility();
+
+        double seconds = Duration.between(from, to).toNanos() / 1e9;
+
+        return volatility == null ? null : volatility * Math.sqrt(YEAR / seconds);
+
+    }
+
+}
@@ -0,0 +1,180 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.framework;
+
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static java.math.BigDecimal.*;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class PriceLevelsTest {
+
+    private static Map<BigDecimal, BigDecimal> levels() {
+
+        Map<BigDecimal, BigDecimal> levels = new HashMap<>();
+        levels.put(new BigDecimal("102"), new BigDecimal("3"));
+        levels.put(new BigDecimal("100"), new BigDecimal("1"));
+        levels.put(new BigDecimal("101"), new BigDecimal("2"));
+        levels.put(new BigDecimal("103"), ZERO); // Exclude
+        levels.put(new BigDecimal("104"), null); // Exclude
+        levels.put(null, ONE); // Exclude
+        return levels;
+
+    }
+
+    @Test
+    public void testOfAsks() {
+
+        PriceLevels target = PriceLevels.ofAsks(levels());
+
+        assertTrue(target.isAscending());
+        assertEquals(target.size(), 3);
+        assertEquals(new ArrayList<>(target.keySet()), Arrays.asList(
+                new BigDecimal("100"), new BigDecimal("101"), new BigDecimal("102")));
+        assertEquals(new ArrayList<>(target.values()), Arrays.asList(
+                new BigDecimal("1"), new BigDecimal("2"), new BigDecimal("3")));
+        assertEquals(target.getBestPrice(), new BigDecimal("100"));
+        assertEquals(target.getBestSize(), new BigDecimal("1"));
+        assertEquals(target.getPrice(2), new BigDecimal("102"));
+        assertEquals(target.getSize(2), new BigDecimal("3"));
+
+        // Map
+        assertEquals(target.get(new BigDecimal("101")), new BigDecimal("2"));
+        assertNull(target.get(new BigDecimal("103")));
+        assertNull(target.get(new BigDecimal("101.0")));
+        assertNull(target.get("101"));
+        assertTrue(target.containsKey(new BigDecimal("102")));
+        assertFalse(target.containsKey(null));
+
+        Map<BigDecimal, BigDecimal> expect = new HashMap<>();
+        expect.put(new BigDecimal("100"), new BigDecimal("1"));
+        expect.put(new BigDecimal("101"), new BigDecimal("2"));
+        expect.put(new BigDecimal("102"), new BigDecimal("3"));
+        assertEquals(target, expect);
+        assertEquals(expect, target);
+
+        // Not sorted again
+        assertSame(PriceLevels.ofAsks(target), target);
+        assertNotSame(PriceLevels.ofBids(target), target);
+
+    }
+
+    @Test
+    public void testOfBids() {
+
+        PriceLevels target = PriceLevels.ofBids(levels());
+
+        assertFalse(target.isAscending());
+        assertEquals(new ArrayList<>(target.keySet()), Arrays.asList(
+                new BigDecimal("102"), new BigDecimal("101"), new BigDecimal("100")));
+        assertEquals(target.getBestPrice(), new BigDecimal("102"));
+        assertEquals(target.getBestSize(), new BigDecimal("3"));
+        assertEquals(target.get(new BigDecimal("100")), new BigDecimal("1"));
+
+        assertSame(PriceLevels.ofBids(target), target);
+
+    }
+
+    @Test
+    public void testOfEmpty() {
+
+        PriceLevels target = PriceLevels.ofAsks(null);
+
+        assertTrue(target.isEmpty());
+        assertNull(target.getBestPrice());
+        assertNull(target.getBestSize());
+        assertEquals(target.countWithin(TEN), 0);
+        assertEquals(target.countFor(1), -1);
+        assertEquals(target.getCumulativeSize(1), 0.0);
+        assertNull(target.getPriceFor(1));
+        assertFalse(target.entrySet().iterator().hasNext());
+
+    }
+
+    @Test
+    public void testOf_Duplicate() {
+
+        Map<BigDecimal, BigDecimal> levels = new HashMap<>();
+        levels.put(new BigDecimal("1.0"), new BigDecimal("2"));
+        levels.put(new BigDecimal("1.00"), new BigDecimal("3"));
+
+        PriceLevels target = PriceLevels.ofAsks(levels);
+
+        assertEquals(target.size(), 1);
+        assertEquals(target.getBestSize(), new BigDecimal("5"));
+
+    }
+
+    @Test
+    public void testCumulative() {
+
+        PriceLevels asks = PriceLevels.ofAsks(levels());
+
+        assertEquals(asks.getCumulativeSize(0), 0.0);
+        assertEquals(asks.getCumulativeSize(1), 1.0);
+        assertEquals(asks.getCumulativeSize(2), 3.0);
+        assertEquals(asks.getCumulativeSize(3), 6.0);
+        assertEquals(asks.getCumulativeSize(9), 6.0);
+        assertEquals(asks.getCumulativeNotional(-1), 0.0);
+        assertEquals(asks.getCumulativeNotional(1), 100.0);
+        assertEquals(asks.getCumulativeNotional(2), 302.0);
+        assertEquals(asks.getCumulativeNotional(3), 608.0);
+
+        PriceLevels bids = PriceLevels.ofBids(levels());
+
+        assertEquals(bids.getCumulativeSize(1), 3.0);
+        assertEquals(bids.getCumulativeNotional(2), 508.0);
+
+    }
+
+    @Test
+    public void testCountWithin() {
+
+        PriceLevels asks = PriceLevels.ofAsks(levels());
+
+        assertEquals(asks.countWithin(new BigDecimal("99.9")), 0);
+        assertEquals(asks.countWithin(new BigDecimal("100")), 1);
+        assertEquals(asks.countWithin(new BigDecimal("101.5")), 2);
+        assertEquals(asks.countWithin(new BigDecimal("102.00")), 3);
+        assertEquals(asks.countWithin(new BigDecimal("999")), 3);
+        assertEquals(asks.countWithin(null), 0);
+
+        PriceLevels bids = PriceLevels.ofBids(levels());
+
+        assertEquals(bids.countWithin(new BigDecimal("102.1")), 0);
+        assertEquals(bids.countWithin(new BigDecimal("102")), 1);
+        assertEquals(bids.countWithin(new BigDecimal("100.5")), 2);
+        assertEquals(bids.countWithin(new BigDecimal("1")), 3);
+
+    }
+
+    @Test
+    public void testCountFor() {
+
+        PriceLevels asks = PriceLevels.ofAsks(levels());
+
+        assertEquals(asks.countFor(0), 0);
+        assertEquals(asks.countFor(0.5), 1);
+        assertEquals(asks.countFor(1), 1);
+        assertEquals(asks.countFor(1.1), 2);
+        assertEquals(asks.countFor(3), 2);
+        assertEquals(asks.countFor(6), 3);
+        assertEquals(asks.countFor(6.1), -1);
+
+        assertEquals(asks.getPriceFor(0), new BigDecimal("100"));
+        assertEquals(asks.getPriceFor(2), new BigDecimal("101"));
+        assertEquals(asks.getPriceFor(6), new BigDecimal("102"));
+        assertNull(asks.getPriceFor(7));
+
+        PriceLevels bids = PriceLevels.ofBids(levels());
+
+        assertEquals(bids.getPriceFor(4), new BigDecimal("101"));
+
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.after_sunrise.cryptocurrency.cryptotrader.framework.impl;
 
 import com.after_sunrise.cryptocurrency.cryptotrader.core.Composite;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.Key;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
 import org.apache.commons.configuration2.MapConfiguration;
 import org.testng.annotations.BeforeMethod;
@@ -16,7 +18,10 @@ import static java.math.BigDecimal.ONE;
 import static java.math.BigDecimal.TEN;
 import static org.mockito.Mockito.*;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
 /**
  * @author takanori.takase
@@ -261,6 +266,165 @@ public class AbstractServiceTest {
 
     }
 
+    @Test
+    public void testCollapsePrices_Context() throws Exception {
+
+        Context context = mock(Context.class);
+        Key key = Key.builder().site("s").instrument("i").build();
+        Duration interval = Duration.ofSeconds(1);
+        Instant from = Instant.ofEpochSecond(100);
+        Instant to = from.plusSeconds(3);
+
+        // Collapsed by the context
+        NavigableMap<Instant, BigDecimal> prices = new TreeMap<>(Collections.singletonMap(from, ONE));
+        when(context.collapsePrices(key, interval, from, to, true)).thenReturn(prices);
+        assertSame(target.collapsePrices(context, key, interval, from, to, true), prices);
+        verify(context, never()).listTrades(any(), any());
+
+        // Collapsed from the trades
+        Trade trade = mock(Trade.class);
+        when(trade.getTimestamp()).thenReturn(from.plusMillis(1500));
+        when(trade.getPrice()).thenReturn(TEN);
+        when(trade.getSize()).thenReturn(ONE);
+        when(context.listTrades(key, from.minus(interval))).thenReturn(Collections.singletonList(trade));
+        prices = target.collapsePrices(context, key, interval, from, to, false);
+        assertEquals(prices.size(), 3);
+        assertNull(prices.get(from));
+        assertNull(prices.get(from.plusSeconds(1)));
+        assertEquals(prices.get(from.plusSeconds(2)), new BigDecimal("10.0000000000"));
+
+    }
+
+    private static Trade trade(long second, String price, String size) {
+        Trade t = mock(Trade.class);
+        when(t.getTimestamp()).thenReturn(second < 0 ? null : Instant.ofEpochSecond(second));
+        when(t.getPrice()).thenReturn(price == null ? null : new BigDecimal(price));
+        when(t.getSize()).thenReturn(size == null ? null : new BigDecimal(size));
+        return t;
+    }
+
+    @Test
+    public void testFindLastTrade() throws Exception {
+
+        Trade t1 = trade(10, "1", "1");
+        Trade t2 = trade(13, "2", "1");
+        Trade t3 = trade(13, "3", "1"); // Tied
+        Trade t4 = trade(14, null, "1");
+        Trade t5 = trade(-1, "5", "1");
+        Trade t6 = trade(12, "6", "1");
+        List<Trade> trades = Arrays.asList(t1, null, t2, t3, t4, t5, t6);
+
+        assertSame(target.findLastTrade(trades, null), t2);
+        assertSame(target.findLastTrade(trades, Instant.ofEpochSecond(12)), t2);
+        assertNull(target.findLastTrade(trades, Instant.ofEpochSecond(13)));
+        assertNull(target.findLastTrade(null, null));
+
+        // Found by the context
+        Context context = mock(Context.class);
+        Key key = Key.builder().site("s").instrument("i").build();
+        Instant from = Instant.ofEpochSecond(11);
+        when(context.findLastTrade(key, from)).thenReturn(Optional.of(t1));
+        assertSame(target.findLastTrade(context, key, from), t1);
+        verify(context, never()).listTrades(any(), any());
+
+        // None found by the context
+        when(context.findLastTrade(key, from)).thenReturn(Optional.empty());
+        assertNull(target.findLastTrade(context, key, from));
+        verify(context, never()).listTrades(any(), any());
+
+        // Found in the trades, if not available
+        when(context.findLastTrade(key, from)).thenReturn(null);
+        when(context.listTrades(key, from)).thenReturn(trades);
+        assertSame(target.findLastTrade(context, key, from), t2);
+
+    }
+
+    @Test
+    public void testSummarizeTrades() throws Exception {
+
+        List<Trade> trades = Arrays.asList(
+                trade(10, "100", "1"),
+                trade(11, "200", "2"),
+                trade(12, "300", "0"),
+                trade(12, "0", "3"),
+                trade(13, null, "4"),
+                trade(13, "400", null),
+                trade(-1, "500", "5"),
+                null,
+                trade(14, "600", "6")
+        );
+
+        Context.TradeSummary summary = target.summarizeTrades(trades, null, null);
+        assertEquals(summary.getCount(), 3);
+        assertEquals(summary.getSize(), new BigDecimal("9"));
+        assertEquals(summary.getNotional(), new BigDecimal("4100"));
+
+        summary = target.summarizeTrades(trades, Instant.ofEpochSecond(10), Instant.ofEpochSecond(13));
+        assertEquals(summary.getCount(), 1);
+        assertEquals(summary.getSize(), new BigDecimal("2"));
+        assertEquals(summary.getNotional(), new BigDecimal("400"));
+
+        summary = target.summarizeTrades(trades, Instant.ofEpochSecond(14), null);
+        assertEquals(summary.getCount(), 0);
+        assertEquals(summary.getSize(), BigDecimal.ZERO);
+        assertEquals(summary.getNotional(), BigDecimal.ZERO);
+
+        assertNull(target.summarizeTrades(null, null, null));
+
+        // Summarized by the context
+        Context context = mock(Context.class);
+        Key key = Key.builder().site("s").instrument("i").build();
+        Instant from = Instant.ofEpochSecond(10);
+        Context.TradeSummary value = Context.TradeSummary.builder().count(1).size(ONE).notional(TEN).build();
+        when(context.summarizeTrades(key, from, null)).thenReturn(value);
+        assertSame(target.summarizeTrades(context, key, from, null), value);
+        verify(context, never()).listTrades(any(), any());
+
+        // Summarized from the trades
+        when(context.summarizeTrades(key, from, null)).thenReturn(null);
+        when(context.listTrades(key, from)).thenReturn(trades);
+        assertEquals(target.summarizeTrades(context, key, from, null).getCount(), 2);
+
+    }
+
+    @Test
+    public void testVisitTrades() throws Exception {
+
+        Trade t1 = trade(10, "1", "1");
+        Trade t2 = trade(12, "2", "1");
+        Trade t3 = trade(-1, "3", "1");
+        Trade t4 = trade(11, "4", "1");
+        Trade t5 = trade(13, "5", "1");
+        List<Trade> trades = Arrays.asList(t1, t2, null, t3, t4, t5);
+
+        List<Trade> visited = new ArrayList<>();
+        assertTrue(target.visitTrades(trades, null, null, visited::add));
+        assertEquals(visited, Arrays.asList(t1, t2, t4, t5));
+
+        visited.clear();
+        assertTrue(target.visitTrades(trades, Instant.ofEpochSecond(10), Instant.ofEpochSecond(12), visited::add));
+        assertEquals(visited, Arrays.asList(t2, t4));
+
+        assertFalse(target.visitTrades(null, null, null, visited::add));
+
+        // Visited by the context
+        visited.clear();
+        Context context = mock(Context.class);
+        Key key = Key.builder().site("s").instrument("i").build();
+        Instant from = Instant.ofEpochSecond(11);
+        when(context.visitTrades(eq(key), eq(from), isNull(Instant.class), any())).thenReturn(true);
+        target.visitTrades(context, key, from, null, visited::add);
+        assertEquals(visited.size(), 0);
+        verify(context, never()).listTrades(any(), any());
+
+        // Visited in the trades
+        when(context.visitTrades(eq(key), eq(from), isNull(Instant.class), any())).thenReturn(false);
+        when(context.listTrades(key, from)).thenReturn(trades);
+        target.visitTrades(context, key, from, null, visited::add);
+        assertEquals(visited, Arrays.asList(t2, t5));
+
+    }
+
     @Test
     public void testCalculateReturns() throws Exception {
 
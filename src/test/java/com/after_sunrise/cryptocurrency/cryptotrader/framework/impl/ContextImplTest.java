@@ -4,6 +4,7 @@ import com.after_sunrise.cryptocurrency.cryptotrader.TestModule;
 import com.after_sunrise.cryptocurrency.cryptotrader.core.ServiceFactory;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.Key;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.TradeSummary;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CancelInstruction;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CreateInstruction;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Order;
@@ -14,18 +15,27 @@ import org.testng.annotations.Test;
 
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 
 import static java.math.BigDecimal.ONE;
 import static java.math.RoundingMode.DOWN;
 import static java.util.Collections.*;
 import static org.mockito.Mockito.*;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
 /**
  * @author takanori.takase
@@ -202,6 +212,94 @@ public class ContextImplTest {
 
     }
 
+    @Test
+    public void testCollapsePrices() {
+
+        Instant from = Instant.now();
+
+        Duration interval = Duration.ofMinutes(1);
+
+        NavigableMap<Instant, BigDecimal> value = new TreeMap<>(singletonMap(from, ONE));
+
+        when(contexts.get("c1").collapsePrices(key, interval, from, from.plus(interval), true)).thenReturn(value);
+
+        assertEquals(target.collapsePrices(key, interval, from, from.plus(interval), true), value);
+
+    }
+
+    @Test
+    public void testFindLastTrade() {
+
+        Instant from = Instant.now();
+
+        Trade value = mock(Trade.class);
+
+        when(contexts.get("c1").findLastTrade(key, from)).thenReturn(Optional.of(value));
+
+        assertEquals(target.findLastTrade(key, from), Optional.of(value));
+
+    }
+
+    @Test
+    public void testSummarizeTrades() {
+
+        Instant from = Instant.now();
+
+        TradeSummary value = TradeSummary.builder().count(1).size(ONE).notional(ONE).build();
+
+        when(contexts.get("c1").summarizeTrades(key, from, null)).thenReturn(value);
+
+        assertEquals(target.summarizeTrades(key, from, null), value);
+
+    }
+
+    @Test
+    public void testVisitTrades() {
+
+        Instant from = Instant.now();
+
+        Consumer<Trade> visitor = t -> {
+        };
+
+        assertFalse(target.visitTrades(key, from, null, visitor));
+
+        when(contexts.get("c1").visitTrades(key, from, null, visitor)).thenReturn(true);
+
+        assertTrue(target.visitTrades(key, from, null, visitor));
+
+    }
+
+    @Test
+    public void testVisitHistory() {
+
+        Instant from = Instant.now();
+
+        Consumer<Trade> visitor = t -> {
+        };
+
+        assertFalse(target.visitHistory(key, from, null, visitor));
+
+        when(contexts.get("c1").visitHistory(key, from, null, visitor)).thenReturn(true);
+
+        assertTrue(target.visitHistory(key, from, null, visitor));
+
+    }
+
+    @Test
+    public void testImportTrades() {
+
+        Path path = Paths.get("trades.csv");
+
+        when(contexts.get("c1").importTrades(key, path)).thenReturn(null);
+
+        assertNull(target.importTrades(key, path));
+
+        when(contexts.get("c1").importTrades(key, path)).thenReturn(2L);
+
+        assertEquals(target.importTrades(key, path), (Long) 2L);
+
+    }
+
     @Test
     public void testGetInstrumentCurrency() {
 
@@ -0,0 +1,162 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.framework.impl;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.MarketBus;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.MarketEvent;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.after_sunrise.cryptocurrency.cryptotrader.framework.MarketEvent.Type.*;
+import static java.math.BigDecimal.ONE;
+import static java.math.BigDecimal.TEN;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class MarketBusImplTest {
+
+    private MarketBusImpl target;
+
+    private Instant now;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        target = new MarketBusImpl(4);
+
+        now = Instant.ofEpochMilli(1234567890);
+
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        target.close();
+    }
+
+    @Test
+    public void testConstructor() {
+
+        new MarketBusImpl().close();
+
+        for (int capacity : new int[]{0, -1, 3, 6}) {
+            try {
+                new MarketBusImpl(capacity);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // Success
+            }
+        }
+
+    }
+
+    @Test
+    public void testPublish() {
+
+        // No reader
+        for (int i = 0; i < 10; i++) {
+            assertTrue(target.publishTrade("s", "i", now, TEN, ONE));
+        }
+
+        MarketBus.Reader reader = target.reader();
+        assertEquals(reader.getSequence(), 9);
+
+        List<String> events = new ArrayList<>();
+        MarketBus.Handler handler = (e, s, b) -> events.add(s + ":" + e.getType() + ":" + e.getInstrument()
+                + ":" + e.getPrice() + ":" + e.getSize() + ":" + e.getAskPrice() + ":" + e.getBidSize() + ":" + b);
+
+        assertEquals(reader.poll(handler, 10), 0);
+
+        assertTrue(target.publishTick("s", "t", now, TEN, ONE, ONE, TEN, TEN));
+        assertTrue(target.publishBook("s", "b", now, ONE, ONE, TEN, TEN));
+        assertTrue(target.publishTrade("s", "x", now, TEN, ONE));
+        assertEquals(reader.poll(handler, 10), 3);
+        assertEquals(events.get(0), "10:TICK:t:10:null:1:10:false");
+        assertEquals(events.get(1), "11:BOOK:b:null:null:1:10:false");
+        assertEquals(events.get(2), "12:TRADE:x:10:1:null:null:true");
+        assertEquals(reader.getSequence(), 12);
+
+        // Dropped while the reader is behind by the capacity.
+        for (int i = 0; i < 4; i++) {
+            assertTrue(target.publishTrade("s", "i" + i, now, TEN, ONE));
+        }
+        assertFalse(target.publishTrade("s", "i4", now, TEN, ONE));
+        assertEquals(target.getDropped(), 1);
+
+        // Limited batch, and failures are isolated.
+        events.clear();
+        assertEquals(reader.poll((e, s, b) -> {
+            events.add(e.getInstrument() + ":" + b);
+            throw new Exception("test");
+        }, 3), 3);
+        assertEquals(events.toString(), "[i0:false, i1:false, i2:true]");
+        assertTrue(target.publishTrade("s", "i5", now, TEN, ONE));
+        assertEquals(reader.poll(handler, 0), 0);
+        assertEquals(reader.poll(handler, 10), 2);
+
+        // Not gated after closed.
+        reader.close();
+        reader.close();
+        for (int i = 0; i < 8; i++) {
+            assertTrue(target.publishBook("s", "i", now, ONE, ONE, TEN, TEN));
+        }
+        assertEquals(target.getDropped(), 1);
+
+    }
+
+    @Test(timeOut = 10000)
+    public void testSubscribe() throws Exception {
+
+        int count = 10000;
+
+        int writers = 4;
+
+        CountDownLatch latch = new CountDownLatch(count * writers);
+
+        List<MarketEvent.Type> types = new CopyOnWriteArrayList<>();
+
+        MarketBus.Reader reader = target.subscribe("test", (e, s, b) -> {
+
+            if (e.getType() != TRADE) {
+                types.add(e.getType());
+            }
+
+            latch.countDown();
+
+        });
+
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < writers; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < count; i++) {
+                    while (!target.publishTrade("s", "i", now, BigDecimal.valueOf(i), ONE)) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+
+        threads.forEach(Thread::start);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(types.size(), 0);
+
+        while (reader.getSequence() != count * writers - 1) {
+            Thread.sleep(1); // Advanced after the batch.
+        }
+
+        reader.close();
+
+    }
+
+}
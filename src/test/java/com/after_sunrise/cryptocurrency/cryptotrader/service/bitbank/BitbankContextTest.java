@@ -1,21 +1,32 @@
 package com.after_sunrise.cryptocurrency.cryptotrader.service.bitbank;
 
+import cc.bitbank.Bitbankcc;
+import cc.bitbank.entity.Transactions;
+import cc.bitbank.entity.enums.CurrencyPair;
 import cc.bitbank.entity.enums.OrderSide;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.Key;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CancelInstruction;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CreateInstruction;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Order.Execution;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
 import com.google.common.collect.Sets;
 import org.apache.commons.configuration2.builder.fluent.Configurations;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.lang3.StringUtils;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -26,12 +37,13 @@ import static com.after_sunrise.cryptocurrency.cryptotrader.framework.Service.Cu
 import static com.after_sunrise.cryptocurrency.cryptotrader.framework.Service.CurrencyType.JPY;
 import static com.after_sunrise.cryptocurrency.cryptotrader.service.bitbank.BitbankService.ID;
 import static com.after_sunrise.cryptocurrency.cryptotrader.service.bitbank.BitbankService.ProductType.BTC_JPY;
+import static java.math.BigDecimal.ONE;
 import static java.math.BigDecimal.ZERO;
 import static java.math.BigDecimal.valueOf;
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toSet;
 import static org.mockito.Mockito.*;
-import static org.testng.Assert.assertEquals;
-import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.*;
 
 /**
  * @author takanori.takase
@@ -43,12 +55,23 @@ public class BitbankContextTest {
 
     @BeforeMethod
     public void setUp() throws Exception {
+
         target = spy(new BitbankContext());
+
+        doNothing().when(target).scheduleSocket(any());
+
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        target.close();
     }
 
     @Test(enabled = false)
     public void test() throws ConfigurationException {
 
+        doCallRealMethod().when(target).scheduleSocket(any());
+
         Path path = Paths.get(System.getProperty("user.home"), ".cryptotrader");
         target.setConfiguration(new Configurations().properties(path.toAbsolutePath().toFile()));
         Key key = Key.builder().site(ID).instrument(BTC_JPY.name()).timestamp(Instant.now()).build();
@@ -152,13 +175,231 @@ public class BitbankContextTest {
         verify(target).findOrder(key, "5");
         verify(target).findOrder(key, "6");
 
-        // Terminated orders without fills are cleared.
-        assertEquals(target.getCachedOrders().size(), 5);
-        assertTrue(target.getCachedOrders().containsKey(1L));
-        assertTrue(target.getCachedOrders().containsKey(2L));
-        assertTrue(target.getCachedOrders().containsKey(3L));
-        assertTrue(target.getCachedOrders().containsKey(4L));
-        assertTrue(target.getCachedOrders().containsKey(6L));
+        // Terminated orders are retained, with fills or not. Unknown ones are cleared.
+        assertEquals(target.getCachedOrders().keySet(), Sets.newHashSet(0L, 1L, 2L, 3L, 4L, 6L, 7L));
+
+        // Terminated orders are no longer queried.
+        executions = target.listExecutions(key);
+        assertEquals(executions.size(), 4);
+        verify(target, times(7)).findOrder(any(), anyString());
+        verify(target, never()).findOrder(key, "0");
+        verify(target, never()).findOrder(key, "7");
+
+    }
+
+    @Test
+    public void testListExecutions_Settled() {
+
+        Key key = Key.builder().site("s").instrument("i").timestamp(Instant.now()).build();
+
+        Instant now = Instant.ofEpochMilli(1505230800000L);
+        doReturn(now).when(target).getNow();
+        doReturn(null).when(target).findOrder(any(), any());
+
+        IntStream.range(0, 3).mapToObj(i -> {
+            cc.bitbank.entity.Order o = new cc.bitbank.entity.Order();
+            o.orderId = i;
+            o.side = OrderSide.BUY;
+            o.status = i == 2 ? "UNFILLED" : "FULLY_FILLED";
+            o.executedAmount = valueOf(i + 1);
+            return new BitbankOrder(o);
+        }).forEach(o -> {
+            target.getCachedOrders().put(o.getDelegate().orderId, o);
+            doReturn(o).when(target).findOrder(key, o.getId());
+        });
+
+        List<Execution> executions = target.listExecutions(key);
+        assertEquals(executions.size(), 3);
+        assertEquals(executions.get(0).getId(), "0");
+        assertEquals(executions.get(1).getId(), "1");
+        assertEquals(executions.get(2).getId(), "2");
+        verify(target).findOrder(key, "2");
+
+        // Settled orders are served as derived, regardless of the subsequent changes.
+        target.getCachedOrders().get(0L).getDelegate().executedAmount = ZERO;
+        List<Execution> cached = target.listExecutions(key);
+        assertEquals(cached.size(), 3);
+        assertSame(cached.get(0), executions.get(0));
+        assertSame(cached.get(1), executions.get(1));
+        assertNotSame(cached.get(2), executions.get(2));
+        verify(target, times(2)).findOrder(key, "2");
+
+        // Retained until expiry.
+        doReturn(now.plus(Duration.ofDays(1))).when(target).getNow();
+        assertEquals(target.listExecutions(key).size(), 3);
+        assertEquals(target.getCachedOrders().size(), 3);
+
+        doReturn(now.plus(Duration.ofDays(1)).plusMillis(1)).when(target).getNow();
+        executions = target.listExecutions(key);
+        assertEquals(executions.size(), 1);
+        assertEquals(executions.get(0).getId(), "2");
+        assertEquals(target.getCachedOrders().keySet(), Sets.newHashSet(2L));
+
+    }
+
+    @Test
+    public void testCacheOrder() {
+
+        Key key = Key.builder().site("s").instrument("i").timestamp(Instant.now()).build();
+
+        doReturn(null).when(target).findOrder(any(), any());
+
+        List<BitbankOrder> orders = IntStream.range(0, 40).mapToObj(i -> {
+            cc.bitbank.entity.Order o = new cc.bitbank.entity.Order();
+            o.orderId = i;
+            o.side = OrderSide.BUY;
+            o.status = i % 2 == 0 ? (i % 4 == 0 ? "FULLY_FILLED" : "CANCELED_UNFILLED") : "UNFILLED";
+            o.executedAmount = i % 4 == 0 ? ONE : ZERO;
+            return new BitbankOrder(o);
+        }).collect(toList());
+        orders.forEach(o -> doReturn(o).when(target).findOrder(key, o.getId()));
+
+        // Oldest of all, if none settled.
+        orders.subList(0, 33).forEach(target::cacheOrder);
+        assertEquals(target.getCachedOrders().size(), 32);
+        assertEquals(target.getCachedOrders().firstKey(), (Long) 1L);
+
+        // Earliest terminated, filled or not, preferred to the active.
+        target.listExecutions(key);
+        orders.subList(33, 36).forEach(target::cacheOrder);
+        assertEquals(target.getCachedOrders().size(), 32);
+        assertEquals(target.getCachedOrders().firstKey(), (Long) 1L);
+        assertFalse(target.getCachedOrders().containsKey(2L));
+        assertFalse(target.getCachedOrders().containsKey(4L));
+        assertFalse(target.getCachedOrders().containsKey(6L));
+        assertTrue(target.getCachedOrders().containsKey(8L));
+        assertTrue(target.getCachedOrders().containsKey(35L));
+
+    }
+
+    @Test
+    public void testConvertPair() {
+
+        assertEquals(BitbankContext.convertPair("BTC_JPY"), "btc_jpy");
+        assertNull(BitbankContext.convertPair("FOO_BAR"));
+        assertNull(BitbankContext.convertPair(null));
+
+        assertEquals(BitbankContext.convertProduct("btc_jpy"), "BTC_JPY");
+        assertNull(BitbankContext.convertProduct("foo_bar"));
+        assertNull(BitbankContext.convertProduct(null));
+
+    }
+
+    @Test
+    public void testSubscribe() {
+
+        assertTrue(target.subscribe("btc_jpy"));
+        assertTrue(target.subscribe("btc_jpy"));
+        assertFalse(target.subscribe(null));
+        assertFalse(target.subscribe(""));
+        verify(target).scheduleSocket(any());
+
+    }
+
+    @Test
+    public void testSendSubscribe() throws Exception {
+
+        Session session = mock(Session.class);
+        RemoteEndpoint.Basic remote = mock(RemoteEndpoint.Basic.class);
+        when(session.getBasicRemote()).thenReturn(remote);
+
+        target.sendSubscribe(session, Arrays.asList("depth_whole_btc_jpy", "ticker_btc_jpy"));
+        verify(remote).sendText("42[\"join-room\",\"depth_whole_btc_jpy\"]");
+        verify(remote).sendText("42[\"join-room\",\"ticker_btc_jpy\"]");
+
+    }
+
+    @Test
+    public void testOnWebSocketMessage() throws Exception {
+
+        Instant now = Instant.ofEpochMilli(1505230800000L);
+        doReturn(now).when(target).getNow();
+
+        Key key = Key.builder().site(ID).instrument(BTC_JPY.name()).timestamp(now).build();
+        Session session = mock(Session.class);
+
+        // Seeded by the latest trades on open.
+        Transactions.Transaction t = new Transactions.Transaction();
+        t.transactionId = 12L;
+        t.side = "sell";
+        t.price = 1000000;
+        t.amount = new BigDecimal("0.5");
+        t.executedAt = new Date(1505230799000L);
+        Transactions transactions = new Transactions();
+        transactions.transactions = new Transactions.Transaction[]{t, null};
+        Bitbankcc api = mock(Bitbankcc.class);
+        when(api.getTransaction(CurrencyPair.BTC_JPY)).thenReturn(transactions);
+        doReturn(api).when(target).getLocalApi();
+
+        assertTrue(target.subscribe("btc_jpy"));
+        target.onWebSocketOpen(session);
+
+        target.onWebSocketMessage("0{\"sid\":\"abc\",\"pingInterval\":25000}", session);
+        target.onWebSocketMessage("40", session);
+        target.onWebSocketMessage("3", session);
+        target.onWebSocketMessage("42[\"message\"]", session);
+        target.onWebSocketMessage("42[\"message\",{\"message\":{}}]", session);
+        target.onWebSocketMessage("42[\"message\",{\"room_name\":\"depth_whole_btc_jpy\"}]", session);
+        target.onWebSocketMessage("42[\"message\",{\"room_name\":\"depth_whole_btc_jpy\",\"message\":{\"data\":"
+                + "{\"asks\":[[\"1000010\",\"1.5\"],[\"1000020\",\"2.0\"]],"
+                + "\"bids\":[[\"999990\",\"3.0\"]],\"timestamp\":1505230800000,\"sequenceId\":\"100\"}}}]",
+                session);
+        target.onWebSocketMessage("42[\"message\",{\"room_name\":\"depth_diff_btc_jpy\",\"message\":{\"data\":"
+                + "{\"a\":[[\"1000010\",\"0\"]],\"b\":[[\"999995\",\"0.5\"]],\"s\":\"101\"}}}]", session);
+        target.onWebSocketMessage("42[\"message\",{\"room_name\":\"transactions_btc_jpy\",\"message\":{\"data\":"
+                + "{\"transactions\":[{\"transaction_id\":13,\"side\":\"buy\",\"price\":\"1000020\","
+                + "\"amount\":\"0.25\",\"executed_at\":1505230800000}]}}}]", session);
+        target.onWebSocketMessage("", session);
+
+        assertEquals(target.getBestAskPrice(key), new BigDecimal("1000020"));
+        assertEquals(target.getBestAskSize(key), new BigDecimal("2.0"));
+        assertEquals(target.getBestBidPrice(key), new BigDecimal("999995"));
+        assertEquals(target.getBestBidSize(key), new BigDecimal("0.5"));
+        assertEquals(target.getBidPrices(key).toString(), "{999995=0.5, 999990=3.0}");
+        assertEquals(target.getLastPrice(key), new BigDecimal("1000020"));
+
+        List<Trade> trades = target.listTrades(key, Instant.ofEpochMilli(1505230799000L));
+        assertEquals(trades.size(), 2);
+        assertEquals(trades.get(0).getPrice(), new BigDecimal("1000000.0"));
+        assertEquals(trades.get(0).getTimestamp(), Instant.ofEpochMilli(1505230799000L));
+        assertEquals(trades.get(1).getPrice(), new BigDecimal("1000020"));
+        assertEquals(trades.get(1).getSize(), new BigDecimal("0.25"));
+
+        // Ticker precedes the trades.
+        target.onWebSocketMessage("42[\"message\",{\"room_name\":\"ticker_btc_jpy\",\"message\":{\"data\":"
+                + "{\"sell\":\"1000020\",\"buy\":\"999995\",\"last\":\"1000030\"}}}]", session);
+        assertEquals(target.getLastPrice(key), new BigDecimal("1000030"));
+
+        // Reset on close, and falls back to the api.
+        target.onWebSocketClose(session, null);
+        target.clear();
+        when(api.getTransaction(CurrencyPair.BTC_JPY)).thenReturn(null);
+        assertNull(target.getLastPrice(key));
+        assertEquals(target.listTrades(key, null).size(), 0);
+
+        target.onWebSocketPong(null);
+        target.onWebSocketError(session, new IOException("test"));
+
+    }
+
+    @Test
+    public void testBackfillTrades() throws Exception {
+
+        Bitbankcc api = mock(Bitbankcc.class);
+        doReturn(api).when(target).getLocalApi();
+
+        // Unknown
+        target.backfillTrades("foo_bar");
+        verifyZeroInteractions(api);
+
+        when(api.getTransaction(CurrencyPair.BTC_JPY)).thenThrow(new RuntimeException("test"));
+
+        try {
+            target.backfillTrades("btc_jpy");
+            fail();
+        } catch (IOException e) {
+            // Success
+        }
 
     }
 
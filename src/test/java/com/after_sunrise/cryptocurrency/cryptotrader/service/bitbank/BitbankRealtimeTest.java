@@ -0,0 +1,185 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.bitbank;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape.TapeTrade;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.stream.Collectors.toList;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class BitbankRealtimeTest {
+
+    private static final Duration EXPIRY = Duration.ofSeconds(30);
+
+    private BitbankRealtime target;
+
+    private Instant now;
+
+    private List<String> notified;
+
+    private BitbankRealtime.Listener listener;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        Gson gson = new GsonBuilder().registerTypeAdapter(Instant.class,
+                (JsonDeserializer<Instant>) (j, t, c) -> Instant.ofEpochMilli(j.getAsLong())).create();
+
+        target = new BitbankRealtime(gson);
+
+        now = Instant.ofEpochSecond(1505230800);
+
+        notified = new ArrayList<>();
+
+        listener = new BitbankRealtime.Listener() {
+
+            @Override
+            public void onTrade(String pair, BitbankTrade trade) {
+                notified.add(pair + ":" + trade.getId());
+            }
+
+            @Override
+            public void onBook(String pair,
+                               Map.Entry<BigDecimal, BigDecimal> ask, Map.Entry<BigDecimal, BigDecimal> bid) {
+                notified.add(pair + ":" + ask + ":" + bid);
+            }
+
+            @Override
+            public void onTick(String pair, BigDecimal last, BigDecimal ask, BigDecimal bid) {
+                notified.add(pair + ":" + last + ":" + ask + ":" + bid);
+            }
+
+        };
+
+    }
+
+    private static JsonObject json(String value) {
+        return new JsonParser().parse(value.replace('\'', '"')).getAsJsonObject();
+    }
+
+    private static BitbankTrade trade(long id, long seconds) {
+        return BitbankTrade.builder().id(id).timestamp(Instant.ofEpochSecond(seconds))
+                .price(BigDecimal.valueOf(id)).size(BigDecimal.ONE).build();
+    }
+
+    private static List<Long> ids(List<TapeTrade> trades) {
+        return trades.stream().map(TapeTrade::getId).collect(toList());
+    }
+
+    @Test
+    public void testDepth() {
+
+        target.apply(now, null, null, listener);
+        target.apply(now, "depth_whole_btc_jpy", null, listener);
+        assertNull(target.getDepth(now, EXPIRY, "btc_jpy"));
+
+        // Buffered before the whole.
+        target.apply(now, "depth_diff_btc_jpy", json("{'a':[['101','0']],'b':[],'t':1,'s':'10'}"), listener);
+        target.apply(now, "depth_diff_btc_jpy", json("{'a':[],'b':[['98','7']],'t':1,'s':'12'}"), listener);
+        assertNull(target.getDepth(now, EXPIRY, "btc_jpy"));
+        assertEquals(notified.size(), 0);
+
+        // Replayed after the whole, except for the ones already in.
+        target.apply(now, "depth_whole_btc_jpy", json("{'asks':[['101','1'],['102','2']],"
+                + "'bids':[['99','3'],['98','4']],'timestamp':1,'sequenceId':'11'}"), listener);
+        BitbankDepth depth = target.getDepth(now, EXPIRY, "btc_jpy");
+        assertEquals(depth.getTimestamp(), now);
+        assertEquals(depth.getAsks().toString(), "{101=1, 102=2}");
+        assertEquals(depth.getBids().toString(), "{99=3, 98=7}");
+
+        target.apply(now, "depth_diff_btc_jpy", json("{'a':[['101','0'],['100','5']],'b':[],'s':'13'}"), listener);
+        target.apply(now, "depth_diff_btc_jpy", json("{'a':[['100','6']],'b':[],'s':'13'}"), listener);
+        target.apply(now, "depth_diff_btc_jpy", json("{'a':[[]],'b':[['99','0']]}"), listener);
+        assertEquals(target.getDepth(now, EXPIRY, "btc_jpy").getAsks().toString(), "{100=5, 102=2}");
+        assertEquals(target.getDepth(now, EXPIRY, "btc_jpy").getBids().toString(), "{99=3, 98=7}");
+        assertEquals(notified.toString(), "[btc_jpy:101=1:99=3, btc_jpy:100=5:99=3]");
+
+        // Copied
+        assertEquals(depth.getAsks().toString(), "{101=1, 102=2}");
+
+        // Silent
+        assertNull(target.getDepth(now.plus(EXPIRY).plusMillis(1), EXPIRY, "btc_jpy"));
+        assertNull(target.getDepth(now, EXPIRY, "xrp_jpy"));
+
+        target.reset();
+        assertNull(target.getDepth(now, EXPIRY, "btc_jpy"));
+
+    }
+
+    @Test
+    public void testTicker() {
+
+        assertNull(target.getLastPrice(now, EXPIRY, "btc_jpy"));
+
+        target.apply(now, "transactions_btc_jpy", json("{'transactions':[{'transaction_id':12,'side':'buy',"
+                + "'price':'101','amount':'0.5','executed_at':1505230799000}]}"), listener);
+        assertEquals(target.getLastPrice(now, EXPIRY, "btc_jpy"), new BigDecimal("101"));
+
+        target.apply(now, "ticker_btc_jpy", json("{'sell':'102','buy':'100','last':'102','timestamp':1}"), listener);
+        target.apply(now, "ticker_btc_jpy", json("{'sell':'103','buy':'100'}"), listener);
+        assertEquals(target.getLastPrice(now, EXPIRY, "btc_jpy"), new BigDecimal("102"));
+        assertEquals(notified.toString(), "[btc_jpy:12, btc_jpy:102:102:100, btc_jpy:null:103:100]");
+
+        assertNull(target.getLastPrice(now, EXPIRY, "xrp_jpy"));
+        assertNull(target.getLastPrice(now.plus(EXPIRY).plusMillis(1), EXPIRY, "btc_jpy"));
+
+    }
+
+    @Test
+    public void testTrades() {
+
+        target.apply(now, "transactions_btc_jpy", json("{'transactions':["
+                + "{'transaction_id':12,'side':'buy','price':'101','amount':'0.5','executed_at':1505230799000},"
+                + "{'transaction_id':13,'side':'sell','price':'100','amount':'0.25','executed_at':1505230800000},"
+                + "{'transaction_id':14}]}"), listener);
+        target.apply(now, "transactions_btc_jpy", json("{}"), listener);
+        assertEquals(notified.toString(), "[btc_jpy:12, btc_jpy:13]");
+
+        List<TapeTrade> trades = target.getTrades(now, EXPIRY, "btc_jpy", Instant.ofEpochSecond(1505230799));
+        assertEquals(ids(trades), Arrays.asList(12L, 13L));
+        assertEquals(trades.get(0).getPrice(), new BigDecimal("101"));
+        assertEquals(trades.get(0).getSize(), new BigDecimal("0.5"));
+        assertEquals(trades.get(0).getTimestamp(), Instant.ofEpochSecond(1505230799));
+        assertNull(target.getTrades(now, EXPIRY, "btc_jpy", Instant.ofEpochSecond(1505230798)));
+        assertNull(target.getTrades(now, EXPIRY, "btc_jpy", null));
+        assertNull(target.getTrades(now.plus(EXPIRY).plusMillis(1), EXPIRY, "btc_jpy", now));
+
+        // Backfilled
+        target.merge(now, "btc_jpy", Arrays.asList(trade(11, 1505230790), trade(12, 1505230799), null), listener);
+        assertEquals(ids(target.getTrades(now, EXPIRY, "btc_jpy", Instant.ofEpochSecond(1505230790))),
+                Arrays.asList(11L, 12L, 13L));
+        assertEquals(notified.toString(), "[btc_jpy:12, btc_jpy:13, btc_jpy:11]");
+
+        // Evicted
+        target.merge(Instant.ofEpochSecond(1505230799).plus(Duration.ofHours(24)), "btc_jpy",
+                Collections.emptyList(), listener);
+        assertEquals(ids(target.getTrades(now, EXPIRY, "btc_jpy", Instant.ofEpochSecond(1505230800))),
+                Arrays.asList(13L));
+        assertNull(target.getTrades(now, EXPIRY, "btc_jpy", Instant.ofEpochSecond(1505230799)));
+
+        target.merge(now, null, null, listener);
+
+        target.reset();
+        assertNull(target.getTrades(now, EXPIRY, "btc_jpy", now));
+
+    }
+
+}
@@ -7,9 +7,12 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -37,6 +40,8 @@ public class BitfinexContextTest {
 
         doReturn(null).when(target).request(any(), any(), any(), any());
 
+        doNothing().when(target).scheduleSocket(any());
+
     }
 
     @AfterMethod
@@ -48,6 +53,7 @@ public class BitfinexContextTest {
     public void test() throws IOException {
 
         doCallRealMethod().when(target).request(any(), any(), any(), any());
+        doCallRealMethod().when(target).scheduleSocket(any());
 
         Key key = Key.builder().instrument("ethbtc").build();
 
@@ -144,12 +150,12 @@ public class BitfinexContextTest {
         // Found
         List<Trade> values = target.listTrades(key, null);
         assertEquals(values.size(), 2);
-        assertEquals(values.get(0).getTimestamp(), Instant.ofEpochMilli(1505489261000L));
-        assertEquals(values.get(0).getPrice(), new BigDecimal("0.11532"));
-        assertEquals(values.get(0).getSize(), new BigDecimal("0.021299"));
-        assertEquals(values.get(1).getTimestamp(), Instant.ofEpochMilli(1505489259000L));
-        assertEquals(values.get(1).getPrice(), new BigDecimal("0.11593"));
-        assertEquals(values.get(1).getSize(), new BigDecimal("2.9992"));
+        assertEquals(values.get(0).getTimestamp(), Instant.ofEpochMilli(1505489259000L));
+        assertEquals(values.get(0).getPrice(), new BigDecimal("0.11593"));
+        assertEquals(values.get(0).getSize(), new BigDecimal("2.9992"));
+        assertEquals(values.get(1).getTimestamp(), Instant.ofEpochMilli(1505489261000L));
+        assertEquals(values.get(1).getPrice(), new BigDecimal("0.11532"));
+        assertEquals(values.get(1).getSize(), new BigDecimal("0.021299"));
 
         // Cached
         doReturn(null).when(target).request(any(), any(), any(), any());
@@ -159,7 +165,102 @@ public class BitfinexContextTest {
         // Filtered
         List<Trade> filtered = target.listTrades(key, Instant.ofEpochMilli(1505489260000L));
         assertEquals(filtered.size(), 1);
-        assertEquals(filtered.get(0), values.get(0));
+        assertEquals(filtered.get(0), values.get(1));
+
+        // Only the new ones, deduplicated.
+        Key next = Key.build(key).timestamp(Instant.ofEpochMilli(1505489262000L)).build();
+        doReturn("[{\"timestamp\":1505489262,\"tid\":67060815,\"price\":\"0.11540\",\"amount\":\"1\"},"
+                + "{\"timestamp\":1505489261,\"tid\":67060814,\"price\":\"0.11532\",\"amount\":\"0.021299\"}]")
+                .when(target).request(GET, URL_TRADE + key.getInstrument() + "?timestamp=1505489261", null, null);
+        List<Trade> merged = target.listTrades(next, null);
+        assertEquals(merged.size(), 3);
+        assertEquals(merged.subList(0, 2), values);
+        assertEquals(merged.get(2).getPrice(), new BigDecimal("0.11540"));
+
+    }
+
+    @Test
+    public void testConvertSymbol() {
+        assertEquals(BitfinexContext.convertSymbol("btcusd"), "tBTCUSD");
+        assertNull(BitfinexContext.convertSymbol(""));
+        assertNull(BitfinexContext.convertSymbol(null));
+    }
+
+    @Test
+    public void testSendSubscribe() throws Exception {
+
+        Session session = mock(Session.class);
+        RemoteEndpoint.Basic remote = mock(RemoteEndpoint.Basic.class);
+        when(session.getBasicRemote()).thenReturn(remote);
+
+        target.sendSubscribe(session, Arrays.asList("book:tBTCUSD", "trades:tBTCUSD"));
+        verify(remote).sendText("{\"event\":\"conf\",\"flags\":131072}");
+        verify(remote).sendText("{\"event\":\"subscribe\",\"channel\":\"book\",\"symbol\":\"tBTCUSD\","
+                + "\"prec\":\"P0\",\"len\":\"25\"}");
+        verify(remote).sendText("{\"event\":\"subscribe\",\"channel\":\"trades\",\"symbol\":\"tBTCUSD\"}");
+
+    }
+
+    @Test
+    public void testOnWebSocketMessage() throws Exception {
+
+        Instant now = Instant.ofEpochMilli(1505489262000L);
+        doReturn(now).when(target).getNow();
+
+        Key key = Key.builder().instrument("btcusd").timestamp(now).build();
+        Session session = mock(Session.class);
+
+        // Seeded by the latest trades on open.
+        String data = Resources.toString(getResource("json/bitfinex_trade.json"), UTF_8);
+        doReturn(data).when(target).request(GET, URL_TRADE + "btcusd", null, null);
+        assertEquals(target.listTrades(key, now).size(), 0);
+        assertFalse(target.queryTick(key).isPresent());
+        target.onWebSocketOpen(session);
+        doReturn(null).when(target).request(any(), any(), any(), any());
+
+        target.onWebSocketMessage("{\"event\":\"subscribed\",\"channel\":\"ticker\",\"chanId\":1,"
+                + "\"symbol\":\"tBTCUSD\"}", session);
+        target.onWebSocketMessage("{\"event\":\"subscribed\",\"channel\":\"book\",\"chanId\":2,"
+                + "\"symbol\":\"tBTCUSD\",\"prec\":\"P0\",\"len\":\"25\"}", session);
+        target.onWebSocketMessage("{\"event\":\"subscribed\",\"channel\":\"trades\",\"chanId\":3,"
+                + "\"symbol\":\"tBTCUSD\"}", session);
+        target.onWebSocketMessage("[1,[0.1152,1.5,0.1154,2.5,0.001,0.01,0.1153,100,0.12,0.11]]", session);
+        target.onWebSocketMessage("[2,[[0.1152,1,1.5],[0.1151,2,3],[0.1154,1,-2.5]]]", session);
+        target.onWebSocketMessage("[2,[0.1155,1,-1]]", session);
+        target.onWebSocketMessage("[3,[[67060815,1505489261500,-0.5,0.11535]]]", session);
+        target.onWebSocketMessage("[3,\"te\",[67060816,1505489261800,0.25,0.1154]]", session);
+        target.onWebSocketMessage("[3,\"tu\",[67060816,1505489261800,0.25,0.1154]]", session);
+        target.onWebSocketMessage("[3,\"hb\"]", session);
+        target.onWebSocketMessage("", session);
+
+        BitfinexTick tick = target.queryTick(key).get();
+        assertEquals(tick.getBid(), new BigDecimal("0.1152"));
+        assertEquals(tick.getAsk(), new BigDecimal("0.1154"));
+        assertEquals(tick.getLast(), new BigDecimal("0.1153"));
+
+        assertEquals(target.getAskPrices(key).toString(), "{0.1154=2.5, 0.1155=1}");
+        assertEquals(target.getBidPrices(key).toString(), "{0.1152=1.5, 0.1151=3}");
+
+        List<Trade> trades = target.listTrades(key, Instant.ofEpochMilli(1505489260000L));
+        assertEquals(trades.size(), 3);
+        assertEquals(trades.get(0).getPrice(), new BigDecimal("0.11532"));
+        assertEquals(trades.get(1).getPrice(), new BigDecimal("0.11535"));
+        assertEquals(trades.get(1).getSize(), new BigDecimal("0.5"));
+        assertEquals(trades.get(2).getPrice(), new BigDecimal("0.1154"));
+
+        // Checksum mismatch
+        verify(session, never()).close();
+        target.onWebSocketMessage("[2,\"cs\",12345]", session);
+        verify(session).close();
+
+        // Reset on close.
+        target.onWebSocketClose(session, null);
+        target.clear();
+        assertFalse(target.queryTick(key).isPresent());
+        assertEquals(target.listTrades(key, now).size(), 0);
+
+        target.onWebSocketPong(null);
+        target.onWebSocketError(session, new IOException("test"));
 
     }
 
@@ -0,0 +1,194 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.bitfinex;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape.TapeTrade;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.after_sunrise.cryptocurrency.cryptotrader.service.bitfinex.BitfinexRealtime.*;
+import static java.util.stream.Collectors.toList;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class BitfinexRealtimeTest {
+
+    private static final Duration EXPIRY = Duration.ofSeconds(30);
+
+    private BitfinexRealtime target;
+
+    private Instant now;
+
+    private List<String> notified;
+
+    private BitfinexRealtime.Listener listener;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        target = new BitfinexRealtime();
+
+        now = Instant.ofEpochMilli(1505489262000L);
+
+        notified = new ArrayList<>();
+
+        listener = new BitfinexRealtime.Listener() {
+
+            @Override
+            public void onTrade(String symbol, BitfinexTrade trade) {
+                notified.add(symbol + ":" + trade.getId());
+            }
+
+            @Override
+            public void onTick(String symbol, BitfinexTick tick) {
+                notified.add(symbol + ":" + tick.getLast());
+            }
+
+        };
+
+    }
+
+    private static JsonElement json(String value) {
+        return new JsonParser().parse(value.replace('\'', '"'));
+    }
+
+    private static List<Long> ids(List<TapeTrade> trades) {
+        return trades.stream().map(TapeTrade::getId).collect(toList());
+    }
+
+    @Test
+    public void testTopic() {
+        assertEquals(topic(CHANNEL_BOOK, "tBTCUSD"), "book:tBTCUSD");
+        assertNull(topic(CHANNEL_TRADES, null));
+    }
+
+    @Test
+    public void testChecksum() {
+
+        List<String[]> bids = Arrays.asList(new String[]{"6500.1", "0.5"}, new String[]{"6500", "2"});
+        List<String[]> asks = Arrays.asList(new String[]{"6500.2", "-1.25"}, new String[]{"6501", "-0.1"});
+
+        assertEquals(checksum(bids, asks), -743960907);
+        assertEquals(checksum(bids, asks.subList(0, 1)), -1245470212);
+        assertEquals(checksum(Collections.emptyList(), Collections.emptyList()), 0);
+
+    }
+
+    @Test
+    public void testBook() {
+
+        // Not subscribed
+        assertTrue(target.apply(now, json("[2,[[6500.1,1,0.5]]]"), listener));
+        assertNull(target.getAsks(now, EXPIRY, "tBTCUSD"));
+
+        target.apply(now, json("{'event':'info','version':2}"), listener);
+        target.apply(now, json("{'event':'subscribed','channel':'book','chanId':2,'symbol':'tBTCUSD'}"), listener);
+
+        // Before snapshot
+        assertTrue(target.apply(now, json("[2,[6500.1,1,0.5]]"), listener));
+        assertTrue(target.apply(now, json("[2,'cs',1]"), listener));
+        assertNull(target.getBids(now, EXPIRY, "tBTCUSD"));
+
+        target.apply(now, json("[2,[[6500.1,1,0.5],[6500,3,2],[6500.2,1,-1.25],[6501,2,-0.1]]]"), listener);
+        assertTrue(target.apply(now, json("[2,'cs',-743960907]"), listener));
+        assertEquals(target.getAsks(now, EXPIRY, "tBTCUSD").toString(), "{6500.2=1.25, 6501=0.1}");
+        assertEquals(target.getBids(now, EXPIRY, "tBTCUSD").toString(), "{6500.1=0.5, 6500=2}");
+
+        // Removed
+        target.apply(now, json("[2,[6501,0,-1]]"), listener);
+        target.apply(now, json("[2,'hb']"), listener);
+        assertTrue(target.apply(now, json("[2,'cs',-1245470212]"), listener));
+        assertEquals(target.getAsks(now, EXPIRY, "tBTCUSD").toString(), "{6500.2=1.25}");
+
+        // Silent
+        assertNull(target.getAsks(now.plus(EXPIRY).plusMillis(1), EXPIRY, "tBTCUSD"));
+
+        // Mismatch : discarded until the next snapshot.
+        assertFalse(target.apply(now, json("[2,'cs',-743960907]"), listener));
+        assertNull(target.getAsks(now, EXPIRY, "tBTCUSD"));
+        assertNull(target.getBids(now, EXPIRY, "tBTCUSD"));
+
+        // Unsubscribed
+        target.apply(now, json("{'event':'unsubscribed','chanId':2}"), listener);
+        target.apply(now, json("[2,[[6500.1,1,0.5]]]"), listener);
+        assertNull(target.getAsks(now, EXPIRY, "tBTCUSD"));
+
+        assertEquals(notified.size(), 0);
+
+    }
+
+    @Test
+    public void testTicker() {
+
+        target.apply(now, json("{'event':'subscribed','channel':'ticker','chanId':1,'symbol':'tBTCUSD'}"), listener);
+        assertNull(target.getTick(now, EXPIRY, "tBTCUSD"));
+
+        target.apply(now, json("[1,[6500.1,1.5,6500.2,2.5,-10,-0.01,6500.15,100,6600,6400]]"), listener);
+        target.apply(now, json("[1,[6500.1]]"), listener);
+
+        BitfinexTick tick = target.getTick(now, EXPIRY, "tBTCUSD");
+        assertEquals(tick.getBid(), new BigDecimal("6500.1"));
+        assertEquals(tick.getAsk(), new BigDecimal("6500.2"));
+        assertEquals(tick.getLast(), new BigDecimal("6500.15"));
+        assertEquals(notified.toString(), "[tBTCUSD:6500.15]");
+
+        assertNull(target.getTick(now.plus(EXPIRY).plusMillis(1), EXPIRY, "tBTCUSD"));
+
+        target.reset();
+        assertNull(target.getTick(now, EXPIRY, "tBTCUSD"));
+
+    }
+
+    @Test
+    public void testTrades() {
+
+        target.apply(now, json("{'event':'subscribed','channel':'trades','chanId':3,'symbol':'tBTCUSD'}"), listener);
+        assertNull(target.getTrades(now, EXPIRY, "tBTCUSD", now));
+
+        target.apply(now, json("[3,[[12,1505489261000,0.5,6500],[11,1505489260000,-0.25,6499]]]"), listener);
+        target.apply(now, json("[3,'te',[13,1505489261500,-1,6501]]"), listener);
+        target.apply(now, json("[3,'tu',[13,1505489261500,-1,6501]]"), listener);
+        target.apply(now, json("[3,'te',[12,1505489261000,0.5,6500]]"), listener);
+        target.apply(now, json("[3,'te',[14]]"), listener);
+        assertEquals(notified.toString(), "[tBTCUSD:12, tBTCUSD:11, tBTCUSD:13]");
+
+        List<TapeTrade> trades = target.getTrades(now, EXPIRY, "tBTCUSD", Instant.ofEpochMilli(1505489260000L));
+        assertEquals(ids(trades), Arrays.asList(11L, 12L, 13L));
+        assertEquals(trades.get(0).getSize(), new BigDecimal("0.25"));
+        assertEquals(trades.get(0).getPrice(), new BigDecimal("6499"));
+        assertEquals(trades.get(0).getTimestamp(), Instant.ofEpochMilli(1505489260000L));
+
+        // Not covered
+        assertNull(target.getTrades(now, EXPIRY, "tBTCUSD", Instant.ofEpochMilli(1505489259999L)));
+        assertNull(target.getTrades(now, EXPIRY, "tBTCUSD", null));
+
+        // Backfilled
+        target.merge(now, "tBTCUSD", Arrays.asList(BitfinexTrade.builder().id(10L)
+                .timestamp(Instant.ofEpochMilli(1505489259000L)).price(BigDecimal.TEN).size(BigDecimal.ONE)
+                .build(), null), listener);
+        assertEquals(ids(target.getTrades(now, EXPIRY, "tBTCUSD", Instant.ofEpochMilli(1505489259000L))),
+                Arrays.asList(10L, 11L, 12L, 13L));
+
+        // Evicted
+        target.merge(Instant.ofEpochMilli(1505489260500L).plus(Duration.ofHours(24)), "tBTCUSD",
+                Collections.emptyList(), listener);
+        assertEquals(ids(target.getTrades(now, EXPIRY, "tBTCUSD", Instant.ofEpochMilli(1505489261000L))),
+                Arrays.asList(12L, 13L));
+        assertNull(target.getTrades(now, EXPIRY, "tBTCUSD", Instant.ofEpochMilli(1505489260000L)));
+
+        target.merge(now, null, null, listener);
+
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.bitflyer;
+
+import com.after_sunrise.cryptocurrency.bitflyer4j.entity.Board;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.math.BigDecimal.valueOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class BitflyerBookTest {
+
+    private static final Duration INTERVAL = Duration.ofSeconds(5);
+
+    private BitflyerBook target;
+
+    private Instant now;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        target = new BitflyerBook();
+
+        now = Instant.ofEpochMilli(1234567890);
+
+    }
+
+    static Board board(double[] asks, double[] bids) {
+
+        Board board = mock(Board.class);
+
+        List<Board.Quote> a = new ArrayList<>();
+
+        for (int i = 0; i < asks.length; i += 2) {
+            a.add(quote(asks[i], asks[i + 1]));
+        }
+
+        List<Board.Quote> b = new ArrayList<>();
+
+        for (int i = 0; i < bids.length; i += 2) {
+            b.add(quote(bids[i], bids[i + 1]));
+        }
+
+        when(board.getAsk()).thenReturn(a);
+        when(board.getBid()).thenReturn(b);
+
+        return board;
+
+    }
+
+    private static Board.Quote quote(double price, double size) {
+
+        Board.Quote quote = mock(Board.Quote.class);
+
+        when(quote.getPrice()).thenReturn(valueOf(price));
+        when(quote.getSize()).thenReturn(valueOf(size));
+
+        return quote;
+
+    }
+
+    private static Map<BigDecimal, BigDecimal> levels(double... values) {
+
+        Map<BigDecimal, BigDecimal> levels = new LinkedHashMap<>();
+
+        for (int i = 0; i < values.length; i += 2) {
+            levels.put(valueOf(values[i]), valueOf(values[i + 1]));
+        }
+
+        return levels;
+
+    }
+
+    private static void assertLevels(Map<BigDecimal, BigDecimal> actual, Map<BigDecimal, BigDecimal> expect) {
+        assertEquals(new ArrayList<>(actual.entrySet()), new ArrayList<>(expect.entrySet()));
+    }
+
+    @Test
+    public void testApply() {
+
+        // No snapshot yet.
+        assertNull(target.snapshot());
+        assertTrue(target.apply(now, board(new double[]{101, 1}, new double[0]), INTERVAL));
+        assertFalse(target.apply(now, board(new double[0], new double[]{99, 1}), INTERVAL));
+        assertNull(target.snapshot());
+        assertNull(target.getBestAsk());
+        assertNull(target.getBestBid());
+
+        // Snapshot with buffered deltas replayed.
+        target.reset(now, board(new double[]{102, 2, 101, 3}, new double[]{98, 4, 99, 5}));
+        BitflyerBoard board = target.snapshot();
+        assertEquals(board.getTimestamp(), now);
+        assertNull(board.getDelegate());
+        assertLevels(board.getAsks(), levels(101, 1, 102, 2));
+        assertLevels(board.getBids(), levels(99, 1, 98, 4));
+        assertEquals(target.getSequence(), 0);
+
+        // Insert, update and delete.
+        now = now.plusSeconds(1);
+        assertFalse(target.apply(now, board(new double[]{103, 3, 101, 0}, new double[]{99, 2}), INTERVAL));
+        board = target.snapshot();
+        assertEquals(board.getTimestamp(), now);
+        assertLevels(board.getAsks(), levels(102, 2, 103, 3));
+        assertLevels(board.getBids(), levels(99, 2, 98, 4));
+        assertEquals(target.getSequence(), 1);
+        assertEquals(target.getBestAsk().getKey(), valueOf(102.0));
+        assertEquals(target.getBestBid().getValue(), valueOf(2.0));
+
+        // Previous snapshot is not affected.
+        assertFalse(target.apply(now, board(new double[]{100, 1}, new double[0]), INTERVAL));
+        assertLevels(board.getAsks(), levels(102, 2, 103, 3));
+        assertLevels(target.snapshot().getAsks(), levels(100, 1, 102, 2, 103, 3));
+
+    }
+
+    @Test
+    public void testApply_Silence() {
+
+        target.reset(now, board(new double[]{101, 1}, new double[]{99, 1}));
+
+        // Gap detected.
+        now = now.plusSeconds(6);
+        assertTrue(target.apply(now, board(new double[]{101, 2}, new double[0]), INTERVAL));
+        assertNull(target.snapshot());
+
+        // Resync requested only once.
+        assertFalse(target.apply(now, board(new double[]{102, 2}, new double[0]), INTERVAL));
+
+        // Failed to resync, request again.
+        target.abort();
+        assertTrue(target.apply(now, board(new double[]{103, 2}, new double[0]), INTERVAL));
+
+        target.reset(now, board(new double[]{101, 1}, new double[]{99, 1}));
+        assertLevels(target.snapshot().getAsks(), levels(101, 2, 102, 2, 103, 2));
+        assertLevels(target.snapshot().getBids(), levels(99, 1));
+
+    }
+
+    @Test
+    public void testApply_Crossed() {
+
+        target.reset(now, board(new double[]{101, 1, 102, 2}, new double[]{99, 1, 98, 2}));
+
+        // Invalidated as soon as crossed.
+        assertTrue(target.apply(now, board(new double[0], new double[]{101, 3}), INTERVAL));
+        assertNull(target.snapshot());
+        assertNull(target.getBestAsk());
+        assertNull(target.getBestBid());
+
+        // Buffered while resyncing, instead of applied to the stale book.
+        assertFalse(target.apply(now, board(new double[]{103, 1}, new double[0]), INTERVAL)); // Already requested
+        assertFalse(target.apply(now, board(new double[0], new double[]{97, 1}), INTERVAL));
+        assertNull(target.snapshot());
+
+        // Replayed on top of the snapshot, dropping the stale levels in favor of the newest delta.
+        target.reset(now, board(new double[]{101, 1, 102, 2}, new double[]{99, 1}));
+        assertLevels(target.snapshot().getAsks(), levels(102, 2, 103, 1));
+        assertLevels(target.snapshot().getBids(), levels(101, 3, 99, 1, 97, 1));
+        assertEquals(target.getSequence(), 0);
+
+        // Snapshot clears the request.
+        assertTrue(target.apply(now, board(new double[]{99, 1}, new double[0]), INTERVAL));
+
+        // Failed to resync, request again.
+        target.abort();
+        assertTrue(target.apply(now, board(new double[]{104, 1}, new double[0]), INTERVAL));
+
+    }
+
+}
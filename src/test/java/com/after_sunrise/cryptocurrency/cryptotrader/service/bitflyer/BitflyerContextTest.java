@@ -12,17 +12,30 @@ import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.Key;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CancelInstruction;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CreateInstruction;
 import com.after_sunrise.cryptocurrency.cryptotrader.service.bitflyer.BitflyerService.ProductType;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeJournal;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape;
 import com.google.common.collect.Sets;
+import com.google.gson.JsonObject;
 import org.apache.commons.configuration2.Configuration;
+import org.apache.commons.io.FileUtils;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 
@@ -83,6 +96,8 @@ public class BitflyerContextTest {
         target.setConfiguration(module.getMock(Configuration.class));
         target = spy(target);
 
+        doReturn(module.getMock(ExecutorService.class)).when(target).getBackfillExecutor();
+
     }
 
     @AfterMethod
@@ -233,12 +248,196 @@ public class BitflyerContextTest {
         doReturn(now.plusMinutes(10).toInstant()).when(target).getNow();
         target.clear();
         target.onBoardsSnapshot("a", board);
-        assertSame(target.getBoard(key).getDelegate(), board);
+        assertEquals(target.getBoard(key).getTimestamp(), now.plusMinutes(10).toInstant());
         verify(marketService, times(4)).getBoard(any());
         verify(realtimeService, times(1)).subscribeBoard(singletonList("a"));
 
     }
 
+    @Test
+    public void testOnBoards() throws Exception {
+
+        Instant now = Instant.now();
+        Key key = Key.from(Request.builder().instrument("i").currentTime(now).build());
+        doReturn("a").when(target).convertProductAlias(key);
+        doReturn(now).when(target).getNow();
+
+        Board snapshot = BitflyerBookTest.board(new double[]{101, 1, 102, 2}, new double[]{99, 3, 98, 4});
+        Board delta = BitflyerBookTest.board(new double[]{101, 0}, new double[]{100, 5});
+
+        // Not subscribed
+        target.onBoards("a", delta);
+        verifyNoMoreInteractions(marketService);
+
+        // Subscribed, without snapshot.
+        when(marketService.getBoard(any())).thenReturn(completedFuture(null));
+        assertNull(target.getBoard(key));
+        verify(realtimeService, times(1)).subscribeBoard(singletonList("a"));
+        verify(marketService, times(1)).getBoard(any());
+
+        // Delta without snapshot. Resync snapshot and replay.
+        target.clear();
+        when(marketService.getBoard(any())).thenReturn(completedFuture(snapshot));
+        target.onBoards("a", delta);
+        verify(target).resyncBoard(eq("a"), any());
+        verify(marketService, times(2)).getBoard(any());
+
+        Map<BigDecimal, BigDecimal> asks = target.getAskPrices(key);
+        assertEquals(new ArrayList<>(asks.keySet()), singletonList(new BigDecimal("102.0")));
+        Map<BigDecimal, BigDecimal> bids = target.getBidPrices(key);
+        assertEquals(new ArrayList<>(bids.keySet()), asList(
+                new BigDecimal("100.0"), new BigDecimal("99.0"), new BigDecimal("98.0")));
+        verify(marketService, times(2)).getBoard(any());
+
+        // Applied in memory.
+        target.clear();
+        target.onBoards("a", BitflyerBookTest.board(new double[]{102, 0, 103, 1}, new double[0]));
+        assertEquals(new ArrayList<>(target.getAskPrices(key).keySet()), singletonList(new BigDecimal("103.0")));
+        verify(marketService, times(2)).getBoard(any());
+
+        // Silent for too long, failed to resync.
+        target.clear();
+        doReturn(now.plusSeconds(10)).when(target).getNow();
+        when(marketService.getBoard(any())).thenReturn(completedFuture(null));
+        target.onBoards("a", delta);
+        verify(marketService, times(3)).getBoard(any());
+        assertNull(target.getBoard(key));
+        verify(marketService, times(4)).getBoard(any());
+
+    }
+
+    @Test
+    public void testParseTime() {
+
+        assertEquals(BitflyerContext.parseTime("2019-04-11T05:14:12.3739915Z").toInstant(),
+                Instant.parse("2019-04-11T05:14:12.373991500Z"));
+        assertEquals(BitflyerContext.parseTime("2015-07-08T02:50:59.97").toInstant(),
+                Instant.parse("2015-07-08T02:50:59.970Z"));
+        assertEquals(BitflyerContext.parseTime("2017-04-05T10:37:23.623+09:00").toInstant(),
+                Instant.parse("2017-04-05T01:37:23.623Z"));
+        assertNull(BitflyerContext.parseTime(""));
+        assertNull(BitflyerContext.parseTime(null));
+
+    }
+
+    @Test
+    public void testSubscribeSocket() throws Exception {
+
+        // PubNub by default.
+        assertFalse(target.isSocketTransport());
+        target.subscribeBoard("a");
+        target.subscribeTick("a");
+        target.subscribeExecution("a");
+        verify(realtimeService).subscribeBoard(singletonList("a"));
+        verify(realtimeService).subscribeTick(singletonList("a"));
+        verify(realtimeService).subscribeExecution(singletonList("a"));
+        verify(target, never()).scheduleSocket(any());
+
+        doReturn(true).when(target).isSocketTransport();
+        doNothing().when(target).scheduleSocket(any());
+        target.subscribeBoard("BTC_JPY");
+        target.subscribeTick("BTC_JPY");
+        verify(target, times(1)).scheduleSocket(any());
+        verifyNoMoreInteractions(realtimeService);
+
+        // Subscribed on open.
+        RemoteEndpoint.Basic remote = mock(RemoteEndpoint.Basic.class);
+        Session session = mock(Session.class);
+        when(session.getBasicRemote()).thenReturn(remote);
+        when(session.isOpen()).thenReturn(true);
+        target.onWebSocketOpen(session);
+        verify(remote).sendText("{\"jsonrpc\":\"2.0\",\"method\":\"subscribe\","
+                + "\"params\":{\"channel\":\"lightning_board_snapshot_BTC_JPY\"}}");
+        verify(remote).sendText("{\"jsonrpc\":\"2.0\",\"method\":\"subscribe\","
+                + "\"params\":{\"channel\":\"lightning_board_BTC_JPY\"}}");
+        verify(remote).sendText("{\"jsonrpc\":\"2.0\",\"method\":\"subscribe\","
+                + "\"params\":{\"channel\":\"lightning_ticker_BTC_JPY\"}}");
+
+        // Subscribed immediately while connected.
+        target.subscribeExecution("BTC_JPY");
+        verify(remote).sendText("{\"jsonrpc\":\"2.0\",\"method\":\"subscribe\","
+                + "\"params\":{\"channel\":\"lightning_executions_BTC_JPY\"}}");
+        verify(target, times(1)).scheduleSocket(any());
+
+        target.onWebSocketError(session, new IOException("test"));
+        verify(session).close();
+        target.onWebSocketClose(session, null);
+
+    }
+
+    @Test
+    public void testOnWebSocketMessage() throws Exception {
+
+        doNothing().when(target).onBoards(any(), any());
+        doNothing().when(target).onBoardsSnapshot(any(), any());
+        doNothing().when(target).onTicks(any(), any());
+        doNothing().when(target).onExecutions(any(), any());
+
+        // Responses and malformed messages are skipped.
+        target.onWebSocketMessage(null);
+        target.onWebSocketMessage("");
+        target.onWebSocketMessage("[]");
+        target.onWebSocketMessage("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":true}");
+        target.onWebSocketMessage("{\"jsonrpc\":\"2.0\",\"method\":\"channelMessage\"}");
+        target.onWebSocketMessage("{");
+        target.onWebSocketPong(null);
+
+        // Board snapshot
+        target.onWebSocketMessage(("{'jsonrpc':'2.0','method':'channelMessage','params':{"
+                + "'channel':'lightning_board_snapshot_BTC_JPY','message':{'mid_price':100,"
+                + "'bids':[{'price':99,'size':1.5}],'asks':[{'price':101,'size':2.5}]}}}").replace('\'', '"'));
+        verify(target).onBoardsSnapshot(eq("BTC_JPY"), argThat(new ArgumentMatcher<Board>() {
+            @Override
+            public boolean matches(Object o) {
+                Board b = (Board) o;
+                return b.getAsk().get(0).getPrice().intValue() == 101
+                        && b.getBid().get(0).getSize().doubleValue() == 1.5;
+            }
+        }));
+        verify(target, never()).onBoards(any(), any());
+
+        // Board delta
+        target.onWebSocketMessage(("{'jsonrpc':'2.0','method':'channelMessage','params':{"
+                + "'channel':'lightning_board_FX_BTC_JPY','message':{'mid_price':100,"
+                + "'bids':[],'asks':[{'price':101,'size':0}]}}}").replace('\'', '"'));
+        verify(target).onBoards(eq("FX_BTC_JPY"), any());
+        verify(target, times(1)).onBoardsSnapshot(any(), any());
+
+        // Ticker
+        ArgumentCaptor<List> ticks = ArgumentCaptor.forClass(List.class);
+        target.onWebSocketMessage(("{'jsonrpc':'2.0','method':'channelMessage','params':{"
+                + "'channel':'lightning_ticker_BTC_JPY','message':{'product_code':'BTC_JPY',"
+                + "'timestamp':'2019-04-11T05:14:12.3739915Z','best_bid':99,'best_ask':101,'ltp':100}}}"
+        ).replace('\'', '"'));
+        verify(target).onTicks(eq("BTC_JPY"), ticks.capture());
+        Tick tick = (Tick) ticks.getValue().get(0);
+        assertEquals(tick.getBestAskPrice(), new BigDecimal("101"));
+        assertEquals(tick.getTradePrice(), new BigDecimal("100"));
+        assertEquals(tick.getTimestamp().toInstant(), Instant.parse("2019-04-11T05:14:12.373991500Z"));
+
+        // Executions
+        ArgumentCaptor<List> execs = ArgumentCaptor.forClass(List.class);
+        target.onWebSocketMessage(("{'jsonrpc':'2.0','method':'channelMessage','params':{"
+                + "'channel':'lightning_executions_BTC_JPY','message':["
+                + "{'id':1,'side':'BUY','price':100,'size':0.1,'exec_date':'2019-04-11T05:14:12.1Z'},"
+                + "{'id':2,'side':'SELL','price':99,'size':0.2,'exec_date':'2019-04-11T05:14:13.2Z'}]}}"
+        ).replace('\'', '"'));
+        verify(target).onExecutions(eq("BTC_JPY"), execs.capture());
+        assertEquals(execs.getValue().size(), 2);
+        Execution exec = (Execution) execs.getValue().get(1);
+        assertEquals(exec.getId(), (Long) 2L);
+        assertEquals(exec.getPrice(), new BigDecimal("99"));
+        assertEquals(exec.getSize(), new BigDecimal("0.2"));
+        assertEquals(exec.getTimestamp().toInstant(), Instant.parse("2019-04-11T05:14:13.2Z"));
+
+        // Unknown channel
+        target.dispatch("lightning_foo_BTC_JPY", new JsonObject());
+        target.dispatch(null, new JsonObject());
+        target.dispatch("lightning_ticker_BTC_JPY", null);
+        verify(target, times(1)).onTicks(any(), any());
+
+    }
+
     @Test
     public void testGetTick() throws Exception {
 
@@ -405,6 +604,226 @@ public class BitflyerContextTest {
 
     }
 
+    @Test
+    public void testListTrades_Journal() throws Exception {
+
+        Path directory = Files.createTempDirectory(getClass().getSimpleName());
+
+        try {
+
+            ZonedDateTime time = ZonedDateTime.now();
+            doReturn(time.toInstant()).when(target).getNow();
+            doReturn("id").when(target).convertProductAlias(any());
+            doReturn(directory.toString())
+                    .when(module.getMock(Configuration.class)).getString(endsWith("journal.path"), any());
+
+            List<Execution> execs = new ArrayList<>();
+
+            for (int i = 0; i < 5; i++) {
+                Execution exec = mock(Execution.class);
+                when(exec.getId()).thenReturn((long) i);
+                when(exec.getTimestamp()).thenReturn(time.plusSeconds(i));
+                when(exec.getPrice()).thenReturn(BigDecimal.valueOf(100 + i));
+                when(exec.getSize()).thenReturn(BigDecimal.valueOf(1000 + i));
+                execs.add(exec);
+            }
+
+            when(marketService.getExecutions(any()))
+                    .thenReturn(completedFuture(execs.subList(0, 3))).thenReturn(null);
+
+            Key key = Key.from(Request.builder().instrument("inst").build());
+            assertEquals(target.listTrades(key, null).size(), 3);
+            target.close();
+
+            // Restarted : restored from the journal, and only the gap is fetched.
+            when(marketService.getExecutions(any()))
+                    .thenReturn(completedFuture(execs.subList(2, 5))).thenReturn(completedFuture(execs));
+
+            BitflyerContext restarted = spy(new BitflyerContext(module.getMock(Bitflyer4j.class)));
+            restarted.setConfiguration(module.getMock(Configuration.class));
+            doReturn(time.toInstant()).when(restarted).getNow();
+            doReturn("id").when(restarted).convertProductAlias(any());
+            doReturn(module.getMock(ExecutorService.class)).when(restarted).getBackfillExecutor();
+
+            try {
+
+                List<Trade> trades = restarted.listTrades(key, null);
+                assertEquals(trades.size(), 5);
+                assertEquals(trades.get(2).getPrice(), new BigDecimal("102"));
+                assertEquals(trades.get(2).getSize(), new BigDecimal("1002"));
+                verify(marketService, times(2)).getExecutions(any());
+
+            } finally {
+                restarted.close();
+            }
+
+            Path path = directory.resolve(ID).resolve("id.journal");
+
+            try (TradeJournal journal = TradeJournal.open(path)) {
+                assertEquals(journal.size(), 5);
+                assertEquals(journal.getMaxId(), (Long) 4L);
+            }
+
+        } finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+
+    }
+
+    @Test
+    public void testListTrades_Backfill() throws Exception {
+
+        Path directory = Files.createTempDirectory(getClass().getSimpleName());
+
+        try {
+
+            ZonedDateTime time = ZonedDateTime.now();
+            doReturn(time.toInstant()).when(target).getNow();
+            doReturn("id").when(target).convertProductAlias(any());
+            doReturn(directory.toString())
+                    .when(module.getMock(Configuration.class)).getString(endsWith("journal.path"), any());
+
+            List<Runnable> tasks = new ArrayList<>();
+            doReturn((Executor) tasks::add).when(target).getBackfillExecutor();
+
+            // IDs [1, 1000] for every second, paged by 10 below the ID.
+            List<Execution> execs = new ArrayList<>();
+
+            for (long id = 1; id <= 1000; id++) {
+                Execution exec = mock(Execution.class);
+                when(exec.getId()).thenReturn(id);
+                when(exec.getTimestamp()).thenReturn(time.minusSeconds(1000 - id));
+                when(exec.getPrice()).thenReturn(BigDecimal.valueOf(id));
+                when(exec.getSize()).thenReturn(ONE);
+                execs.add(exec);
+            }
+
+            AtomicBoolean failure = new AtomicBoolean(true);
+
+            when(marketService.getExecutions(any())).thenAnswer(i -> {
+
+                Long before = i.getArgumentAt(0, Execution.Request.class).getBefore();
+
+                if (before != null && before == 921 && failure.get()) {
+                    return null; // Failure in the second partition.
+                }
+
+                int upper = before == null ? 1000 : before.intValue() - 1;
+
+                return completedFuture(execs.subList(Math.max(upper - 10, 0), upper));
+
+            });
+
+            // Latest page only, while backfilling.
+            Key key = Key.from(Request.builder().instrument("inst").build());
+            assertEquals(target.listTrades(key, null).size(), 10);
+            assertEquals(tasks.size(), 4);
+            verify(marketService, times(1)).getExecutions(any());
+
+            tasks.forEach(Runnable::run);
+
+            // (920, 991) + (850, 921) failed + (780, 851) + 7 queries below 781
+            List<Trade> trades = target.listTrades(key, null);
+            assertEquals(trades.size(), 220);
+            assertEquals(trades.get(0).getPrice(), new BigDecimal("711"));
+            assertEquals(trades.get(139).getPrice(), new BigDecimal("850"));
+            assertEquals(trades.get(140).getPrice(), new BigDecimal("921"));
+            assertEquals(trades.get(219).getPrice(), new BigDecimal("1000"));
+            verify(marketService, times(23)).getExecutions(any());
+
+            // Not journaled with the gap, nor the executions after.
+            target.updateExecutions("id", new TradeTape(), singletonList(execs.get(999)));
+            target.close();
+
+            Path path = directory.resolve(ID).resolve("id.journal");
+
+            try (TradeJournal journal = TradeJournal.open(path)) {
+                assertEquals(journal.size(), 0);
+                assertEquals(journal.getMaxId(), null);
+            }
+
+            // Restarted : journaled in the order of the IDs, down to the lowest partition fetched.
+            failure.set(false);
+            tasks.clear();
+
+            BitflyerContext restarted = spy(new BitflyerContext(module.getMock(Bitflyer4j.class)));
+            restarted.setConfiguration(module.getMock(Configuration.class));
+            doReturn(time.toInstant()).when(restarted).getNow();
+            doReturn("id").when(restarted).convertProductAlias(any());
+            doReturn((Executor) tasks::add).when(restarted).getBackfillExecutor();
+
+            try {
+
+                assertEquals(restarted.listTrades(key, null).size(), 10);
+                tasks.forEach(Runnable::run);
+                assertEquals(restarted.listTrades(key, null).size(), 290);
+
+            } finally {
+                restarted.close();
+            }
+
+            try (TradeJournal journal = TradeJournal.open(path)) {
+                assertEquals(journal.size(), 290);
+                assertEquals(journal.getMaxId(), (Long) 1000L);
+                assertEquals(journal.getLastTime(), time.toInstant());
+            }
+
+        } finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+
+    }
+
+    @Test
+    public void testPlanPartitions() {
+
+        ZonedDateTime time = ZonedDateTime.now();
+
+        List<Execution> probe = new ArrayList<>();
+
+        for (long id = 991; id <= 1000; id++) {
+            Execution exec = mock(Execution.class);
+            when(exec.getId()).thenReturn(id);
+            when(exec.getTimestamp()).thenReturn(time.minusSeconds(1000 - id));
+            probe.add(exec);
+        }
+
+        Instant cutoff = time.toInstant().minus(Duration.ofDays(3));
+
+        Function<List<BitflyerContext.Partition>, String> f = ps -> ps.stream().map(p -> String.format(
+                "(%s,%s,%s)", p.getBefore(), p.getAfter(), p.getQueries())).reduce((a, b) -> a + b).orElse("");
+
+        // Estimated below the cutoff, limited by the queries.
+        assertEquals(f.apply(BitflyerContext.planPartitions(probe, cutoff, null, 31, 4)),
+                "(991,920,8)(921,850,8)(851,780,8)(781,null,7)");
+
+        // Estimated at the cutoff.
+        assertEquals(f.apply(BitflyerContext.planPartitions(probe, time.toInstant().minusSeconds(30), null, 31, 4)),
+                "(991,983,11)(984,976,10)(977,null,10)");
+
+        // Down to the journaled.
+        assertEquals(f.apply(BitflyerContext.planPartitions(probe, cutoff, 950L, 31, 4)),
+                "(991,980,8)(981,970,8)(971,960,8)(961,950,7)");
+        assertEquals(f.apply(BitflyerContext.planPartitions(probe, cutoff, 990L, 31, 4)), "");
+        assertEquals(f.apply(BitflyerContext.planPartitions(probe, cutoff, 995L, 31, 4)), "");
+
+        // Single thread
+        assertEquals(f.apply(BitflyerContext.planPartitions(probe, cutoff, 950L, 31, 1)), "(991,950,31)");
+
+        // No rate
+        assertEquals(f.apply(BitflyerContext.planPartitions(probe.subList(0, 1), cutoff, null, 31, 4)),
+                "(991,null,31)");
+
+        // Reached the cutoff
+        assertEquals(f.apply(BitflyerContext.planPartitions(probe, time.toInstant(), null, 31, 4)), "");
+
+        // Invalid
+        assertEquals(f.apply(BitflyerContext.planPartitions(probe, cutoff, null, 0, 4)), "");
+        assertEquals(f.apply(BitflyerContext.planPartitions(probe, null, null, 31, 4)), "");
+        assertEquals(f.apply(BitflyerContext.planPartitions(null, cutoff, null, 31, 4)), "");
+
+    }
+
     @Test
     public void testListTrades_Empty() {
 
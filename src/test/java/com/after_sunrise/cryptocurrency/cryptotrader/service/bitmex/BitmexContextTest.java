@@ -17,6 +17,8 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.file.Path;
@@ -62,6 +64,8 @@ public class BitmexContextTest {
 
         doReturn(null).when(target).request(any(), any(), any(), any());
 
+        doNothing().when(target).scheduleSocket(any());
+
     }
 
     @AfterMethod
@@ -325,6 +329,93 @@ public class BitmexContextTest {
 
     }
 
+    @Test
+    public void testSubscribe() throws Exception {
+
+        Session session = mock(Session.class);
+        RemoteEndpoint.Basic remote = mock(RemoteEndpoint.Basic.class);
+        when(session.getBasicRemote()).thenReturn(remote);
+        when(session.isOpen()).thenReturn(true);
+
+        // Disabled
+        configuration.setProperty(BitmexContext.class.getName() + ".realtime.expiry", "0");
+        assertFalse(target.subscribe("instrument"));
+        verify(target, never()).scheduleSocket(any());
+
+        // Connect on first subscription.
+        configuration.clearProperty(BitmexContext.class.getName() + ".realtime.expiry");
+        assertTrue(target.subscribe("instrument"));
+        assertFalse(target.subscribe(null));
+        verify(target).scheduleSocket(any());
+
+        // Subscribe all on open.
+        target.onWebSocketOpen(session);
+        verify(remote).sendText("{\"op\":\"subscribe\",\"args\":[\"instrument\"]}");
+
+        // Subscribe immediately if opened.
+        assertTrue(target.subscribe("trade:XBTUSD"));
+        assertTrue(target.subscribe("trade:XBTUSD"));
+        verify(remote).sendText("{\"op\":\"subscribe\",\"args\":[\"trade:XBTUSD\"]}");
+
+        // Not sent after closed.
+        target.onWebSocketClose(session, null);
+        assertTrue(target.subscribe("orderBookL2:XBTUSD"));
+        verify(remote, times(2)).sendText(any());
+        verify(target).scheduleSocket(any());
+
+    }
+
+    @Test
+    public void testRealtime() throws Exception {
+
+        Instant now = Instant.parse("2017-11-01T22:15:00.000Z");
+        doReturn(now).when(target).getNow();
+
+        Key key = Key.builder().instrument("XBT_QT").timestamp(now).build();
+        doReturn("XBTZ17").when(target).convertAlias(key);
+
+        target.onWebSocketMessage("{\"table\":\"instrument\",\"action\":\"partial\",\"data\":[" +
+                "{\"symbol\":\"XBTZ17\",\"askPrice\":6601.8,\"bidPrice\":6601.2,\"lastPrice\":6601.5}]}");
+        target.onWebSocketMessage("{\"table\":\"orderBookL2\",\"action\":\"partial\"," +
+                "\"filter\":{\"symbol\":\"XBTZ17\"},\"data\":[" +
+                "{\"symbol\":\"XBTZ17\",\"id\":1,\"side\":\"Sell\",\"size\":3,\"price\":6601.8}," +
+                "{\"symbol\":\"XBTZ17\",\"id\":2,\"side\":\"Buy\",\"size\":4,\"price\":6601.2}]}");
+        target.onWebSocketMessage("{\"table\":\"trade\",\"action\":\"partial\"," +
+                "\"filter\":{\"symbol\":\"XBTZ17\"},\"data\":[]}");
+        target.onWebSocketMessage("{\"table\":\"trade\",\"action\":\"insert\",\"data\":[" +
+                "{\"symbol\":\"XBTZ17\",\"timestamp\":\"2017-11-01T22:15:00.100Z\"," +
+                "\"price\":6601.5,\"size\":7,\"trdMatchID\":\"x\"}]}");
+        target.onWebSocketMessage("pong");
+        target.onWebSocketMessage("");
+
+        // Served from memory.
+        assertEquals(target.getBestAskPrice(key), new BigDecimal("6601.8"));
+        assertEquals(target.getBestBidPrice(key), new BigDecimal("6601.2"));
+        assertEquals(target.getBestAskSize(key), new BigDecimal("3"));
+        assertEquals(target.getBestBidSize(key), new BigDecimal("4"));
+        assertEquals(target.getLastPrice(key), new BigDecimal("6601.5"));
+
+        List<Trade> trades = target.listTrades(key, now);
+        assertEquals(trades.size(), 1);
+        assertEquals(trades.get(0).getPrice(), new BigDecimal("6601.5"));
+        assertEquals(trades.get(0).getSize(), new BigDecimal("7"));
+
+        // Not covered, fallback to REST.
+        assertEquals(target.listTrades(key, now.minusMillis(1)).size(), 0);
+        verify(target).request(GET, "https://www.bitmex.com/api/v1/trade?count=500&reverse=true&symbol=XBTZ17", null, null);
+        verify(target, never()).request(GET, "https://www.bitmex.com/api/v1/instrument/activeAndIndices", null, null);
+
+        // Stale, fallback to REST.
+        doReturn(now.plusSeconds(31)).when(target).getNow();
+        key = Key.build(key).timestamp(now.plusSeconds(31)).build();
+        doReturn("XBTZ17").when(target).convertAlias(key);
+        assertNull(target.getBestAskPrice(key));
+        assertEquals(target.queryBooks(key).size(), 0);
+        verify(target).request(GET, "https://www.bitmex.com/api/v1/instrument/activeAndIndices", null, null);
+        verify(target).request(GET, "https://www.bitmex.com/api/v1/orderBook/L2?symbol=XBTZ17&depth=10", null, null);
+
+    }
+
     @Test
     public void testQueryBooks() throws Exception {
 
@@ -495,12 +586,12 @@ public class BitmexContextTest {
         when(tick.getState()).thenReturn(null);
         trades = target.listTrades(key, null);
         assertEquals(trades.size(), 2);
-        assertEquals(trades.get(0).getPrice(), new BigDecimal("6601.7"));
-        assertEquals(trades.get(0).getSize(), new BigDecimal("686"));
-        assertEquals(trades.get(0).getTimestamp(), Instant.parse("2017-11-01T22:15:47.303Z"));
-        assertEquals(trades.get(1).getPrice(), new BigDecimal("6601.6"));
-        assertEquals(trades.get(1).getSize(), new BigDecimal("5"));
-        assertEquals(trades.get(1).getTimestamp(), Instant.parse("2017-11-01T22:15:47.000Z"));
+        assertEquals(trades.get(0).getPrice(), new BigDecimal("6601.6"));
+        assertEquals(trades.get(0).getSize(), new BigDecimal("5"));
+        assertEquals(trades.get(0).getTimestamp(), Instant.parse("2017-11-01T22:15:47.000Z"));
+        assertEquals(trades.get(1).getPrice(), new BigDecimal("6601.7"));
+        assertEquals(trades.get(1).getSize(), new BigDecimal("686"));
+        assertEquals(trades.get(1).getTimestamp(), Instant.parse("2017-11-01T22:15:47.303Z"));
 
         // Filtered in (all)
         trades = target.listTrades(key, Instant.parse("2017-11-01T22:15:47.000Z"));
@@ -515,6 +606,41 @@ public class BitmexContextTest {
         trades = target.listTrades(key, Instant.parse("2017-11-01T22:15:47.304Z"));
         assertEquals(trades.size(), 0);
 
+        // Only the new ones since the latest, deduplicated.
+        Key next = Key.build(key).timestamp(key.getTimestamp().plusSeconds(1)).build();
+        doReturn(Optional.of(tick)).when(target).queryTick(next);
+        doReturn("XBTZ17").when(target).convertAlias(next);
+        String trade = "{\"timestamp\":\"2017-11-01T22:15:47.%s\",\"size\":%d,\"price\":6601.7,\"trdMatchID\":\"%s\"}";
+        doReturn("[" + String.format(trade, "303Z", 686, "f391ff88-6731-f02d-46c2-b82471e762a9") + ","
+                + String.format(trade, "303Z", 7, "00000000-0000-0000-0000-000000000007") + "]")
+                .when(target).request(GET, "https://www.bitmex.com/api/v1/trade?count=500&reverse=false"
+                + "&symbol=XBTZ17&startTime=2017-11-01T22%3A15%3A47.303Z", null, null);
+        trades = target.listTrades(next, Instant.parse("2017-11-01T22:15:47.303Z"));
+        assertEquals(trades.size(), 2);
+        assertEquals(trades.get(0).getSize(), new BigDecimal("686"));
+        assertEquals(trades.get(1).getSize(), new BigDecimal("7"));
+
+        // Full pages in the same millis, continued with the offset.
+        List<String> page = new ArrayList<>();
+        page.add(String.format(trade, "303Z", 686, "f391ff88-6731-f02d-46c2-b82471e762a9"));
+        page.add(String.format(trade, "303Z", 7, "00000000-0000-0000-0000-000000000007"));
+        for (int i = 2; i < 500; i++) {
+            page.add(String.format(trade, "303Z", 1, String.format("00000000-0000-0000-0000-%012d", i + 100)));
+        }
+        next = Key.build(next).timestamp(next.getTimestamp().plusSeconds(1)).build();
+        doReturn(Optional.of(tick)).when(target).queryTick(next);
+        doReturn("XBTZ17").when(target).convertAlias(next);
+        doReturn(page.toString()).when(target).request(GET, "https://www.bitmex.com/api/v1/trade?count=500"
+                + "&reverse=false&symbol=XBTZ17&startTime=2017-11-01T22%3A15%3A47.303Z", null, null);
+        doReturn("[" + String.format(trade, "304Z", 3, "00000000-0000-0000-0000-000000000003") + "]")
+                .when(target).request(GET, "https://www.bitmex.com/api/v1/trade?count=500&reverse=false"
+                + "&symbol=XBTZ17&startTime=2017-11-01T22%3A15%3A47.303Z&start=500", null, null);
+        trades = target.listTrades(next, Instant.parse("2017-11-01T22:15:47.303Z"));
+        assertEquals(trades.size(), 501);
+        assertEquals(trades.stream().filter(t -> t.getSize().intValue() == 686).count(), 1L);
+        assertEquals(trades.get(500).getSize(), new BigDecimal("3"));
+        assertEquals(trades.get(500).getTimestamp(), Instant.parse("2017-11-01T22:15:47.304Z"));
+
         // Bucketed
         key = Key.builder().instrument("XBJ_QT").timestamp(key.getTimestamp()).build();
         doReturn("XBJZ17").when(target).convertAlias(key);
@@ -551,6 +677,44 @@ public class BitmexContextTest {
 
     }
 
+    @Test
+    public void testSequence() {
+
+        Instant t = Instant.parse("2017-11-01T22:15:47.303Z");
+        BitmexTrade t1 = BitmexTrade.builder().timestamp(t).id("Aa").build();
+        BitmexTrade t2 = BitmexTrade.builder().timestamp(t).id("BB").build(); // Same hash
+        BitmexTrade t3 = BitmexTrade.builder().timestamp(t.plusMillis(1)).id("c").build();
+        BitmexTrade t4 = BitmexTrade.builder().id("d").build();
+        BitmexTrade t5 = BitmexTrade.builder().timestamp(t).build();
+        long base = t.toEpochMilli() << 20;
+        long hash = "Aa".hashCode();
+
+        // Ascending, probed on collision.
+        Map<String, Long> known = new HashMap<>();
+        List<BitmexTrade> values = Arrays.asList(t1, t2, null, t4, t3, t5);
+        Map<BitmexTrade, Long> sequences = BitmexContext.sequence(values, false, known);
+        assertEquals(sequences.size(), 3);
+        assertEquals(sequences.get(t1), (Long) (base + hash));
+        assertEquals(sequences.get(t2), (Long) (base + hash + 1));
+        assertEquals(sequences.get(t3), (Long) ((base + (1 << 20)) + "c".hashCode()));
+        assertEquals(known, singletonMap("c", sequences.get(t3)));
+
+        // Descending
+        Map<BitmexTrade, Long> reversed = BitmexContext.sequence(Arrays.asList(t3, t2, t1), true, new HashMap<>());
+        assertEquals(reversed, sequences);
+
+        // Fetched again, keeping the sequences of the latest millis.
+        known = new HashMap<>(singletonMap("BB", base + hash));
+        sequences = BitmexContext.sequence(Arrays.asList(t1, t2), false, known);
+        assertEquals(sequences.get(t1), (Long) (base + hash + 1));
+        assertEquals(sequences.get(t2), (Long) (base + hash));
+        assertEquals(known.size(), 2);
+
+        assertEquals(BitmexContext.sequence(null, false, known).size(), 0);
+        assertEquals(known.size(), 2);
+
+    }
+
     @Test
     public void testGetInstrumentCurrency() {
 
@@ -693,10 +857,10 @@ public class BitmexContextTest {
 
             Map<?, ?> headers = i.getArgumentAt(2, Map.class);
             assertEquals(headers.remove("Content-Type"), "application/json");
-            assertEquals(headers.remove("api-nonce"), "12345");
+            assertEquals(headers.remove("api-nonce"), "12345000");
             assertEquals(headers.remove("api-key"), "my_id");
             assertEquals(headers.remove("api-signature"),
-                    "6ef0c2129a11f4dcd8d92ddfa35481a923767e98bbcdd075718dde54e600017a");
+                    "94afc37deec84ac964eb59c07ad471c4a0dae9973c506deef390340cfe1d17e9");
             assertEquals(headers.size(), 0, headers.toString());
 
             return body;
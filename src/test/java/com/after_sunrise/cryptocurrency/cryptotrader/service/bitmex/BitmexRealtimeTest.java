@@ -0,0 +1,197 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.bitmex;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.after_sunrise.cryptocurrency.cryptotrader.service.bitmex.BitmexRealtime.*;
+import static java.util.stream.Collectors.toList;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class BitmexRealtimeTest {
+
+    private static final Duration EXPIRY = Duration.ofSeconds(30);
+
+    private BitmexRealtime target;
+
+    private Instant now;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        Gson gson = new GsonBuilder().registerTypeAdapter(Instant.class,
+                (JsonDeserializer<Instant>) (j, t, c) -> Instant.parse(j.getAsString())
+        ).create();
+
+        target = new BitmexRealtime(gson);
+
+        now = Instant.parse("2017-11-01T22:15:00.000Z");
+
+    }
+
+    private static JsonObject json(String value) {
+        return new JsonParser().parse(value.replace('\'', '"')).getAsJsonObject();
+    }
+
+    private static List<String> levels(List<BitmexBook> books) {
+        return books.stream()
+                .sorted(Comparator.comparing(BitmexBook::getId))
+                .map(b -> b.getId() + ":" + b.getSide() + ":" + b.getPrice() + ":" + b.getSize())
+                .collect(toList());
+    }
+
+    @Test
+    public void testTopic() {
+        assertEquals(topic(TABLE_BOOK, "XBTUSD"), "orderBookL2:XBTUSD");
+        assertEquals(topic(TABLE_TRADE, "XBTUSD"), "trade:XBTUSD");
+        assertNull(topic(TABLE_TRADE, null));
+    }
+
+    @Test
+    public void testInstrument() {
+
+        // Not subscribed
+        target.apply(now, json("{'success':true,'subscribe':'instrument'}"));
+        assertNull(target.getTicks(now, EXPIRY));
+
+        // Before partial
+        target.apply(now, json("{'table':'instrument','action':'update','data':[{'symbol':'XBTUSD','lastPrice':1}]}"));
+        assertNull(target.getTicks(now, EXPIRY));
+
+        target.apply(now, json("{'table':'instrument','action':'partial','data':["
+                + "{'symbol':'XBTUSD','state':'Open','lastPrice':6593.7,'askPrice':6593.9,'bidPrice':6593.8,"
+                + "'timestamp':'2017-11-01T22:13:32.101Z'},"
+                + "{'symbol':'.BXBT','state':'Unlisted','lastPrice':6590.1}]}"));
+        List<BitmexTick> ticks = target.getTicks(now, EXPIRY);
+        assertEquals(ticks.size(), 2);
+
+        // Update merges the fields.
+        target.apply(now, json("{'table':'instrument','action':'update','data':["
+                + "{'symbol':'XBTUSD','askPrice':6594.0,'timestamp':'2017-11-01T22:14:00.000Z'}]}"));
+        BitmexTick tick = target.getTicks(now, EXPIRY).stream()
+                .filter(t -> "XBTUSD".equals(t.getSymbol())).findAny().get();
+        assertEquals(tick.getState(), "Open");
+        assertEquals(tick.getLast(), new BigDecimal("6593.7"));
+        assertEquals(tick.getAsk(), new BigDecimal("6594.0"));
+        assertEquals(tick.getBid(), new BigDecimal("6593.8"));
+        assertEquals(tick.getTimestamp(), Instant.parse("2017-11-01T22:14:00.000Z"));
+
+        // Delete
+        target.apply(now, json("{'table':'instrument','action':'delete','data':[{'symbol':'.BXBT'}]}"));
+        assertEquals(target.getTicks(now, EXPIRY).size(), 1);
+
+        // Silent
+        assertEquals(target.getTicks(now.plus(EXPIRY), EXPIRY).size(), 1);
+        assertNull(target.getTicks(now.plus(EXPIRY).plusMillis(1), EXPIRY));
+        assertNull(target.getTicks(now, null));
+        assertNull(target.getTicks(null, EXPIRY));
+
+        // Reset
+        target.reset();
+        assertNull(target.getTicks(now, EXPIRY));
+
+    }
+
+    @Test
+    public void testBooks() {
+
+        target.apply(now, json("{'table':'orderBookL2','action':'insert','data':["
+                + "{'symbol':'XBTUSD','id':1,'side':'Sell','size':1,'price':6574}]}"));
+        assertNull(target.getBooks(now, EXPIRY, "XBTUSD"));
+
+        target.apply(now, json("{'table':'orderBookL2','action':'partial','filter':{'symbol':'XBTUSD'},'data':["
+                + "{'symbol':'XBTUSD','id':10,'side':'Sell','size':137,'price':6573.5},"
+                + "{'symbol':'XBTUSD','id':20,'side':'Sell','size':65348,'price':6573},"
+                + "{'symbol':'XBTUSD','id':30,'side':'Buy','size':22050,'price':6572.5}]}"));
+        assertEquals(levels(target.getBooks(now, EXPIRY, "XBTUSD")).toString(),
+                "[10:Sell:6573.5:137, 20:Sell:6573:65348, 30:Buy:6572.5:22050]");
+        assertNull(target.getBooks(now, EXPIRY, "ETHUSD"));
+        assertNull(target.getBooks(now, EXPIRY, null));
+
+        // Update without price, insert and delete.
+        target.apply(now, json("{'table':'orderBookL2','action':'update','data':["
+                + "{'symbol':'XBTUSD','id':20,'side':'Sell','size':100}]}"));
+        target.apply(now, json("{'table':'orderBookL2','action':'insert','data':["
+                + "{'symbol':'XBTUSD','id':40,'side':'Buy','size':5,'price':6572}]}"));
+        target.apply(now, json("{'table':'orderBookL2','action':'delete','data':["
+                + "{'symbol':'XBTUSD','id':10,'side':'Sell'}]}"));
+        assertEquals(levels(target.getBooks(now, EXPIRY, "XBTUSD")).toString(),
+                "[20:Sell:6573:100, 30:Buy:6572.5:22050, 40:Buy:6572:5]");
+
+        // Other symbol before its partial.
+        target.apply(now, json("{'table':'orderBookL2','action':'insert','data':["
+                + "{'symbol':'ETHUSD','id':50,'side':'Buy','size':5,'price':300}]}"));
+        assertNull(target.getBooks(now, EXPIRY, "ETHUSD"));
+
+        // Partial replaces
+        target.apply(now, json("{'table':'orderBookL2','action':'partial','filter':{'symbol':'XBTUSD'},'data':[]}"));
+        assertEquals(target.getBooks(now, EXPIRY, "XBTUSD").size(), 0);
+
+    }
+
+    @Test
+    public void testTrades() {
+
+        Instant t1 = Instant.parse("2017-11-01T22:14:59.000Z");
+        Instant t2 = Instant.parse("2017-11-01T22:15:01.000Z");
+
+        target.apply(now, json("{'table':'trade','action':'partial','filter':{'symbol':'XBTUSD'},'data':["
+                + "{'symbol':'XBTUSD','timestamp':'" + t1 + "','price':6601.6,'size':5,'trdMatchID':'a'}]}"));
+        target.apply(t2, json("{'table':'trade','action':'insert','data':["
+                + "{'symbol':'XBTUSD','timestamp':'" + t2 + "','price':6601.7,'size':686,'trdMatchID':'b'},"
+                + "{'symbol':'XBTUSD','timestamp':'" + t2 + "','price':null,'size':1,'trdMatchID':'c'}]}"));
+
+        // Covered since the partial.
+        List<BitmexTrade> trades = target.getTrades(t2, EXPIRY, "XBTUSD", now);
+        assertEquals(trades.size(), 1);
+        assertEquals(trades.get(0).getId(), "b");
+        assertEquals(trades.get(0).getPrice(), new BigDecimal("6601.7"));
+        assertEquals(trades.get(0).getSize(), new BigDecimal("686"));
+        assertEquals(trades.get(0).getTimestamp(), t2);
+        assertEquals(target.getTrades(t2, EXPIRY, "XBTUSD", t2.plusMillis(1)).size(), 0);
+
+        // Not covered
+        assertNull(target.getTrades(t2, EXPIRY, "XBTUSD", now.minusMillis(1)));
+        assertNull(target.getTrades(t2, EXPIRY, "XBTUSD", null));
+        assertNull(target.getTrades(t2, EXPIRY, "ETHUSD", now));
+
+        // Inserts after the partial are notified.
+        List<String> inserted = new ArrayList<>();
+        target.apply(t2, json("{'table':'trade','action':'insert','data':["
+                + "{'symbol':'XBTUSD','timestamp':'" + t2 + "','price':6601.8,'size':2,'trdMatchID':'e'},"
+                + "{'symbol':'ETHUSD','timestamp':'" + t2 + "','price':300,'size':2,'trdMatchID':'f'}]}"),
+                (symbol, trade) -> inserted.add(symbol + ":" + trade.getId() + ":" + trade.getPrice()));
+        assertEquals(inserted.toString(), "[XBTUSD:e:6601.8]");
+        assertEquals(target.getTrades(t2, EXPIRY, "XBTUSD", now).size(), 2);
+
+        // Updates are ignored.
+        target.apply(t2, json("{'table':'trade','action':'update','data':["
+                + "{'symbol':'XBTUSD','timestamp':'" + t2 + "','price':1,'size':1,'trdMatchID':'b'}]}"));
+        assertEquals(target.getTrades(t2, EXPIRY, "XBTUSD", now).size(), 2);
+
+        // Expired trades are evicted, and no longer covered.
+        Instant t3 = t2.plus(Duration.ofHours(24));
+        target.apply(t3, json("{'table':'trade','action':'insert','data':["
+                + "{'symbol':'XBTUSD','timestamp':'" + t3 + "','price':6602,'size':1,'trdMatchID':'d'}]}"));
+        assertNull(target.getTrades(t3, EXPIRY, "XBTUSD", now));
+        assertNull(target.getTrades(t3, EXPIRY, "XBTUSD", t2));
+        assertEquals(target.getTrades(t3, EXPIRY, "XBTUSD", t2.plusNanos(1)).size(), 1);
+
+    }
+
+}
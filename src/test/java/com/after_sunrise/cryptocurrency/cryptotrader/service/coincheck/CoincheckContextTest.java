@@ -5,17 +5,23 @@ import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.Cance
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Instruction.CreateInstruction;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Order;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeJournal;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 import com.google.common.io.Resources;
 import org.apache.commons.configuration2.MapConfiguration;
 import org.apache.commons.configuration2.builder.fluent.Configurations;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+import java.io.StringReader;
 import java.math.BigDecimal;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
@@ -58,7 +64,7 @@ public class CoincheckContextTest {
         target.setConfiguration(conf);
 
         doReturn(null).when(target).request(any(), any(), any(), any());
-        doNothing().when(target).scheduleSocket(any(), any());
+        doNothing().when(target).scheduleSocket(any());
 
     }
 
@@ -74,7 +80,7 @@ public class CoincheckContextTest {
         target.setConfiguration(new Configurations().properties(path.toAbsolutePath().toFile()));
 
         doCallRealMethod().when(target).request(any(), any(), any(), any());
-        doCallRealMethod().when(target).scheduleSocket(any(), any());
+        doCallRealMethod().when(target).scheduleSocket(any());
 
         Key key = Key.builder().instrument(BTC_JPY.name()).timestamp(Instant.now()).build();
 
@@ -325,6 +331,182 @@ public class CoincheckContextTest {
 
     }
 
+    @Test
+    public void testOnWebSocketOpen() throws Exception {
+
+        Session session = mock(Session.class);
+        RemoteEndpoint.Basic remote = mock(RemoteEndpoint.Basic.class);
+        when(session.getBasicRemote()).thenReturn(remote);
+
+        target.startSocket();
+        target.onWebSocketOpen(session);
+
+        verify(remote).sendText("{\"type\":\"subscribe\",\"channel\":\"btc_jpy-trades\"}");
+        verify(remote).sendText("{\"type\":\"subscribe\",\"channel\":\"btc_jpy-orderbook\"}");
+        verify(remote, times(CoincheckService.ProductType.values().length * 2)).sendText(any());
+
+    }
+
+    @Test
+    public void testOnWebSocketMessage() throws Exception {
+
+        Instant now = Instant.parse("2017-08-01T07:50:15.000Z");
+        doReturn(now).when(target).getNow();
+
+        Key key = Key.builder().instrument(BTC_JPY.name()).timestamp(now).build();
+        assertEquals(target.listTrades(key, null).size(), 0);
+
+        // Prints in the same instant are kept, duplicates are not.
+        target.onWebSocketMessage(new StringReader("[1001,\"btc_jpy\",\"320932.0\",\"0.0065\",\"buy\"]"));
+        target.onWebSocketMessage(new StringReader("[1002,\"btc_jpy\",\"320931.0\",\"0.1\",\"sell\"]"));
+        target.onWebSocketMessage(new StringReader("[1002,\"btc_jpy\",\"320931.0\",\"0.1\",\"sell\"]"));
+        target.onWebSocketMessage(new StringReader("[[\"1501573816\",\"1003\",\"btc_jpy\",\"320995.0\"," +
+                "\"0.44\",\"buy\",\"1\",\"2\"],[\"1501573817\",\"1004\",\"btc_jpy\",\"320996.0\"," +
+                "\"0.5\",\"sell\",\"3\",\"4\"]]"));
+        target.onWebSocketMessage(new StringReader("[1005,\"foo_bar\",\"1.0\",\"1.0\",\"buy\"]"));
+
+        List<Trade> trades = target.listTrades(key, null);
+        assertEquals(trades.size(), 4);
+        assertEquals(trades.get(0).getTimestamp(), now);
+        assertEquals(trades.get(0).getPrice(), new BigDecimal("320932.0"));
+        assertEquals(trades.get(0).getSize(), new BigDecimal("0.0065"));
+        assertEquals(trades.get(1).getTimestamp(), now);
+        assertEquals(trades.get(1).getPrice(), new BigDecimal("320931.0"));
+        assertEquals(trades.get(1).getSize(), new BigDecimal("0.1"));
+        assertEquals(trades.get(2).getTimestamp(), Instant.ofEpochSecond(1501573816));
+        assertEquals(trades.get(2).getPrice(), new BigDecimal("320995.0"));
+        assertEquals(trades.get(2).getSize(), new BigDecimal("0.44"));
+        assertEquals(trades.get(3).getTimestamp(), Instant.ofEpochSecond(1501573817));
+        assertEquals(target.listTrades(key, Instant.ofEpochSecond(1501573816)).size(), 2);
+
+        // Book diffs on top of the snapshot.
+        String data = Resources.toString(getResource("json/coincheck_book.json"), UTF_8);
+        doReturn(data).when(target).request(GET, "https://coincheck.com/api/order_books", null, null);
+        target.onWebSocketMessage(new StringReader("[\"btc_jpy\",{\"asks\":[[\"1613200.0\",\"0.5\"]]," +
+                "\"bids\":[[\"1613120.0\",\"0\"]]}]"));
+        assertEquals(target.getBestAskPrice(key), new BigDecimal("1613281.0")); // REST only.
+
+        target.onWebSocketMessage(new StringReader("[\"btc_jpy\",{\"asks\":[[\"1613281.0\",\"1.5\"]]," +
+                "\"bids\":[]}]"));
+        doReturn(null).when(target).request(any(), any(), any(), any());
+        key = Key.build(key).timestamp(now.plusSeconds(1)).build();
+        assertEquals(target.getBestAskPrice(key), new BigDecimal("1613200.0"));
+        assertEquals(target.getBestAskSize(key), new BigDecimal("0.5"));
+        assertEquals(target.getAskPrices(key).get(new BigDecimal("1613281.0")), new BigDecimal("1.5"));
+        assertNotEquals(target.getBestBidPrice(key), new BigDecimal("1613120.0"));
+        verify(target, times(1)).request(GET, "https://coincheck.com/api/order_books", null, null);
+
+        // Invalidated on reconnection.
+        target.onWebSocketClose(mock(Session.class), null);
+        assertNull(target.getBestAskPrice(Key.build(key).timestamp(now.plusSeconds(2)).build()));
+
+    }
+
+    @Test
+    public void testBackfillTrades() throws Exception {
+
+        String data = Resources.toString(getResource("json/coincheck_trade.json"), UTF_8);
+        String url = "https://coincheck.com/api/trades?pair=btc_jpy&limit=100&order=desc";
+        doReturn(data).when(target).request(GET, url, null, null);
+
+        Key key = Key.builder().instrument(BTC_JPY.name()).timestamp(Instant.now()).build();
+        target.startSocket();
+
+        // First open : latest page only.
+        target.backfillTrades(BTC_JPY, null);
+        List<Trade> trades = target.listTrades(key, null);
+        assertEquals(trades.size(), 3);
+        assertEquals(trades.get(0).getTimestamp(), Instant.parse("2017-08-01T07:50:15.000Z"));
+        assertEquals(trades.get(0).getPrice(), new BigDecimal("320932"));
+        assertEquals(trades.get(0).getSize(), new BigDecimal("0.0065"));
+        assertEquals(trades.get(2).getTimestamp(), Instant.parse("2017-08-01T07:50:15.002Z"));
+        verify(target).request(any(), any(), any(), any());
+
+        // Reconnected : older pages until the time of the last message.
+        target.backfillTrades(BTC_JPY, Instant.parse("2017-08-01T07:50:14.000Z"));
+        verify(target, times(2)).request(GET, url, null, null);
+        verify(target).request(GET, url + "&starting_after=12345681", null, null);
+        assertEquals(target.listTrades(key, null).size(), 3);
+
+        target.backfillTrades(BTC_JPY, Instant.parse("2017-08-01T07:50:15.001Z"));
+        verify(target, times(3)).request(GET, url, null, null);
+        verify(target, times(1)).request(GET, url + "&starting_after=12345681", null, null);
+
+    }
+
+    private static int countJournal(Path directory) throws Exception {
+        try (TradeJournal journal = TradeJournal.open(directory.resolve("coincheck").resolve("btc_jpy.journal"))) {
+            return journal.size();
+        }
+    }
+
+    @Test
+    public void testBackfillTrades_Journal() throws Exception {
+
+        Path directory = Files.createTempDirectory(getClass().getSimpleName());
+
+        try {
+
+            conf.addProperty(
+                    "com.after_sunrise.cryptocurrency.cryptotrader.service.coincheck.CoincheckContext.journal.path",
+                    directory.toString()
+            );
+
+            String data = Resources.toString(getResource("json/coincheck_trade.json"), UTF_8);
+            String url = "https://coincheck.com/api/trades?pair=btc_jpy&limit=100&order=desc";
+            doReturn(data).when(target).request(GET, url, null, null);
+            doReturn(Instant.parse("2017-08-01T08:00:00Z")).when(target).getNow();
+
+            Key key = Key.builder().instrument(BTC_JPY.name()).timestamp(Instant.now()).build();
+            target.startSocket();
+            target.backfillTrades(BTC_JPY, null);
+            target.close();
+            assertEquals(countJournal(directory), 3);
+
+            // Restarted : restored from the journal, and backfilled until the last journaled.
+            CoincheckContext restarted = spy(new CoincheckContext());
+            restarted.setConfiguration(conf);
+            doReturn(data).when(restarted).request(any(), any(), any(), any());
+            doNothing().when(restarted).scheduleSocket(any());
+            doReturn(Instant.parse("2017-08-01T08:00:00Z")).when(restarted).getNow();
+
+            try {
+
+                restarted.startSocket();
+                assertEquals(restarted.listTrades(key, null), target.listTrades(key, null));
+                verify(restarted, never()).request(any(), any(), any(), any());
+
+                restarted.backfillTrades(BTC_JPY, null);
+                verify(restarted).request(GET, url, null, null);
+                verify(restarted, times(1)).request(any(), any(), any(), any());
+
+            } finally {
+                restarted.close();
+            }
+
+            assertEquals(countJournal(directory), 3); // Not duplicated
+
+            // Expired
+            CoincheckContext expired = spy(new CoincheckContext());
+            expired.setConfiguration(conf);
+            doNothing().when(expired).scheduleSocket(any());
+            doReturn(Instant.parse("2017-08-02T08:00:00Z")).when(expired).getNow();
+
+            try {
+                expired.startSocket();
+                assertEquals(expired.listTrades(key, null).size(), 0);
+            } finally {
+                expired.close();
+            }
+
+            assertEquals(countJournal(directory), 0); // Compacted
+
+        } finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+
+    }
+
     @Test
     public void testGetInstrumentCurrency() {
 
@@ -390,12 +572,19 @@ public class CoincheckContextTest {
         Map<String, String> headers = new LinkedHashMap<>();
         headers.put("Content-Type", "application/json");
         headers.put("ACCESS-KEY", "my_id");
-        headers.put("ACCESS-NONCE", "1234567890");
-        headers.put("ACCESS-SIGNATURE", "c1882128a3b8bcf13cec68d2dabf0ab867064f97afc90162624d32273a05b65a");
+        headers.put("ACCESS-NONCE", "1234567890000");
+        headers.put("ACCESS-SIGNATURE", "ed91a85b8d1d38ff8a5f06d7de6e0955ae95f4485dbe9853e536b492b325f341");
         doReturn("test").when(target).request(GET, path + "?foo=bar", headers, data);
 
         assertEquals(target.executePrivate(GET, path, params, data), "test");
 
+        // Clock not advanced
+        headers.put("ACCESS-NONCE", "1234567890001");
+        headers.put("ACCESS-SIGNATURE", "48299e9eca2bb967145955307097fa2a6ae39cd91e672c155a845d335f799188");
+        doReturn("test2").when(target).request(GET, path + "?foo=bar", headers, data);
+
+        assertEquals(target.executePrivate(GET, path, params, data), "test2");
+
     }
 
 
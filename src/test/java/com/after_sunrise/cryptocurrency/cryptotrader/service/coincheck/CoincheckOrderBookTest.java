@@ -0,0 +1,123 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.coincheck;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class CoincheckOrderBookTest {
+
+    private static final Duration EXPIRY = Duration.ofSeconds(30);
+
+    private CoincheckOrderBook target;
+
+    private Instant now;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        target = new CoincheckOrderBook();
+
+        now = Instant.ofEpochMilli(1234567890);
+
+    }
+
+    static CoincheckBook book(double[] asks, double[] bids) {
+        return CoincheckBook.builder().asks(levels(asks)).bids(levels(bids)).build();
+    }
+
+    private static List<BigDecimal[]> levels(double[] values) {
+
+        List<BigDecimal[]> levels = new ArrayList<>();
+
+        for (int i = 0; i < values.length; i += 2) {
+            levels.add(new BigDecimal[]{BigDecimal.valueOf(values[i]), BigDecimal.valueOf(values[i + 1])});
+        }
+
+        return levels;
+
+    }
+
+    @Test
+    public void testApply() {
+
+        // Not synced
+        target.apply(now, book(new double[]{102, 1}, new double[]{98, 2}));
+        assertNull(target.snapshot(now, EXPIRY));
+        assertFalse(target.isSynced(now, EXPIRY));
+        assertNull(target.getBestAsk());
+        assertNull(target.getBestBid());
+
+        // Snapshot with the buffered diff replayed.
+        target.reset(book(new double[]{101, 3, 102, 4}, new double[]{99, 5, 98, 6}));
+        CoincheckBook book = target.snapshot(now, EXPIRY);
+        assertEquals(book.getAsks().toString(), "{101.0=3.0, 102.0=1.0}");
+        assertEquals(book.getBids().toString(), "{99.0=5.0, 98.0=2.0}");
+        assertEquals(book.getBestAskPrice(), new BigDecimal("101.0"));
+        assertEquals(book.getBestBidSize(), new BigDecimal("5.0"));
+        assertEquals(target.getBestAsk().getKey(), new BigDecimal("101.0"));
+        assertEquals(target.getBestBid().getValue(), new BigDecimal("5.0"));
+
+        // Removal and insertion
+        target.apply(now, book(new double[]{101, 0, 103, 7}, new double[]{}));
+        book = target.snapshot(now, EXPIRY);
+        assertEquals(book.getAsks().toString(), "{102.0=1.0, 103.0=7.0}");
+        assertEquals(book.getBids().toString(), "{99.0=5.0, 98.0=2.0}");
+
+        // Stale levels crossed by the diff are dropped.
+        target.apply(now, book(new double[]{}, new double[]{102.5, 8}));
+        book = target.snapshot(now, EXPIRY);
+        assertEquals(book.getAsks().toString(), "{103.0=7.0}");
+        assertEquals(book.getBids().toString(), "{102.5=8.0, 99.0=5.0, 98.0=2.0}");
+
+        // Silent
+        assertNotNull(target.snapshot(now.plus(EXPIRY), EXPIRY));
+        assertNull(target.snapshot(now.plus(EXPIRY).plusMillis(1), EXPIRY));
+        assertNull(target.snapshot(null, EXPIRY));
+        assertNull(target.snapshot(now, null));
+
+        // Snapshot does not refresh the silent book.
+        target.reset(book(new double[]{103, 1}, new double[]{102, 1}));
+        assertNull(target.snapshot(now.plus(EXPIRY).plusMillis(1), EXPIRY));
+
+        // Invalidated
+        target.invalidate();
+        assertNull(target.snapshot(now, EXPIRY));
+
+    }
+
+    @Test
+    public void testApply_Crossed() {
+
+        target.reset(book(new double[]{101, 1, 102, 1}, new double[]{99, 1, 98, 1}));
+        target.apply(now, book(new double[]{}, new double[]{97, 1}));
+        assertNotNull(target.snapshot(now, EXPIRY));
+
+        // Crossed by the levels not in the latest diff : cannot tell which is stale.
+        target.invalidate();
+        target.apply(now, book(new double[]{}, new double[]{101.5, 1}));
+        target.apply(now, book(new double[]{105, 1}, new double[]{}));
+        target.reset(book(new double[]{101, 1}, new double[]{99, 1}));
+        assertNull(target.snapshot(now, EXPIRY));
+
+        target.apply(now, book(new double[]{100, 2}, new double[]{}));
+        assertNull(target.snapshot(now, EXPIRY));
+
+        target.reset(book(new double[]{101, 1}, new double[]{99, 1}));
+        CoincheckBook book = target.snapshot(now, EXPIRY);
+        assertEquals(book.getAsks().toString(), "{100.0=2.0, 101.0=1.0}");
+        assertEquals(book.getBids().toString(), "{99.0=1.0}");
+
+    }
+
+}
@@ -5,11 +5,17 @@ import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.Key;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Estimator.Estimation;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Request;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.math.BigDecimal;
 import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
 
 import static java.math.BigDecimal.ZERO;
 import static java.time.temporal.ChronoUnit.HOURS;
@@ -17,8 +23,7 @@ import static java.time.temporal.ChronoUnit.MINUTES;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static org.apache.commons.lang3.math.NumberUtils.LONG_ONE;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.*;
 import static org.testng.Assert.assertEquals;
 
 /**
@@ -31,9 +36,14 @@ public class VwapEstimatorTest {
 
     private Context context;
 
+    @Captor
+    private ArgumentCaptor<Consumer<Trade>> visitor;
+
     @BeforeMethod
     public void setUp() throws Exception {
 
+        MockitoAnnotations.initMocks(this);
+
         context = mock(Context.class);
 
         target = new VwapEstimator();
@@ -92,6 +102,19 @@ public class VwapEstimatorTest {
         assertEquals(estimation.getPrice(), new BigDecimal("49.9231910345"));
         assertEquals(estimation.getConfidence(), new BigDecimal("0.9388342018"));
 
+        // Visited by the context, without listing.
+        List<Trade> visited = asList(t1, t3, t5, t7, null, t2, t4, t6, t8);
+        doAnswer(i -> {
+            visited.stream().filter(Objects::nonNull).filter(t -> t.getTimestamp() != null)
+                    .forEach(visitor.getValue());
+            return true;
+        }).when(context).visitTrades(eq(key), eq(from), isNull(Instant.class), visitor.capture());
+        estimation = target.estimate(context, request);
+        assertEquals(estimation.getPrice(), new BigDecimal("49.9231910345"));
+        assertEquals(estimation.getConfidence(), new BigDecimal("0.9388342018"));
+        verify(context).listTrades(any(), any());
+        reset(context);
+
         // Two points
         when(context.listTrades(key, from)).thenReturn(asList(t1, null, t2));
         estimation = target.estimate(context, request);
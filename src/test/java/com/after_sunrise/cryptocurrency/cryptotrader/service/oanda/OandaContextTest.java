@@ -9,13 +9,16 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Predicate;
 
 import static com.after_sunrise.cryptocurrency.cryptotrader.framework.Service.CurrencyType.JPY;
 import static com.after_sunrise.cryptocurrency.cryptotrader.framework.Service.CurrencyType.USD;
@@ -48,6 +51,8 @@ public class OandaContextTest {
 
         doReturn(null).when(target).request(any(), any(), any(), any());
 
+        doNothing().when(target).scheduleStream(any());
+
     }
 
     @AfterMethod
@@ -62,6 +67,7 @@ public class OandaContextTest {
         target.setConfiguration(new Configurations().properties(path.toAbsolutePath().toFile()));
 
         doCallRealMethod().when(target).request(any(), any(), any(), any());
+        doCallRealMethod().when(target).scheduleStream(any());
 
         Key key = Key.builder().instrument("USD_JPY").build();
 
@@ -202,4 +208,123 @@ public class OandaContextTest {
         assertEquals(target.findProduct(null, JPY, USD), null);
     }
 
+    @Test
+    public void testSubscribe() {
+
+        // No account
+        assertFalse(target.subscribe("USD_JPY"));
+        verify(target, never()).scheduleStream(any());
+
+        configuration.setProperty(
+                "com.after_sunrise.cryptocurrency.cryptotrader.service.oanda.OandaContext.api.account", "123");
+        assertTrue(target.subscribe("USD_JPY"));
+        assertTrue(target.subscribe("EUR_JPY"));
+        assertFalse(target.subscribe(null));
+        assertFalse(target.subscribe(""));
+        verify(target).scheduleStream(any());
+
+        // Disabled
+        configuration.setProperty(
+                "com.after_sunrise.cryptocurrency.cryptotrader.service.oanda.OandaContext.realtime.expiry", "0");
+        assertFalse(target.subscribe("USD_JPY"));
+
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStreamPrices() throws Exception {
+
+        Instant now = Instant.parse("2017-09-15T20:59:59Z");
+        doReturn(now).when(target).getNow();
+
+        Key key = Key.builder().instrument("USD_JPY").timestamp(now).build();
+        Duration timeout = Duration.ofSeconds(10);
+
+        // Nothing subscribed
+        assertFalse(target.streamPrices(timeout));
+        verify(target, never()).requestLines(any(), any(), any(), any());
+
+        configuration.setProperty(
+                "com.after_sunrise.cryptocurrency.cryptotrader.service.oanda.OandaContext.api.account", "123");
+        assertFalse(target.queryTick(key).isPresent());
+
+        String url = OandaContext.URL_STREAM + "123&instruments=USD_JPY";
+        Map<String, String> params = singletonMap("Authorization", "Bearer MY_REST_TOKEN_HERE");
+
+        doAnswer(i -> {
+
+            Predicate<String> handler = (Predicate<String>) i.getArguments()[3];
+
+            assertTrue(handler.test("{\"tick\":{\"instrument\":\"USD_JPY\",\"time\":\"2017-09-15T20:59:58Z\","
+                    + "\"bid\":110.819,\"ask\":110.859}}"));
+            assertTrue(handler.test("{\"heartbeat\":{\"time\":\"2017-09-15T20:59:59Z\"}}"));
+
+            // Reconnected for the new instruments.
+            target.subscribe("EUR_JPY");
+            assertFalse(handler.test("{\"heartbeat\":{\"time\":\"2017-09-15T20:59:59Z\"}}"));
+
+            return null;
+
+        }).when(target).requestLines(eq(url), eq(params), eq(timeout), any());
+        assertTrue(target.streamPrices(timeout));
+
+        // Streamed, without the round trips.
+        OandaTick tick = target.queryTick(key).get();
+        assertEquals(tick.getAsk(), new BigDecimal("110.859"));
+        assertEquals(tick.getBid(), new BigDecimal("110.819"));
+        assertEquals(target.getBestAskPrice(key), new BigDecimal("110.859"));
+        verify(target, times(1)).request(any(), any(), any(), any());
+
+        // Halted, without the round trips.
+        url = OandaContext.URL_STREAM + "123&instruments=EUR_JPY%2CUSD_JPY";
+        doAnswer(i -> {
+
+            Predicate<String> handler = (Predicate<String>) i.getArguments()[3];
+
+            assertTrue(handler.test("{\"tick\":{\"instrument\":\"USD_JPY\",\"time\":\"2017-09-15T20:59:59Z\","
+                    + "\"bid\":110.819,\"ask\":110.859,\"status\":\"halted\"}}"));
+            assertFalse(handler.test("{\"disconnect\":{\"code\":64}}"));
+
+            return null;
+
+        }).when(target).requestLines(eq(url), eq(params), eq(timeout), any());
+        assertTrue(target.streamPrices(timeout));
+        assertFalse(target.queryTick(key).isPresent());
+        verify(target, times(1)).request(any(), any(), any(), any());
+
+        // Disconnected without any message.
+        doAnswer(i -> ((Predicate<String>) i.getArguments()[3]).test("{\"disconnect\":{\"code\":64}}"))
+                .when(target).requestLines(eq(url), eq(params), eq(timeout), any());
+        assertFalse(target.streamPrices(timeout));
+
+    }
+
+    @Test(timeOut = 5000)
+    public void testRunStream() throws Exception {
+
+        configuration.setProperty(
+                "com.after_sunrise.cryptocurrency.cryptotrader.service.oanda.OandaContext.socket.backoff.min", "1");
+
+        // Failures are retried until interrupted.
+        doThrow(new IOException("test")).doAnswer(i -> {
+            Thread.currentThread().interrupt();
+            return true;
+        }).when(target).streamPrices(any());
+
+        target.runStream();
+        verify(target, times(2)).streamPrices(any());
+        assertTrue(Thread.interrupted());
+
+        // Interrupted while retrying.
+        doAnswer(i -> {
+            Thread.currentThread().interrupt();
+            return false;
+        }).when(target).streamPrices(any());
+
+        target.runStream();
+        verify(target, times(3)).streamPrices(any());
+        assertFalse(Thread.interrupted());
+
+    }
+
 }
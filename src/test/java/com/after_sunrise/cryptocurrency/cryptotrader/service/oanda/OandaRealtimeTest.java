@@ -0,0 +1,88 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.oanda;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class OandaRealtimeTest {
+
+    private static final Duration EXPIRY = Duration.ofSeconds(30);
+
+    private OandaRealtime target;
+
+    private Instant now;
+
+    private List<String> notified;
+
+    private Consumer<OandaTick> listener;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        Gson gson = new GsonBuilder().registerTypeAdapter(Instant.class,
+                (JsonDeserializer<Instant>) (j, t, c) -> Instant.parse(j.getAsString())).create();
+
+        target = new OandaRealtime(gson);
+
+        now = Instant.ofEpochSecond(1505509198);
+
+        notified = new ArrayList<>();
+
+        listener = t -> notified.add(t.getInstrument() + ":" + t.getStatus());
+
+    }
+
+    @Test
+    public void testApply() {
+
+        assertTrue(target.apply(now, null, listener));
+        assertTrue(target.apply(now, "", listener));
+        assertTrue(target.apply(now, "[]", listener));
+        assertNull(target.getTick(now, EXPIRY, "USD_JPY"));
+
+        assertTrue(target.apply(now, "{\"tick\":{\"instrument\":\"USD_JPY\",\"time\":\"2017-09-15T20:59:58.654262Z\","
+                + "\"bid\":110.819,\"ask\":110.859}}", listener));
+        assertTrue(target.apply(now, "{\"tick\":{\"instrument\":\"EUR_JPY\",\"time\":\"2017-09-15T20:59:58Z\","
+                + "\"bid\":130.1,\"ask\":130.2,\"status\":\"halted\"}}", listener));
+        assertTrue(target.apply(now, "{\"tick\":{\"bid\":1,\"ask\":2}}", listener));
+        assertEquals(notified.toString(), "[USD_JPY:null, EUR_JPY:halted]");
+
+        OandaTick tick = target.getTick(now, EXPIRY, "USD_JPY");
+        assertEquals(tick.getAsk(), new BigDecimal("110.859"));
+        assertEquals(tick.getBid(), new BigDecimal("110.819"));
+        assertEquals(tick.getTimestamp(), Instant.parse("2017-09-15T20:59:58.654262Z"));
+        assertEquals(target.getTick(now, EXPIRY, "EUR_JPY").getStatus(), "halted");
+        assertNull(target.getTick(now, EXPIRY, "FOO_BAR"));
+
+        // Silent, and kept alive by the heartbeats.
+        Instant later = now.plus(EXPIRY).plusMillis(1);
+        assertNull(target.getTick(later, EXPIRY, "USD_JPY"));
+        assertTrue(target.apply(later, "{\"heartbeat\":{\"time\":\"2017-09-15T21:00:30Z\"}}", listener));
+        assertSame(target.getTick(later, EXPIRY, "USD_JPY"), tick);
+        assertNull(target.getTick(later, null, "USD_JPY"));
+        assertNull(target.getTick(null, EXPIRY, "USD_JPY"));
+
+        // Disconnect
+        assertFalse(target.apply(later, "{\"disconnect\":{\"code\":64,\"message\":\"bye\"}}", listener));
+
+        target.reset();
+        assertNull(target.getTick(later, EXPIRY, "USD_JPY"));
+
+    }
+
+}
@@ -7,9 +7,12 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -37,6 +40,8 @@ public class PoloniexContextTest {
 
         doReturn(null).when(target).request(any(), any(), any(), any());
 
+        doNothing().when(target).scheduleSocket(any());
+
     }
 
     @AfterMethod
@@ -48,6 +53,7 @@ public class PoloniexContextTest {
     public void test() throws IOException {
 
         doCallRealMethod().when(target).request(any(), any(), any(), any());
+        doCallRealMethod().when(target).scheduleSocket(any());
 
         Key key = Key.builder().instrument("BTC_ETH").build();
 
@@ -144,12 +150,12 @@ public class PoloniexContextTest {
         // Found
         List<Trade> values = target.listTrades(key, null);
         assertEquals(values.size(), 2);
-        assertEquals(values.get(0).getTimestamp(), Instant.ofEpochMilli(1505230796000L));
-        assertEquals(values.get(0).getPrice(), new BigDecimal("0.07140271"));
-        assertEquals(values.get(0).getSize(), new BigDecimal("0.20000000"));
-        assertEquals(values.get(1).getTimestamp(), Instant.ofEpochMilli(1505230180000L));
-        assertEquals(values.get(1).getPrice(), new BigDecimal("0.07124940"));
-        assertEquals(values.get(1).getSize(), new BigDecimal("0.10772398"));
+        assertEquals(values.get(0).getTimestamp(), Instant.ofEpochMilli(1505230180000L));
+        assertEquals(values.get(0).getPrice(), new BigDecimal("0.07124940"));
+        assertEquals(values.get(0).getSize(), new BigDecimal("0.10772398"));
+        assertEquals(values.get(1).getTimestamp(), Instant.ofEpochMilli(1505230796000L));
+        assertEquals(values.get(1).getPrice(), new BigDecimal("0.07140271"));
+        assertEquals(values.get(1).getSize(), new BigDecimal("0.20000000"));
 
         // Cached
         doReturn(null).when(target).request(any(), any(), any(), any());
@@ -159,7 +165,88 @@ public class PoloniexContextTest {
         // Filtered
         List<Trade> filtered = target.listTrades(key, Instant.ofEpochMilli(1505230700000L));
         assertEquals(filtered.size(), 1);
-        assertEquals(filtered.get(0), values.get(0));
+        assertEquals(filtered.get(0), values.get(1));
+
+        // Only the new ones, deduplicated.
+        Instant now = Instant.ofEpochMilli(1505230800000L);
+        doReturn(now).when(target).getNow();
+        Key next = Key.build(key).timestamp(now).build();
+        doReturn("[{\"tradeID\":34120371,\"date\":\"2017-09-12 15:39:58\",\"rate\":\"0.0715\",\"amount\":\"1\"},"
+                + "{\"tradeID\":34120370,\"date\":\"2017-09-12 15:39:56\",\"rate\":\"0.07140271\","
+                + "\"amount\":\"0.20000000\"}]").when(target).request(
+                GET, URL_TRADE + key.getInstrument() + "&start=1505230796&end=1505230800", null, null);
+        List<Trade> merged = target.listTrades(next, null);
+        assertEquals(merged.size(), 3);
+        assertEquals(merged.subList(0, 2), values);
+        assertEquals(merged.get(2).getPrice(), new BigDecimal("0.0715"));
+
+    }
+
+    @Test
+    public void testSendSubscribe() throws Exception {
+
+        Session session = mock(Session.class);
+        RemoteEndpoint.Basic remote = mock(RemoteEndpoint.Basic.class);
+        when(session.getBasicRemote()).thenReturn(remote);
+
+        target.sendSubscribe(session, Arrays.asList("BTC_ETH", "USDT_BTC"));
+        verify(remote).sendText("{\"command\":\"subscribe\",\"channel\":\"BTC_ETH\"}");
+        verify(remote).sendText("{\"command\":\"subscribe\",\"channel\":\"USDT_BTC\"}");
+
+    }
+
+    @Test
+    public void testOnWebSocketMessage() throws Exception {
+
+        Instant now = Instant.ofEpochMilli(1505230800000L);
+        doReturn(now).when(target).getNow();
+
+        Key key = Key.builder().instrument("BTC_ETH").timestamp(now).build();
+        Session session = mock(Session.class);
+
+        // Seeded by the latest trades on open.
+        String data = Resources.toString(getResource("json/poloniex_trade.json"), UTF_8);
+        doReturn(data).when(target).request(GET, URL_TRADE + "BTC_ETH", null, null);
+        assertFalse(target.queryTick(key).isPresent());
+        target.onWebSocketOpen(session);
+        doReturn(null).when(target).request(any(), any(), any(), any());
+
+        target.onWebSocketMessage("[1010]", session);
+        target.onWebSocketMessage("[148,1000,[[\"i\",{\"currencyPair\":\"BTC_ETH\",\"orderBook\":["
+                + "{\"0.07150000\":\"1.5\",\"0.07160000\":\"2.0\"},"
+                + "{\"0.07130000\":\"3.0\",\"0.07120000\":\"4.0\"}]}]]]", session);
+        target.onWebSocketMessage("[148,1001,[[\"o\",1,\"0.07140000\",\"0.5\"],"
+                + "[\"o\",0,\"0.07160000\",\"0.00000000\"],"
+                + "[\"t\",\"34120371\",1,\"0.07150000\",\"0.25\",1505230799]]]", session);
+        target.onWebSocketMessage("", session);
+
+        PoloniexTick tick = target.queryTick(key).get();
+        assertEquals(tick.getAsk(), new BigDecimal("0.07150000"));
+        assertEquals(tick.getBid(), new BigDecimal("0.07140000"));
+        assertEquals(tick.getLast(), new BigDecimal("0.07150000"));
+
+        assertEquals(target.getAskPrices(key).toString(), "{0.07150000=1.5}");
+        assertEquals(target.getBidPrices(key).toString(), "{0.07140000=0.5, 0.07130000=3.0, 0.07120000=4.0}");
+
+        List<Trade> trades = target.listTrades(key, Instant.ofEpochMilli(1505230180000L));
+        assertEquals(trades.size(), 3);
+        assertEquals(trades.get(0).getPrice(), new BigDecimal("0.07124940"));
+        assertEquals(trades.get(1).getPrice(), new BigDecimal("0.07140271"));
+        assertEquals(trades.get(2).getPrice(), new BigDecimal("0.07150000"));
+        assertEquals(trades.get(2).getTimestamp(), Instant.ofEpochSecond(1505230799));
+
+        // Sequence gap
+        verify(session, never()).close();
+        target.onWebSocketMessage("[148,1003,[[\"o\",1,\"0.07140000\",\"0.6\"]]]", session);
+        verify(session).close();
+
+        // Reset on close.
+        target.onWebSocketClose(session, null);
+        target.clear();
+        assertFalse(target.queryTick(key).isPresent());
+
+        target.onWebSocketPong(null);
+        target.onWebSocketError(session, new IOException("test"));
 
     }
 
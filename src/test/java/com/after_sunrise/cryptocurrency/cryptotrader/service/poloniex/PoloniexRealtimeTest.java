@@ -0,0 +1,155 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.poloniex;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape.TapeTrade;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.stream.Collectors.toList;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class PoloniexRealtimeTest {
+
+    private static final Duration EXPIRY = Duration.ofSeconds(30);
+
+    private PoloniexRealtime target;
+
+    private Instant now;
+
+    private List<String> notified;
+
+    private PoloniexRealtime.Listener listener;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        target = new PoloniexRealtime();
+
+        now = Instant.ofEpochSecond(1505230800);
+
+        notified = new ArrayList<>();
+
+        listener = new PoloniexRealtime.Listener() {
+
+            @Override
+            public void onTrade(String pair, PoloniexTrade trade) {
+                notified.add(pair + ":" + trade.getId());
+            }
+
+            @Override
+            public void onBook(String pair,
+                               Map.Entry<BigDecimal, BigDecimal> ask, Map.Entry<BigDecimal, BigDecimal> bid) {
+                notified.add(pair + ":" + ask + ":" + bid);
+            }
+
+        };
+
+    }
+
+    private static JsonElement json(String value) {
+        return new JsonParser().parse(value.replace('\'', '"'));
+    }
+
+    private static PoloniexTrade trade(long id, long seconds) {
+        return PoloniexTrade.builder().id(id).timestamp(Instant.ofEpochSecond(seconds))
+                .price(BigDecimal.valueOf(id)).size(BigDecimal.ONE).build();
+    }
+
+    private static List<Long> ids(List<TapeTrade> trades) {
+        return trades.stream().map(TapeTrade::getId).collect(toList());
+    }
+
+    @Test
+    public void testBook() {
+
+        // Heartbeat and acknowledgement
+        assertTrue(target.apply(now, json("[1010]"), listener));
+        assertTrue(target.apply(now, json("[148,1]"), listener));
+        assertTrue(target.apply(now, null, listener));
+
+        // Before the initial book
+        assertTrue(target.apply(now, json("[148,999,[['o',1,'0.1','1']]]"), listener));
+        assertNull(target.getAsks(now, EXPIRY, "BTC_ETH"));
+
+        assertTrue(target.apply(now, json("[148,1000,[['i',{'currencyPair':'BTC_ETH','orderBook':["
+                + "{'0.2':'1','0.3':'2'},{'0.1':'3','0.05':'4'}]}]]]"), listener));
+        assertEquals(target.getAsks(now, EXPIRY, "BTC_ETH").toString(), "{0.2=1, 0.3=2}");
+        assertEquals(target.getBids(now, EXPIRY, "BTC_ETH").toString(), "{0.1=3, 0.05=4}");
+
+        assertTrue(target.apply(now, json("[148,1001,[['o',0,'0.2','0.0'],['o',1,'0.15','5']]]"), listener));
+        assertEquals(target.getAsks(now, EXPIRY, "BTC_ETH").toString(), "{0.3=2}");
+        assertEquals(target.getBids(now, EXPIRY, "BTC_ETH").toString(), "{0.15=5, 0.1=3, 0.05=4}");
+        assertEquals(notified.toString(), "[BTC_ETH:0.2=1:0.1=3, BTC_ETH:0.3=2:0.15=5]");
+
+        // No tick without trades.
+        assertNull(target.getTick(now, EXPIRY, "BTC_ETH"));
+
+        // Silent
+        assertNull(target.getAsks(now.plus(EXPIRY).plusMillis(1), EXPIRY, "BTC_ETH"));
+
+        // Gap : discarded until the next initial book.
+        assertFalse(target.apply(now, json("[148,1003,[['o',1,'0.15','6']]]"), listener));
+        assertNull(target.getAsks(now, EXPIRY, "BTC_ETH"));
+        assertNull(target.getBids(now, EXPIRY, "BTC_ETH"));
+        assertTrue(target.apply(now, json("[148,1004,[['o',1,'0.15','6']]]"), listener));
+        assertNull(target.getBids(now, EXPIRY, "BTC_ETH"));
+
+        assertTrue(target.apply(now, json("[148,2000,[['i',{'currencyPair':'BTC_ETH','orderBook':[{},{}]}]]]"),
+                listener));
+        assertEquals(target.getAsks(now, EXPIRY, "BTC_ETH").size(), 0);
+
+        target.reset();
+        assertNull(target.getAsks(now, EXPIRY, "BTC_ETH"));
+
+    }
+
+    @Test
+    public void testTrades() {
+
+        target.apply(now, json("[148,1000,[['i',{'currencyPair':'BTC_ETH','orderBook':["
+                + "{'0.2':'1'},{'0.1':'3'}]}],['t','12',0,'0.1','0.5',1505230799]]]"), listener);
+        target.apply(now, json("[148,1001,[['t','13',1,'0.2','0.25',1505230800],['t','14']]]"), listener);
+        assertEquals(notified.toString(), "[BTC_ETH:12, BTC_ETH:0.2=1:0.1=3, BTC_ETH:13]");
+
+        PoloniexTick tick = target.getTick(now, EXPIRY, "BTC_ETH");
+        assertEquals(tick.getAsk(), new BigDecimal("0.2"));
+        assertEquals(tick.getBid(), new BigDecimal("0.1"));
+        assertEquals(tick.getLast(), new BigDecimal("0.2"));
+
+        List<TapeTrade> trades = target.getTrades(now, EXPIRY, "BTC_ETH", Instant.ofEpochSecond(1505230799));
+        assertEquals(ids(trades), Arrays.asList(12L, 13L));
+        assertEquals(trades.get(0).getSize(), new BigDecimal("0.5"));
+        assertNull(target.getTrades(now, EXPIRY, "BTC_ETH", Instant.ofEpochSecond(1505230798)));
+        assertNull(target.getTrades(now, EXPIRY, "BTC_ETH", null));
+
+        // Backfilled
+        target.merge(now, "BTC_ETH", Arrays.asList(trade(11, 1505230790), trade(12, 1505230799), null), listener);
+        assertEquals(ids(target.getTrades(now, EXPIRY, "BTC_ETH", Instant.ofEpochSecond(1505230790))),
+                Arrays.asList(11L, 12L, 13L));
+
+        // Evicted
+        target.merge(Instant.ofEpochSecond(1505230799).plus(Duration.ofHours(24)), "BTC_ETH",
+                Collections.emptyList(), listener);
+        assertEquals(ids(target.getTrades(now, EXPIRY, "BTC_ETH", Instant.ofEpochSecond(1505230800))),
+                Arrays.asList(13L));
+        assertNull(target.getTrades(now, EXPIRY, "BTC_ETH", Instant.ofEpochSecond(1505230799)));
+
+        target.merge(now, null, null, listener);
+
+    }
+
+}
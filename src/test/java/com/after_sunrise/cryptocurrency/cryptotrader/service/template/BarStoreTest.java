@@ -0,0 +1,308 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.BarStore.Bar;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.BarStore.Resolution;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+
+import static java.math.BigDecimal.ONE;
+import static java.math.BigDecimal.ZERO;
+import static java.util.stream.Collectors.toList;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class BarStoreTest {
+
+    private static final long BASE = 1505232000; // Aligned to the hour.
+
+    private static final BarStore.Partial NONE = (lower, upper) -> null;
+
+    private BarStore target;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        target = new BarStore();
+    }
+
+    private static Instant time(long seconds, long millis) {
+        return Instant.ofEpochSecond(BASE + seconds).plusMillis(millis);
+    }
+
+    private static List<Long> ends(List<Bar> bars) {
+        return bars.stream().map(b -> b.getEnd().getEpochSecond() - BASE).collect(toList());
+    }
+
+    @Test
+    public void testAdd() {
+
+        target.add(time(0, 500), new BigDecimal("100"), new BigDecimal("1"));
+        target.add(time(1, 0), new BigDecimal("104"), new BigDecimal("2"));
+        target.add(time(0, 900), new BigDecimal("98"), new BigDecimal("1"));
+        target.add(time(0, 200), new BigDecimal("99"), new BigDecimal("1")); // Out of order
+        target.add(time(1, 0), new BigDecimal("103"), new BigDecimal("1")); // Same time
+        target.add(time(61, 0), new BigDecimal("110"), new BigDecimal("3"));
+        target.add(time(62, 0), new BigDecimal("120"), ZERO); // Close without size
+        target.add(time(62, 0), null, ONE);
+        target.add(time(62, 0), ONE, null);
+        target.add(null, ONE, ONE);
+
+        List<Bar> seconds = target.list(Resolution.SECOND, null);
+        assertEquals(ends(seconds).toString(), "[1, 61, 62]");
+        assertEquals(seconds.get(0).getFirstTime(), time(0, 200));
+        assertEquals(seconds.get(0).getLastTime(), time(1, 0));
+        assertEquals(seconds.get(0).getOpen(), new BigDecimal("99"));
+        assertEquals(seconds.get(0).getHigh(), new BigDecimal("104"));
+        assertEquals(seconds.get(0).getLow(), new BigDecimal("98"));
+        assertEquals(seconds.get(0).getClose(), new BigDecimal("103"));
+        assertEquals(seconds.get(0).getCloseSize(), new BigDecimal("1"));
+        assertEquals(seconds.get(0).getSize(), new BigDecimal("6"));
+        assertEquals(seconds.get(0).getNotional(), new BigDecimal("608"));
+        assertEquals(seconds.get(0).getVwap(), new BigDecimal("101.33333333"));
+        assertEquals(seconds.get(2).getClose(), new BigDecimal("120"));
+        assertEquals(seconds.get(2).getCloseSize(), ZERO);
+        assertEquals(seconds.get(2).getSize(), ZERO);
+        assertNull(seconds.get(2).getVwap());
+
+        List<Bar> minutes = target.list(Resolution.MINUTE, null);
+        assertEquals(ends(minutes).toString(), "[60, 120]");
+        assertEquals(minutes.get(0).getOpen(), new BigDecimal("99"));
+        assertEquals(minutes.get(0).getClose(), new BigDecimal("103"));
+        assertEquals(minutes.get(0).getNotional(), new BigDecimal("608"));
+
+        assertEquals(ends(target.list(Resolution.FIVE_MINUTES, null)).toString(), "[300]");
+        assertEquals(ends(target.list(Resolution.HOUR, null)).toString(), "[3600]");
+        assertEquals(target.list(Resolution.HOUR, null).get(0).getSize(), new BigDecimal("9"));
+        assertEquals(target.list(Resolution.HOUR, null).get(0).getClose(), new BigDecimal("120"));
+        assertEquals(target.list(Resolution.HOUR, null).get(0).getCloseSize(), ZERO);
+
+        // From
+        assertEquals(ends(target.list(Resolution.SECOND, time(1, 0))).toString(), "[61, 62]");
+        assertEquals(ends(target.list(Resolution.SECOND, time(0, 999))).toString(), "[1, 61, 62]");
+        assertEquals(target.list(null, null).size(), 0);
+
+        // Accumulated in place
+        target.update(time(61, 0), new BigDecimal("111"), ONE, new BigDecimal("113"), new BigDecimal("4"));
+        assertEquals(target.list(Resolution.SECOND, time(1, 0)).get(0).getClose(), new BigDecimal("111"));
+        assertEquals(target.list(Resolution.SECOND, time(1, 0)).get(0).getCloseSize(), new BigDecimal("4"));
+        assertEquals(target.list(Resolution.SECOND, time(1, 0)).get(0).getSize(), new BigDecimal("4"));
+        assertEquals(target.list(Resolution.SECOND, time(1, 0)).get(0).getNotional(), new BigDecimal("443"));
+
+        target.clear();
+        assertEquals(target.list(Resolution.SECOND, null).size(), 0);
+        assertEquals(target.list(Resolution.HOUR, null).size(), 0);
+
+    }
+
+    @Test
+    public void testTrim() {
+
+        for (int i = 0; i < 180; i++) {
+            target.add(time(i, 500), BigDecimal.valueOf(i), ONE);
+        }
+
+        target.trim(time(100, 999));
+        assertEquals(target.list(Resolution.SECOND, null).get(0).getEnd(), time(101, 0));
+        assertEquals(ends(target.list(Resolution.MINUTE, null)).toString(), "[120, 180]");
+
+        target.trim(time(180, 0));
+        assertEquals(target.list(Resolution.SECOND, null).size(), 0);
+        assertEquals(ends(target.list(Resolution.HOUR, null)).toString(), "[3600]");
+
+        target.trim(null);
+        assertEquals(ends(target.list(Resolution.HOUR, null)).toString(), "[3600]");
+
+    }
+
+    /**
+     * Trades of the partial seconds, aggregated from the trades of [millis, price, size].
+     */
+    private static BarStore.Partial partial(List<Object[]> trades) {
+        return (lower, upper) -> {
+
+            Bar bar = null;
+
+            for (Object[] t : trades) {
+
+                long nanos = TradeTape.toNanos(time(0, (Long) t[0]));
+
+                if (lower < nanos && nanos <= upper) {
+                    bar = Bar.merge(bar, Bar.of(time(0, (Long) t[0]), (BigDecimal) t[1], (BigDecimal) t[2]));
+                }
+
+            }
+
+            return bar;
+
+        };
+    }
+
+    @Test
+    public void testCollapse() {
+
+        List<Object[]> trades = new ArrayList<>(); // [millis, price, size]
+
+        Random random = new Random(1234);
+
+        for (long millis = 0; millis < 3 * 3600 * 1000; millis += 1 + random.nextInt(3000)) {
+
+            BigDecimal price = BigDecimal.valueOf(10000 + random.nextInt(1000), 1);
+
+            BigDecimal size = random.nextInt(10) == 0 ? ZERO : BigDecimal.valueOf(1 + random.nextInt(100), 2);
+
+            target.add(time(0, millis), price, size);
+
+            trades.add(new Object[]{millis, price, size});
+
+        }
+
+        long[][] cases = { // [from millis, interval millis, count]
+                {3600 * 1000, 1000, 30},
+                {3600 * 1000, 7000, 30},
+                {3600 * 1000, 60 * 1000, 40},
+                {7200 * 1000, 300 * 1000, 20},
+                {10800 * 1000, 3600 * 1000, 3},
+                {5025 * 1000, 1500, 40},
+                {5025 * 1000, 3599 * 1000, 3},
+                {5025 * 1000 + 123, 250, 40},
+                {5025 * 1000 + 456, 60 * 1000 + 789, 30},
+        };
+
+        for (long[] c : cases) {
+
+            Duration interval = Duration.ofMillis(c[1]);
+
+            NavigableMap<Instant, Bar> result = target.collapse(
+                    interval, time(0, c[0]), time(0, c[0] + c[1] * c[2]), partial(trades));
+
+            assertEquals(result.size(), c[2]);
+
+            for (Map.Entry<Instant, Bar> entry : result.entrySet()) {
+
+                long hi = entry.getKey().toEpochMilli() - BASE * 1000;
+
+                long lo = hi - c[1];
+
+                BigDecimal size = ZERO;
+
+                BigDecimal notional = ZERO;
+
+                BigDecimal close = null;
+
+                BigDecimal closeSize = null;
+
+                for (Object[] t : trades) {
+
+                    long millis = (Long) t[0];
+
+                    if (millis <= lo || hi < millis) {
+                        continue;
+                    }
+
+                    size = size.add((BigDecimal) t[2]);
+
+                    notional = notional.add(((BigDecimal) t[1]).multiply((BigDecimal) t[2]));
+
+                    close = (BigDecimal) t[1];
+
+                    closeSize = (BigDecimal) t[2];
+
+                }
+
+                Bar bar = entry.getValue();
+
+                assertEquals(bar == null ? null : bar.getClose(), close, entry.toString());
+                assertEquals(bar == null ? null : bar.getCloseSize(), closeSize, entry.toString());
+                assertEquals(bar == null ? ZERO : bar.getSize(), size, entry.toString());
+                assertEquals(bar == null ? ZERO : bar.getNotional(), notional, entry.toString());
+
+            }
+
+        }
+
+        // Whole seconds from the bars, without the partial seconds at the edges.
+        NavigableMap<Instant, Bar> result = target.collapse(
+                Duration.ofSeconds(60), time(3600, 500), time(3601, 0), NONE);
+        assertEquals(result.size(), 1);
+        assertTrue(result.firstEntry().getValue().getFirstTime().isAfter(time(3541, 0)));
+        assertFalse(result.firstEntry().getValue().getLastTime().isAfter(time(3600, 0)));
+
+        // Empty
+        result = target.collapse(Duration.ofSeconds(60), time(-120, 0), time(-60, 0), partial(trades));
+        assertEquals(result.size(), 1);
+        assertNull(result.get(time(-120, 0)));
+
+        // Invalid
+        assertNull(target.collapse(null, time(0, 0), time(60, 0), partial(trades)));
+        assertNull(target.collapse(Duration.ofSeconds(60), null, time(60, 0), partial(trades)));
+        assertNull(target.collapse(Duration.ofSeconds(60), time(0, 0), null, partial(trades)));
+        assertNull(target.collapse(Duration.ofSeconds(60), time(0, 0), time(60, 0), null));
+        assertNull(target.collapse(Duration.ZERO, time(0, 0), time(60, 0), partial(trades)));
+        assertEquals(target.collapse(Duration.ofSeconds(60), time(60, 0), time(0, 0), partial(trades)).size(), 0);
+
+    }
+
+    @Test
+    public void testSeal() {
+
+        BarStore plain = new BarStore(Integer.MAX_VALUE);
+
+        target = new BarStore(4);
+
+        Random random = new Random(1234);
+
+        for (int i = 0; i < 20000; i++) {
+
+            long millis = i % 10 == 0 ? random.nextInt(i + 1) * 300 : i * 300L; // Some late
+
+            BigDecimal price = BigDecimal.valueOf(400000 + random.nextInt(100), random.nextInt(3));
+
+            BigDecimal size = BigDecimal.valueOf(1 + random.nextInt(1000), 8);
+
+            if (i == 5000) {
+                size = new BigDecimal("12345678901234567890.12345678"); // Not sealed
+            }
+
+            target.add(time(0, millis), price, size);
+
+            plain.add(time(0, millis), price, size);
+
+        }
+
+        for (Resolution r : Resolution.values()) {
+            assertEquals(target.list(r, null), plain.list(r, null), r.name());
+            assertEquals(target.list(r, time(3000, 0)), plain.list(r, time(3000, 0)), r.name());
+        }
+
+        assertEquals(target.collapse(Duration.ofSeconds(7), time(1000, 0), time(1300, 0), NONE),
+                plain.collapse(Duration.ofSeconds(7), time(1000, 0), time(1300, 0), NONE));
+        assertEquals(target.collapse(Duration.ofSeconds(3600), time(3600, 0), time(7200, 0), NONE),
+                plain.collapse(Duration.ofSeconds(3600), time(3600, 0), time(7200, 0), NONE));
+
+        target.trim(time(2000, 500));
+        plain.trim(time(2000, 500));
+
+        for (Resolution r : Resolution.values()) {
+            assertEquals(target.list(r, null), plain.list(r, null), r.name());
+        }
+
+        assertEquals(target.collapse(Duration.ofSeconds(60), time(2100, 0), time(2400, 0), NONE),
+                plain.collapse(Duration.ofSeconds(60), time(2100, 0), time(2400, 0), NONE));
+
+        target.clear();
+        assertEquals(target.list(Resolution.SECOND, null).size(), 0);
+
+    }
+
+}
@@ -0,0 +1,173 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.CircuitBreaker.Status;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.CircuitBreaker.Threshold;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class CircuitBreakerTest {
+
+    private static final Duration FAST = Duration.ofMillis(10);
+
+    private static final Duration SLOW = Duration.ofMillis(1000);
+
+    private CircuitBreaker target;
+
+    private Threshold threshold;
+
+    private Instant now;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        target = new CircuitBreaker();
+
+        threshold = Threshold.builder()
+                .window(4)
+                .failureRate(new BigDecimal("0.5"))
+                .latency(Duration.ofMillis(100))
+                .cooldown(Duration.ofSeconds(30))
+                .probes(2)
+                .build();
+
+        now = Instant.ofEpochMilli(1234567890);
+
+    }
+
+    @Test
+    public void testAcquire_Disabled() {
+
+        threshold = Threshold.builder().window(0).build();
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(target.acquire(now, threshold));
+            target.release(now, SLOW, false, threshold);
+        }
+
+        assertTrue(target.acquire(now, null));
+        target.release(now, SLOW, false, null);
+
+        assertEquals(target.getStatus(), Status.CLOSED);
+
+    }
+
+    @Test
+    public void testRelease_FailureRate() {
+
+        // Window not filled.
+        target.release(now, FAST, false, threshold);
+        target.release(now, FAST, false, threshold);
+        target.release(now, FAST, true, threshold);
+        assertEquals(target.getStatus(), Status.CLOSED);
+
+        // 2 failures in 4
+        target.release(now, FAST, true, threshold);
+        assertEquals(target.getStatus(), Status.OPEN);
+        assertFalse(target.acquire(now, threshold));
+
+    }
+
+    @Test
+    public void testRelease_Sliding() {
+
+        target.release(now, FAST, false, threshold);
+        target.release(now, FAST, true, threshold);
+        target.release(now, FAST, true, threshold);
+        target.release(now, FAST, true, threshold);
+        assertEquals(target.getStatus(), Status.CLOSED);
+
+        // Oldest failure rolls out of the window.
+        target.release(now, FAST, true, threshold);
+        target.release(now, FAST, false, threshold);
+        assertEquals(target.getStatus(), Status.CLOSED);
+
+        target.release(now, FAST, false, threshold);
+        assertEquals(target.getStatus(), Status.OPEN);
+
+    }
+
+    @Test
+    public void testRelease_Latency() {
+
+        target.release(now, SLOW, true, threshold);
+        target.release(now, FAST, true, threshold);
+        target.release(now, FAST, true, threshold);
+        target.release(now, SLOW, true, threshold);
+        assertEquals(target.getStatus(), Status.OPEN);
+
+    }
+
+    @Test
+    public void testHalfOpen() {
+
+        for (int i = 0; i < 4; i++) {
+            target.release(now, FAST, false, threshold);
+        }
+
+        assertEquals(target.getStatus(), Status.OPEN);
+        assertFalse(target.acquire(now.plusSeconds(29), threshold));
+        assertEquals(target.getStatus(), Status.OPEN);
+
+        // Cool-down elapsed, only 2 probes allowed.
+        now = now.plusSeconds(30);
+        assertTrue(target.acquire(now, threshold));
+        assertTrue(target.acquire(now, threshold));
+        assertFalse(target.acquire(now, threshold));
+        assertEquals(target.getStatus(), Status.HALF_OPEN);
+
+        // Probe failure re-opens.
+        target.release(now, FAST, false, threshold);
+        assertEquals(target.getStatus(), Status.OPEN);
+        assertFalse(target.acquire(now.plusSeconds(29), threshold));
+
+        // Probe success closes.
+        now = now.plusSeconds(30);
+        assertTrue(target.acquire(now, threshold));
+        assertTrue(target.acquire(now, threshold));
+        target.release(now, FAST, true, threshold);
+        assertEquals(target.getStatus(), Status.HALF_OPEN);
+        target.release(now, FAST, true, threshold);
+        assertEquals(target.getStatus(), Status.CLOSED);
+        assertTrue(target.acquire(now, threshold));
+
+        // Window is cleared after closing.
+        target.release(now, FAST, false, threshold);
+        target.release(now, FAST, false, threshold);
+        target.release(now, FAST, false, threshold);
+        assertEquals(target.getStatus(), Status.CLOSED);
+
+    }
+
+    @Test
+    public void testAbandon() {
+
+        target.abandon();
+        assertEquals(target.getStatus(), Status.CLOSED);
+
+        for (int i = 0; i < 4; i++) {
+            target.release(now, FAST, false, threshold);
+        }
+
+        // Probe permits returned.
+        now = now.plusSeconds(30);
+        assertTrue(target.acquire(now, threshold));
+        assertTrue(target.acquire(now, threshold));
+        assertFalse(target.acquire(now, threshold));
+        target.abandon();
+        assertEquals(target.getStatus(), Status.HALF_OPEN);
+        assertTrue(target.acquire(now, threshold));
+        assertFalse(target.acquire(now, threshold));
+
+    }
+
+}
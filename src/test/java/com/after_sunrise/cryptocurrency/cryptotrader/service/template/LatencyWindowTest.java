@@ -0,0 +1,54 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+
+import static java.math.BigDecimal.ONE;
+import static java.math.BigDecimal.ZERO;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class LatencyWindowTest {
+
+    @Test
+    public void testPercentile() {
+
+        LatencyWindow target = new LatencyWindow(10);
+
+        BigDecimal p95 = new BigDecimal("0.95");
+
+        assertNull(target.percentile(p95, 0));
+
+        for (int i = 10; i > 0; i--) {
+            target.record(Duration.ofMillis(i));
+        }
+
+        target.record(null);
+        target.record(Duration.ofMillis(-1));
+
+        assertEquals(target.percentile(p95, 10), Duration.ofMillis(10));
+        assertEquals(target.percentile(new BigDecimal("0.5"), 10), Duration.ofMillis(5));
+        assertEquals(target.percentile(new BigDecimal("0.01"), 10), Duration.ofMillis(1));
+        assertEquals(target.percentile(ONE, 10), Duration.ofMillis(10));
+        assertNull(target.percentile(p95, 11));
+        assertNull(target.percentile(ZERO, 10));
+        assertNull(target.percentile(new BigDecimal("1.01"), 10));
+        assertNull(target.percentile(null, 10));
+
+        // Oldest samples are overwritten.
+        for (int i = 0; i < 5; i++) {
+            target.record(Duration.ofMillis(100));
+        }
+
+        assertEquals(target.percentile(new BigDecimal("0.5"), 10), Duration.ofMillis(5));
+        assertEquals(target.percentile(new BigDecimal("0.51"), 10), Duration.ofMillis(100));
+
+    }
+
+}
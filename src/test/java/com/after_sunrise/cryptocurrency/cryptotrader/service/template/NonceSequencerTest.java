@@ -0,0 +1,185 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import org.apache.http.client.HttpResponseException;
+import org.testng.annotations.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class NonceSequencerTest {
+
+    @Test
+    public void testNext() {
+
+        NonceSequencer target = new NonceSequencer(MILLISECONDS);
+
+        Instant now = Instant.ofEpochMilli(1234567890);
+
+        assertEquals(target.next(now), 1234567890L);
+
+        // Clock not advanced
+        assertEquals(target.next(now), 1234567891L);
+        assertEquals(target.next(now), 1234567892L);
+
+        // Clock went backwards
+        assertEquals(target.next(now.minusSeconds(1)), 1234567893L);
+
+        // Clock caught up
+        assertEquals(target.next(now.plusMillis(10)), 1234567900L);
+
+    }
+
+    @Test
+    public void testNext_Micros() {
+
+        NonceSequencer target = new NonceSequencer(MICROSECONDS);
+
+        assertEquals(target.next(Instant.ofEpochSecond(1234, 567890123)), 1234567890L);
+
+        assertEquals(target.next(Instant.ofEpochSecond(1234, 567890999)), 1234567891L);
+
+    }
+
+    @Test
+    public void testNext_Concurrent() throws Exception {
+
+        NonceSequencer target = new NonceSequencer(MILLISECONDS);
+
+        Instant now = Instant.ofEpochMilli(1234567890);
+
+        Set<Long> nonces = ConcurrentHashMap.newKeySet();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        nonces.add(target.next(now));
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(nonces.size(), 4000);
+
+        assertEquals(target.next(now), 1234567890L + 4000);
+
+    }
+
+    @Test
+    public void testRejection() {
+
+        Predicate<HttpResponseException> target = NonceSequencer.rejection(401, "Nonce must be incremented");
+
+        String nonce = "{\"error\":\"Nonce must be incremented\"}";
+
+        assertTrue(target.test(new HttpResponseException(401, "HTTP/1.1 401 : " + nonce)));
+        assertFalse(target.test(new HttpResponseException(400, "HTTP/1.1 400 : " + nonce)));
+        assertFalse(target.test(new HttpResponseException(401, "HTTP/1.1 401 : {\"error\":\"invalid\"}")));
+        assertFalse(target.test(new HttpResponseException(401, null)));
+
+    }
+
+    @Test
+    public void testExecute() throws Exception {
+
+        NonceSequencer target = new NonceSequencer(MILLISECONDS);
+
+        Predicate<HttpResponseException> rejection = NonceSequencer.rejection(401, "nonce");
+
+        Instant now = Instant.ofEpochMilli(1234567890);
+
+        List<Long> sent = new ArrayList<>();
+
+        // Accepted
+        assertEquals(target.execute(() -> now, rejection, n -> {
+            sent.add(n);
+            return "ok";
+        }), "ok");
+        assertEquals(sent, Arrays.asList(1234567890L));
+
+        // Rejected without being overtaken.
+        sent.clear();
+        try {
+            target.execute(() -> now, rejection, n -> {
+                sent.add(n);
+                throw new HttpResponseException(401, "bad nonce");
+            });
+            fail();
+        } catch (HttpResponseException e) {
+            assertEquals(sent, Arrays.asList(1234567891L));
+        }
+
+        // Rejected after overtaken, and resent once with a fresh nonce.
+        sent.clear();
+        assertEquals(target.execute(() -> now, rejection, n -> {
+            sent.add(n);
+            if (sent.size() == 1) {
+                target.next(now); // Concurrent request
+                throw new HttpResponseException(401, "bad nonce");
+            }
+            return "retried";
+        }), "retried");
+        assertEquals(sent, Arrays.asList(1234567892L, 1234567894L));
+
+        // Resent only once.
+        sent.clear();
+        try {
+            target.execute(() -> now, rejection, n -> {
+                sent.add(n);
+                target.next(now);
+                throw new HttpResponseException(401, "bad nonce");
+            });
+            fail();
+        } catch (HttpResponseException e) {
+            assertEquals(sent, Arrays.asList(1234567895L, 1234567897L));
+        }
+
+        // Not rejections of the nonce, even if overtaken : plain 400, other 401, rate limit and server errors.
+        String[][] errors = {{"400", "bad nonce"}, {"400", "insufficient funds"}, {"401", "invalid signature"},
+                {"404", "not found"}, {"429", "bad nonce"}, {"500", "bad nonce"}};
+
+        for (String[] error : errors) {
+            sent.clear();
+            try {
+                target.execute(() -> now, rejection, n -> {
+                    sent.add(n);
+                    target.next(now);
+                    throw new HttpResponseException(Integer.parseInt(error[0]), error[1]);
+                });
+                fail();
+            } catch (HttpResponseException e) {
+                assertEquals(sent.size(), 1, Arrays.toString(error));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import org.apache.commons.lang3.StringUtils;
+import org.testng.annotations.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.after_sunrise.cryptocurrency.cryptotrader.service.template.RequestSigner.HMAC_SHA256;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class RequestSignerTest {
+
+    private static String reference(String secret, String message) throws Exception {
+
+        Mac mac = Mac.getInstance(HMAC_SHA256);
+
+        mac.init(new SecretKeySpec(secret.getBytes(UTF_8), HMAC_SHA256));
+
+        StringBuilder sb = new StringBuilder();
+
+        for (byte b : mac.doFinal(message.getBytes(UTF_8))) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+
+        return sb.toString();
+
+    }
+
+    @Test
+    public void testGet() {
+
+        RequestSigner target = RequestSigner.get(HMAC_SHA256);
+
+        assertSame(RequestSigner.get(HMAC_SHA256), target);
+
+        assertEquals(target.getAlgorithm(), HMAC_SHA256);
+
+    }
+
+    @Test
+    public void testSign() throws Exception {
+
+        RequestSigner target = RequestSigner.get(HMAC_SHA256);
+
+        // RFC 4231 : Test Case 2
+        String expect = "5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843";
+        assertEquals(target.sign("Jefe", "what do ya want for nothing?"), expect);
+        assertEquals(target.sign("Jefe", "what do ya ", null, "", "want for nothing?"), expect);
+        assertEquals(target.sign("Jefe", new StringBuilder("what do ya want for nothing?")), expect);
+
+        // Reused after the previous call.
+        assertEquals(target.sign("Jefe", "what do ya want for nothing?"), expect);
+        assertEquals(target.sign("Jefe"), reference("Jefe", ""));
+
+        // Different secrets
+        for (int i = 0; i < 32; i++) {
+            assertEquals(target.sign("secret" + i, "foo", "bar"), reference("secret" + i, "foobar"));
+        }
+
+        // Longer than buffer, with multi-byte characters.
+        String message = StringUtils.repeat("abcあいう", 1000);
+        assertEquals(target.sign("Jefe", message, message), reference("Jefe", message + message));
+
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testSign_Invalid() throws Exception {
+        RequestSigner.get("Invalid").sign("Jefe", "foo");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testSign_NullSecret() throws Exception {
+        RequestSigner.get(HMAC_SHA256).sign(null, "foo");
+    }
+
+    @Test
+    public void testSign_Concurrent() throws Exception {
+
+        RequestSigner target = RequestSigner.get(HMAC_SHA256);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+
+            List<Future<String>> futures = new ArrayList<>();
+
+            for (int i = 0; i < 100; i++) {
+
+                String message = "message" + i;
+
+                futures.add(executor.submit(() -> target.sign("secret", message)));
+
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals(futures.get(i).get(), reference("secret", "message" + i));
+            }
+
+        } finally {
+            executor.shutdown();
+        }
+
+    }
+
+}
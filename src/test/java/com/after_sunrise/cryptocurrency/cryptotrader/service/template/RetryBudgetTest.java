@@ -0,0 +1,41 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class RetryBudgetTest {
+
+    @Test
+    public void testWithdraw() {
+
+        RetryBudget target = new RetryBudget(2);
+
+        // Starts full
+        assertEquals(target.getBalance(), 2.0, 0.0);
+        assertTrue(target.withdraw());
+        assertTrue(target.withdraw());
+        assertFalse(target.withdraw());
+
+        // Refilled by the ratio
+        for (int i = 0; i < 9; i++) {
+            target.deposit(0.1);
+            assertFalse(target.withdraw());
+        }
+
+        target.deposit(0.11);
+        assertTrue(target.withdraw());
+        assertFalse(target.withdraw());
+
+        // Capped
+        target.deposit(10);
+        target.deposit(-1);
+        assertEquals(target.getBalance(), 2.0, 0.0);
+
+    }
+
+}
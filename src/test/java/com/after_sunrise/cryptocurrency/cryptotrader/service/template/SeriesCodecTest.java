@@ -0,0 +1,132 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class SeriesCodecTest {
+
+    @Test
+    public void testSigned() {
+
+        long[] values = {0, 1, -1, 63, -64, 64, -65, 2047, -2048, 2048, 524287, -524288, 524288,
+                Integer.MAX_VALUE, Integer.MIN_VALUE, 1L << 40, Long.MAX_VALUE, Long.MIN_VALUE};
+
+        SeriesCodec.Writer writer = new SeriesCodec.Writer();
+
+        for (long v : values) {
+            writer.writeSigned(v);
+            writer.write(v, 3);
+            writer.write(v, 64);
+        }
+
+        SeriesCodec.Reader reader = new SeriesCodec.Reader(writer.toArray());
+
+        for (long v : values) {
+            assertEquals(reader.readSigned(), v);
+            assertEquals(reader.read(3), v & 7);
+            assertEquals(reader.read(64), v);
+        }
+
+        // Length prefixes
+        writer = new SeriesCodec.Writer();
+        writer.writeSigned(0);
+        assertEquals(writer.getPosition(), 1);
+        writer.writeSigned(-64);
+        assertEquals(writer.getPosition(), 1 + 9);
+        writer.writeSigned(64);
+        assertEquals(writer.getPosition(), 1 + 9 + 15);
+        writer.writeSigned(Long.MIN_VALUE);
+        assertEquals(writer.getPosition(), 1 + 9 + 15 + 69);
+
+    }
+
+    @Test
+    public void testSequence() {
+
+        Random random = new Random(1234);
+
+        long[] values = new long[10000];
+
+        for (int i = 0; i < values.length; i++) {
+            long jitter = random.nextInt(10) == 0 ? 1 : 0;
+
+            values[i] = i == 0 ? 1505232000_000_000_000L : values[i - 1] + 1_000_000 + jitter;
+        }
+
+        values[5000] = Long.MIN_VALUE; // Wrapped around
+        values[5001] = Long.MAX_VALUE;
+
+        SeriesCodec.Writer writer = new SeriesCodec.Writer();
+
+        SeriesCodec.Sequence column = new SeriesCodec.Sequence();
+
+        for (long v : values) {
+            column.write(writer, v);
+        }
+
+        assertTrue(writer.getPosition() < values.length * 4, String.valueOf(writer.getPosition()));
+
+        SeriesCodec.Reader reader = new SeriesCodec.Reader(writer.toArray());
+
+        column = new SeriesCodec.Sequence();
+
+        for (long v : values) {
+            assertEquals(column.read(reader), v);
+        }
+
+    }
+
+    @Test
+    public void testScaled() {
+
+        Random random = new Random(1234);
+
+        long[][] values = new long[10000][]; // [unscaled, scale]
+
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new long[]{(random.nextInt(2000) - 1000) * 1000L, 8 + random.nextInt(2)};
+        }
+
+        values[10] = new long[]{0, -3};
+        values[20] = new long[]{Long.MAX_VALUE, 127};
+        values[21] = new long[]{Long.MIN_VALUE, -128};
+        values[22] = new long[]{-1000000000000000000L, 0};
+
+        for (boolean differential : new boolean[]{true, false}) {
+
+            SeriesCodec.Writer writer = new SeriesCodec.Writer();
+
+            SeriesCodec.Scaled column = new SeriesCodec.Scaled(differential);
+
+            for (long[] v : values) {
+                column.write(writer, v[0], (int) v[1]);
+            }
+
+            assertTrue(writer.getPosition() < values.length * 24, String.valueOf(writer.getPosition()));
+
+            SeriesCodec.Reader reader = new SeriesCodec.Reader(writer.toArray());
+
+            column = new SeriesCodec.Scaled(differential);
+
+            for (long[] v : values) {
+
+                column.read(reader);
+
+                assertEquals(column.getUnscaled(), v[0]);
+                assertEquals(column.getScale(), v[1]);
+
+            }
+
+        }
+
+    }
+
+}
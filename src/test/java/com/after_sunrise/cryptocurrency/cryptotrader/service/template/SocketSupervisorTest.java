@@ -0,0 +1,250 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import org.mockito.ArgumentMatcher;
+import org.mockito.Matchers;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import static java.util.Collections.singleton;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class SocketSupervisorTest {
+
+    private SocketSupervisor target;
+
+    private SocketSupervisor.Handler handler;
+
+    private Session session;
+
+    private RemoteEndpoint.Basic remote;
+
+    private AtomicReference<Instant> now;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        handler = mock(SocketSupervisor.Handler.class);
+
+        remote = mock(RemoteEndpoint.Basic.class);
+
+        session = mock(Session.class);
+        when(session.getBasicRemote()).thenReturn(remote);
+        when(session.isOpen()).thenReturn(true);
+
+        now = new AtomicReference<>(Instant.ofEpochMilli(1234567890));
+
+        SocketSupervisor.Settings settings = SocketSupervisor.Settings.builder()
+                .interval(Duration.ofSeconds(1))
+                .backoffMin(Duration.ofSeconds(1))
+                .backoffMax(Duration.ofSeconds(5))
+                .heartbeat(Duration.ofSeconds(10))
+                .timeout(Duration.ofSeconds(30))
+                .build();
+
+        target = spy(new SocketSupervisor("test", URI.create("wss://localhost/"), this, handler, now::get, settings));
+
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        target.close();
+    }
+
+    private Instant advance(long seconds) {
+        return now.updateAndGet(t -> t.plusSeconds(seconds));
+    }
+
+    @Test
+    public void testStart() throws Exception {
+
+        doThrow(new IOException("test")).when(target).connect();
+
+        assertFalse(target.isStarted());
+
+        target.start();
+        target.start();
+
+        assertTrue(target.isStarted());
+
+        Thread.sleep(100);
+
+        verify(target, atLeastOnce()).connect();
+
+        target.close();
+
+        assertTrue(target.isStarted());
+        assertFalse(target.isConnected());
+
+    }
+
+    @Test
+    public void testCheck_Backoff() throws Exception {
+
+        doThrow(new IOException("test")).when(target).connect();
+
+        // Attempts at 0, 1, 3, 7, 12, 17 (1, 2, 4, 5, 5)
+        for (int i = 0; i <= 17; i++) {
+            target.check(now.get());
+            advance(1);
+        }
+
+        verify(target, times(6)).connect();
+
+        // Not reset without any message after open.
+        target.onOpen(session);
+        target.onClose(session);
+        target.check(now.get());
+        verify(target, times(6)).connect();
+
+        // Reset by the message after open.
+        target.onOpen(session);
+        target.onMessage();
+        target.onClose(session);
+        target.check(advance(1));
+        verify(target, times(7)).connect();
+        target.check(advance(1));
+        verify(target, times(8)).connect();
+        target.check(advance(1));
+        verify(target, times(8)).connect();
+
+    }
+
+    @Test
+    public void testOnOpen() throws Exception {
+
+        assertTrue(target.subscribe("foo"));
+        assertTrue(target.subscribe("bar"));
+        assertFalse(target.subscribe("foo"));
+        assertEquals(new HashSet<>(target.getChannels()), new HashSet<>(Arrays.asList("foo", "bar")));
+
+        // Not connected
+        verify(handler, never()).subscribe(any(), any());
+
+        // First open : backfill from scratch.
+        target.onOpen(session);
+        assertTrue(target.isConnected());
+        verify(handler).subscribe(eq(session), argThat(channels -> channels.size() == 2));
+        verify(handler).backfill(argThat(channels -> channels.size() == 2), eq((Instant) null));
+
+        // Subscribe immediately if connected.
+        assertTrue(target.subscribe("hoge"));
+        verify(handler).subscribe(session, singleton("hoge"));
+
+        // Reconnected : backfill since the last message.
+        Instant last = advance(3);
+        target.onMessage();
+        assertEquals(target.getLastMessage(), last);
+
+        target.onClose(mock(Session.class)); // Other session
+        assertTrue(target.isConnected());
+
+        target.onClose(session);
+        assertFalse(target.isConnected());
+        assertFalse(target.subscribe("hoge"));
+
+        advance(5);
+        target.onOpen(session);
+        verify(handler).subscribe(eq(session), argThat(channels -> channels.size() == 3));
+        verify(handler).backfill(argThat(channels -> channels.size() == 3), eq(last));
+
+        // Failures are isolated.
+        doThrow(new IOException("test")).when(handler).subscribe(any(), any());
+        doThrow(new IOException("test")).when(handler).backfill(any(), any());
+        target.onOpen(session);
+
+    }
+
+    @Test
+    public void testHandler() throws Exception {
+
+        SocketSupervisor.Handler h = (s, channels) -> {
+        };
+
+        h.heartbeat(session);
+        verify(remote).sendPing(ByteBuffer.allocate(0));
+
+        h.backfill(singleton("foo"), null);
+
+    }
+
+    @Test
+    public void testCheck_Heartbeat() throws Exception {
+
+        target.onOpen(session);
+        target.check(advance(9));
+        verify(handler, never()).heartbeat(any());
+
+        // Idle
+        target.check(advance(1));
+        verify(handler).heartbeat(session);
+
+        // Not yet since the heartbeat.
+        target.check(advance(9));
+        verify(handler, times(1)).heartbeat(any());
+
+        // Message resets the idle period.
+        target.onMessage();
+        target.check(advance(9));
+        verify(handler, times(1)).heartbeat(any());
+        target.check(advance(1));
+        verify(handler, times(2)).heartbeat(any());
+
+        // Failure
+        doThrow(new IOException("test")).when(handler).heartbeat(any());
+        target.check(advance(10));
+        verify(target, never()).connect();
+        assertTrue(target.isConnected());
+
+    }
+
+    @Test
+    public void testCheck_Timeout() throws Exception {
+
+        doReturn(session).when(target).connect();
+
+        target.onOpen(session);
+        target.onMessage();
+        target.check(advance(29));
+        verify(target, never()).connect();
+        verify(session, never()).close();
+
+        // No response for the heartbeats.
+        target.check(advance(1));
+        verify(session).close();
+        verify(target).connect();
+        assertFalse(target.isConnected());
+
+    }
+
+    private static Collection<String> argThat(Predicate<Collection<String>> predicate) {
+        return Matchers.argThat(new ArgumentMatcher<Collection<String>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public boolean matches(Object argument) {
+                return argument instanceof Collection && predicate.test((Collection<String>) argument);
+            }
+        });
+    }
+
+}
@@ -3,7 +3,11 @@ package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.Key;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.StateType;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.MarketBus;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
 import org.apache.commons.configuration2.ImmutableConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.client.HttpResponseException;
 import org.jboss.resteasy.plugins.server.undertow.UndertowJaxrsServer;
 import org.jboss.resteasy.test.TestPortProvider;
 import org.testng.annotations.AfterMethod;
@@ -11,22 +15,35 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Application;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
+import static com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext.RequestType.DELETE;
+import static com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext.RequestType.GET;
 import static java.math.BigDecimal.*;
 import static java.math.RoundingMode.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
 import static org.mockito.Mockito.*;
 import static org.testng.Assert.*;
 
@@ -63,8 +80,50 @@ public class TemplateContextTest {
             throw new IOException("test");
         }
 
+        @GET
+        @Path("/gzip")
+        public Response getGzip(@HeaderParam("Accept-Encoding") String encoding) throws IOException {
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            try (OutputStream os = new GZIPOutputStream(out)) {
+                os.write(("{\"encoding\":\"" + encoding + "\",\"padding\":\"" + PADDING + "\"}").getBytes(UTF_8));
+            }
+
+            return Response.ok(out.toByteArray()).header("Content-Encoding", "gzip").build();
+
+        }
+
+        @GET
+        @Path("/deflate")
+        public Response getDeflate() throws IOException {
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            try (OutputStream os = new DeflaterOutputStream(out)) {
+                os.write(PADDING.getBytes(UTF_8));
+            }
+
+            return Response.ok(out.toByteArray()).header("Content-Encoding", "deflate").build();
+
+        }
+
+        @GET
+        @Path("/lines")
+        public String getLines() {
+            return "{\"a\":1}\n\n{\"b\":2}\n{\"c\":3}\n";
+        }
+
+        @GET
+        @Path("/unknown")
+        public Response getUnknown() {
+            return Response.ok("foo").header("Content-Encoding", "br").build();
+        }
+
     }
 
+    private static final String PADDING = String.join("", Collections.nCopies(1000, "foo"));
+
     private TemplateContext target;
 
     private ImmutableConfiguration configuration;
@@ -127,6 +186,15 @@ public class TemplateContextTest {
 
     }
 
+    @Test
+    public void testComputeHash() throws IOException {
+
+        // RFC 4231 : Test Case 2
+        assertEquals(target.computeHash("HmacSHA256", "Jefe", "what do ya ", "want for nothing?"),
+                "5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843");
+
+    }
+
     @Test
     public void testRequest() throws IOException {
 
@@ -153,6 +221,332 @@ public class TemplateContextTest {
 
     }
 
+    @Test
+    public void testRequest_Compression() throws IOException {
+
+        UndertowJaxrsServer server = new UndertowJaxrsServer().start();
+
+        try {
+
+            String url = "http://localhost:" + TestPortProvider.getPort();
+
+            server.deploy(TestApplication.class);
+
+            String gzip = "{\"encoding\":\"gzip, deflate\",\"padding\":\"" + PADDING + "\"}";
+            assertEquals(target.request(url + "/gzip?foo=bar"), gzip);
+            assertEquals(target.request(url + "/gzip"), gzip);
+            assertEquals(target.request(url + "/deflate"), PADDING);
+            assertEquals(target.request(url + "/foo"), "{foo:bar}");
+
+            try {
+                target.request(url + "/unknown");
+                fail();
+            } catch (IOException e) {
+                assertEquals(e.getMessage(), "Unsupported content encoding : br");
+            }
+
+            Map<String, TrafficMeter> traffics = target.getTraffics();
+            assertEquals(traffics.size(), 3, traffics.toString());
+
+            TrafficMeter meter = traffics.get("GET " + url + "/gzip");
+            assertEquals(meter.getResponses(), 2);
+            assertEquals(meter.getDecodedBytes(), gzip.length() * 2);
+            assertTrue(meter.getWireBytes() < meter.getDecodedBytes() / 10, meter.toString());
+
+            meter = traffics.get("GET " + url + "/deflate");
+            assertEquals(meter.getResponses(), 1);
+            assertEquals(meter.getDecodedBytes(), PADDING.length());
+            assertTrue(meter.getWireBytes() < meter.getDecodedBytes() / 10, meter.toString());
+
+            meter = traffics.get("GET " + url + "/foo");
+            assertEquals(meter.getResponses(), 1);
+            assertEquals(meter.getDecodedBytes(), 9);
+            assertEquals(meter.getWireBytes(), 9);
+
+        } finally {
+            server.stop();
+        }
+
+    }
+
+    @Test
+    public void testRequestLines() throws IOException {
+
+        UndertowJaxrsServer server = new UndertowJaxrsServer().start();
+
+        try {
+
+            String url = "http://localhost:" + TestPortProvider.getPort();
+
+            server.deploy(TestApplication.class);
+
+            // Until the end
+            List<String> lines = new ArrayList<>();
+            target.requestLines(url + "/lines", null, Duration.ofSeconds(5), lines::add);
+            assertEquals(lines.toString(), "[{\"a\":1}, , {\"b\":2}, {\"c\":3}]");
+
+            // Stopped by the handler
+            lines.clear();
+            target.requestLines(url + "/lines", null, null, l -> lines.add(l) && lines.size() < 2);
+            assertEquals(lines.toString(), "[{\"a\":1}, ]");
+
+            // Decoded
+            lines.clear();
+            target.requestLines(url + "/gzip", null, Duration.ZERO, lines::add);
+            assertEquals(lines.size(), 1);
+            assertTrue(lines.get(0).startsWith("{\"encoding\":\""), lines.get(0));
+
+            try {
+                target.requestLines(url + "/bar", null, null, lines::add);
+                fail();
+            } catch (HttpResponseException e) {
+                // Success
+            }
+
+        } finally {
+            server.stop();
+        }
+
+    }
+
+    @Test
+    public void testRequest_Breaker() throws Exception {
+
+        when(configuration.getInt(endsWith("breaker.window"), anyInt())).thenReturn(2);
+        when(configuration.getBigDecimal(endsWith("breaker.failure"), any())).thenReturn(ONE);
+        when(configuration.getLong(endsWith("breaker.cooldown"), anyLong())).thenReturn(60000L);
+        when(configuration.getInt(endsWith("breaker.probes"), anyInt())).thenReturn(1);
+
+        UndertowJaxrsServer server = new UndertowJaxrsServer().start();
+
+        try {
+
+            String url = "http://localhost:" + TestPortProvider.getPort();
+
+            server.deploy(TestApplication.class);
+
+            for (int i = 0; i < 2; i++) {
+                try {
+                    target.request(url + "/bar");
+                    fail();
+                } catch (IOException e) {
+                    assertFalse(e.getMessage().startsWith("Circuit open"), e.getMessage());
+                }
+            }
+
+            // Rejected without calling the server.
+            try {
+                target.request(url + "/bar?foo=bar");
+                fail();
+            } catch (IOException e) {
+                assertEquals(e.getMessage(), "Circuit open : GET " + url + "/bar");
+            }
+
+            // Other endpoints are not affected.
+            assertEquals(target.request(url + "/foo"), "{foo:bar}");
+            assertEquals(target.getBreakerStatus().get("GET " + url + "/bar"), CircuitBreaker.Status.OPEN);
+            assertEquals(target.getBreakerStatus().get("GET " + url + "/foo"), CircuitBreaker.Status.CLOSED);
+            assertEquals(target.getState(null), StateType.WARNING);
+
+            // Probe after the cool-down, not taken by the malformed one.
+            doReturn(Instant.now().plusSeconds(60)).when(target).getNow();
+
+            try {
+                target.request(url + "/bar?foo=a b");
+                fail();
+            } catch (IllegalArgumentException e) {
+                // Success
+            }
+
+            try {
+                target.request(url + "/bar");
+                fail();
+            } catch (IOException e) {
+                assertFalse(e.getMessage().startsWith("Circuit open"), e.getMessage());
+            }
+
+            assertEquals(target.getBreakerStatus().get("GET " + url + "/bar"), CircuitBreaker.Status.OPEN);
+
+        } finally {
+            server.stop();
+        }
+
+    }
+
+    @Test
+    public void testGetEndpoint() {
+
+        assertEquals(TemplateContext.getEndpoint(GET, "https://example.com/api/orders?id=1"),
+                "GET https://example.com/api/orders");
+        assertEquals(TemplateContext.getEndpoint(DELETE, "https://example.com/api/orders/12345"),
+                "DELETE https://example.com/api/orders/{id}");
+        assertEquals(TemplateContext.getEndpoint(GET, "https://example.com/v1/JRF20150707-050237-639234/btc_jpy"),
+                "GET https://example.com/v1/{id}/btc_jpy");
+        assertEquals(TemplateContext.getEndpoint(GET, "http://localhost:8080/"), "GET http://localhost:8080/");
+        assertEquals(TemplateContext.getEndpoint(GET, "http://localhost:8080"), "GET http://localhost:8080");
+        assertEquals(TemplateContext.getEndpoint(GET, "/foo/1/bar"), "GET /foo/{id}/bar");
+        assertEquals(TemplateContext.getEndpoint(GET, null), "GET ");
+
+    }
+
+    @Test
+    public void testRequest_Retry() throws Exception {
+
+        when(configuration.getInt(endsWith("retry.count"), anyInt())).thenReturn(2);
+        when(configuration.getLong(endsWith("retry.backoff"), anyLong())).thenReturn(1L);
+
+        Map<String, String> headers = singletonMap("foo", "bar");
+
+        // Server error, then connection failure, then success.
+        doThrow(new HttpResponseException(503, "test"))
+                .doThrow(new IOException("test"))
+                .doReturn("ok")
+                .when(target).request(GET, "http://localhost/foo", headers, null);
+
+        assertEquals(target.request("http://localhost/foo", headers), "ok");
+        verify(target, times(3)).request(GET, "http://localhost/foo", headers, null);
+
+        // Retries exhausted.
+        doThrow(new IOException("test")).when(target).request(GET, "http://localhost/bar", null, null);
+
+        try {
+            target.request("http://localhost/bar");
+            fail();
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "test");
+        }
+
+        verify(target, times(3)).request(GET, "http://localhost/bar", null, null);
+
+        // Not retried : client error, or rejected by the breaker.
+        doThrow(new HttpResponseException(400, "test"))
+                .doThrow(new CircuitBreaker.RejectedException("test"))
+                .when(target).request(GET, "http://localhost/hoge", null, null);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                target.request("http://localhost/hoge");
+                fail();
+            } catch (IOException e) {
+                assertEquals(e.getMessage(), "test");
+            }
+        }
+
+        verify(target, times(2)).request(GET, "http://localhost/hoge", null, null);
+
+        // Budget exhausted (10 tokens initially, 4 used above.)
+        doThrow(new IOException("test")).when(target).request(GET, "http://localhost/piyo", null, null);
+
+        for (int i = 0; i < 4; i++) {
+            try {
+                target.request("http://localhost/piyo");
+                fail();
+            } catch (IOException e) {
+                assertEquals(e.getMessage(), "test");
+            }
+        }
+
+        verify(target, times(10)).request(GET, "http://localhost/piyo", null, null);
+
+    }
+
+    @Test
+    public void testRequest_Hedge() throws Exception {
+
+        // Disabled by default.
+        assertNull(target.getHedgeDelay("GET http://localhost/foo"));
+
+        when(configuration.getBigDecimal(endsWith("hedge.percentile"), any())).thenReturn(new BigDecimal("0.95"));
+        doReturn(Duration.ofMillis(10)).when(target).getHedgeDelay("GET http://localhost/foo");
+
+        CountDownLatch latch = new CountDownLatch(1);
+
+        doAnswer(i -> {
+            latch.await();
+            return "slow";
+        }).doReturn("fast").when(target).request(GET, "http://localhost/foo?a=b", null, null);
+
+        try {
+            assertEquals(target.request("http://localhost/foo?a=b"), "fast");
+        } finally {
+            latch.countDown();
+        }
+
+        verify(target, times(2)).request(GET, "http://localhost/foo?a=b", null, null);
+
+        // Failed before the delay.
+        doThrow(new IOException("test")).when(target).request(GET, "http://localhost/foo", null, null);
+
+        try {
+            target.request("http://localhost/foo");
+            fail();
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "test");
+        }
+
+        verify(target, times(1)).request(GET, "http://localhost/foo", null, null);
+
+    }
+
+    @Test
+    public void testGetHedgeDelay() throws Exception {
+
+        when(configuration.getBigDecimal(endsWith("hedge.percentile"), any())).thenReturn(new BigDecimal("0.95"));
+
+        UndertowJaxrsServer server = new UndertowJaxrsServer().start();
+
+        try {
+
+            String url = "http://localhost:" + TestPortProvider.getPort();
+
+            server.deploy(TestApplication.class);
+
+            for (int i = 0; i < 19; i++) {
+                assertEquals(target.request(url + "/foo"), "{foo:bar}");
+            }
+
+            assertNull(target.getHedgeDelay("GET " + url + "/foo"));
+
+            assertEquals(target.request(url + "/foo"), "{foo:bar}");
+
+            assertNotNull(target.getHedgeDelay("GET " + url + "/foo"));
+            assertNull(target.getHedgeDelay("GET " + url + "/bar"));
+
+        } finally {
+            server.stop();
+        }
+
+    }
+
+    @Test
+    public void testGetState() throws Exception {
+
+        Map<String, CircuitBreaker.Status> statuses = new HashMap<>();
+        doReturn(statuses).when(target).getBreakerStatus();
+        assertEquals(target.getState(null), StateType.ACTIVE);
+
+        statuses.put("GET http://foo/1", CircuitBreaker.Status.CLOSED);
+        statuses.put("GET http://foo/2", CircuitBreaker.Status.CLOSED);
+        statuses.put("POST http://foo/3", CircuitBreaker.Status.CLOSED);
+        assertEquals(target.getState(null), StateType.ACTIVE);
+
+        statuses.put("GET http://foo/1", CircuitBreaker.Status.OPEN);
+        assertEquals(target.getState(null), StateType.WARNING);
+
+        statuses.put("GET http://foo/2", CircuitBreaker.Status.HALF_OPEN);
+        assertEquals(target.getState(null), StateType.WARNING);
+
+        statuses.put("POST http://foo/3", CircuitBreaker.Status.HALF_OPEN);
+        assertEquals(target.getState(null), StateType.SUSPEND);
+
+        statuses.remove("POST http://foo/3");
+        assertEquals(target.getState(null), StateType.SUSPEND);
+
+        target.close();
+        assertEquals(target.getState(null), StateType.TERMINATE);
+
+    }
+
     @Test
     public void testFindCached() throws Exception {
 
@@ -301,6 +695,362 @@ public class TemplateContextTest {
 
     }
 
+    @Test
+    public void testPublish() {
+
+        Instant now = Instant.now();
+
+        // No bus
+        target.publishTick("i", now, ONE, TEN, ONE, ONE, TEN);
+        target.publishBook("i", now, new AbstractMap.SimpleEntry<>(TEN, ONE), null);
+        target.publishTrade("i", now, ONE, TEN);
+
+        MarketBus bus = mock(MarketBus.class);
+        target.setMarketBus(bus);
+
+        target.publishTick("i", now, ONE, TEN, ONE, ONE, TEN);
+        verify(bus).publishTick("test", "i", now, ONE, TEN, ONE, ONE, TEN);
+
+        target.publishBook("i", now, new AbstractMap.SimpleEntry<>(TEN, ONE), null);
+        verify(bus).publishBook("test", "i", now, TEN, ONE, null, null);
+
+        target.publishBook("i", now, null, null);
+        verify(bus, times(1)).publishBook(any(), any(), any(), any(), any(), any(), any());
+
+        target.publishTrade("i", now, ONE, TEN);
+        verify(bus).publishTrade("test", "i", now, ONE, TEN);
+
+    }
+
+    @Test
+    public void testCollapseTape() throws Exception {
+
+        Instant t = Instant.ofEpochSecond(1505230800);
+
+        Duration interval = Duration.ofSeconds(10);
+
+        TradeTape tape = new TradeTape();
+        tape.add(1, t.plusSeconds(15), new BigDecimal("100"), new BigDecimal("3"));
+        tape.add(2, t.plusSeconds(18), new BigDecimal("104"), new BigDecimal("1"));
+        tape.add(3, t.plusSeconds(35), new BigDecimal("110"), new BigDecimal("2"));
+
+        NavigableMap<Instant, BigDecimal> prices = target.collapseTape(tape, interval, t, t.plusSeconds(50), false);
+        assertEquals(prices.size(), 5);
+        assertEquals(prices.get(t.plusSeconds(0)), null);
+        assertEquals(prices.get(t.plusSeconds(10)), null);
+        assertEquals(prices.get(t.plusSeconds(20)), new BigDecimal("104.0000000000"));
+        assertEquals(prices.get(t.plusSeconds(30)), new BigDecimal("104.0000000000"));
+        assertEquals(prices.get(t.plusSeconds(40)), new BigDecimal("110.0000000000"));
+
+        prices = target.collapseTape(tape, interval, t, t.plusSeconds(50), true);
+        assertEquals(prices.size(), 5);
+        assertEquals(prices.get(t.plusSeconds(10)), null);
+        assertEquals(prices.get(t.plusSeconds(20)), new BigDecimal("101.0000000000"));
+        assertEquals(prices.get(t.plusSeconds(30)), new BigDecimal("101.0000000000"));
+        assertEquals(prices.get(t.plusSeconds(40)), new BigDecimal("110.0000000000"));
+
+        // Same as the trades
+        assertEquals(target.collapseTape(tape, interval, t, t.plusSeconds(50), false),
+                target.collapsePrices(new ArrayList<>(tape.list(null)), interval, t, t.plusSeconds(50), false));
+        assertEquals(target.collapseTape(tape, interval, t, t.plusSeconds(50), true),
+                target.collapsePrices(new ArrayList<>(tape.list(null)), interval, t, t.plusSeconds(50), true));
+
+        assertNull(target.collapseTape(null, interval, t, t.plusSeconds(50), false));
+        assertNull(target.collapseTape(tape, interval, null, t.plusSeconds(50), false));
+
+    }
+
+    @Test
+    public void testCollapseTape_Trades() throws Exception {
+
+        Instant t = Instant.ofEpochSecond(1505230800);
+
+        TradeTape tape = new TradeTape();
+
+        Random random = new Random(1234);
+
+        long millis = 0;
+
+        for (int i = 0; i < 5000; i++) {
+
+            millis += random.nextInt(4) == 0 ? 0 : random.nextInt(1500); // Some on the same time
+
+            long late = random.nextInt(20) == 0 ? random.nextInt(3000) : 0; // Some out of order
+
+            BigDecimal price = BigDecimal.valueOf(10000 + random.nextInt(1000), 1);
+
+            BigDecimal size = random.nextInt(10) == 0 ? ZERO : BigDecimal.valueOf(1 + random.nextInt(100), 2);
+
+            tape.add(i, t.plusMillis(millis - late).plusNanos(random.nextInt(1000)), price, size);
+
+        }
+
+        long[][] cases = { // [from millis, interval millis, count]
+                {60 * 1000, 1000, 30},
+                {60 * 1000, 60 * 1000, 30},
+                {60 * 1000 + 123, 250, 80},
+                {120 * 1000 + 456, 7000 + 789, 50},
+                {300 * 1000 + 999, 300 * 1000 + 1, 5},
+                {0, 3600 * 1000, 1},
+        };
+
+        for (long[] c : cases) {
+
+            Duration interval = Duration.ofMillis(c[1]);
+
+            Instant from = t.plusMillis(c[0]);
+
+            Instant to = from.plusMillis(c[1] * c[2] - random.nextInt((int) c[1])); // Partial bucket before the end
+
+            List<Trade> trades = new ArrayList<>(tape.list(null));
+
+            for (boolean sum : new boolean[]{false, true}) {
+
+                NavigableMap<Instant, BigDecimal> expect = target.collapsePrices(trades, interval, from, to, sum);
+
+                assertEquals(target.collapseTape(tape, interval, from, to, sum), expect, Arrays.toString(c));
+
+            }
+
+        }
+
+    }
+
+    @Test
+    public void testTradeDefaults() throws Exception {
+
+        Key key = Key.builder().site("s").instrument("i").build();
+
+        Instant t = Instant.ofEpochSecond(1505230800);
+
+        TradeTape tape = new TradeTape();
+        tape.add(1, t.plusSeconds(1), new BigDecimal("100"), new BigDecimal("3"));
+        tape.add(2, t.plusSeconds(3), new BigDecimal("104"), new BigDecimal("1"));
+        tape.add(3, t.plusSeconds(2), new BigDecimal("110"), new BigDecimal("2"));
+
+        List<Trade> visited = new ArrayList<>();
+        assertNull(target.findLastTrade(key, t));
+        assertNull(target.summarizeTrades(key, t, null));
+        assertFalse(target.visitTrades(key, t, null, visited::add));
+
+        // Same as the tape
+        doReturn(new ArrayList<>(tape.list(t))).when(target).listTrades(key, t);
+        assertEquals(target.findLastTrade(key, t), Optional.of(tape.latest(t)));
+        assertEquals(target.summarizeTrades(key, t, t.plusSeconds(2)), tape.summarize(t, t.plusSeconds(2)));
+        assertTrue(target.visitTrades(key, t, null, visited::add));
+        assertEquals(visited, tape.list(t));
+
+    }
+
+    @Test
+    public void testListIncremental() throws Exception {
+
+        Instant t = Instant.ofEpochSecond(1505230800);
+
+        Key key = Key.builder().site("s").instrument("i").timestamp(t).build();
+
+        Trade t1 = mock(Trade.class);
+        when(t1.getTimestamp()).thenReturn(t.minus(Duration.ofHours(25)));
+        when(t1.getPrice()).thenReturn(ONE);
+        when(t1.getSize()).thenReturn(ONE);
+
+        Trade t2 = mock(Trade.class);
+        when(t2.getTimestamp()).thenReturn(t.minusSeconds(2));
+        when(t2.getPrice()).thenReturn(TEN);
+        when(t2.getSize()).thenReturn(ONE);
+
+        Trade t3 = mock(Trade.class);
+        when(t3.getTimestamp()).thenReturn(t.minusSeconds(1));
+        when(t3.getPrice()).thenReturn(TEN);
+        when(t3.getSize()).thenReturn(TEN);
+
+        Map<Trade, Long> ids = new IdentityHashMap<>();
+        ids.put(t1, 1L);
+        ids.put(t2, 2L);
+        ids.put(t3, 3L);
+
+        List<TradeTape.TapeTrade> cursors = new ArrayList<>();
+
+        // Initial, evicting the one older than a day.
+        List<Trade> trades = target.listIncremental(Trade.class, key, null, ids::get, latest -> {
+            cursors.add(latest);
+            return Arrays.asList(t1, null, t2, mock(Trade.class));
+        });
+        assertEquals(trades.size(), 1);
+        assertEquals(trades.get(0).getPrice(), TEN);
+        assertEquals(cursors, singletonList(null));
+
+        // Cached
+        target.listIncremental(Trade.class, key, null, ids::get, latest -> {
+            throw new AssertionError();
+        });
+
+        // Merged after the latest.
+        key = Key.build(key).timestamp(t.plusSeconds(1)).build();
+        trades = target.listIncremental(Trade.class, key, t.minusSeconds(1), ids::get, latest -> {
+            cursors.add(latest);
+            return Arrays.asList(t2, t3);
+        });
+        assertEquals(trades.size(), 1);
+        assertEquals(trades.get(0).getSize(), TEN);
+        assertEquals(cursors.get(1).getId(), 2L);
+        assertEquals(target.listIncremental(Trade.class, key, null, ids::get, latest -> null).size(), 2);
+
+        assertEquals(target.listIncremental(Trade.class, null, null, ids::get, latest -> null).size(), 0);
+
+    }
+
+    @Test
+    public void testJournal() throws Exception {
+
+        Instant now = Instant.ofEpochSecond(1505230800);
+
+        // Not configured
+        assertNull(target.getJournal("BTC/JPY"));
+        assertNull(target.replayJournal("BTC/JPY", now, (i, t, p, s) -> fail()));
+        target.journalTrade("BTC/JPY", 1L, now, ONE, TEN);
+
+        java.nio.file.Path directory = Files.createTempDirectory(getClass().getSimpleName());
+
+        try {
+
+            when(configuration.getString(endsWith("journal.path"), any())).thenReturn(directory.toString());
+
+            assertNull(target.getJournal(null));
+            assertNull(target.getJournal(" "));
+
+            TradeJournal journal = target.getJournal("BTC/JPY");
+            assertSame(target.getJournal("BTC/JPY"), journal);
+            assertTrue(Files.exists(directory.resolve("test").resolve("BTC_JPY.journal")));
+
+            target.journalTrade("BTC/JPY", 1L, now.minusSeconds(1), ONE, TEN);
+            target.journalTrade("BTC/JPY", 2L, now, TEN, ONE);
+            target.journalTrade("BTC/JPY", null, now, TEN, ONE);
+            target.journalTrade("BTC/JPY", 3L, now, TEN, new BigDecimal("1E-200")); // Unscalable
+            assertEquals(journal.size(), 2);
+
+            List<String> values = new ArrayList<>();
+            TradeJournal.Visitor visitor = (i, t, p, s) -> values.add(i + ":" + p + "x" + s);
+            assertSame(target.replayJournal("BTC/JPY", now, visitor), journal);
+            assertEquals(values.toString(), "[2:10x1]");
+            assertEquals(journal.size(), 1); // Compacted
+
+            // Failure cached
+            Files.write(directory.resolve("test").resolve("ETH_BTC.journal"), "foo".getBytes(UTF_8));
+            assertNull(target.getJournal("ETH_BTC"));
+            assertNull(target.getJournal("ETH_BTC"));
+
+            target.close();
+            target.journalTrade("BTC/JPY", 4L, now, TEN, ONE);
+            assertNull(target.replayJournal("BTC/JPY", now, (i, t, p, s) -> fail()));
+
+        } finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+
+    }
+
+    @Test
+    public void testVisitHistory() throws Exception {
+
+        Instant now = Instant.ofEpochSecond(1505230800);
+
+        Key key = Key.builder().site("s").instrument("BTC/JPY").timestamp(now).build();
+
+        List<Trade> visited = new ArrayList<>();
+
+        // Neither kept
+        assertFalse(target.visitHistory(key, now.minusSeconds(60), now, visited::add));
+        assertFalse(target.visitHistory(null, now.minusSeconds(60), now, visited::add));
+        verify(target, never()).listTrades(any(), any());
+
+        java.nio.file.Path directory = Files.createTempDirectory(getClass().getSimpleName());
+
+        try {
+
+            when(configuration.getString(endsWith("journal.path"), any())).thenReturn(directory.toString());
+
+            // Journal, once opened.
+            assertFalse(target.visitHistory(key, now.minusSeconds(60), now, visited::add));
+            assertNotNull(target.getJournal("BTC/JPY"));
+            target.journalTrade("BTC/JPY", 1L, now.minusSeconds(90), ONE, TEN);
+            target.journalTrade("BTC/JPY", 2L, now.minusSeconds(30), TEN, ONE);
+            target.journalTrade("BTC/JPY", 3L, now.plusSeconds(30), TEN, TEN);
+
+            assertTrue(target.visitHistory(key, now.minusSeconds(60), now, visited::add));
+            assertEquals(visited.size(), 1);
+            assertEquals(((TradeTape.TapeTrade) visited.get(0)).getId(), 2L);
+
+            // Tape, covering the period.
+            Trade trade = mock(Trade.class);
+            when(trade.getTimestamp()).thenReturn(now.minusSeconds(120));
+            when(trade.getPrice()).thenReturn(TEN);
+            when(trade.getSize()).thenReturn(TEN);
+            target.listIncremental(Trade.class, key, null, t -> 4L, latest -> singletonList(trade));
+
+            visited.clear();
+            assertTrue(target.visitHistory(key, now.minusSeconds(60), now, visited::add));
+            assertEquals(visited.size(), 0);
+
+            visited.clear();
+            assertTrue(target.visitHistory(key, now.minusSeconds(120), now, visited::add));
+            assertEquals(visited.size(), 0);
+
+            visited.clear();
+            assertTrue(target.visitHistory(key, now.minusSeconds(121), now, visited::add));
+            assertEquals(visited.size(), 2); // From the journal, not covered by the tape.
+
+        } finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+
+    }
+
+    @Test
+    public void testImportTrades() throws Exception {
+
+        Key key = Key.builder().instrument("BTC/JPY").build();
+
+        java.nio.file.Path directory = Files.createTempDirectory(getClass().getSimpleName());
+
+        try {
+
+            java.nio.file.Path imports = Files.createDirectory(directory.resolve("imports"));
+            java.nio.file.Path csv = Files.write(imports.resolve("trades.csv"), ("id,timestamp,price,amount\n"
+                    + "2,2017-09-12T16:00:00Z,10,1\n"
+                    + "1,2017-09-12T15:59:59Z,1,10\n").getBytes(UTF_8));
+            Files.write(imports.resolve("synthetic.csv"), "timestamp,price,amount\n2017-09-12T16:00:00Z,10,1\n"
+                    .getBytes(UTF_8));
+            Files.copy(csv, directory.resolve("outside.csv"));
+
+            // Not configured
+            assertNull(target.importTrades(key, csv));
+
+            when(configuration.getString(endsWith("journal.path"), any())).thenReturn(directory.toString());
+            assertNull(target.importTrades(key, csv));
+
+            when(configuration.getString(endsWith("import.path"), any())).thenReturn(imports.toString());
+
+            assertNull(target.importTrades(null, csv));
+            assertNull(target.importTrades(key, null));
+            assertNull(target.importTrades(key, Paths.get("missing.csv")));
+            assertNull(target.importTrades(key, Paths.get("../outside.csv")));
+            assertNull(target.importTrades(key, directory.resolve("outside.csv")));
+            assertNull(target.importTrades(key, Paths.get("synthetic.csv")));
+
+            assertEquals(target.importTrades(key, Paths.get("trades.csv")), (Long) 2L);
+            assertEquals(target.importTrades(key, csv), (Long) 0L);
+
+            List<String> values = new ArrayList<>();
+            target.replayJournal("BTC/JPY", null, (i, t, p, s) -> values.add(i + ":" + p + "x" + s));
+            assertEquals(values.toString(), "[1:1x10, 2:10x1]");
+
+        } finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+
+    }
+
     @Test
     public void testGetMidPrice() throws Exception {
 
@@ -328,7 +1078,7 @@ public class TemplateContextTest {
     public void testInterfaceMethods() throws ReflectiveOperationException {
 
         Set<String> ignores = new HashSet<>(Arrays.asList(
-                "getState", "getMidPrice", "getAskPrices", "getBidPrices"
+                "getState", "getMidPrice", "getAskPrices", "getBidPrices", "visitTrades", "visitHistory"
         ));
 
         for (Method m : Context.class.getMethods()) {
@@ -343,6 +1093,10 @@ public class TemplateContextTest {
 
             Object[] args = new Object[m.getParameterTypes().length];
 
+            for (int i = 0; i < args.length; i++) {
+                args[i] = m.getParameterTypes()[i] == boolean.class ? Boolean.FALSE : null;
+            }
+
             Object result = m.invoke(target, args);
 
             assertNull(result, m.getName());
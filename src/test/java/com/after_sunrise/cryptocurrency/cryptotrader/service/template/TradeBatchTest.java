@@ -0,0 +1,105 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class TradeBatchTest {
+
+    private static List<String> values(TradeBatch batch) {
+
+        List<String> values = new ArrayList<>();
+
+        for (int i = 0; i < batch.size(); i++) {
+            values.add(batch.getId(i) + "@" + batch.getTime(i) + ":" + batch.getPrice(i) + "x" + batch.getSize(i));
+        }
+
+        return values;
+
+    }
+
+    @Test
+    public void testAdd() {
+
+        TradeBatch target = new TradeBatch(0);
+
+        target.add(1, Instant.ofEpochSecond(1, 2), new BigDecimal("1.50"), new BigDecimal("2E+3"));
+        target.add(2, null, BigDecimal.ONE, BigDecimal.ONE);
+        target.add(2, Instant.EPOCH, null, BigDecimal.ONE);
+        target.add(2, Instant.EPOCH, BigDecimal.ONE, null);
+        target.add(3, 4, 5, 1, 6, -2);
+
+        assertEquals(target.size(), 2);
+        assertEquals(target.getTimestamp(0), Instant.ofEpochSecond(1, 2));
+        assertEquals(target.getUnscaledPrice(0), 150L);
+        assertEquals(target.getPriceScale(0), 2);
+        assertEquals(target.getUnscaledSize(0), 2L);
+        assertEquals(target.getSizeScale(0), -3);
+        assertEquals(values(target).toString(), "[1@1000000002:1.50x2E+3, 3@4:0.5x6E+2]");
+
+        TradeBatch other = new TradeBatch();
+        other.addAll(target);
+        other.addAll(target);
+        other.setId(3, 9);
+        assertEquals(values(other).toString(), "[1@1000000002:1.50x2E+3, 3@4:0.5x6E+2, "
+                + "1@1000000002:1.50x2E+3, 9@4:0.5x6E+2]");
+
+    }
+
+    @Test
+    public void testSort() {
+
+        TradeBatch target = new TradeBatch();
+
+        // Sorted
+        target.add(1, 30, 1, 0, 1, 0);
+        target.add(2, 20, 2, 0, 1, 0);
+        target.add(2, 10, 3, 0, 1, 0);
+        target.sort(false);
+        assertEquals(values(target).toString(), "[1@30:1x1, 2@20:2x1, 2@10:3x1]");
+
+        // Reversed, with the ties kept in order.
+        target.sort(true);
+        assertEquals(values(target).toString(), "[2@10:3x1, 2@20:2x1, 1@30:1x1]");
+        target.sort(false);
+        assertEquals(values(target).toString(), "[1@30:1x1, 2@10:3x1, 2@20:2x1]");
+
+        // Duplicates
+        assertEquals(target.distinct(), 1);
+        assertEquals(values(target).toString(), "[1@30:1x1, 2@10:3x1]");
+        assertEquals(new TradeBatch().distinct(), 0);
+
+        // Shuffled
+        Random random = new Random(1234);
+
+        TradeBatch shuffled = new TradeBatch();
+
+        for (int i = 0; i < 5000; i++) {
+            shuffled.add(random.nextInt(1000), i, i, 0, 1, 0);
+        }
+
+        shuffled.sort(false);
+
+        for (int i = 1; i < shuffled.size(); i++) {
+
+            boolean ordered = shuffled.getId(i - 1) < shuffled.getId(i) || (shuffled.getId(i - 1) == shuffled.getId(i)
+                    && shuffled.getTime(i - 1) < shuffled.getTime(i));
+
+            assertEquals(ordered, true, String.valueOf(i));
+            assertEquals(shuffled.getUnscaledPrice(i), shuffled.getTime(i));
+
+        }
+
+    }
+
+}
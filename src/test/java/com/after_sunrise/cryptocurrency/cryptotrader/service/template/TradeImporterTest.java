@@ -0,0 +1,329 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeImporter.Decimal;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeImporter.Format;
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeImporter.MISSING;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class TradeImporterTest {
+
+    private Path directory;
+
+    private TradeImporter target;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        directory = Files.createTempDirectory(getClass().getSimpleName());
+
+        target = new TradeImporter(4);
+
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    private static ByteBuffer buffer(String value) {
+        return ByteBuffer.wrap(value.getBytes(UTF_8));
+    }
+
+    private static List<String> values(TradeBatch batch) {
+
+        List<String> values = new ArrayList<>();
+
+        for (int i = 0; i < batch.size(); i++) {
+            values.add(batch.getId(i) + "@" + batch.getTimestamp(i) + ":" + batch.getPrice(i) + "x" + batch.getSize(i));
+        }
+
+        return values;
+
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(directory.resolve(name), content.getBytes(UTF_8));
+    }
+
+    @Test
+    public void testFormat() {
+
+        assertEquals(Format.detect(Paths.get("/tmp/BTC_JPY.journal")), Format.JOURNAL);
+        assertEquals(Format.detect(Paths.get("trades.json")), Format.JSON);
+        assertEquals(Format.detect(Paths.get("trades.JSONL")), Format.JSON);
+        assertEquals(Format.detect(Paths.get("trades.ndjson")), Format.JSON);
+        assertEquals(Format.detect(Paths.get("trades.csv")), Format.CSV);
+        assertEquals(Format.detect(Paths.get("trades.tsv")), Format.CSV);
+
+    }
+
+    @Test
+    public void testParse_Csv() throws Exception {
+
+        Path path = write("trades.csv", "﻿\"Trade_ID\",\"Side\",\"Price\",\"Size\",\"Exec-Date\"\r\n"
+                + "3,BUY,\"1000.5\",0.01,2017-09-12T16:00:01.5Z\r\n"
+                + "1,SELL,999,-0.02,2017-09-12T16:00:00Z\r\n"
+                + "\r\n"
+                + "2,SELL,abc,0.02,2017-09-12T16:00:00Z\r\n" // Invalid price
+                + "4,SELL,999,0,2017-09-12T16:00:00Z\r\n" // Zero size
+                + "3,BUY,1,1,2017-09-12T16:00:02Z" // Duplicate without new line
+        );
+
+        assertEquals(values(target.parse(path)).toString(), "[1@2017-09-12T16:00:00Z:999x0.02, "
+                + "3@2017-09-12T16:00:01.500Z:1000.5x0.01]");
+
+        // Tab separated, without IDs
+        path = write("trades.tsv", "time\tamount\trate\n"
+                + "1505232001000\t1\t10\n"
+                + "1505232000000\t2\t20\n"
+                + "1505232000000\t3\t30\n");
+
+        TradeImporter synthetic = new TradeImporter(4, true);
+        assertEquals(values(synthetic.parse(path)).toString(), "[1505232000000000@2017-09-12T16:00:00Z:20x2, "
+                + "1505232000000001@2017-09-12T16:00:00Z:30x3, 1505232001000000@2017-09-12T16:00:01Z:10x1]");
+
+        try {
+            target.parse(path); // Not synthesized
+            fail();
+        } catch (IOException e) {
+            // Success
+        }
+
+        // Semicolon separated, header only
+        path = write("empty.csv", "Timestamp;Price;Volume\n");
+        assertEquals(target.parse(path).size(), 0);
+
+        try {
+            target.parse(write("unknown.csv", "id,foo,price,size\n1,2,3,4\n"));
+            fail();
+        } catch (IOException e) {
+            // Success
+        }
+
+    }
+
+    @Test
+    public void testParse_Json() throws Exception {
+
+        Path path = write("trades.json", "[\n"
+                + "  {\"id\": 2, \"price\": \"10.5\", \"size\": 1.5E-1, \"timestamp\": 1505232000.25},\n"
+                + "  {\"id\": 1, \"price\": 10, \"size\": 1, \"side\": \"buy\", \"timestamp\": 1505232000},\n"
+                + "  {\"id\": 3, \"price\": 10, \"tags\": [\"a\", \"b\"], \"timestamp\": 1505232000}\n"
+                + "]");
+
+        assertEquals(values(target.parse(path)).toString(), "[1@2017-09-12T16:00:00Z:10x1, "
+                + "2@2017-09-12T16:00:00.250Z:10.5x0.15]");
+
+        // Lines in a wrapper
+        path = write("trades.jsonl", "{\"success\":1,\"data\":{\"transactions\":[\n"
+                + "{\"transaction_id\":7,\"price\":\"100\",\"amount\":\"2\",\"executed_at\":1505232000123456}\n"
+                + "{\"transaction_id\":8,\"price\":\"101\",\"amount\":\"3\",\"executed_at\":\"2017-09-12T16:00:00\"}\n"
+                + "]}}");
+
+        assertEquals(values(target.parse(path)).toString(), "[7@2017-09-12T16:00:00.123456Z:100x2, "
+                + "8@2017-09-12T16:00:00Z:101x3]");
+
+    }
+
+    @Test
+    public void testParse_Journal() throws Exception {
+
+        Path path = directory.resolve("test.journal");
+
+        try (TradeJournal journal = TradeJournal.open(path)) {
+            journal.append(2, Instant.ofEpochSecond(2), BigDecimal.TEN, BigDecimal.ONE);
+            journal.append(1, Instant.ofEpochSecond(1), BigDecimal.ONE, BigDecimal.TEN);
+        }
+
+        assertEquals(values(target.parse(path)).toString(), "[1@1970-01-01T00:00:01Z:1x10, "
+                + "2@1970-01-01T00:00:02Z:10x1]");
+
+        try {
+            target.parse(directory.resolve("missing.journal"));
+            fail();
+        } catch (NoSuchFileException e) {
+            // Success
+        }
+
+    }
+
+    @Test
+    public void testParse_Chunks() throws Exception {
+
+        StringBuilder sb = new StringBuilder("id,price,size,timestamp\n");
+
+        int count = 60000; // Over a few chunks
+
+        for (int i = 0; i < count; i++) {
+            sb.append(count - i).append(",1").append(i % 1000).append(".5,0.").append(i % 100 + 1)
+                    .append(',').append(1505232000000L + i).append('\n');
+        }
+
+        TradeBatch batch = target.parse(write("large.csv", sb.toString()));
+
+        assertEquals(batch.size(), count);
+
+        for (int i = 0; i < count; i++) {
+
+            int row = count - 1 - i;
+
+            assertEquals(batch.getId(i), i + 1);
+            assertEquals(batch.getTimestamp(i), Instant.ofEpochMilli(1505232000000L + row));
+            assertEquals(batch.getPrice(i), new BigDecimal("1" + row % 1000 + ".5"));
+
+        }
+
+    }
+
+    @Test
+    public void testDetectDelimiter() {
+
+        assertEquals(TradeImporter.detectDelimiter(buffer("a,b,c")), (byte) ',');
+        assertEquals(TradeImporter.detectDelimiter(buffer("a\tb\tc")), (byte) '\t');
+        assertEquals(TradeImporter.detectDelimiter(buffer("a;b;c")), (byte) ';');
+        assertEquals(TradeImporter.detectDelimiter(buffer("a")), (byte) ',');
+
+    }
+
+    @Test
+    public void testDecimal() {
+
+        String[][] cases = {
+                {"0", "0"},
+                {"1", "1"},
+                {"-1.50", "-1.50"},
+                {"+0.00000001", "1E-8"},
+                {"1.2E+3", "1.2E+3"},
+                {"1.2e-3", "0.0012"},
+                {"123456789012345678", "123456789012345678"},
+                {"1234567890123456789", "1234567890123456789"}, // Slow
+                {"0.1234567890123456789", "0.1234567890123456789"}, // Slow
+                {"", null},
+                {"-", null},
+                {".", null},
+                {"1.2.3", null},
+                {"1e", null},
+                {"e1", null},
+                {"1x", null},
+                {"1E+999", null},
+        };
+
+        Decimal decimal = new Decimal();
+
+        for (String[] c : cases) {
+
+            ByteBuffer b = buffer(c[0]);
+
+            boolean parsed = decimal.parse(b, 0, b.limit());
+
+            assertEquals(parsed, c[1] != null, c[0]);
+
+            if (parsed) {
+                assertEquals(BigDecimal.valueOf(decimal.unscaled, decimal.scale).toString(), c[1], c[0]);
+            }
+
+        }
+
+    }
+
+    @Test
+    public void testParseLong() {
+
+        assertEquals(TradeImporter.parseLong(buffer("0"), 0, 1), 0L);
+        assertEquals(TradeImporter.parseLong(buffer("-123"), 0, 4), -123L);
+        assertEquals(TradeImporter.parseLong(buffer("x123x"), 1, 4), 123L);
+        assertEquals(TradeImporter.parseLong(buffer("123456789012345678"), 0, 18), 123456789012345678L);
+        assertEquals(TradeImporter.parseLong(buffer("1234567890123456789"), 0, 19), MISSING);
+        assertEquals(TradeImporter.parseLong(buffer("12a"), 0, 3), MISSING);
+        assertEquals(TradeImporter.parseLong(buffer("-"), 0, 1), MISSING);
+        assertEquals(TradeImporter.parseLong(buffer(""), 0, 0), MISSING);
+
+    }
+
+    @Test
+    public void testParseTime() {
+
+        String[][] cases = {
+                {"2017-09-12T16:00:00Z", "2017-09-12T16:00:00Z"},
+                {"2017-09-12T16:00:00", "2017-09-12T16:00:00Z"},
+                {"2017-09-12 16:00:00.123", "2017-09-12T16:00:00.123Z"},
+                {"2017-09-12T16:00:00.123456789Z", "2017-09-12T16:00:00.123456789Z"},
+                {"2017-09-13T01:00:00+09:00", "2017-09-12T16:00:00Z"},
+                {"2017-09-12T11:30:00-0430", "2017-09-12T16:00:00Z"},
+                {"2016-02-29T00:00:00Z", "2016-02-29T00:00:00Z"},
+                {"1969-12-31T23:59:59.5Z", "1969-12-31T23:59:59.500Z"},
+                {"1505232000", "2017-09-12T16:00:00Z"},
+                {"1505232000.5", "2017-09-12T16:00:00.500Z"},
+                {"1505232000123", "2017-09-12T16:00:00.123Z"},
+                {"1505232000123456", "2017-09-12T16:00:00.123456Z"},
+                {"1505232000123456789", "2017-09-12T16:00:00.123456789Z"},
+                {"", null},
+                {"foo", null},
+                {"2017-09-12", null},
+                {"2017-13-12T16:00:00Z", null},
+                {"2017-09-12T16:00:00X", null},
+        };
+
+        for (String[] c : cases) {
+
+            ByteBuffer b = buffer(c[0]);
+
+            long nanos = TradeImporter.parseTime(b, 0, b.limit());
+
+            assertEquals(nanos == MISSING ? null : TradeTape.toInstant(nanos).toString(), c[1], c[0]);
+
+        }
+
+    }
+
+    @Test
+    public void testMain() throws Exception {
+
+        Path journal = directory.resolve("site/BTC_JPY.journal");
+
+        Path csv = write("trades.csv", "id,price,size,timestamp\n1,10,1,1505232000\n2,11,1,1505232001\n");
+
+        Path json = write("trades.json", "[{\"id\":2,\"price\":12,\"size\":1,\"timestamp\":1505232001},"
+                + "{\"id\":3,\"price\":13,\"size\":1,\"timestamp\":1505232002}]");
+
+        TradeImporter.main(new String[]{journal.toString(), csv.toString(), json.toString()});
+
+        List<String> values = new ArrayList<>();
+
+        try (TradeJournal j = TradeJournal.open(journal)) {
+            j.replay(null, (i, t, p, s) -> values.add(i + ":" + p));
+        }
+
+        assertEquals(values.toString(), "[1:10, 2:11, 3:13]");
+
+        try {
+            TradeImporter.main(new String[]{journal.toString()});
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Success
+        }
+
+    }
+
+}
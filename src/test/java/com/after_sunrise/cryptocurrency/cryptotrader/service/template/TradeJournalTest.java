@@ -0,0 +1,234 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class TradeJournalTest {
+
+    private Path directory;
+
+    private Path path;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        directory = Files.createTempDirectory(getClass().getSimpleName());
+
+        path = directory.resolve("test/btc_jpy.journal");
+
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    private static Instant time(long seconds) {
+        return Instant.ofEpochSecond(1505230800 + seconds, 123456789);
+    }
+
+    private static List<String> replay(TradeJournal journal, Instant fromTime) throws IOException {
+
+        List<String> values = new ArrayList<>();
+
+        journal.replay(fromTime, (id, t, p, s) -> values.add(id + "@" + t.getEpochSecond() % 100 + ":" + p + "x" + s));
+
+        return values;
+
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+
+        try (TradeJournal journal = TradeJournal.open(path, 2)) {
+
+            assertEquals(journal.size(), 0);
+            assertNull(journal.getMaxId());
+            assertNull(journal.getLastTime());
+            assertEquals(replay(journal, null).size(), 0);
+
+            journal.append(3, time(1), new BigDecimal("0.0712494"), new BigDecimal("1.50"));
+            journal.append(1, time(2), new BigDecimal("1.2E+6"), new BigDecimal("-2"));
+            journal.append(2, time(3), new BigDecimal("100"), new BigDecimal("0.00000001"));
+            journal.append(4, null, BigDecimal.ONE, BigDecimal.ONE);
+            journal.append(4, time(4), null, BigDecimal.ONE);
+            journal.append(4, time(4), BigDecimal.ONE, null);
+
+            assertEquals(journal.size(), 3);
+            assertEquals(journal.getMaxId(), (Long) 3L);
+            assertEquals(journal.getLastTime(), time(3));
+            assertEquals(replay(journal, null).toString(), "[3@1:0.0712494x1.50, 1@2:1.2E+6x-2, 2@3:100x1E-8]");
+            assertEquals(replay(journal, time(2)).toString(), "[1@2:1.2E+6x-2, 2@3:100x1E-8]");
+
+            List<Instant> times = new ArrayList<>();
+            journal.replay(time(3), (id, t, p, s) -> times.add(t));
+            assertEquals(times.get(0), time(3));
+
+        }
+
+        // Reopened
+        try (TradeJournal journal = TradeJournal.open(path, 2)) {
+
+            assertEquals(journal.size(), 3);
+            assertEquals(journal.getMaxId(), (Long) 3L);
+            assertEquals(journal.getLastTime(), time(3));
+
+            journal.append(5, time(5), BigDecimal.TEN, BigDecimal.ONE);
+            assertEquals(replay(journal, time(3)).toString(), "[2@3:100x1E-8, 5@5:10x1]");
+
+            journal.close();
+            journal.close();
+
+            try {
+                journal.append(6, time(6), BigDecimal.TEN, BigDecimal.ONE);
+                fail();
+            } catch (IOException e) {
+                // Success
+            }
+
+        }
+
+    }
+
+    @Test
+    public void testOpen_Torn() throws Exception {
+
+        try (TradeJournal journal = TradeJournal.open(path, 4)) {
+            journal.append(1, time(1), BigDecimal.ONE, BigDecimal.ONE);
+            journal.append(2, time(2), BigDecimal.ONE, BigDecimal.ONE);
+        }
+
+        // Values of the third record, without its commit marker.
+        try (FileChannel channel = FileChannel.open(path, READ, WRITE)) {
+            channel.write(ByteBuffer.allocate(8).putLong(0, 3L), 16 + 40 * 2);
+        }
+
+        try (TradeJournal journal = TradeJournal.open(path, 4)) {
+
+            assertEquals(journal.size(), 2);
+            assertEquals(journal.getMaxId(), (Long) 2L);
+
+            journal.append(4, time(4), BigDecimal.ONE, BigDecimal.ONE);
+            assertEquals(replay(journal, null).toString(), "[1@1:1x1, 2@2:1x1, 4@4:1x1]");
+
+        }
+
+    }
+
+    @Test
+    public void testOpen_Invalid() throws Exception {
+
+        Files.createDirectories(path.getParent());
+
+        Files.write(path, "not a journal, but something else".getBytes());
+
+        try {
+            TradeJournal.open(path, 4);
+            fail();
+        } catch (IOException e) {
+            // Success
+        }
+
+        // Untouched
+        assertEquals(new String(Files.readAllBytes(path)), "not a journal, but something else");
+
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+
+        try (TradeJournal journal = TradeJournal.open(path, 4)) {
+
+            for (int i = 1; i <= 10; i++) {
+                journal.append(i, time(i), BigDecimal.valueOf(i), BigDecimal.ONE);
+            }
+
+            long size = Files.size(path);
+
+            // Minority
+            assertEquals(journal.compact(time(5)), 0);
+            assertEquals(journal.compact(null), 0);
+            assertEquals(journal.size(), 10);
+
+            // Majority
+            assertEquals(journal.compact(time(6)), 5);
+            assertEquals(journal.size(), 5);
+            assertEquals(journal.getMaxId(), (Long) 10L);
+            assertEquals(journal.getLastTime(), time(10));
+            assertTrue(Files.size(path) < size);
+            assertFalse(Files.exists(path.resolveSibling("btc_jpy.journal.tmp")));
+
+            journal.append(11, time(11), BigDecimal.TEN, BigDecimal.ONE);
+            assertEquals(replay(journal, null).toString(),
+                    "[6@6:6x1, 7@7:7x1, 8@8:8x1, 9@9:9x1, 10@10:10x1, 11@11:10x1]");
+
+            // All
+            assertEquals(journal.compact(time(12)), 6);
+            assertEquals(journal.size(), 0);
+            assertNull(journal.getMaxId());
+
+        }
+
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+
+        try (TradeJournal journal = TradeJournal.open(path, 4)) {
+
+            journal.append(5, time(5), BigDecimal.valueOf(5), BigDecimal.ONE);
+            journal.append(3, time(3), BigDecimal.valueOf(3), BigDecimal.ONE);
+
+            TradeBatch copied = new TradeBatch();
+            assertEquals(journal.copyTo(copied), 2);
+            assertEquals(copied.getId(0), 5L);
+            assertEquals(copied.getTimestamp(1), time(3));
+
+            assertEquals(journal.merge(null), 0);
+            assertEquals(journal.merge(new TradeBatch()), 0);
+
+            TradeBatch batch = new TradeBatch(1);
+            batch.add(4, time(4), new BigDecimal("4.5"), new BigDecimal("0.10"));
+            batch.add(1, time(1), BigDecimal.ONE, BigDecimal.TEN);
+            batch.add(5, time(5), BigDecimal.TEN, BigDecimal.TEN); // Duplicate
+            batch.add(1, time(1), BigDecimal.TEN, BigDecimal.TEN); // Duplicate
+
+            assertEquals(journal.merge(batch), 2);
+            assertEquals(journal.size(), 4);
+            assertEquals(journal.getMaxId(), (Long) 5L);
+            assertEquals(journal.getLastTime(), time(5));
+            assertFalse(Files.exists(path.resolveSibling("btc_jpy.journal.tmp")));
+            assertEquals(replay(journal, null).toString(), "[1@1:1x10, 3@3:3x1, 4@4:4.5x0.10, 5@5:5x1]");
+
+            journal.append(6, time(6), BigDecimal.ONE, BigDecimal.ONE);
+
+        }
+
+        // Reopened
+        try (TradeJournal journal = TradeJournal.open(path, 4)) {
+            assertEquals(replay(journal, time(4)).toString(), "[4@4:4.5x0.10, 5@5:5x1, 6@6:1x1]");
+        }
+
+    }
+
+}
@@ -0,0 +1,542 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.template;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.TradeSummary;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.BarStore.Bar;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.BarStore.Resolution;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape.TapeTrade;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.math.BigDecimal.ONE;
+import static java.math.BigDecimal.TEN;
+import static java.util.stream.Collectors.toList;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class TradeTapeTest {
+
+    private TradeTape target;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        target = new TradeTape(4);
+    }
+
+    private static Instant time(long seconds) {
+        return Instant.ofEpochSecond(1505230800 + seconds);
+    }
+
+    private static List<Long> ids(List<TapeTrade> trades) {
+        return trades.stream().map(TapeTrade::getId).collect(toList());
+    }
+
+    @Test
+    public void testEncode() {
+
+        assertEquals(TradeTape.encode(new BigDecimal("0.07124940")).toString(), "0.07124940");
+        assertEquals(TradeTape.encode(new BigDecimal("1.2E+6")).toString(), "1.2E+6");
+        assertEquals(TradeTape.encode(new BigDecimal("1.00000000000000000000000000000")).toString(), "1");
+        assertEquals(TradeTape.encode(new BigDecimal("1E-130").add(ONE)).toString(), "1.00000000000000000");
+        assertEquals(TradeTape.encode(new BigDecimal("1E+100")).toString(), "1E+100");
+
+        try {
+            TradeTape.encode(new BigDecimal("1E-130"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Success
+        }
+
+    }
+
+    @Test
+    public void testAdd() {
+
+        assertEquals(target.size(), 0);
+        assertNull(target.last());
+        assertEquals(target.list(null).size(), 0);
+
+        for (int i = 1; i <= 10; i++) {
+            assertTrue(target.add(i * 10, time(i), new BigDecimal("0.0712494" + i), new BigDecimal("1.50")));
+        }
+
+        assertFalse(target.add(50, time(5), ONE, ONE));
+        assertFalse(target.add(100, time(10), ONE, ONE));
+        assertFalse(target.add(110, null, ONE, ONE));
+        assertFalse(target.add(110, time(11), null, ONE));
+        assertFalse(target.add(110, time(11), ONE, null));
+        assertEquals(target.size(), 10);
+
+        List<TapeTrade> trades = target.list(null);
+        assertEquals(ids(trades), Arrays.asList(10L, 20L, 30L, 40L, 50L, 60L, 70L, 80L, 90L, 100L));
+        assertEquals(trades.get(0).getTimestamp(), time(1));
+        assertEquals(trades.get(0).getPrice().toString(), "0.07124941");
+        assertEquals(trades.get(0).getSize().toString(), "1.50");
+        assertEquals(trades.get(9), target.last());
+        assertEquals(trades, target.list(null));
+
+        // Inclusive, across the segments.
+        assertEquals(ids(target.list(time(4))), Arrays.asList(40L, 50L, 60L, 70L, 80L, 90L, 100L));
+        assertEquals(ids(target.list(time(5).plusNanos(1))), Arrays.asList(60L, 70L, 80L, 90L, 100L));
+        assertEquals(ids(target.list(time(10))), Arrays.asList(100L));
+        assertEquals(ids(target.list(time(11))), Arrays.asList());
+        assertEquals(target.list(Instant.MIN).size(), 10);
+
+        // Older ones, into the full and the open segments.
+        assertTrue(target.add(15, time(0), TEN, ONE));
+        assertTrue(target.add(5, time(2), TEN, ONE));
+        assertTrue(target.add(95, time(9), TEN, ONE));
+        assertTrue(target.add(35, time(3), TEN, ONE));
+        assertFalse(target.add(35, time(3), TEN, ONE));
+        assertTrue(target.add(110, time(11), TEN, ONE));
+        assertEquals(ids(target.list(null)),
+                Arrays.asList(5L, 10L, 15L, 20L, 30L, 35L, 40L, 50L, 60L, 70L, 80L, 90L, 95L, 100L, 110L));
+        assertEquals(target.size(), 15);
+
+        // Not sorted by time : 15 is older than 10, and 5 is later than 10.
+        assertEquals(ids(target.list(time(1))),
+                Arrays.asList(5L, 10L, 20L, 30L, 35L, 40L, 50L, 60L, 70L, 80L, 90L, 95L, 100L, 110L));
+        assertEquals(ids(target.list(time(2))),
+                Arrays.asList(5L, 20L, 30L, 35L, 40L, 50L, 60L, 70L, 80L, 90L, 95L, 100L, 110L));
+        assertEquals(ids(target.list(time(9))), Arrays.asList(90L, 95L, 100L, 110L));
+
+        target.clear();
+        assertEquals(target.size(), 0);
+        assertNull(target.last());
+        assertTrue(target.add(1, time(1), ONE, ONE));
+        assertEquals(target.size(), 1);
+
+    }
+
+    @Test
+    public void testAccumulate() {
+
+        target.accumulate(1, time(1), new BigDecimal("100"), new BigDecimal("1"));
+        target.accumulate(2, time(2), new BigDecimal("200"), new BigDecimal("1"));
+        target.accumulate(2, time(3), new BigDecimal("300"), new BigDecimal("3"));
+        target.accumulate(2, time(3), new BigDecimal("100"), new BigDecimal("0.5"));
+
+        TapeTrade last = target.last();
+        assertEquals(last.getId(), 2L);
+        assertEquals(last.getTimestamp(), time(2));
+        assertEquals(last.getPrice().toString(), "255.55555556");
+        assertEquals(last.getSize().toString(), "4.5");
+        assertEquals(target.list(null).get(1), last);
+
+        target.accumulate(2, time(2), new BigDecimal("400"), new BigDecimal("1"));
+        assertEquals(target.last().getPrice().toString(), "281.81818182");
+        assertEquals(target.last().getSize().toString(), "5.5");
+
+        // Older ones
+        target.accumulate(1, time(1), new BigDecimal("200"), new BigDecimal("3"));
+        target.accumulate(0, time(0), new BigDecimal("50"), new BigDecimal("2"));
+        List<TapeTrade> trades = target.list(null);
+        assertEquals(ids(trades), Arrays.asList(0L, 1L, 2L));
+        assertEquals(trades.get(0).getPrice().toString(), "50");
+        assertEquals(trades.get(1).getPrice().toString(), "175.00000000");
+        assertEquals(trades.get(1).getSize().toString(), "4");
+        assertEquals(trades.get(1).getTimestamp(), time(1));
+
+    }
+
+    @Test
+    public void testAccumulate_Batch() {
+
+        TradeTape expected = new TradeTape(4, 1);
+
+        target = new TradeTape(4, 1);
+
+        for (int i = 10; i <= 40; i += 2) {
+            expected.add(i, time(i), BigDecimal.valueOf(i), ONE);
+            target.add(i, time(i), BigDecimal.valueOf(i), ONE);
+        }
+
+        expected.trim(time(12), 100);
+        target.trim(time(12), 100);
+
+        // Older, inserted and accumulated, across the sealed segments, and the latest and newer ones.
+        Random random = new Random(1234);
+        TradeBatch batch = new TradeBatch();
+
+        for (int n = 0; n < 200; n++) {
+
+            long id = 5 + random.nextInt(45);
+            BigDecimal price = BigDecimal.valueOf(100 + random.nextInt(100));
+            BigDecimal size = new BigDecimal("0.5").multiply(BigDecimal.valueOf(1 + random.nextInt(4)));
+
+            expected.accumulate(id, time(id), price, size);
+            batch.add(id, time(id), price, size);
+
+        }
+
+        target.accumulate(batch);
+        target.accumulate((TradeBatch) null);
+        target.accumulate(new TradeBatch());
+
+        List<TapeTrade> trades = target.list(null);
+        assertEquals(ids(trades), ids(expected.list(null)));
+        assertEquals(target.size(), expected.size());
+        assertEquals(target.last(), expected.last());
+
+        for (int i = 0; i < trades.size(); i++) {
+
+            TapeTrade e = expected.list(null).get(i);
+
+            assertEquals(trades.get(i).getTimestamp(), e.getTimestamp());
+            assertEquals(trades.get(i).getSize().compareTo(e.getSize()), 0, e.toString());
+            assertEquals(trades.get(i).getPrice().doubleValue(), e.getPrice().doubleValue(), 1e-6, e.toString());
+
+        }
+
+        assertEquals(target.summarize(time(30), null).getCount(), expected.summarize(time(30), null).getCount());
+        assertEquals(target.listBars(Resolution.values()[0], null).size(),
+                expected.listBars(Resolution.values()[0], null).size());
+
+        // Still appended after.
+        target.add(100, time(100), TEN, ONE);
+        assertEquals(target.last().getId(), 100L);
+        assertEquals(target.list(time(99)).size(), 1);
+
+    }
+
+    @Test
+    public void testVisit() {
+
+        List<TapeTrade> visited = new ArrayList<>();
+        assertEquals(target.visit(null, null, visited::add), 0L);
+
+        for (int i = 1; i <= 10; i++) {
+            target.add(i * 10, time(i), BigDecimal.valueOf(i), ONE);
+        }
+
+        target.add(15, time(0), TEN, ONE); // Older timestamp
+        target.accumulate(100, time(10), TEN, ONE); // Accumulated in place
+
+        assertEquals(target.visit(null, null, visited::add), 11L);
+        assertEquals(visited, target.list(null));
+
+        // Exclusive from, inclusive to.
+        visited.clear();
+        assertEquals(target.visit(time(4), time(6), visited::add), 2L);
+        assertEquals(ids(visited), Arrays.asList(50L, 60L));
+
+        visited.clear();
+        assertEquals(target.visit(time(9), null, visited::add), 1L);
+        assertEquals(visited, Arrays.asList(target.last()));
+
+        visited.clear();
+        assertEquals(target.visit(null, time(1), visited::add), 2L);
+        assertEquals(ids(visited), Arrays.asList(10L, 15L));
+
+        assertEquals(target.visit(time(6), time(4), visited::add), 0L);
+
+    }
+
+    @Test
+    public void testCovers() {
+
+        assertFalse(target.covers(time(1)));
+
+        for (int i = 1; i <= 10; i++) {
+            target.add(i, time(i), ONE, ONE);
+        }
+
+        // Since the earliest row
+        assertFalse(target.covers(null));
+        assertFalse(target.covers(time(0)));
+        assertTrue(target.covers(time(1)));
+        assertTrue(target.covers(time(20)));
+
+        // Since the evicted
+        target.trim(time(3), 100);
+        assertFalse(target.covers(time(2)));
+        assertTrue(target.covers(time(3)));
+        assertTrue(target.covers(time(4)));
+
+    }
+
+    @Test
+    public void testSummarize() {
+
+        assertEquals(target.summarize(null, null).getCount(), 0L);
+        assertEquals(target.summarize(null, null).getSize(), BigDecimal.ZERO);
+
+        for (int i = 1; i <= 10; i++) {
+            target.add(i, time(i), BigDecimal.valueOf(i * 100), BigDecimal.valueOf(i));
+        }
+
+        target.add(11, time(11), BigDecimal.ZERO, ONE); // Excluded
+        target.add(12, time(12), TEN, BigDecimal.ZERO); // Excluded
+
+        TradeSummary summary = target.summarize(null, null);
+        assertEquals(summary.getCount(), 10L);
+        assertEquals(summary.getSize(), new BigDecimal("55"));
+        assertEquals(summary.getNotional(), new BigDecimal("38500"));
+
+        summary = target.summarize(time(8), time(10));
+        assertEquals(summary.getCount(), 2L);
+        assertEquals(summary.getSize(), new BigDecimal("19"));
+        assertEquals(summary.getNotional(), new BigDecimal("18100"));
+
+    }
+
+    @Test
+    public void testLatest() {
+
+        assertNull(target.latest(null));
+
+        target.add(1, time(5), ONE, ONE);
+        target.add(2, time(3), ONE, ONE);
+        target.add(3, time(7), ONE, ONE);
+        target.add(4, time(7), TEN, ONE); // Tied
+        target.add(5, time(2), ONE, ONE);
+        target.add(6, time(6), ONE, ONE);
+
+        assertEquals(target.latest(null).getId(), 3L);
+        assertEquals(target.latest(time(6)).getId(), 3L);
+        assertNull(target.latest(time(7)));
+
+        target.add(7, time(8), ONE, ONE);
+        assertEquals(target.latest(null), target.last());
+
+        target.accumulate(7, time(8), TEN, ONE);
+        assertEquals(target.latest(time(7)), target.last());
+
+        // Trimmed rows are not visible.
+        target.trim(null, 6);
+        target.trim(null, 1);
+        assertEquals(target.latest(null).getId(), 7L);
+        target.add(8, time(1), ONE, ONE);
+        assertEquals(target.latest(null).getId(), 7L);
+        target.trim(null, 1);
+        assertNull(target.latest(time(1)));
+        assertEquals(target.latest(null).getId(), 8L);
+
+    }
+
+    @Test
+    public void testTrim() {
+
+        assertNull(target.trim(time(100), 0));
+
+        for (int i = 1; i <= 10; i++) {
+            target.add(i, time(i), ONE, ONE);
+        }
+
+        assertNull(target.trim(time(0), 10));
+        assertNull(target.trim(null, 100));
+
+        // By time, inclusive.
+        assertEquals(target.trim(time(3), 100), time(3));
+        assertEquals(ids(target.list(null)), Arrays.asList(4L, 5L, 6L, 7L, 8L, 9L, 10L));
+
+        // By size, within the segment.
+        assertEquals(target.trim(time(0), 6), time(4));
+        assertEquals(ids(target.list(null)), Arrays.asList(5L, 6L, 7L, 8L, 9L, 10L));
+        assertEquals(target.size(), 6);
+
+        // Inserted into the first segment, which has been partially trimmed.
+        assertTrue(target.add(6, time(6), ONE, ONE) == false);
+        assertTrue(target.add(4, time(4), ONE, ONE));
+        assertEquals(ids(target.list(null)), Arrays.asList(4L, 5L, 6L, 7L, 8L, 9L, 10L));
+        assertEquals(ids(target.list(time(5))), Arrays.asList(5L, 6L, 7L, 8L, 9L, 10L));
+
+        // Stops at the first which is not to be evicted.
+        assertTrue(target.add(11, time(1), ONE, ONE));
+        assertEquals(target.trim(time(9), 100), time(9));
+        assertEquals(ids(target.list(null)), Arrays.asList(10L, 11L));
+        assertEquals(target.trim(time(9), 100), null);
+
+        assertEquals(target.trim(time(20), 100), time(10));
+        assertEquals(target.size(), 0);
+        assertNull(target.last());
+        assertEquals(target.list(null).size(), 0);
+
+        assertTrue(target.add(12, time(12), ONE, ONE));
+        assertEquals(ids(target.list(null)), Arrays.asList(12L));
+
+    }
+
+    @Test
+    public void testCollapse() {
+
+        Duration interval = Duration.ofSeconds(2);
+
+        assertEquals(target.collapse(interval, time(2), time(10)).toString(), "{2017-09-12T15:40:02Z=null, "
+                + "2017-09-12T15:40:04Z=null, 2017-09-12T15:40:06Z=null, 2017-09-12T15:40:08Z=null}");
+
+        for (int i = 1; i <= 10; i++) {
+            target.add(i, time(i), BigDecimal.valueOf(i), ONE);
+        }
+
+        Bar bar = target.collapse(interval, time(4), time(5)).get(time(4));
+        assertEquals(bar.getClose(), new BigDecimal("4"));
+        assertEquals(bar.getSize(), new BigDecimal("2"));
+        assertEquals(bar.getNotional(), new BigDecimal("7"));
+
+        // Latest, accumulated in place.
+        target.accumulate(10, time(10), new BigDecimal("20"), ONE);
+        bar = target.collapse(interval, time(10), time(11)).get(time(10));
+        assertEquals(bar.getClose(), new BigDecimal("15.00000000"));
+        assertEquals(bar.getSize(), new BigDecimal("3"));
+        assertEquals(bar.getNotional(), new BigDecimal("39.00000000"));
+
+        // Older, accumulated in the copy.
+        target.accumulate(4, time(4), new BigDecimal("6"), ONE);
+        bar = target.collapse(interval, time(4), time(5)).get(time(4));
+        assertEquals(bar.getClose(), new BigDecimal("5.00000000"));
+        assertEquals(bar.getSize(), new BigDecimal("3"));
+        assertEquals(bar.getNotional(), new BigDecimal("13.00000000"));
+        assertEquals(target.listBars(Resolution.SECOND, time(3)).size(), 7);
+
+        // Evicted
+        assertEquals(target.trim(time(3), 100), time(3));
+        assertNull(target.collapse(interval, time(4), time(5)));
+        assertNotNull(target.collapse(interval, time(5), time(6)));
+        assertEquals(target.listBars(Resolution.SECOND, null).size(), 7);
+
+        // Not aggregated before the eviction.
+        assertTrue(target.add(0, time(2), TEN, ONE));
+        assertEquals(target.listBars(Resolution.SECOND, null).size(), 7);
+
+        target.clear();
+        assertEquals(target.collapse(interval, time(4), time(5)).toString(), "{2017-09-12T15:40:04Z=null}");
+        assertEquals(target.listBars(Resolution.SECOND, null).size(), 0);
+
+        assertNull(target.collapse(null, time(4), time(5)));
+        assertNull(target.collapse(interval, null, time(5)));
+        assertNull(target.collapse(interval, time(4), null));
+
+    }
+
+    @Test
+    public void testSeal() {
+
+        TradeTape plain = new TradeTape(8, Integer.MAX_VALUE);
+
+        target = new TradeTape(8, 1);
+
+        Random random = new Random(1234);
+
+        for (int i = 0; i < 2000; i++) {
+
+            long id = random.nextInt(10) == 0 ? random.nextInt(i + 1) : i; // Some out of order
+
+            Instant t = time(i / 4).plusNanos(random.nextInt(1000));
+
+            BigDecimal price = BigDecimal.valueOf(400000 + random.nextInt(100), random.nextInt(3));
+
+            BigDecimal size = BigDecimal.valueOf(random.nextInt(1000) - 10, 8);
+
+            if (random.nextBoolean()) {
+                plain.accumulate(id, t, price, size);
+                target.accumulate(id, t, price, size);
+            } else {
+                assertEquals(target.add(id, t, price, size), plain.add(id, t, price, size));
+            }
+
+            if (i % 200 == 0) {
+                assertEquals(target.trim(time(i / 4 - 300), 1500), plain.trim(time(i / 4 - 300), 1500));
+            }
+
+        }
+
+        assertEquals(target.size(), plain.size());
+        assertEquals(target.last(), plain.last());
+        assertEquals(target.list(null), plain.list(null));
+        assertEquals(target.list(time(300)), plain.list(time(300)));
+        assertEquals(target.latest(null), plain.latest(null));
+        assertEquals(target.latest(time(400)), plain.latest(time(400)));
+        assertEquals(target.summarize(time(200), time(300)), plain.summarize(time(200), time(300)));
+
+        List<TapeTrade> visited = new ArrayList<>();
+        assertEquals(target.visit(time(250), time(260), visited::add), plain.visit(time(250), time(260), t -> {
+        }));
+        assertEquals(visited, plain.list(null).stream().filter(t -> t.getTimestamp().isAfter(time(250))
+                && !t.getTimestamp().isAfter(time(260))).collect(toList()));
+
+        assertEquals(target.trim(time(450), 0), plain.trim(time(450), 0));
+        assertEquals(target.size(), 0);
+
+    }
+
+    @Test(timeOut = 10000)
+    public void testConcurrency() throws Exception {
+
+        target = new TradeTape(64);
+
+        int count = 20000;
+
+        AtomicBoolean done = new AtomicBoolean();
+
+        AtomicReference<String> failure = new AtomicReference<>();
+
+        Thread reader = new Thread(() -> {
+
+            while (!done.get() && failure.get() == null) {
+
+                List<TapeTrade> trades = target.list(null);
+
+                long previous = Long.MIN_VALUE;
+
+                for (TapeTrade t : trades) {
+
+                    // Each row is [id] x [id / 2], accumulated by the halves.
+                    BigDecimal expected = BigDecimal.valueOf(t.getId() * t.getId() / 2);
+
+                    BigDecimal notional = t.getPrice().multiply(t.getSize());
+
+                    if (t.getId() <= previous || notional.compareTo(expected) > 0) {
+                        failure.set(t.toString());
+                    }
+
+                    previous = t.getId();
+
+                }
+
+            }
+
+        });
+
+        reader.start();
+
+        for (int i = 0; i < count; i++) {
+
+            long id = i * 2;
+
+            BigDecimal price = BigDecimal.valueOf(id);
+
+            target.accumulate(id, time(i), price, BigDecimal.valueOf(i / 2));
+
+            target.accumulate(id, time(i), price, BigDecimal.valueOf(i - i / 2));
+
+            if (i % 100 == 0) {
+                target.trim(time(i - 1000), count);
+            }
+
+        }
+
+        target.trim(time(count - 1001), count);
+
+        done.set(true);
+
+        reader.join();
+
+        assertNull(failure.get());
+        assertEquals(target.size(), 1000);
+
+    }
+
+}
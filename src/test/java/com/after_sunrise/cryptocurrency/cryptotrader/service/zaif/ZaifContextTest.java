@@ -2,14 +2,19 @@ package com.after_sunrise.cryptocurrency.cryptotrader.service.zaif;
 
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.Key;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.SocketSupervisor;
 import com.google.common.io.Resources;
+import org.apache.commons.configuration2.MapConfiguration;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.websocket.Session;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.net.URI;
 import java.time.Instant;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
@@ -17,6 +22,7 @@ import static com.after_sunrise.cryptocurrency.cryptotrader.framework.Service.Cu
 import static com.after_sunrise.cryptocurrency.cryptotrader.service.template.TemplateContext.RequestType.GET;
 import static com.after_sunrise.cryptocurrency.cryptotrader.service.zaif.ZaifContext.URL_TICKER;
 import static com.after_sunrise.cryptocurrency.cryptotrader.service.zaif.ZaifContext.URL_TRADE;
+import static com.after_sunrise.cryptocurrency.cryptotrader.service.zaif.ZaifContext.WS_ENDPOINT;
 import static com.google.common.io.Resources.getResource;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.mockito.Mockito.*;
@@ -37,6 +43,8 @@ public class ZaifContextTest {
 
         doReturn(null).when(target).request(any(), any(), any(), any());
 
+        doNothing().when(target).scheduleSocket(any());
+
     }
 
     @AfterMethod
@@ -48,6 +56,7 @@ public class ZaifContextTest {
     public void test() throws IOException {
 
         doCallRealMethod().when(target).request(any(), any(), any(), any());
+        doCallRealMethod().when(target).scheduleSocket(any());
 
         Key key = Key.builder().instrument("bch_btc").build();
 
@@ -144,12 +153,12 @@ public class ZaifContextTest {
         // Found
         List<Trade> values = target.listTrades(key, null);
         assertEquals(values.size(), 2);
-        assertEquals(values.get(0).getTimestamp(), Instant.ofEpochMilli(1505657008000L));
-        assertEquals(values.get(0).getPrice(), new BigDecimal("407470"));
-        assertEquals(values.get(0).getSize(), new BigDecimal("0.1871"));
-        assertEquals(values.get(1).getTimestamp(), Instant.ofEpochMilli(1505657007000L));
-        assertEquals(values.get(1).getPrice(), new BigDecimal("407505"));
-        assertEquals(values.get(1).getSize(), new BigDecimal("0.0011"));
+        assertEquals(values.get(0).getTimestamp(), Instant.ofEpochMilli(1505657007000L));
+        assertEquals(values.get(0).getPrice(), new BigDecimal("407505"));
+        assertEquals(values.get(0).getSize(), new BigDecimal("0.0011"));
+        assertEquals(values.get(1).getTimestamp(), Instant.ofEpochMilli(1505657008000L));
+        assertEquals(values.get(1).getPrice(), new BigDecimal("407470"));
+        assertEquals(values.get(1).getSize(), new BigDecimal("0.1871"));
 
         // Not found
         List<Trade> unknown = target.listTrades(Key.builder().instrument("FOO").build(), null);
@@ -163,7 +172,106 @@ public class ZaifContextTest {
         // Filtered
         List<Trade> filtered = target.listTrades(key, Instant.ofEpochMilli(1505657007500L));
         assertEquals(filtered.size(), 1);
-        assertEquals(filtered.get(0), values.get(0));
+        assertEquals(filtered.get(0), values.get(1));
+
+        // Merged into the ones fetched before.
+        Key next = Key.build(key).timestamp(Instant.ofEpochMilli(1505657010000L)).build();
+        doReturn("[{\"date\":1505657009,\"price\":407480,\"amount\":0.01,\"tid\":67764259},"
+                + "{\"date\":1505657008,\"price\":407470,\"amount\":0.1871,\"tid\":67764258}]")
+                .when(target).request(GET, URL_TRADE + "btc_jpy", null, null);
+        List<Trade> merged = target.listTrades(next, null);
+        assertEquals(merged.size(), 3);
+        assertEquals(merged.subList(0, 2), values);
+        assertEquals(merged.get(2).getPrice(), new BigDecimal("407480"));
+
+    }
+
+    @Test
+    public void testSubscribe() throws Exception {
+
+        assertTrue(target.subscribe("btc_jpy"));
+        assertTrue(target.subscribe("btc_jpy"));
+        assertTrue(target.subscribe("eth_btc"));
+        assertFalse(target.subscribe(null));
+        verify(target, times(2)).scheduleSocket(any());
+
+        // Disabled
+        target.setConfiguration(new MapConfiguration(Collections.singletonMap(
+                ZaifContext.class.getName() + ".realtime.expiry", "0")));
+        assertFalse(target.subscribe("bch_btc"));
+        verify(target, times(2)).scheduleSocket(any());
+
+    }
+
+    @Test
+    public void testExtractPair() {
+
+        Session session = mock(Session.class);
+        assertNull(ZaifContext.extractPair(session));
+        assertNull(ZaifContext.extractPair(null));
+
+        when(session.getRequestURI()).thenReturn(URI.create(WS_ENDPOINT + "btc_jpy"));
+        assertEquals(ZaifContext.extractPair(session), "btc_jpy");
+
+        when(session.getRequestURI()).thenReturn(URI.create("wss://localhost/stream?foo=bar"));
+        assertNull(ZaifContext.extractPair(session));
+
+    }
+
+    @Test
+    public void testOnWebSocketMessage() throws Exception {
+
+        Instant now = Instant.ofEpochMilli(1505657010000L);
+        doReturn(now).when(target).getNow();
+
+        Key key = Key.builder().instrument("btc_jpy").timestamp(now).build();
+        Session session = mock(Session.class);
+        when(session.getRequestURI()).thenReturn(URI.create(WS_ENDPOINT + "btc_jpy"));
+
+        // Seeded by the latest trades on open.
+        String data = Resources.toString(getResource("json/zaif_trade.json"), UTF_8);
+        doReturn(data).when(target).request(GET, URL_TRADE + "btc_jpy", null, null);
+        assertTrue(target.subscribe("btc_jpy"));
+        target.onWebSocketOpen(session);
+        doReturn(null).when(target).request(any(), any(), any(), any());
+
+        // Not yet streamed
+        assertFalse(target.queryTick(key).isPresent());
+
+        target.onWebSocketMessage("{\"asks\":[[407500,0.5],[407480,1.2]],\"bids\":[[407460,0.3]],"
+                + "\"trades\":[{\"currency_pair\":\"btc_jpy\",\"trade_type\":\"bid\",\"price\":407480,"
+                + "\"tid\":67764259,\"amount\":0.01,\"date\":1505657009},{\"currency_pair\":\"btc_jpy\","
+                + "\"trade_type\":\"ask\",\"price\":407470,\"tid\":67764258,\"amount\":0.1871,"
+                + "\"date\":1505657008}],\"timestamp\":\"2017-09-17 23:03:29.000000\","
+                + "\"last_price\":{\"action\":\"bid\",\"price\":407480},\"currency_pair\":\"btc_jpy\"}", session);
+        target.onWebSocketMessage("", session);
+
+        ZaifTick tick = target.queryTick(key).get();
+        assertEquals(tick.getAsk(), new BigDecimal("407480"));
+        assertEquals(tick.getBid(), new BigDecimal("407460"));
+        assertEquals(tick.getLast(), new BigDecimal("407480"));
+
+        assertEquals(target.getAskPrices(key).toString(), "{407480=1.2, 407500=0.5}");
+        assertEquals(target.getBidPrices(key).toString(), "{407460=0.3}");
+
+        List<Trade> trades = target.listTrades(key, Instant.ofEpochMilli(1505657007000L));
+        assertEquals(trades.size(), 3);
+        assertEquals(trades.get(0).getPrice(), new BigDecimal("407505"));
+        assertEquals(trades.get(1).getPrice(), new BigDecimal("407470"));
+        assertEquals(trades.get(2).getPrice(), new BigDecimal("407480"));
+
+        // Not covered : retrieved by REST.
+        assertEquals(target.listTrades(key, Instant.ofEpochMilli(1505657006000L)).size(), 0);
+
+        // Reset on close.
+        target.onWebSocketClose(session, null);
+        target.clear();
+        assertFalse(target.queryTick(key).isPresent());
+
+        // Other sessions
+        target.onWebSocketOpen(mock(Session.class));
+        target.onWebSocketPong(null, mock(Session.class));
+        target.onWebSocketClose(mock(Session.class), null);
 
     }
 
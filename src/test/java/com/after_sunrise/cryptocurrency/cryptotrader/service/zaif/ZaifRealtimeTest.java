@@ -0,0 +1,102 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.zaif;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.service.template.TradeTape.TapeTrade;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class ZaifRealtimeTest {
+
+    private static final Duration EXPIRY = Duration.ofSeconds(30);
+
+    private ZaifRealtime target;
+
+    private Instant now;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+
+        target = new ZaifRealtime();
+
+        now = Instant.ofEpochSecond(1505657010);
+
+    }
+
+    private static ZaifTrade trade(long id, long seconds) {
+        return ZaifTrade.builder().id(id).timestamp(Instant.ofEpochSecond(seconds))
+                .price(BigDecimal.valueOf(id)).size(BigDecimal.ONE).build();
+    }
+
+    private static List<Long> ids(List<TapeTrade> trades) {
+        return trades.stream().map(TapeTrade::getId).collect(toList());
+    }
+
+    @Test
+    public void testApply() {
+
+        List<String> notified = new ArrayList<>();
+
+        // Not streamed
+        assertNull(target.getStream(now, EXPIRY, "btc_jpy"));
+        assertNull(target.getTrades(now, EXPIRY, "btc_jpy", now));
+
+        // Backfilled, but not yet streamed.
+        target.merge(now, "btc_jpy", Arrays.asList(trade(3, 1505657003), trade(2, 1505657002)),
+                (p, t) -> notified.add(p + ":" + t.getId()));
+        assertNull(target.getTrades(now, EXPIRY, "btc_jpy", now));
+
+        ZaifStream stream = ZaifStream.builder().pair("btc_jpy").trades(Arrays.asList(
+                trade(5, 1505657005), trade(4, 1505657004), trade(3, 1505657003), null,
+                ZaifTrade.builder().id(6L).build()
+        )).build();
+        target.apply(now, stream, (p, t) -> notified.add(p + ":" + t.getId()));
+        assertEquals(notified.toString(), "[btc_jpy:3, btc_jpy:2, btc_jpy:5, btc_jpy:4]");
+
+        assertSame(target.getStream(now, EXPIRY, "btc_jpy"), stream);
+        assertNull(target.getStream(now, EXPIRY, "eth_btc"));
+
+        // Covered since the oldest of the first batch.
+        assertEquals(ids(target.getTrades(now, EXPIRY, "btc_jpy", Instant.ofEpochSecond(1505657002))),
+                Arrays.asList(2L, 3L, 4L, 5L));
+        assertEquals(ids(target.getTrades(now, EXPIRY, "btc_jpy", Instant.ofEpochSecond(1505657004))),
+                Arrays.asList(4L, 5L));
+        assertNull(target.getTrades(now, EXPIRY, "btc_jpy", Instant.ofEpochSecond(1505657001)));
+        assertNull(target.getTrades(now, EXPIRY, "btc_jpy", null));
+
+        // Silent
+        Instant later = now.plus(EXPIRY).plusMillis(1);
+        assertNull(target.getStream(later, EXPIRY, "btc_jpy"));
+        assertNull(target.getTrades(later, EXPIRY, "btc_jpy", now));
+
+        // Evicted
+        target.merge(Instant.ofEpochSecond(1505657006 + 86400), "btc_jpy", Arrays.asList(trade(7, 1505657007)), null);
+        assertEquals(ids(target.getTrades(now, EXPIRY, "btc_jpy", Instant.ofEpochSecond(1505657007))),
+                Arrays.asList(7L));
+        assertNull(target.getTrades(now, EXPIRY, "btc_jpy", Instant.ofEpochSecond(1505657005)));
+
+        // Reset
+        target.reset("btc_jpy");
+        assertNull(target.getStream(now, EXPIRY, "btc_jpy"));
+        assertNull(target.getTrades(now, EXPIRY, "btc_jpy", now));
+
+        // Invalid
+        target.apply(now, null, null);
+        target.apply(now, ZaifStream.builder().build(), null);
+        target.merge(now, "btc_jpy", null, null);
+
+    }
+
+}
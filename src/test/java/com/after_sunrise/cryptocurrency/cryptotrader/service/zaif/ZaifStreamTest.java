@@ -0,0 +1,57 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.service.zaif;
+
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import static java.math.BigDecimal.valueOf;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class ZaifStreamTest {
+
+    @Test
+    public void test() {
+
+        ZaifStream target = ZaifStream.builder()
+                .pair("btc_jpy")
+                .asks(Arrays.asList(
+                        new BigDecimal[]{valueOf(12), valueOf(2)},
+                        new BigDecimal[]{valueOf(11), valueOf(1)},
+                        new BigDecimal[]{valueOf(13)},
+                        null
+                ))
+                .bids(Arrays.asList(
+                        new BigDecimal[]{valueOf(9), valueOf(3)},
+                        new BigDecimal[]{valueOf(10), valueOf(4)},
+                        new BigDecimal[]{null, valueOf(5)}
+                ))
+                .last(ZaifStream.LastPrice.builder().action("ask").price(valueOf(10)).build())
+                .build();
+
+        assertEquals(target.getPair(), "btc_jpy");
+        assertEquals(target.getBestAskPrice(), valueOf(11));
+        assertEquals(target.getBestAskSize(), valueOf(1));
+        assertEquals(target.getBestBidPrice(), valueOf(10));
+        assertEquals(target.getBestBidSize(), valueOf(4));
+        assertEquals(target.getLastPrice(), valueOf(10));
+        assertEquals(target.getLast().getAction(), "ask");
+        assertEquals(target.getAsks().toString(), "{12=2, 11=1}");
+        assertEquals(target.getBids().toString(), "{9=3, 10=4}");
+
+        // Empty
+        target = ZaifStream.builder().build();
+        assertNull(target.getBestAskPrice());
+        assertNull(target.getBestBidSize());
+        assertNull(target.getLastPrice());
+        assertEquals(target.getAsks().size(), 0);
+        assertEquals(target.getBids().size(), 0);
+
+    }
+
+}
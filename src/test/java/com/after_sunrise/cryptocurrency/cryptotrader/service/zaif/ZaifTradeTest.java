@@ -20,14 +20,16 @@ public class ZaifTradeTest {
                 .timestamp(Instant.ofEpochMilli(1))
                 .price(BigDecimal.valueOf(2))
                 .size(BigDecimal.valueOf(3))
+                .id(4L)
                 .build();
 
         assertEquals(target.getTimestamp(), Instant.ofEpochMilli(1));
         assertEquals(target.getPrice(), BigDecimal.valueOf(2));
         assertEquals(target.getSize(), BigDecimal.valueOf(3));
+        assertEquals(target.getId(), (Long) 4L);
 
         assertEquals(target.toString(),
-                "ZaifTrade(timestamp=1970-01-01T00:00:00.001Z, price=2, size=3)"
+                "ZaifTrade(timestamp=1970-01-01T00:00:00.001Z, price=2, size=3, id=4)"
         );
 
     }
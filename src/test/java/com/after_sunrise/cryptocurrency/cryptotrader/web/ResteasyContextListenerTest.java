@@ -3,22 +3,39 @@ package com.after_sunrise.cryptocurrency.cryptotrader.web;
 import com.after_sunrise.cryptocurrency.cryptotrader.Cryptotrader;
 import com.after_sunrise.cryptocurrency.cryptotrader.core.ConfigurationProvider;
 import com.after_sunrise.cryptocurrency.cryptotrader.core.CryptotraderImpl;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.Key;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
 import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trader;
 import com.after_sunrise.cryptocurrency.cryptotrader.web.ResteasyContextListener.EndpointImpl;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import org.apache.commons.configuration2.MapConfiguration;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
 
+import static java.math.BigDecimal.ONE;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.apache.commons.lang3.math.NumberUtils.INTEGER_ONE;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 import static org.testng.Assert.*;
 
@@ -36,6 +53,8 @@ public class ResteasyContextListenerTest {
 
     private Trader trader;
 
+    private Context context;
+
     @BeforeMethod
     public void setUp() {
 
@@ -45,11 +64,14 @@ public class ResteasyContextListenerTest {
 
         trader = mock(Trader.class);
 
+        context = mock(Context.class);
+
         endpoint = new EndpointImpl(Guice.createInjector(new AbstractModule() {
             @Override
             protected void configure() {
                 bind(ConfigurationProvider.class).toInstance(provider);
                 bind(Trader.class).toInstance(trader);
+                bind(Context.class).toInstance(context);
             }
         }));
 
@@ -149,6 +171,174 @@ public class ResteasyContextListenerTest {
 
     }
 
+    @Test
+    public void testEndpointImpl_importTrades() {
+
+        when(context.importTrades(any(), any())).thenReturn(123L).thenReturn(null);
+
+        String result = endpoint.importTrades("s", "i", Arrays.asList("a.csv", "b\0.csv", "/tmp/b.json"));
+        assertEquals(result, "[{\"count\":123,\"path\":\"a.csv\"},"
+                + "{\"path\":\"b\\u0000.csv\"},{\"path\":\"/tmp/b.json\"}]");
+
+        ArgumentCaptor<Key> keys = ArgumentCaptor.forClass(Key.class);
+        ArgumentCaptor<Path> paths = ArgumentCaptor.forClass(Path.class);
+        verify(context, times(2)).importTrades(keys.capture(), paths.capture());
+        assertEquals(keys.getValue().getSite(), "s");
+        assertEquals(keys.getValue().getInstrument(), "i");
+        assertEquals(paths.getAllValues(), Arrays.asList(Paths.get("a.csv"), Paths.get("/tmp/b.json")));
+
+        assertEquals(endpoint.importTrades("s", "i", null), "[]");
+
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testEndpointImpl_getBars() throws Exception {
+
+        List<Trade> trades = Arrays.asList(
+                TradeHistoryTest.trade(1, "100", ONE),
+                TradeHistoryTest.trade(3, "110", new BigDecimal("2")),
+                TradeHistoryTest.trade(61, "120", ONE)
+        );
+
+        doAnswer(i -> {
+            trades.forEach(i.getArgumentAt(3, Consumer.class));
+            return true;
+        }).when(context).visitHistory(any(), any(), any(), any());
+
+        StreamingOutput output = endpoint.getBars("s", "i", "2017-09-12T16:00:00Z", "2017-09-12T16:02:00Z", "PT1M");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        output.write(out);
+        assertEquals(out.toString("UTF-8"), "["
+                + "{\"time\":\"2017-09-12T16:01:00Z\",\"open\":100,\"high\":110,\"low\":100,\"close\":110,"
+                + "\"size\":3,\"notional\":320,\"vwap\":106.66666667,\"count\":2},"
+                + "{\"time\":\"2017-09-12T16:02:00Z\",\"open\":120,\"high\":120,\"low\":120,\"close\":120,"
+                + "\"size\":1,\"notional\":120,\"vwap\":120.00000000,\"count\":1}]");
+
+        ArgumentCaptor<Key> keys = ArgumentCaptor.forClass(Key.class);
+        verify(context).visitHistory(keys.capture(), any(), any(), any());
+        assertEquals(keys.getValue().getSite(), "s");
+        assertEquals(keys.getValue().getInstrument(), "i");
+        assertEquals(keys.getValue().getTimestamp(), Instant.parse("2017-09-12T16:02:00Z"));
+
+        // Defaults
+        assertNotNull(endpoint.getBars("s", "i", null, null, null));
+
+        String[][] invalids = {
+                {"foo", null, null},
+                {null, "2017-09-12T16:02:00", null},
+                {null, null, "1"},
+                {null, null, "PT0S"},
+                {null, null, "-PT1M"},
+                {"2017-09-12T16:02:00Z", "2017-09-12T16:02:00Z", null},
+                {"2017-09-12T16:00:00Z", "2017-09-13T16:00:00Z", "PT0.1S"},
+        };
+
+        for (String[] invalid : invalids) {
+            try {
+                endpoint.getBars("s", "i", invalid[0], invalid[1], invalid[2]);
+                fail(Arrays.toString(invalid));
+            } catch (BadRequestException e) {
+                // Success
+            }
+        }
+
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testEndpointImpl_getVwap() {
+
+        String from = "2017-09-12T16:00:00Z";
+
+        String to = "2017-09-12T17:00:00Z";
+
+        List<Trade> trades = Arrays.asList(
+                TradeHistoryTest.trade(1, "100", ONE),
+                TradeHistoryTest.trade(1801, "110", new BigDecimal("2"))
+        );
+
+        doAnswer(i -> {
+            trades.forEach(i.getArgumentAt(3, Consumer.class));
+            return true;
+        }).when(context).visitHistory(any(), any(), any(), any());
+
+        assertEquals(endpoint.getVwap("s", "i", from, to), "{\"count\":2,\"from\":\"2017-09-12T16:00:00Z\","
+                + "\"notional\":320,\"size\":3,\"to\":\"2017-09-12T17:00:00Z\",\"vwap\":106.66666667}");
+
+        verify(context).visitHistory(any(), eq(Instant.parse(from)), eq(Instant.parse(to)), any());
+        verify(context, never()).summarizeTrades(any(), any(), any());
+        verify(context, never()).listTrades(any(), any());
+
+        // Not limited by the number of the buckets.
+        assertEquals(endpoint.getVwap("s", "i", "2016-09-12T16:00:00Z", to), "{\"count\":2,"
+                + "\"from\":\"2016-09-12T16:00:00Z\",\"notional\":320,\"size\":3,"
+                + "\"to\":\"2017-09-12T17:00:00Z\",\"vwap\":106.66666667}");
+
+        // No trades
+        doReturn(true).when(context).visitHistory(any(), any(), any(), any());
+
+        assertEquals(endpoint.getVwap("s", "i", from, to), "{\"count\":0,\"from\":\"2017-09-12T16:00:00Z\","
+                + "\"to\":\"2017-09-12T17:00:00Z\"}");
+
+        // Not kept
+        doReturn(false).when(context).visitHistory(any(), any(), any(), any());
+
+        try {
+            endpoint.getVwap("s", "i", from, to);
+            fail();
+        } catch (NotFoundException e) {
+            // Success
+        }
+
+        verify(context, never()).listTrades(any(), any());
+
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testEndpointImpl_getVolatility() {
+
+        List<Trade> trades = Arrays.asList(
+                TradeHistoryTest.trade(1, "100", ONE),
+                TradeHistoryTest.trade(61, "110", ONE),
+                TradeHistoryTest.trade(121, "100", ONE)
+        );
+
+        doAnswer(i -> {
+            trades.forEach(i.getArgumentAt(3, Consumer.class));
+            return true;
+        }).when(context).visitHistory(any(), any(), any(), any());
+
+        String result = endpoint.getVolatility("s", "i", "2017-09-12T16:00:00Z", "2017-09-12T16:03:00Z", "PT1M");
+
+        double volatility = Math.sqrt(Math.pow(Math.log(110.0 / 100), 2) + Math.pow(Math.log(100.0 / 110), 2));
+
+        assertEquals(result, "{\"annualized\":" + volatility * Math.sqrt(365 * 86400 / 180.0)
+                + ",\"from\":\"2017-09-12T16:00:00Z\",\"interval\":\"PT1M\",\"returns\":2,"
+                + "\"to\":\"2017-09-12T16:03:00Z\",\"volatility\":" + volatility + "}");
+
+        // No returns
+        doReturn(true).when(context).visitHistory(any(), any(), any(), any());
+
+        result = endpoint.getVolatility("s", "i", "2017-09-12T16:00:00Z", "2017-09-12T16:03:00Z", null);
+
+        assertEquals(result, "{\"from\":\"2017-09-12T16:00:00Z\",\"interval\":\"PT1M\",\"returns\":0,"
+                + "\"to\":\"2017-09-12T16:03:00Z\"}");
+
+        // Not kept
+        doReturn(false).when(context).visitHistory(any(), any(), any(), any());
+
+        try {
+            endpoint.getVolatility("s", "i", "2017-09-12T16:00:00Z", "2017-09-12T16:03:00Z", null);
+            fail();
+        } catch (NotFoundException e) {
+            // Success
+        }
+
+    }
+
     @Test
     public void testEndpointImpl_getLaunchTime() {
         assertNotNull(endpoint.getLaunchTime());
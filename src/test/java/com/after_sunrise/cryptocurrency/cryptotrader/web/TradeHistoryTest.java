@@ -0,0 +1,151 @@
+package com.after_sunrise.cryptocurrency.cryptotrader.web;
+
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Context.Key;
+import com.after_sunrise.cryptocurrency.cryptotrader.framework.Trade;
+import com.after_sunrise.cryptocurrency.cryptotrader.web.TradeHistory.Bucket;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static java.math.BigDecimal.ONE;
+import static java.math.BigDecimal.ZERO;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+/**
+ * @author takanori.takase
+ * @version 0.0.1
+ */
+public class TradeHistoryTest {
+
+    private static final Instant BASE = Instant.ofEpochSecond(1505232000);
+
+    private Context context;
+
+    private Key key;
+
+    private List<Trade> trades;
+
+    @BeforeMethod
+    public void setUp() {
+
+        context = mock(Context.class);
+
+        key = Key.builder().site("s").instrument("i").build();
+
+        trades = Arrays.asList(
+                trade(0, "90", ONE), // Excluded
+                trade(1, "100", ONE),
+                trade(3, "110", new BigDecimal("2")),
+                trade(2, "105", ONE), // Out of order
+                trade(60, "95", ONE),
+                trade(61, "120", ONE),
+                trade(70, "130", ZERO), // No size
+                trade(125, "121", new BigDecimal("0.5")),
+                trade(200, "200", ONE) // Excluded
+        );
+
+    }
+
+    static Trade trade(long seconds, String price, BigDecimal size) {
+
+        Trade trade = mock(Trade.class);
+
+        when(trade.getTimestamp()).thenReturn(BASE.plusSeconds(seconds));
+
+        when(trade.getPrice()).thenReturn(new BigDecimal(price));
+
+        when(trade.getSize()).thenReturn(size);
+
+        return trade;
+
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAggregate() {
+
+        doAnswer(i -> {
+            trades.forEach(i.getArgumentAt(3, Consumer.class));
+            return true;
+        }).when(context).visitHistory(any(), any(), any(), any());
+
+        TradeHistory target = TradeHistory.aggregate(context, key, BASE, BASE.plusSeconds(180), Duration.ofMinutes(1));
+
+        assertEquals(target.getFrom(), BASE);
+        assertEquals(target.getTo(), BASE.plusSeconds(180));
+        assertEquals(target.getInterval(), Duration.ofMinutes(1));
+        assertEquals(target.getBuckets().keySet().toString(),
+                "[2017-09-12T16:01:00Z, 2017-09-12T16:02:00Z, 2017-09-12T16:03:00Z]");
+
+        Bucket b = target.getBuckets().firstEntry().getValue();
+        assertEquals(b.getEnd(), BASE.plusSeconds(60));
+        assertEquals(b.getFirstTime(), BASE.plusSeconds(1));
+        assertEquals(b.getLastTime(), BASE.plusSeconds(60));
+        assertEquals(b.getOpen(), new BigDecimal("100"));
+        assertEquals(b.getHigh(), new BigDecimal("110"));
+        assertEquals(b.getLow(), new BigDecimal("95"));
+        assertEquals(b.getClose(), new BigDecimal("95"));
+        assertEquals(b.getSize(), new BigDecimal("5"));
+        assertEquals(b.getNotional(), new BigDecimal("520"));
+        assertEquals(b.getVwap(), new BigDecimal("104.00000000"));
+        assertEquals(b.getCount(), 4);
+
+        Bucket total = target.getTotal();
+        assertEquals(total.getEnd(), BASE.plusSeconds(180));
+        assertEquals(total.getOpen(), new BigDecimal("100"));
+        assertEquals(total.getHigh(), new BigDecimal("121"));
+        assertEquals(total.getLow(), new BigDecimal("95"));
+        assertEquals(total.getClose(), new BigDecimal("121"));
+        assertEquals(total.getSize(), new BigDecimal("6.5"));
+        assertEquals(total.getCount(), 6);
+
+        assertEquals(target.getReturns().size(), 2);
+        assertEquals(target.getReturns().firstEntry().getValue(), Math.log(120.0 / 95), 1e-12);
+        assertEquals(target.getReturns().lastEntry().getValue(), Math.log(121.0 / 120), 1e-12);
+
+        double expected = Math.sqrt(Math.pow(Math.log(120.0 / 95), 2) + Math.pow(Math.log(121.0 / 120), 2));
+        assertEquals(target.getVolatility(), expected, 1e-12);
+        assertEquals(target.getAnnualizedVolatility(), expected * Math.sqrt(365 * 24 * 20), 1e-9);
+
+        verify(context).visitHistory(eq(key), eq(BASE), eq(BASE.plusSeconds(180)), any());
+        verify(context, never()).listTrades(any(), any());
+
+    }
+
+    @Test
+    public void testAggregate_NotKept() {
+
+        when(context.listTrades(key, BASE)).thenReturn(trades);
+
+        when(context.visitHistory(any(), any(), any(), any())).thenReturn(false);
+
+        assertNull(TradeHistory.aggregate(context, key, BASE, BASE.plusSeconds(60), Duration.ofSeconds(30)));
+
+        verify(context, never()).listTrades(any(), any());
+
+    }
+
+    @Test
+    public void testAggregate_Empty() {
+
+        when(context.visitHistory(any(), any(), any(), any())).thenReturn(true);
+
+        TradeHistory target = TradeHistory.aggregate(context, key, BASE, BASE.plusSeconds(60), Duration.ofSeconds(30));
+        assertEquals(target.getBuckets().size(), 0);
+        assertNull(target.getTotal());
+        assertEquals(target.getReturns().size(), 0);
+        assertNull(target.getVolatility());
+        assertNull(target.getAnnualizedVolatility());
+
+    }
+
+}